@@ -0,0 +1,183 @@
+package org.labkey.api.sequenceanalysis;
+
+import org.apache.logging.log4j.Logger;
+import org.labkey.api.collections.CaseInsensitiveHashMap;
+import org.labkey.api.data.ColumnInfo;
+import org.labkey.api.data.Container;
+import org.labkey.api.data.DbScope;
+import org.labkey.api.data.Table;
+import org.labkey.api.data.TableInfo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Buffers rows destined for a single table and inserts them with batched JDBC statements, rather than one Table.insert() per row.
+ * This is intended for result tables like coverage or SNPs, where a single analysis can produce hundreds of thousands of rows and
+ * the caller does not need the generated keys.
+ *
+ * The INSERT statement is built once from the columns supplied to the constructor, so rows do not need to supply every field.
+ * Rows use the same map format as Table.insert(): keys are matched to columns case-insensitively, keys without a matching column in the table are ignored,
+ * and values are converted to the column's type.  Null is inserted for any of the writer's columns that a row omits.  Unlike Table.insert(), this does not
+ * populate container, created, modified or their user columns, so callers must supply these.
+ * Each batch is written in its own transaction, which joins the caller's transaction if one is open.
+ */
+public class BulkResultWriter implements AutoCloseable
+{
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    private final TableInfo _ti;
+    private final Logger _log;
+    private final int _batchSize;
+
+    private final List<ColumnInfo> _columns = new ArrayList<>();
+    private final Map<String, Integer> _columnIndexes = new CaseInsensitiveHashMap<>();
+    private final String _sql;
+    private final List<List<Object>> _batch = new ArrayList<>();
+    private long _totalWritten = 0;
+
+    public BulkResultWriter(TableInfo ti, Collection<String> columnNames, Logger log)
+    {
+        this(ti, columnNames, log, DEFAULT_BATCH_SIZE);
+    }
+
+    public BulkResultWriter(TableInfo ti, Collection<String> columnNames, Logger log, int batchSize)
+    {
+        _ti = ti;
+        _log = log;
+        _batchSize = batchSize;
+
+        StringBuilder names = new StringBuilder();
+        StringBuilder values = new StringBuilder();
+        for (String name : columnNames)
+        {
+            ColumnInfo col = _ti.getColumn(name);
+            if (col == null)
+            {
+                throw new IllegalArgumentException("Unknown column for table " + _ti.getName() + ": " + name);
+            }
+
+            if (col.isAutoIncrement())
+            {
+                throw new IllegalArgumentException("Cannot insert into auto-increment column: " + _ti.getName() + "." + name);
+            }
+
+            if (_columnIndexes.containsKey(col.getName()))
+            {
+                continue;
+            }
+
+            _columnIndexes.put(col.getName(), _columns.size());
+            _columns.add(col);
+            names.append(names.length() == 0 ? "" : ", ").append(col.getSelectName());
+            values.append(values.length() == 0 ? "?" : ", ?");
+        }
+
+        _sql = "INSERT INTO " + _ti.getSelectName() + " (" + names + ") VALUES (" + values + ")";
+    }
+
+    public void add(Map<String, Object> row)
+    {
+        _batch.add(getParameters(row));
+
+        if (_batch.size() >= _batchSize)
+        {
+            flush();
+        }
+    }
+
+    /**
+     * @return The values bound to the INSERT statement for this row, in the same order as the columns supplied to the constructor
+     */
+    public List<Object> getParameters(Map<String, Object> row)
+    {
+        Object[] params = new Object[_columns.size()];
+        for (Map.Entry<String, Object> e : row.entrySet())
+        {
+            Integer idx = _columnIndexes.get(e.getKey());
+            if (idx == null)
+            {
+                //a field that exists in the table but is not part of this statement would otherwise be silently dropped
+                if (_ti.getColumn(e.getKey()) != null)
+                {
+                    throw new IllegalArgumentException("Column was not included when this writer was created: " + _ti.getName() + "." + e.getKey());
+                }
+
+                continue;
+            }
+
+            params[idx] = convert(_columns.get(idx), e.getValue());
+        }
+
+        return Arrays.asList(params);
+    }
+
+    public void flush()
+    {
+        if (_batch.isEmpty())
+        {
+            return;
+        }
+
+        try (DbScope.Transaction transaction = _ti.getSchema().getScope().ensureTransaction())
+        {
+            Table.batchExecute(_ti.getSchema(), _sql, _batch);
+            transaction.commit();
+        }
+
+        _totalWritten += _batch.size();
+        _batch.clear();
+    }
+
+    public long getTotalWritten()
+    {
+        return _totalWritten;
+    }
+
+    @Override
+    public void close()
+    {
+        flush();
+        _log.debug("total rows inserted into " + _ti.getName() + ": " + _totalWritten);
+    }
+
+    private Object convert(ColumnInfo col, Object value)
+    {
+        if (value instanceof Container)
+        {
+            return ((Container)value).getId();
+        }
+
+        return value == null ? null : col.getJdbcType().convert(value);
+    }
+
+    /**
+     * Memoizes a lookup, such as resolving a file to its ExpData rowId, so rows that share a value only trigger one query.
+     * Null results are cached as well.
+     */
+    public static class LookupCache<K, V>
+    {
+        private final Map<K, V> _cache = new HashMap<>();
+        private final Function<K, V> _loader;
+
+        public LookupCache(Function<K, V> loader)
+        {
+            _loader = loader;
+        }
+
+        public V get(K key)
+        {
+            if (!_cache.containsKey(key))
+            {
+                _cache.put(key, _loader.apply(key));
+            }
+
+            return _cache.get(key);
+        }
+    }
+}
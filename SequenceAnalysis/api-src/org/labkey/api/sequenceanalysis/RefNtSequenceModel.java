@@ -15,6 +15,10 @@
  */
 package org.labkey.api.sequenceanalysis;
 
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.util.GZIIndex;
+import htsjdk.samtools.util.IOUtil;
 import htsjdk.samtools.util.StringUtil;
 import org.apache.commons.io.IOUtils;
 import org.apache.logging.log4j.Logger;
@@ -38,20 +42,23 @@
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.Serializable;
 import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 /**
  * Represents a record in sequenceanalysis.ref_nt_sequences.  Contains methods to assist with accessing/saving the sequence data,
- * which is stored in a gzipped text file on the filesystem.
+ * which is stored in a gzipped text file on the filesystem.  New files are BGZF-compressed, with a .gzi block index alongside, which allows
+ * a subsequence to be read by decompressing only the blocks that cover it.  Since BGZF is valid gzip, older plain gzip files are still read,
+ * and these are converted by ensureIndexedSequenceFile().
  */
 public class RefNtSequenceModel implements Serializable
 {
@@ -87,6 +94,7 @@ public class RefNtSequenceModel implements Serializable
     private Date _modified;
 
     private byte[] _sequenceBytes = null;
+    private transient GZIIndex _sequenceIndex = null;
 
     public RefNtSequenceModel()
     {
@@ -120,22 +128,165 @@ public void setName(String name)
 
     @Nullable @Transient
     public InputStream getSequenceInputStream() throws IOException
+    {
+        return getSequenceInputStream(0);
+    }
+
+    /**
+     * @param offset The 0-based position of the first base to read.  If the file is indexed, this seeks to the block containing it, otherwise the preceding bases are skipped.
+     */
+    @Nullable
+    public InputStream getSequenceInputStream(long offset) throws IOException
+    {
+        File f = getSequenceDataFile();
+        if (f == null)
+        {
+            return null;
+        }
+
+        GZIIndex index = getSequenceIndex(f);
+        if (index != null && offset > 0)
+        {
+            if (_seqLength != null && offset >= _seqLength)
+            {
+                return InputStream.nullInputStream();
+            }
+
+            BlockCompressedInputStream is = new BlockCompressedInputStream(f);
+            is.seek(index.getVirtualOffsetForSeek(offset));
+
+            return is;
+        }
+
+        InputStream is = new GZIPInputStream(new FileInputStream(f), 64 * 1024);
+        if (IOUtils.skip(is, offset) < offset)
+        {
+            is.close();
+            return InputStream.nullInputStream();
+        }
+
+        return is;
+    }
+
+    @Nullable
+    private File getSequenceDataFile()
     {
         if (_sequenceFile != null)
         {
             ExpData d = ExperimentService.get().getExpData(_sequenceFile);
-            if (d == null || !d.getFile().exists())
+            if (d == null || d.getFile() == null || !d.getFile().exists())
             {
                 _log.error("unable to find sequence file for Id: " + getRowid());
                 return null;
             }
 
-            return new GZIPInputStream(new FileInputStream(d.getFile()));
+            return d.getFile();
         }
 
         return null;
     }
 
+    public static File getSequenceIndexFile(File sequenceFile)
+    {
+        return new File(sequenceFile.getPath() + GZIIndex.DEFAULT_EXTENSION);
+    }
+
+    /**
+     * @return The block index for this file, or null if the file is not BGZF or the index is missing or older than the file
+     */
+    @Nullable
+    private GZIIndex getSequenceIndex(File sequenceFile) throws IOException
+    {
+        if (_sequenceIndex == null)
+        {
+            File indexFile = getSequenceIndexFile(sequenceFile);
+            if (indexFile.exists() && indexFile.lastModified() >= sequenceFile.lastModified())
+            {
+                _sequenceIndex = GZIIndex.loadIndex(indexFile.toPath());
+            }
+        }
+
+        return _sequenceIndex;
+    }
+
+    @Transient
+    public boolean isSequenceFileIndexed()
+    {
+        File f = getSequenceDataFile();
+        try
+        {
+            return f != null && getSequenceIndex(f) != null;
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Converts a plain gzip sequence file to BGZF and creates its block index, if not already done.  The converted file replaces the original,
+     * so the ExpData does not change.
+     * @return True if the file was converted
+     */
+    public boolean ensureIndexedSequenceFile() throws IOException
+    {
+        File f = getSequenceDataFile();
+        if (f == null || getSequenceIndex(f) != null)
+        {
+            return false;
+        }
+
+        if (!IOUtil.isBlockCompressed(f.toPath()))
+        {
+            File tmp = new File(f.getPath() + ".tmp");
+            try (InputStream is = new GZIPInputStream(new FileInputStream(f), 64 * 1024); OutputStream os = new BlockCompressedOutputStream(tmp))
+            {
+                IOUtils.copy(is, os, 64 * 1024);
+            }
+
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        createSequenceIndex(f);
+
+        return true;
+    }
+
+    private void createSequenceIndex(File sequenceFile) throws IOException
+    {
+        File indexFile = getSequenceIndexFile(sequenceFile);
+        File tmp = new File(indexFile.getPath() + ".tmp");
+        GZIIndex index = GZIIndex.buildIndex(sequenceFile.toPath());
+        index.writeIndex(tmp.toPath());
+        Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        _sequenceIndex = index;
+    }
+
+    /**
+     * Returns a 1-based, inclusive interval of the sequence.  If the whole sequence is not already cached, this reads only the interval from
+     * the file, and if the file is indexed, this only decompresses the blocks that cover it.
+     * @return The bases, which are truncated if the interval extends beyond the sequence, or null if there is no sequence file
+     */
+    @Nullable
+    public byte[] getSubsequence(int start, int end) throws IOException
+    {
+        if (start < 1 || end < start - 1)
+        {
+            throw new IllegalArgumentException("Improper interval: " + start + "-" + end);
+        }
+
+        if (_sequenceBytes != null)
+        {
+            return Arrays.copyOfRange(_sequenceBytes, Math.min(start - 1, _sequenceBytes.length), Math.min(end, _sequenceBytes.length));
+        }
+
+        try (InputStream is = getSequenceInputStream(start - 1))
+        {
+            return is == null ? null : is.readNBytes(end - start + 1);
+        }
+    }
+
     public boolean hasSequenceFile()
     {
         if (_sequenceFile != null)
@@ -420,11 +571,13 @@ public void createFileForSequence(User u, String sequence, @Nullable File outDir
             output.delete();
         }
 
-        try (PrintWriter writer = PrintWriters.getPrintWriter(new GZIPOutputStream(new FileOutputStream(output))))
+        try (PrintWriter writer = PrintWriters.getPrintWriter(new BlockCompressedOutputStream(output)))
         {
             writer.write(sequence);
         }
 
+        createSequenceIndex(output);
+
         Container c = getLabKeyContainer();
         ExpData d = ExperimentService.get().createData(c, new DataType("Sequence Data"));
         d.setName(output.getName());
@@ -486,6 +639,13 @@ public void writeSequence(Writer writer, int lineLength) throws IOException
 
     public void writeSequence(Writer writer, int lineLength, Integer start, Integer end) throws IOException
     {
+        //if only an interval is needed, avoid reading the whole sequence
+        if (_sequenceBytes == null && start != null && end != null && isSequenceFileIndexed())
+        {
+            writeBases(writer, lineLength, getSubsequence(Math.max(start, 1), end));
+            return;
+        }
+
         byte[] seq = getSequenceBases();
         if (start != null || end != null)
         {
@@ -507,6 +667,11 @@ else if (start != 0)
             seq = Arrays.copyOfRange(seq, start, end);
         }
 
+        writeBases(writer, lineLength, seq);
+    }
+
+    private void writeBases(Writer writer, int lineLength, @Nullable byte[] seq) throws IOException
+    {
         if (seq != null)
         {
             int len = seq.length;
@@ -533,6 +698,59 @@ else if (start != 0)
         }
     }
 
+    /**
+     * Streams the sequence, or a 1-based, inclusive interval of it, from the sequence file to the output, wrapping lines at lineLength.
+     * Unlike writeSequence(), this never holds the whole sequence in memory, so the buffer is the only allocation regardless of sequence length.
+     * Reading starts at the block containing the interval if the file is indexed, otherwise the preceding bases are skipped, and stops at its end.  The final line is always terminated with a newline.
+     *
+     * @param buffer A buffer that can be reused across calls
+     * @return The number of bases written, or -1 if there is no sequence file
+     */
+    public long writeSequence(OutputStream out, int lineLength, @Nullable Integer start, @Nullable Integer end, byte[] buffer) throws IOException
+    {
+        //always keep start 0-based
+        long offset = start == null || start == 0 ? 0 : start - 1;
+        try (InputStream is = getSequenceInputStream(offset))
+        {
+            if (is == null)
+            {
+                return -1;
+            }
+
+            long remaining = end == null ? Long.MAX_VALUE : Math.max(0, end - offset);
+
+            long written = 0;
+            int lineRemaining = lineLength;
+            int read;
+            while (remaining > 0 && (read = is.read(buffer, 0, (int)Math.min(buffer.length, remaining))) != -1)
+            {
+                remaining -= read;
+                written += read;
+
+                int offset = 0;
+                while (offset < read)
+                {
+                    int toWrite = lineLength <= 0 ? read - offset : Math.min(read - offset, lineRemaining);
+                    out.write(buffer, offset, toWrite);
+                    offset += toWrite;
+                    lineRemaining -= toWrite;
+                    if (lineRemaining == 0)
+                    {
+                        out.write('\n');
+                        lineRemaining = lineLength;
+                    }
+                }
+            }
+
+            if (written == 0 || lineRemaining != lineLength)
+            {
+                out.write('\n');
+            }
+
+            return written;
+        }
+    }
+
     public void clearCachedSequence()
     {
         _sequenceBytes = null;
@@ -12,6 +12,8 @@
 import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Created by bimber on 9/6/2014.
@@ -21,6 +23,9 @@
     public static final String INDEX_DIR = "alignerIndexes";
     public static final String COPY_LOCALLY = "copyGenomeLocally";
 
+    //when a job aligns several inputs at once, each alignment copies the index to the same folder, so copies to a given destination are serialized
+    private static final Map<String, Object> COPY_LOCKS = new ConcurrentHashMap<>();
+
     public static boolean hasCachedIndex(PipelineContext ctx, String name, ReferenceGenome genome) throws PipelineJobException
     {
         ctx.getLogger().debug("checking whether cached index exists: " + name);
@@ -102,7 +107,19 @@ private static boolean verifyOrCreateCachedIndex(PipelineContext ctx, @Nullable
                                 return false;
                             }
 
-                            destination = wd.inputFile(webserverIndexDir, destination, true);
+                            synchronized (COPY_LOCKS.computeIfAbsent(destination.getAbsolutePath(), x -> new Object()))
+                            {
+                                //NOTE: another alignment may be reading these files, so a complete copy is not replaced.  This means the index is copied once per job.
+                                if (isCopyComplete(webserverIndexDir, destination))
+                                {
+                                    ctx.getLogger().info("index was already copied to the work location");
+                                }
+                                else
+                                {
+                                    destination = wd.inputFile(webserverIndexDir, destination, true);
+                                }
+                            }
+
                             if (output != null && !destination.equals(webserverIndexDir))
                             {
                                 ctx.getLogger().debug("adding deferred delete file: " + destination.getPath());
@@ -138,6 +155,28 @@ private static boolean verifyOrCreateCachedIndex(PipelineContext ctx, @Nullable
         return hasCachedIndex;
     }
 
+    /**
+     * @return True if every file in the source folder exists in the destination with the same size
+     */
+    private static boolean isCopyComplete(File source, File destination)
+    {
+        if (!destination.exists())
+        {
+            return false;
+        }
+
+        for (File f : FileUtils.listFiles(source, null, true))
+        {
+            File copy = new File(destination, source.toPath().relativize(f.toPath()).toString());
+            if (!copy.exists() || copy.length() != f.length())
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
     public static void saveCachedIndex(boolean hasCachedIndex, PipelineContext ctx, File indexDir, String name, ReferenceGenome genome) throws PipelineJobException
     {
         if (!hasCachedIndex && genome != null && !genome.isTemporaryGenome())
@@ -63,6 +63,15 @@ default boolean supportsMetrics()
 
     public boolean supportsGzipFastqs();
 
+    /**
+     * If true, the pipeline may run several alignments of this type at once within a job, dividing the job's threads and RAM between them.
+     * This should only be true for aligners whose memory use is modest relative to the job, since each concurrent run loads its own index.
+     */
+    default boolean supportsConcurrentAlignments()
+    {
+        return false;
+    }
+
     @Override
     AlignmentStepProvider getProvider();
 
@@ -0,0 +1,27 @@
+package org.labkey.api.sequenceanalysis.pipeline;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.pipeline.PipelineJobException;
+import org.labkey.api.sequenceanalysis.model.Readset;
+
+/**
+ * A BamProcessingStep that can operate on one alignment at a time.  When consecutive steps implement this, the alignment pipeline
+ * applies them in a single pass over the BAM, rather than calling processBam() on each and writing a new BAM per step.
+ * processBam() is still used when the step is run on its own.
+ */
+public interface BamRecordTransformStep extends BamProcessingStep
+{
+    /**
+     * Called once, before any records are transformed
+     * @return The header of the output BAM.  This can be the same object as the input, modified in place.
+     */
+    public SAMFileHeader transformHeader(Readset rs, SAMFileHeader header) throws PipelineJobException;
+
+    /**
+     * @return The transformed record, which can be the same object, or null if this record should be omitted from the output
+     */
+    @Nullable
+    public SAMRecord transformRecord(SAMRecord record);
+}
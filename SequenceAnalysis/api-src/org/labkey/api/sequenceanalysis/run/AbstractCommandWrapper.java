@@ -22,6 +22,7 @@
 import org.jetbrains.annotations.Nullable;
 import org.labkey.api.pipeline.PipelineJobException;
 import org.labkey.api.pipeline.PipelineJobService;
+import org.labkey.api.sequenceanalysis.pipeline.SequencePipelineService;
 import org.labkey.api.util.StringUtilsLabKey;
 
 import java.io.BufferedReader;
@@ -49,6 +50,7 @@ abstract public class AbstractCommandWrapper implements CommandWrapper
     private Integer _lastReturnCode = null;
     private Map<String, String> _environment = new HashMap<>();
     private List<String> _commandsExecuted = new ArrayList<>();
+    private CommandResourceMonitor.ResourceUsage _lastResourceUsage = null;
 
     public AbstractCommandWrapper(@Nullable Logger logger)
     {
@@ -108,6 +110,25 @@ public ProcessBuilder getProcessBuilder(List<String> params)
         ProcessBuilder pb = new ProcessBuilder(params);
         setPath(pb);
 
+        //tools that size themselves from these variables should see the limits of the current thread, which are lower when a job runs tools concurrently
+        if (pb.environment().containsKey("SEQUENCEANALYSIS_MAX_THREADS"))
+        {
+            Integer threads = SequencePipelineService.get().getMaxThreads(getLogger());
+            if (threads != null)
+            {
+                pb.environment().put("SEQUENCEANALYSIS_MAX_THREADS", threads.toString());
+            }
+        }
+
+        if (pb.environment().containsKey("SEQUENCEANALYSIS_MAX_RAM"))
+        {
+            Integer maxRam = SequencePipelineService.get().getMaxRam();
+            if (maxRam != null)
+            {
+                pb.environment().put("SEQUENCEANALYSIS_MAX_RAM", maxRam.toString());
+            }
+        }
+
         if (!_environment.isEmpty())
         {
             pb.environment().putAll(_environment);
@@ -129,8 +150,9 @@ public void executeWithOutput(List<String> params, StringBuffer output) throws P
 
     private void execute(List<String> params, ProcessBuilder.Redirect redirect, @Nullable StringBuffer output) throws PipelineJobException
     {
-        getLogger().info("\t" + StringUtils.join(params, " "));
-        _commandsExecuted.add(StringUtils.join(params, " "));
+        String command = StringUtils.join(params, " ");
+        getLogger().info("\t" + command);
+        _commandsExecuted.add(command);
 
         ProcessBuilder pb = getProcessBuilder(params);
         pb.redirectErrorStream(false);
@@ -148,9 +170,11 @@ private void execute(List<String> params, ProcessBuilder.Redirect redirect, @Nul
         }
 
         Process p = null;
+        CommandResourceMonitor monitor = null;
         try
         {
             p = pb.start();
+            monitor = CommandResourceMonitor.start(p);
             try (BufferedReader procReader = new BufferedReader(new InputStreamReader(redirect == null ? p.getInputStream() : p.getErrorStream(), StringUtilsLabKey.DEFAULT_CHARSET)))
             {
                 String line;
@@ -167,6 +191,11 @@ private void execute(List<String> params, ProcessBuilder.Redirect redirect, @Nul
             }
 
             _lastReturnCode = p.waitFor();
+            _lastResourceUsage = monitor.stop();
+            monitor = null;
+            CommandResourceMonitor.recordUsage(getLogger(), command, _lastResourceUsage);
+            getLogger().info("\tresource usage: " + _lastResourceUsage);
+
             if (_lastReturnCode != 0 && _warnNonZeroExits)
             {
                 getLogger().warn("\tprocess exited with non-zero value: " + _lastReturnCode);
@@ -183,6 +212,11 @@ private void execute(List<String> params, ProcessBuilder.Redirect redirect, @Nul
         }
         finally
         {
+            if (monitor != null)
+            {
+                monitor.stop();
+            }
+
             if (p != null)
             {
                 p.destroy();
@@ -195,6 +229,15 @@ public Integer getLastReturnCode()
         return _lastReturnCode;
     }
 
+    /**
+     * @return The resources used by the last command executed, sampled from /proc
+     */
+    @Nullable
+    public CommandResourceMonitor.ResourceUsage getLastResourceUsage()
+    {
+        return _lastResourceUsage;
+    }
+
     private void setPath(ProcessBuilder pb)
     {
         // Update PATH environment variable to make sure all files in the tools
@@ -0,0 +1,399 @@
+package org.labkey.api.sequenceanalysis.run;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Samples the resources used by an external process and all of its descendants from /proc, while the process runs.
+ * Each sample sums CPU time and IO across the live process tree, including the totals the kernel adds to a parent when it reaps a child
+ * (cutime/cstime and /proc/[pid]/io), so children that start and exit between samples are still counted.  Peak RSS is the largest sum across
+ * the process tree in any sample.
+ *
+ * Once the process has been reaped by the JVM, its final CPU time, including all descendants it waited for, is added to the CPU time of the JVM's children.
+ * When no other monitored command ran at the same time, the change in that value is used, so short commands and work done after the last sample
+ * are counted.  Otherwise, the last sample is used.  On systems without /proc, only the wall time is recorded.
+ */
+public class CommandResourceMonitor
+{
+    private static final long FIRST_SAMPLE_MS = 200;
+    private static final long SAMPLE_INTERVAL_MS = 2000;
+    private static final int MAX_RECORDED_COMMANDS = 1000;
+
+    //NOTE: this is the standard value on linux, which is used since the JVM does not expose sysconf(_SC_CLK_TCK)
+    private static final int CLOCK_TICKS_PER_SECOND = 100;
+    private static final File PROC = new File("/proc");
+
+    private static final ScheduledExecutorService _sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "CommandResourceMonitor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    //monitors whose process is running, used to determine whether the change in the JVM's child CPU time can be attributed to one command
+    private static final Set<CommandResourceMonitor> _active = new HashSet<>();
+
+    //the usage of recent commands, per logger.  Pipeline jobs each have their own logger, so concurrent jobs running the same command are kept separate.
+    private static final Map<Logger, Map<String, ResourceUsage>> _recentUsage = new WeakHashMap<>();
+
+    private final Process _process;
+    private final long _startTime;
+    private final long[] _startChildCpuMs;
+    private boolean _overlapped = false;
+    private long _userCpuMs = 0;
+    private long _systemCpuMs = 0;
+    private long _bytesRead = 0;
+    private long _bytesWritten = 0;
+    private long _peakRss = 0;
+    private ScheduledFuture<?> _future = null;
+
+    private CommandResourceMonitor(Process process, long[] startChildCpuMs)
+    {
+        _process = process;
+        _startTime = System.currentTimeMillis();
+        _startChildCpuMs = startChildCpuMs;
+    }
+
+    public static CommandResourceMonitor start(Process process)
+    {
+        CommandResourceMonitor monitor = new CommandResourceMonitor(process, getChildCpuMs(readStat(new File(PROC, "self"))));
+        synchronized (_active)
+        {
+            if (!_active.isEmpty())
+            {
+                monitor._overlapped = true;
+                _active.forEach(m -> m._overlapped = true);
+            }
+
+            _active.add(monitor);
+        }
+
+        if (PROC.isDirectory())
+        {
+            monitor._future = _sampler.scheduleAtFixedRate(monitor::sample, FIRST_SAMPLE_MS, SAMPLE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+
+        return monitor;
+    }
+
+    /**
+     * Stops sampling.  This should be called after the process has exited.
+     */
+    public synchronized ResourceUsage stop()
+    {
+        if (_future != null)
+        {
+            _future.cancel(false);
+        }
+
+        boolean overlapped;
+        synchronized (_active)
+        {
+            _active.remove(this);
+            overlapped = _overlapped;
+        }
+
+        ResourceUsage usage = new ResourceUsage(System.currentTimeMillis() - _startTime);
+        usage._userCpuMs = _userCpuMs;
+        usage._systemCpuMs = _systemCpuMs;
+        usage._peakRss = _peakRss;
+        usage._bytesRead = _bytesRead;
+        usage._bytesWritten = _bytesWritten;
+
+        long[] endChildCpuMs = getChildCpuMs(readStat(new File(PROC, "self")));
+        if (!overlapped && !_process.isAlive() && _startChildCpuMs != null && endChildCpuMs != null)
+        {
+            usage._userCpuMs = Math.max(usage._userCpuMs, endChildCpuMs[0] - _startChildCpuMs[0]);
+            usage._systemCpuMs = Math.max(usage._systemCpuMs, endChildCpuMs[1] - _startChildCpuMs[1]);
+        }
+
+        return usage;
+    }
+
+    private synchronized void sample()
+    {
+        try
+        {
+            long userCpuMs = 0;
+            long systemCpuMs = 0;
+            long bytesRead = 0;
+            long bytesWritten = 0;
+            long totalRss = 0;
+            List<ProcessHandle> handles = Stream.concat(Stream.of(_process.toHandle()), _process.descendants()).collect(Collectors.toList());
+            for (ProcessHandle h : handles)
+            {
+                File dir = new File(PROC, String.valueOf(h.pid()));
+                String[] stat = readStat(dir);
+                if (stat == null)
+                {
+                    continue;
+                }
+
+                //a process's own time plus the time of the children it has reaped
+                userCpuMs += ticksToMs(Long.parseLong(stat[11]) + Long.parseLong(stat[13]));
+                systemCpuMs += ticksToMs(Long.parseLong(stat[12]) + Long.parseLong(stat[14]));
+
+                //these include the IO of reaped children
+                Map<String, Long> io = readKeyValues(new File(dir, "io"));
+                bytesRead += io.getOrDefault("read_bytes", 0L);
+                bytesWritten += io.getOrDefault("write_bytes", 0L);
+
+                //VmRSS is reported in kB
+                totalRss += readKeyValues(new File(dir, "status")).getOrDefault("VmRSS", 0L) * 1024;
+            }
+
+            //a child can exit before its parent reaps it, so totals are only allowed to increase
+            _userCpuMs = Math.max(_userCpuMs, userCpuMs);
+            _systemCpuMs = Math.max(_systemCpuMs, systemCpuMs);
+            _bytesRead = Math.max(_bytesRead, bytesRead);
+            _bytesWritten = Math.max(_bytesWritten, bytesWritten);
+            _peakRss = Math.max(_peakRss, totalRss);
+        }
+        catch (RuntimeException e)
+        {
+            //sampling should never interfere with the command itself
+        }
+    }
+
+    /**
+     * @return The user and system CPU time, in milliseconds, of the children this process has reaped, or null if unknown
+     */
+    @Nullable
+    private static long[] getChildCpuMs(@Nullable String[] stat)
+    {
+        if (stat == null)
+        {
+            return null;
+        }
+
+        return new long[]{ticksToMs(Long.parseLong(stat[13])), ticksToMs(Long.parseLong(stat[14]))};
+    }
+
+    private static long ticksToMs(long ticks)
+    {
+        return ticks * 1000 / CLOCK_TICKS_PER_SECOND;
+    }
+
+    /**
+     * @return The fields of /proc/[pid]/stat following the command name, or null if the process no longer exists.
+     * The command name is skipped since it can contain spaces, so field N of proc(5) is at index N - 3.
+     */
+    @Nullable
+    private static String[] readStat(File procDir)
+    {
+        try
+        {
+            String line = Files.readString(new File(procDir, "stat").toPath());
+            int idx = line.lastIndexOf(')');
+            if (idx == -1)
+            {
+                return null;
+            }
+
+            String[] tokens = line.substring(idx + 1).trim().split(" ");
+
+            return tokens.length < 20 ? null : tokens;
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Parses files like /proc/[pid]/status and /proc/[pid]/io, which have one 'key: value' pair per line.  Only numeric values are retained.
+     */
+    private static Map<String, Long> readKeyValues(File file)
+    {
+        Map<String, Long> ret = new HashMap<>();
+        try
+        {
+            for (String line : Files.readAllLines(file.toPath()))
+            {
+                int idx = line.indexOf(':');
+                if (idx == -1)
+                {
+                    continue;
+                }
+
+                String[] tokens = line.substring(idx + 1).trim().split("\\s+");
+                try
+                {
+                    ret.put(line.substring(0, idx), Long.parseLong(tokens[0]));
+                }
+                catch (NumberFormatException e)
+                {
+                    //non-numeric value
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            //the process has exited, or this file is not readable
+        }
+
+        return ret;
+    }
+
+    public static void recordUsage(Logger log, String command, ResourceUsage usage)
+    {
+        synchronized (_recentUsage)
+        {
+            _recentUsage.computeIfAbsent(log, x -> new LinkedHashMap<>(16, 0.75f, true)
+            {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, ResourceUsage> eldest)
+                {
+                    return size() > MAX_RECORDED_COMMANDS;
+                }
+            }).put(command, usage);
+        }
+    }
+
+    /**
+     * Returns and removes the usage of the most recent execution of this command using this logger, so a later run of the same command is not reported twice
+     */
+    @Nullable
+    public static ResourceUsage takeUsage(Logger log, String command)
+    {
+        synchronized (_recentUsage)
+        {
+            Map<String, ResourceUsage> usage = _recentUsage.get(log);
+
+            return usage == null ? null : usage.remove(command);
+        }
+    }
+
+    public static class ResourceUsage
+    {
+        public static final List<String> COLUMNS = List.of("WallTimeMs", "UserCpuMs", "SystemCpuMs", "PeakRssBytes", "BytesRead", "BytesWritten", "ThreadUtilization");
+
+        private final long _wallTimeMs;
+        private long _userCpuMs = 0;
+        private long _systemCpuMs = 0;
+        private long _peakRss = 0;
+        private long _bytesRead = 0;
+        private long _bytesWritten = 0;
+
+        private ResourceUsage(long wallTimeMs)
+        {
+            _wallTimeMs = wallTimeMs;
+        }
+
+        public long getWallTimeMs()
+        {
+            return _wallTimeMs;
+        }
+
+        public long getUserCpuMs()
+        {
+            return _userCpuMs;
+        }
+
+        public long getSystemCpuMs()
+        {
+            return _systemCpuMs;
+        }
+
+        public long getPeakRss()
+        {
+            return _peakRss;
+        }
+
+        public long getBytesRead()
+        {
+            return _bytesRead;
+        }
+
+        public long getBytesWritten()
+        {
+            return _bytesWritten;
+        }
+
+        /**
+         * @return The average number of cores in use over the life of the command, which is the total CPU time divided by the wall time
+         */
+        public double getThreadUtilization()
+        {
+            return _wallTimeMs == 0 ? 0 : (double)(_userCpuMs + _systemCpuMs) / _wallTimeMs;
+        }
+
+        /**
+         * @return The values, in the order of COLUMNS
+         */
+        public List<String> getValues()
+        {
+            return List.of(String.valueOf(_wallTimeMs), String.valueOf(_userCpuMs), String.valueOf(_systemCpuMs), String.valueOf(_peakRss), String.valueOf(_bytesRead), String.valueOf(_bytesWritten), String.format("%.2f", getThreadUtilization()));
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("wall: %.1fs, user: %.1fs, sys: %.1fs, peak RSS: %dMB, read: %dMB, written: %dMB, threads: %.2f", _wallTimeMs / 1000.0, _userCpuMs / 1000.0, _systemCpuMs / 1000.0, _peakRss >> 20, _bytesRead >> 20, _bytesWritten >> 20, getThreadUtilization());
+        }
+    }
+
+    public static class TestCase extends Assert
+    {
+        @Test
+        public void testProcFileParsing() throws Exception
+        {
+            File dir = Files.createTempDirectory("CommandResourceMonitor").toFile();
+            try
+            {
+                //the command name can contain spaces and parentheses
+                Files.writeString(new File(dir, "stat").toPath(), "1234 (my (cmd) x) S 1 1234 1234 0 -1 4194560 500 0 0 0 250 30 12 4 20 0 1 0 98765 1000000 200 18446744073709551615\n");
+                String[] stat = readStat(dir);
+                assertNotNull("Stat not parsed", stat);
+                assertEquals("Incorrect state", "S", stat[0]);
+                assertEquals("Incorrect utime", "250", stat[11]);
+                assertEquals("Incorrect stime", "30", stat[12]);
+                assertEquals("Incorrect cutime", "12", stat[13]);
+                assertEquals("Incorrect cstime", "4", stat[14]);
+                assertEquals("Incorrect start time", "98765", stat[19]);
+
+                Files.writeString(new File(dir, "stat").toPath(), "1234 (cmd) S 1 1234\n");
+                assertNull("Truncated stat should not be parsed", readStat(dir));
+                assertNull("Missing stat should not be parsed", readStat(new File(dir, "missing")));
+
+                File status = new File(dir, "status");
+                Files.writeString(status.toPath(), "Name:\tjava\nVmPeak:\t  204800 kB\nVmRSS:\t   10240 kB\nThreads:\t12\n");
+                Map<String, Long> values = readKeyValues(status);
+                assertEquals("Incorrect VmRSS", Long.valueOf(10240), values.get("VmRSS"));
+                assertEquals("Incorrect threads", Long.valueOf(12), values.get("Threads"));
+                assertFalse("Non-numeric values should be skipped", values.containsKey("Name"));
+
+                File io = new File(dir, "io");
+                Files.writeString(io.toPath(), "rchar: 5000\nwchar: 100\nread_bytes: 4096\nwrite_bytes: 8192\n");
+                values = readKeyValues(io);
+                assertEquals("Incorrect read_bytes", Long.valueOf(4096), values.get("read_bytes"));
+                assertEquals("Incorrect write_bytes", Long.valueOf(8192), values.get("write_bytes"));
+
+                assertTrue("Missing file should return no values", readKeyValues(new File(dir, "missing")).isEmpty());
+            }
+            finally
+            {
+                FileUtils.deleteDirectory(dir);
+            }
+        }
+    }
+}
@@ -133,7 +133,6 @@
 import org.labkey.api.view.UnauthorizedException;
 import org.labkey.api.view.template.ClientDependency;
 import org.labkey.api.view.template.PageConfig;
-import org.labkey.api.writer.PrintWriters;
 import org.labkey.sequenceanalysis.model.AnalysisModelImpl;
 import org.labkey.sequenceanalysis.model.ReferenceLibraryMember;
 import org.labkey.sequenceanalysis.pipeline.AlignmentAnalysisJob;
@@ -164,6 +163,7 @@
 import org.labkey.sequenceanalysis.util.ChainFileValidator;
 import org.labkey.sequenceanalysis.util.FastqUtils;
 import org.labkey.sequenceanalysis.util.SequenceUtil;
+import org.labkey.sequenceanalysis.util.ZipExportWriter;
 import org.labkey.sequenceanalysis.visualization.VariationChart;
 import org.springframework.beans.PropertyValues;
 import org.springframework.validation.BindException;
@@ -173,15 +173,15 @@
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.io.PrintStream;
-import java.io.PrintWriter;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
@@ -196,9 +196,6 @@
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 import static org.labkey.sequenceanalysis.SequenceIntegrationTests.PIPELINE_PROP_NAME;
 
@@ -1555,7 +1552,8 @@ public void export(MergeFastqFilesForm form, HttpServletResponse response, BindE
             }
             filename += ".fastq.gz";
 
-            Set<File> files = new HashSet<>();
+            //NOTE: the order of the request is retained
+            Set<File> files = new LinkedHashSet<>();
             for (Integer id : form.getDataIds())
             {
                 ExpData d = ExperimentService.get().getExpData(id);
@@ -1571,41 +1569,22 @@ public void export(MergeFastqFilesForm form, HttpServletResponse response, BindE
                 {
                     continue;
                 }
+                if (!d.getFile().exists())
+                {
+                    throw new NotFoundException("File " + d.getFile().getPath() + " does not exist");
+                }
                 files.add(d.getFile());
             }
 
+            //gzipped inputs are sent as-is, since concatenated gzip members are a valid gzip file. The length is only known if every input is gzipped.
             PageFlowUtil.prepareResponseForFile(response, Collections.emptyMap(), filename, true);
-            FileInputStream in = null;
-            GZIPInputStream gis = null;
-            FileType gz = new FileType(".gz");
-            try
-            {
-                for (File f : files)
-                {
-                    if (!f.exists())
-                    {
-                        throw new NotFoundException("File " + f.getPath() + " does not exist");
-                    }
-                    in = new FileInputStream(f);
-
-                    if (!gz.isType(f))
-                    {
-                        gis = new GZIPInputStream(in);
-                        IOUtils.copy(gis, response.getOutputStream());
-                    }
-                    else
-                    {
-                        IOUtils.copy(in, response.getOutputStream());
-                    }
-                }
-            }
-            finally
+            long length = FastqUtils.getGzipConcatenationLength(files);
+            if (length > -1)
             {
-                if (in != null)
-                    in.close();
-                if (gis != null)
-                    gis.close();
+                response.setContentLengthLong(length);
             }
+
+            FastqUtils.concatenateAsGzip(files, Channels.newChannel(response.getOutputStream()));
         }
     }
 
@@ -3110,6 +3089,7 @@ public void export(DownloadReferencesForm form, final HttpServletResponse respon
             final StringExpressionFactory.FieldKeyStringExpression se = StringExpressionFactory.URLStringExpression.create(form.getHeaderFormat(), false, StringExpressionFactory.AbstractStringExpression.NullValueBehavior.ReplaceNullWithBlank);
             Set<FieldKey> keys = new HashSet<>(se.getFieldKeys());
             keys.add(FieldKey.fromString("sequenceFile"));
+            keys.add(FieldKey.fromString("seqLength"));
             keys.add(FieldKey.fromString("container"));
             keys.add(FieldKey.fromString("rowid"));
             TableInfo ti = QueryService.get().getUserSchema(getUser(), getContainer(), SequenceAnalysisSchema.SCHEMA_NAME).getTable(SequenceAnalysisSchema.TABLE_REF_NT_SEQUENCES);
@@ -3121,88 +3101,81 @@ public void export(DownloadReferencesForm form, final HttpServletResponse respon
             final Map<FieldKey, ColumnInfo> cols = QueryService.get().getColumns(ti, keys);
             final JSONObject intervalMap = StringUtils.trimToNull(form.getIntervals()) == null ? new JSONObject() : new JSONObject(form.getIntervals());
             PageFlowUtil.prepareResponseForFile(response, Collections.emptyMap(), filename, true);
-            TableSelector ts = new TableSelector(ti, cols.values(), new SimpleFilter(FieldKey.fromString("rowid"), Arrays.asList(form.getRowIds()), CompareType.IN), null);
-            ts.forEach(new Selector.ForEachBlock<ResultSet>()
+
+            //NOTE: sequences are streamed from the sequence files through a single buffer, rather than loaded as Strings, since these can be chromosome-sized
+            final byte[] buffer = new byte[64 * 1024];
+            try (OutputStream out = new BufferedOutputStream(response.getOutputStream(), 64 * 1024))
             {
-                @Override
-                public void exec(ResultSet object) throws SQLException
+                TableSelector ts = new TableSelector(ti, cols.values(), new SimpleFilter(FieldKey.fromString("rowid"), Arrays.asList(form.getRowIds()), CompareType.IN), null);
+                ts.forEach(new Selector.ForEachBlock<ResultSet>()
                 {
-                    Results rs = new ResultsImpl(object, cols);
-                    Integer rowId = rs.getInt(FieldKey.fromString("rowid"));
-                    String header = se.eval(rs.getFieldKeyRowMap());
-                    RefNtSequenceModel model = new RefNtSequenceModel();
-                    if (rs.getObject(FieldKey.fromString("sequenceFile")) != null)
-                        model.setSequenceFile(rs.getInt(FieldKey.fromString("sequenceFile")));
+                    @Override
+                    public void exec(ResultSet object) throws SQLException
+                    {
+                        Results rs = new ResultsImpl(object, cols);
+                        Integer rowId = rs.getInt(FieldKey.fromString("rowid"));
+                        String header = se.eval(rs.getFieldKeyRowMap());
+                        RefNtSequenceModel model = new RefNtSequenceModel();
+                        if (rs.getObject(FieldKey.fromString("sequenceFile")) != null)
+                            model.setSequenceFile(rs.getInt(FieldKey.fromString("sequenceFile")));
 
-                    model.setContainer(rs.getString(FieldKey.fromString("container")));
+                        if (rs.getObject(FieldKey.fromString("seqLength")) != null)
+                            model.setSeqLength(rs.getInt(FieldKey.fromString("seqLength")));
 
-                    try
-                    {
-                        if (intervalMap.containsKey(rowId.toString()))
-                        {
-                            String wholeSequence = model.getSequence();
-                            if (wholeSequence == null)
-                            {
-                                errors.reject("Unable to find sequence for: " + rowId);
-                                return;
-                            }
+                        model.setContainer(rs.getString(FieldKey.fromString("container")));
 
-                            for (String t : intervalMap.getString(rowId.toString()).split(","))
+                        try
+                        {
+                            if (intervalMap.containsKey(rowId.toString()))
                             {
-                                String[] coordinates = t.split("-");
-                                if (coordinates.length != 2)
+                                if (!model.hasSequenceFile())
                                 {
-                                    errors.reject("Inproper interval: [" + t + "]");
+                                    errors.reject("Unable to find sequence for: " + rowId);
                                     return;
                                 }
 
-                                Integer start = StringUtils.trimToNull(coordinates[0]) == null ? null : ConvertHelper.convert(coordinates[0], Integer.class);
-                                if (wholeSequence.length() < start)
+                                for (String t : intervalMap.getString(rowId.toString()).split(","))
                                 {
-                                    errors.reject("Start is beyond the length of the sequence.  Length: " + wholeSequence.length());
-                                    return;
+                                    String[] coordinates = t.split("-");
+                                    if (coordinates.length != 2)
+                                    {
+                                        errors.reject("Inproper interval: [" + t + "]");
+                                        return;
+                                    }
+
+                                    Integer start = StringUtils.trimToNull(coordinates[0]) == null ? null : ConvertHelper.convert(coordinates[0], Integer.class);
+                                    if (start != null && model.getSeqLength() != null && model.getSeqLength() < start)
+                                    {
+                                        errors.reject("Start is beyond the length of the sequence.  Length: " + model.getSeqLength());
+                                        return;
+                                    }
+
+                                    Integer stop = StringUtils.trimToNull(coordinates[1]) == null ? null : ConvertHelper.convert(coordinates[1], Integer.class);
+                                    if (stop != null && model.getSeqLength() != null && model.getSeqLength() < stop)
+                                    {
+                                        errors.reject("Stop is beyond the length of the sequence.  Length: " + model.getSeqLength());
+                                        return;
+                                    }
+
+                                    out.write((">" + header + "_" + start + "-" + stop + "\n").getBytes(StandardCharsets.UTF_8));
+                                    model.writeSequence(out, lineLength, start, stop, buffer);
                                 }
-
-                                Integer stop = StringUtils.trimToNull(coordinates[1]) == null ? null : ConvertHelper.convert(coordinates[1], Integer.class);
-                                if (wholeSequence.length() < stop)
+                            }
+                            else
+                            {
+                                out.write((">" + header + "\n").getBytes(StandardCharsets.UTF_8));
+                                if (model.writeSequence(out, lineLength, null, null, buffer) == -1)
                                 {
-                                    errors.reject("Stop is beyond the length of the sequence.  Length: " + wholeSequence.length());
-                                    return;
+                                    out.write('\n');
                                 }
-
-                                response.getWriter().write(">" + header + "_" + start + "-" + stop + "\n");
-
-                                //convert start to 0-based
-                                writeSequence(wholeSequence.substring(start == null || start == 0 ? null : start - 1, stop), lineLength, response);
                             }
                         }
-                        else
+                        catch (IOException e)
                         {
-                            response.getWriter().write(">" + header + "\n");
-                            writeSequence(model.getSequence(), lineLength, response);
+                            throw new SQLException(e);
                         }
                     }
-                    catch (IOException e)
-                    {
-                        throw new SQLException(e);
-                    }
-                }
-            });
-        }
-
-        private void writeSequence(String seq, int lineLength, HttpServletResponse response) throws IOException
-        {
-            if (seq != null)
-            {
-                int len = seq.length();
-                for (int i = 0; i < len; i += lineLength)
-                {
-                    response.getWriter().write(seq.substring(i, Math.min(len, i + lineLength)) + "\n");
-                }
-            }
-            else
-            {
-                response.getWriter().write("\n");
+                });
             }
         }
     }
@@ -3675,7 +3648,7 @@ public void export(ExportSequenceFilesForm form, HttpServletResponse response, B
                 filename += ".zip";
             }
 
-            Set<File> files = new HashSet<>();
+            Set<File> files = new LinkedHashSet<>();
             FileType bamFileType = new FileType("bam");
             FileType fastaFileType = new FileType("fasta", FileType.gzSupportLevel.SUPPORT_GZ);
             FileType gzFileType = new FileType("gz");
@@ -3733,56 +3706,44 @@ else if (fastaFileType.isType(data.getFile()))
                 }
             }
 
-            PageFlowUtil.prepareResponseForFile(response, Collections.emptyMap(), filename, true);
-
-            try (ZipOutputStream zOut = new ZipOutputStream(response.getOutputStream()))
+            //NOTE: already-compressed files are STORED, and the CRCs of these are calculated up front, in parallel
+            ZipExportWriter writer = new ZipExportWriter();
+            Set<String> fileNames = new CaseInsensitiveHashSet();
+            for (File f : files)
             {
-                Set<String> fileNames = new CaseInsensitiveHashSet();
-                for (File f : files)
+                if (!f.exists())
                 {
-                    if (!f.exists())
-                    {
-                        throw new NotFoundException("File " + f.getPath() + " does not exist");
-                    }
+                    throw new NotFoundException("File " + f.getPath() + " does not exist");
+                }
 
-                    String name = f.getName();
-                    if (fileNames.contains(name))
+                String name = f.getName();
+                if (fileNames.contains(name))
+                {
+                    int i = 1;
+                    String newName = name;
+                    while (fileNames.contains(newName))
                     {
-                        int i = 1;
-                        String newName = name;
-                        while (fileNames.contains(newName))
-                        {
-                            newName = FileUtil.getBaseName(name) + "." + i + "." + FileUtil.getExtension(name);
-                            i++;
-                        }
-
-                        name = newName;
+                        newName = FileUtil.getBaseName(name) + "." + i + "." + FileUtil.getExtension(name);
+                        i++;
                     }
-                    fileNames.add(name);
 
-                    ZipEntry fileEntry = new ZipEntry(name);
-                    zOut.putNextEntry(fileEntry);
+                    name = newName;
+                }
+                fileNames.add(name);
 
-                    try (FileInputStream in = new FileInputStream(f))
-                    {
-                        IOUtils.copy(in, zOut);
-                        zOut.closeEntry();
-                    }
-                    catch (Exception e)
-                    {
-                        // insert the stack trace into the zip file
-                        ZipEntry errorEntry = new ZipEntry("error.log");
-                        zOut.putNextEntry(errorEntry);
+                writer.addFile(name, f);
+            }
 
-                        try (PrintWriter ps = PrintWriters.getPrintWriter(new PrintStream(zOut, true)))
-                        {
-                            ps.println("Failed to complete export of the file: " + f.getPath());
-                            _log.error(e.getMessage(), e);
-                        }
-                        zOut.closeEntry();
-                    }
-                }
+            writer.prepare(Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+            PageFlowUtil.prepareResponseForFile(response, Collections.emptyMap(), filename, true);
+            long length = writer.getLength();
+            if (length > -1)
+            {
+                response.setContentLengthLong(length);
             }
+
+            writer.write(response.getOutputStream());
         }
     }
 
@@ -239,9 +239,23 @@ private void processContainer(Container c, Logger log) throws IOException
                     return;
                 }
 
+                //migrate older plain gzip files to BGZF with a block index, which allows subsequences to be read without decompressing the whole file
+                try
+                {
+                    if (m.ensureIndexedSequenceFile())
+                    {
+                        log.info("converted sequence file to BGZF: " + m.getRowid() + " " + m.getName());
+                    }
+                }
+                catch (IOException e)
+                {
+                    log.error("unable to convert sequence file to BGZF: " + m.getRowid() + ", " + d.getFile().getPath(), e);
+                }
+
                 if (d.getFile().getAbsolutePath().toLowerCase().startsWith(sequenceDir.getAbsolutePath().toLowerCase()))
                 {
                     expectedSequences.add(d.getFile().getName());
+                    expectedSequences.add(RefNtSequenceModel.getSequenceIndexFile(d.getFile()).getName());
                 }
             });
 
@@ -63,6 +63,7 @@
 import org.labkey.api.security.User;
 import org.labkey.api.security.UserManager;
 import org.labkey.api.security.permissions.DeletePermission;
+import org.labkey.api.sequenceanalysis.BulkResultWriter;
 import org.labkey.api.sequenceanalysis.GenomeTrigger;
 import org.labkey.api.sequenceanalysis.RefNtSequenceModel;
 import org.labkey.api.sequenceanalysis.SequenceOutputFile;
@@ -932,5 +933,44 @@ public void testJars()
             assertNotNull("Unable to find fastqcDir dir", fastqcDir);
             assertTrue("fastqcDir dir does not exist: " + fastqcDir.getPath(), fastqcDir.exists());
         }
+
+        @Test
+        public void testBulkResultWriterParameters()
+        {
+            TableInfo ti = SequenceAnalysisSchema.getInstance().getSchema().getTable(SequenceAnalysisSchema.TABLE_QUALITY_METRICS);
+            BulkResultWriter writer = new BulkResultWriter(ti, Arrays.asList("container", "readset", "metricname", "metricvalue", "dataid"), _log);
+
+            Container c = ContainerManager.getSharedContainer();
+            Map<String, Object> row = new HashMap<>();
+            row.put("Container", c);
+            row.put("READSET", "5");
+            row.put("metricName", "Total Reads");
+            row.put("metricvalue", "1.5");
+            row.put("notAColumn", "value");
+
+            List<Object> params = writer.getParameters(row);
+            assertEquals("Incorrect parameter count", 5, params.size());
+            assertEquals("Incorrect container", c.getId(), params.get(0));
+            assertEquals("Incorrect readset", 5, params.get(1));
+            assertEquals("Incorrect metricname", "Total Reads", params.get(2));
+            assertEquals("Incorrect metricvalue", 1.5, (Double)params.get(3), 0.0);
+            assertNull("Omitted column should be null", params.get(4));
+
+            //rows with different fields share the same statement
+            params = writer.getParameters(Collections.singletonMap("DataId", 10));
+            assertEquals("Incorrect parameter count", 5, params.size());
+            assertEquals("Incorrect dataid", 10, params.get(4));
+            assertNull("Omitted column should be null", params.get(1));
+
+            try
+            {
+                writer.getParameters(Collections.singletonMap("analysis_id", 1));
+                fail("Expected a column not supplied to the writer to be rejected");
+            }
+            catch (IllegalArgumentException e)
+            {
+                //expected
+            }
+        }
     }
 }
\ No newline at end of file
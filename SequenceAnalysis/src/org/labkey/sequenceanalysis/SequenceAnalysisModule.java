@@ -32,12 +32,14 @@
 import org.labkey.api.ldk.buttons.ShowBulkEditButton;
 import org.labkey.api.ldk.buttons.ShowEditUIButton;
 import org.labkey.api.module.ModuleContext;
+import org.labkey.api.module.ModuleLoader;
 import org.labkey.api.pipeline.PipelineService;
 import org.labkey.api.search.SearchService;
 import org.labkey.api.security.permissions.UpdatePermission;
 import org.labkey.api.sequenceanalysis.SequenceAnalysisService;
 import org.labkey.api.sequenceanalysis.pipeline.PipelineStep;
 import org.labkey.api.sequenceanalysis.pipeline.SequencePipelineService;
+import org.labkey.api.sequenceanalysis.run.CommandResourceMonitor;
 import org.labkey.api.util.PageFlowUtil;
 import org.labkey.api.util.SystemMaintenance;
 import org.labkey.api.view.WebPartFactory;
@@ -74,6 +76,7 @@
 import org.labkey.sequenceanalysis.pipeline.ReferenceLibraryPipelineProvider;
 import org.labkey.sequenceanalysis.pipeline.SequenceAlignmentJob;
 import org.labkey.sequenceanalysis.pipeline.SequenceAlignmentTask;
+import org.labkey.sequenceanalysis.pipeline.SequenceJobResourceAllocator;
 import org.labkey.sequenceanalysis.pipeline.SequenceJobSupportImpl;
 import org.labkey.sequenceanalysis.pipeline.SequenceOutputHandlerPipelineProvider;
 import org.labkey.sequenceanalysis.pipeline.SequencePipelineProvider;
@@ -89,6 +92,7 @@
 import org.labkey.sequenceanalysis.run.alignment.MosaikWrapper;
 import org.labkey.sequenceanalysis.run.alignment.StarWrapper;
 import org.labkey.sequenceanalysis.run.analysis.BamIterator;
+import org.labkey.sequenceanalysis.run.analysis.DeferredAlignments;
 import org.labkey.sequenceanalysis.run.analysis.ExportOverlappingReadsAnalysis;
 import org.labkey.sequenceanalysis.run.analysis.HaplotypeCallerAnalysis;
 import org.labkey.sequenceanalysis.run.analysis.ImmunoGenotypingAnalysis;
@@ -98,6 +102,7 @@
 import org.labkey.sequenceanalysis.run.analysis.PARalyzerAnalysis;
 import org.labkey.sequenceanalysis.run.analysis.PangolinHandler;
 import org.labkey.sequenceanalysis.run.analysis.PindelAnalysis;
+import org.labkey.sequenceanalysis.run.analysis.ReadMismatchBuffer;
 import org.labkey.sequenceanalysis.run.analysis.SequenceBasedTypingAnalysis;
 import org.labkey.sequenceanalysis.run.analysis.SnpCountAnalysis;
 import org.labkey.sequenceanalysis.run.analysis.SubreadAnalysis;
@@ -154,8 +159,17 @@
 import org.labkey.sequenceanalysis.run.variant.VariantsToTableStep;
 import org.labkey.sequenceanalysis.run.variant.VcfComparisonStep;
 import org.labkey.sequenceanalysis.util.Barcoder;
+import org.labkey.sequenceanalysis.util.BgzfVcfConcatenator;
 import org.labkey.sequenceanalysis.util.ChainFileValidator;
+import org.labkey.sequenceanalysis.util.DepthOfCoverageIndex;
+import org.labkey.sequenceanalysis.util.FastqUtils;
+import org.labkey.sequenceanalysis.util.IndexedFastaWriter;
+import org.labkey.sequenceanalysis.util.OrderedBatchProcessor;
+import org.labkey.sequenceanalysis.util.ParallelBgzfOutputStream;
 import org.labkey.sequenceanalysis.util.ScatterGatherUtils;
+import org.labkey.sequenceanalysis.util.SequenceTagIndex;
+import org.labkey.sequenceanalysis.util.VcfStats;
+import org.labkey.sequenceanalysis.util.ZipExportWriter;
 
 import java.util.Arrays;
 import java.util.Collection;
@@ -391,6 +405,16 @@ public void doStartupAfterSpringConfig(ModuleContext moduleContext)
         //NOTE: because this is not called on the remote server, startup tasks have been moved to the following:
         new PipelineStartup();
 
+        //the cluster module is optional, so its API is only referenced when it is present
+        if (ModuleLoader.getInstance().getModule("Cluster") != null)
+        {
+            SequenceJobResourceAllocator.register();
+        }
+        else
+        {
+            _log.info("Cluster module not present, cluster resource requests will not be estimated from previous sequence jobs");
+        }
+
         LaboratoryService.get().registerDataProvider(new SequenceProvider(this));
         SequenceAnalysisService.get().registerDataProvider(new SequenceProvider(this));
 
@@ -480,7 +504,19 @@ public Set<Class> getUnitTests()
                 VariantProcessingJob.TestCase.class,
                 ScatterGatherUtils.TestCase.class,
                 ChainFileValidator.TestCase.class,
-                FastqcRunner.TestCase.class
+                FastqcRunner.TestCase.class,
+                ReadMismatchBuffer.TestCase.class,
+                DeferredAlignments.TestCase.class,
+                SequenceTagIndex.TestCase.class,
+                OrderedBatchProcessor.TestCase.class,
+                ParallelBgzfOutputStream.TestCase.class,
+                BgzfVcfConcatenator.TestCase.class,
+                VcfStats.TestCase.class,
+                DepthOfCoverageIndex.TestCase.class,
+                FastqUtils.TestCase.class,
+                ZipExportWriter.TestCase.class,
+                IndexedFastaWriter.TestCase.class,
+                CommandResourceMonitor.TestCase.class
         );
     }
 
@@ -311,7 +311,7 @@ public Integer getMaxRam()
             maxRam = "-1".equals(maxRamStr) ? null : Integer.parseInt(maxRamStr);
         }
 
-        return maxRam;
+        return SequenceTaskHelper.applyRamLimit(maxRam);
     }
 
     @Override
@@ -335,6 +335,7 @@ public List<String> getJavaOpts(@Nullable Integer maxRamOverride)
         Integer maxRam = getMaxRam();
         if (maxRamOverride != null)
         {
+            maxRamOverride = SequenceTaskHelper.applyRamLimit(maxRamOverride);
             params.add("-Xmx" + maxRamOverride + "g");
             params.add("-Xms" + maxRamOverride + "g");
         }
@@ -34,9 +34,9 @@
 import org.labkey.api.view.ActionURL;
 import org.labkey.api.writer.PrintWriters;
 import org.labkey.sequenceanalysis.SequenceAnalysisModule;
-import org.labkey.sequenceanalysis.pipeline.ProcessVariantsHandler;
 import org.labkey.sequenceanalysis.run.util.LiftoverVcfWrapper;
 import org.labkey.sequenceanalysis.util.SequenceUtil;
+import org.labkey.sequenceanalysis.util.VcfStats;
 
 import java.io.File;
 import java.io.IOException;
@@ -321,20 +321,20 @@ public void liftOverVcf(JobContext ctx, ReferenceGenome targetGenome, ReferenceG
         Long mapped = null;
         if (output.exists())
         {
-            String mappedStr = ProcessVariantsHandler.getVCFLineCount(output, job.getLogger(), false);
-            mapped = StringUtils.trimToNull(mappedStr) == null ? 0L : Long.parseLong(mappedStr);
-            job.getLogger().info("total variants mapped: " + mappedStr);
-            job.getLogger().info("passing variants mapped: " + ProcessVariantsHandler.getVCFLineCount(output, job.getLogger(), true));
+            VcfStats stats = VcfStats.getStats(output, job.getLogger());
+            mapped = stats.getTotal();
+            job.getLogger().info("total variants mapped: " + mapped);
+            job.getLogger().info("passing variants mapped: " + stats.getPassing());
             SequenceAnalysisService.get().ensureVcfIndex(output, job.getLogger());
         }
 
         Long unmapped = 0L;
         if (unmappedOutput != null && unmappedOutput.exists())
         {
-            String unmappedStr = ProcessVariantsHandler.getVCFLineCount(output, job.getLogger(), false);
-            unmapped = StringUtils.trimToNull(unmappedStr) == null ? 0L : Long.parseLong(unmappedStr);
-            job.getLogger().info("total unmapped variants: " + unmappedStr);
-            job.getLogger().info("passing unmapped variants: " + ProcessVariantsHandler.getVCFLineCount(output, job.getLogger(), true));
+            VcfStats stats = VcfStats.getStats(unmappedOutput, job.getLogger());
+            unmapped = stats.getTotal();
+            job.getLogger().info("total unmapped variants: " + unmapped);
+            job.getLogger().info("passing unmapped variants: " + stats.getPassing());
             SequenceAnalysisService.get().ensureVcfIndex(unmappedOutput, job.getLogger());
         }
 
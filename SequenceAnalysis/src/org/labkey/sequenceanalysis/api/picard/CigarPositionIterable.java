@@ -190,6 +190,21 @@ public PositionInfo(SAMRecord record, int pos, char[] ops, Integer[] readPos, In
             }
         }
 
+        /**
+         * Creates a PositionInfo from values that have already been calculated, such as by ReadMismatchBuffer
+         */
+        public PositionInfo(SAMRecord record, CigarOperator op, int readPos, int refPos, int lastReadPos, int lastRefPos, int indel)
+        {
+            _record = record;
+            _op = op;
+            _pos = -1;
+            _readPos = readPos;
+            _refPos = refPos;
+            _lastReadPos = lastReadPos;
+            _lastRefPos = lastRefPos;
+            _indel = indel;
+        }
+
         /**
          * @return The zero-based position relative to the start of the reference, -1 indicates an insertion
          */
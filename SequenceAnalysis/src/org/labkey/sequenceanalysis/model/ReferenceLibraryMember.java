@@ -171,6 +171,12 @@ public RefNtSequenceModel getSequenceModel()
         return _model;
     }
 
+    @JsonIgnore
+    public void setSequenceModel(RefNtSequenceModel model)
+    {
+        _model = model;
+    }
+
     @JsonIgnore
     public String getHeaderName()
     {
@@ -184,7 +190,16 @@ public String getHeaderName()
         {
             if (getStop() == null)
             {
-                setStop(getSequenceModel().getSequence().length());
+                //prefer the stored length, which avoids reading the sequence
+                if (getSequenceModel().getSeqLength() != null)
+                {
+                    setStop(getSequenceModel().getSeqLength());
+                }
+                else
+                {
+                    setStop(getSequenceModel().getSequence().length());
+                    getSequenceModel().clearCachedSequence();
+                }
             }
 
             if (getStart() == null)
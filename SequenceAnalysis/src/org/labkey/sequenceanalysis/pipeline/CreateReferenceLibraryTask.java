@@ -19,8 +19,10 @@
 import htsjdk.variant.utils.SAMSequenceDictionaryExtractor;
 import org.apache.commons.io.FileUtils;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.labkey.api.collections.CaseInsensitiveHashMap;
 import org.labkey.api.collections.CaseInsensitiveHashSet;
+import org.labkey.api.data.CompareType;
 import org.labkey.api.data.SimpleFilter;
 import org.labkey.api.data.Sort;
 import org.labkey.api.data.Table;
@@ -43,7 +45,6 @@
 import org.labkey.api.sequenceanalysis.SequenceAnalysisService;
 import org.labkey.api.sequenceanalysis.pipeline.ReferenceGenome;
 import org.labkey.api.sequenceanalysis.pipeline.ReferenceGenomeManager;
-import org.labkey.api.sequenceanalysis.run.CreateSequenceDictionaryWrapper;
 import org.labkey.api.util.FileType;
 import org.labkey.api.util.FileUtil;
 import org.labkey.api.util.Job;
@@ -55,9 +56,12 @@
 import org.labkey.sequenceanalysis.SequenceAnalysisSchema;
 import org.labkey.sequenceanalysis.SequenceAnalysisServiceImpl;
 import org.labkey.sequenceanalysis.model.ReferenceLibraryMember;
-import org.labkey.sequenceanalysis.run.util.FastaIndexer;
+import org.labkey.sequenceanalysis.util.IndexedFastaWriter;
+import org.labkey.sequenceanalysis.util.OrderedBatchProcessor;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -66,7 +70,9 @@
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.stream.Collectors;
 
 /**
  * User: bbimber
@@ -75,6 +81,12 @@
  */
 public class CreateReferenceLibraryTask extends PipelineJob.Task<CreateReferenceLibraryTask.Factory>
 {
+    private static final int BATCH_SIZE = 8;
+    private static final int MODEL_BATCH_SIZE = 1000;
+
+    //sequences longer than this are streamed on the writing thread, which bounds the memory used by sequences in flight
+    private static final int MAX_BUFFERED_LENGTH = 1000000;
+
     protected CreateReferenceLibraryTask(Factory factory, PipelineJob job)
     {
         super(factory, job);
@@ -130,6 +142,7 @@ public RecordedActionSet run() throws PipelineJobException
         }
 
         getJob().getLogger().info("there are " + libraryMembers.size() + " sequences to process");
+        loadSequenceModels(libraryMembers);
 
         //make sure sequence names are unique
         Set<String> names = new CaseInsensitiveHashSet();
@@ -273,64 +286,42 @@ public RecordedActionSet run() throws PipelineJobException
 
             //TODO: check whether to build ChrUn
 
-            //then gather sequences and create the FASTA
-            try (PrintWriter writer = PrintWriters.getPrintWriter(fasta); PrintWriter idWriter = PrintWriters.getPrintWriter(idFile))
+            //then gather sequences and create the FASTA.  Sequences are read and decompressed on a pool of threads, and written in order on this thread,
+            //which also creates the .fai and .dict, so these do not require separate passes over the FASTA
+            Integer threads = SequenceTaskHelper.getMaxThreads(getJob());
+            OrderedBatchProcessor<ReferenceLibraryMember, byte[]> processor = new OrderedBatchProcessor<>(threads == null ? 1 : threads, BATCH_SIZE);
+            final byte[] buffer = new byte[64 * 1024];
+            final int[] idx = new int[]{0};
+            final int total = libraryMembers.size();
+            try (IndexedFastaWriter writer = new IndexedFastaWriter(fasta, 60); PrintWriter idWriter = PrintWriters.getPrintWriter(idFile))
             {
                 idWriter.write("RowId\tName\tAccession\tStart\tStop\tType\n");
 
-                int idx = 0;
-                for (ReferenceLibraryMember lm : libraryMembers)
-                {
-                    idx++;
+                processor.process(libraryMembers.iterator(), lm -> isStreamed(lm) ? null : readSequence(lm), (lm, bases) -> {
+                    idx[0]++;
 
                     RefNtSequenceModel model = lm.getSequenceModel();
                     String name = lm.getHeaderName();
 
                     getJob().getLogger().info("processing sequence: " + name + " [" + model.getRowid() + "]");
-                    if (idx % 1000 == 0)
+                    if (idx[0] % 1000 == 0)
                     {
-                        getJob().setStatus(PipelineJob.TaskStatus.running, String.format("Processing %d of %d", idx, libraryMembers.size()));
+                        getJob().setStatus(PipelineJob.TaskStatus.running, String.format("Processing %d of %d", idx[0], total));
                     }
 
-                    writer.write(">" + name + "\n");
-                    model.writeSequence(writer, 60, lm.getStart(), lm.getStop());
+                    writer.startSequence(name);
+                    if (bases == null)
+                    {
+                        //large sequences are streamed rather than held in memory
+                        streamSequence(lm, writer, buffer);
+                    }
+                    else
+                    {
+                        writer.appendBases(bases, 0, bases.length);
+                    }
 
                     idWriter.write(model.getRowid() + "\t" + model.getName() + "\t" + (model.getGenbank() == null ? "" : model.getGenbank()) + "\t" + (lm.getStart() == null ? "" : lm.getStart()) + "\t" + (lm.getStop() == null ? "" : lm.getStop())  + "\t" + (lm.getType() == null ? "" : lm.getType()) + "\n");
-
-                    model.clearCachedSequence();
-                }
-            }
-
-            try
-            {
-                FastaIndexer indexer = new FastaIndexer(getJob().getLogger());
-
-                File index = indexer.getExpectedIndexName(fasta);
-                if (index.exists())
-                {
-                    index.delete();
-                }
-                indexer.execute(fasta);
-            }
-            catch (PipelineJobException e)
-            {
-                getJob().getLogger().warn("Unable to create FASTA index");
-            }
-
-            try
-            {
-                File dict = new File(outputDir, basename + ".dict");
-                if (dict.exists())
-                {
-                    getJob().getLogger().info("deleting existing dictionary");
-                    dict.delete();
-                }
-                CreateSequenceDictionaryWrapper wrapper = new CreateSequenceDictionaryWrapper(getJob().getLogger());
-                wrapper.execute(fasta, true);
-            }
-            catch (PipelineJobException e)
-            {
-                getJob().getLogger().warn("Unable to create sequence dictionary");
+                });
             }
 
             ExpData d = ExperimentService.get().createData(getJob().getContainer(), new DataType("ReferenceLibrary"));
@@ -459,4 +450,83 @@ private ReferenceLibraryPipelineJob getPipelineJob()
     {
         return (ReferenceLibraryPipelineJob)getJob();
     }
+
+    /**
+     * Loads the sequence records for all members with one query per batch of IDs, rather than one query per member
+     */
+    private void loadSequenceModels(List<ReferenceLibraryMember> libraryMembers)
+    {
+        List<Integer> ids = libraryMembers.stream().map(ReferenceLibraryMember::getRefNtId).filter(Objects::nonNull).distinct().collect(Collectors.toList());
+        Map<Integer, RefNtSequenceModel> models = new HashMap<>();
+        TableInfo ti = SequenceAnalysisSchema.getTable(SequenceAnalysisSchema.TABLE_REF_NT_SEQUENCES);
+        for (int i = 0; i < ids.size(); i += MODEL_BATCH_SIZE)
+        {
+            List<Integer> batch = ids.subList(i, Math.min(ids.size(), i + MODEL_BATCH_SIZE));
+            new TableSelector(ti, new SimpleFilter(FieldKey.fromString("rowid"), batch, CompareType.IN), null).forEach(RefNtSequenceModel.class, m -> models.put(m.getRowid(), m));
+        }
+
+        for (ReferenceLibraryMember lm : libraryMembers)
+        {
+            if (models.containsKey(lm.getRefNtId()))
+            {
+                lm.setSequenceModel(models.get(lm.getRefNtId()));
+            }
+        }
+    }
+
+    /**
+     * @return The 0-based position of the first base of this member
+     */
+    private static long getOffset(ReferenceLibraryMember lm)
+    {
+        return lm.getStart() == null || lm.getStart() == 0 ? 0 : lm.getStart() - 1;
+    }
+
+    private static boolean isStreamed(ReferenceLibraryMember lm)
+    {
+        if (lm.getStop() != null)
+        {
+            return lm.getStop() - getOffset(lm) > MAX_BUFFERED_LENGTH;
+        }
+
+        return lm.getSequenceModel().getSeqLength() == null || lm.getSequenceModel().getSeqLength() - getOffset(lm) > MAX_BUFFERED_LENGTH;
+    }
+
+    /**
+     * @return The bases of this member, or null if the sequence file was not found
+     */
+    @Nullable
+    private static byte[] readSequence(ReferenceLibraryMember lm) throws IOException
+    {
+        //NOTE: the model is not used to read the sequence, since it would cache the whole sequence, and members can share models
+        try (InputStream is = lm.getSequenceModel().getSequenceInputStream(getOffset(lm)))
+        {
+            if (is == null)
+            {
+                return null;
+            }
+
+            return lm.getStop() == null ? is.readAllBytes() : is.readNBytes((int)Math.max(0, lm.getStop() - getOffset(lm)));
+        }
+    }
+
+    private void streamSequence(ReferenceLibraryMember lm, IndexedFastaWriter writer, byte[] buffer) throws IOException
+    {
+        try (InputStream is = lm.getSequenceModel().getSequenceInputStream(getOffset(lm)))
+        {
+            if (is == null)
+            {
+                getJob().getLogger().error("no sequence found for refId: " + lm.getRefNtId());
+                return;
+            }
+
+            long remaining = lm.getStop() == null ? Long.MAX_VALUE : lm.getStop() - getOffset(lm);
+            int read;
+            while (remaining > 0 && (read = is.read(buffer, 0, (int)Math.min(buffer.length, remaining))) != -1)
+            {
+                writer.appendBases(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+    }
 }
@@ -28,6 +28,8 @@
 import org.labkey.api.util.FileType;
 import org.labkey.api.util.Formats;
 import org.labkey.api.util.Pair;
+import org.labkey.sequenceanalysis.util.OrderedBatchProcessor;
+import org.labkey.sequenceanalysis.util.ParallelBgzfOutputStream;
 
 import java.io.BufferedOutputStream;
 import java.io.File;
@@ -41,6 +43,8 @@
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.zip.GZIPOutputStream;
 
 /**
@@ -64,6 +68,11 @@
     private Logger _logger;
     private static FileType FASTQ_FILETYPE = new FileType(Arrays.asList("fastq", "fq"), "fastq", FileType.gzSupportLevel.SUPPORT_GZ);
     private boolean _outputGzip = false;
+    private int _threads = 1;
+    private ExecutorService _executor = null;
+
+    private static final int BATCH_SIZE = 5000;
+    private static final int MAX_PENDING_BLOCKS = 16;
 
     public IlluminaFastqSplitter(@Nullable String outputPrefix, Map<String, SampleIdType> sampleMap, Logger logger, List<File> files)
     {
@@ -113,7 +122,14 @@ public Map<Pair<SampleIdType, Integer>, File> parseFastqFiles() throws PipelineJ
         _fileMap = new HashMap<>();
         _sequenceTotals = new HashMap<>();
 
-        int _parsedReads;
+        if (_threads > 1)
+        {
+            _logger.info("Using " + _threads + " threads");
+            _executor = Executors.newFixedThreadPool(_threads);
+        }
+
+        //parsing and compression share one pool, so the total number of threads does not exceed what the job requested
+        OrderedBatchProcessor<FastqRecord, Pair<String, Integer>> processor = new OrderedBatchProcessor<>(_executor, _threads, BATCH_SIZE);
 
         try
         {
@@ -124,16 +140,14 @@ public Map<Pair<SampleIdType, Integer>, File> parseFastqFiles() throws PipelineJ
                     _logger.info("Beginning to parse file: " + f.getName());
                     File targetDir = _destinationDir == null ? f.getParentFile() : _destinationDir;
 
-                    _parsedReads = 0;
+                    final int[] parsedReads = new int[]{0};
 
                     try (FastqReader reader = new FastqReader(f))
                     {
-                        while (reader.hasNext())
-                        {
-                            FastqRecord fq = reader.next();
-                            String header = fq.getReadHeader();
-                            IlluminaReadHeader parsedHeader = new IlluminaReadHeader(header);
-                            String illuminaSampleId = null;
+                        //parsing the header runs on the worker threads, while writing happens in the original order on this thread
+                        processor.process(reader.iterator(), fq -> {
+                            IlluminaReadHeader parsedHeader = new IlluminaReadHeader(fq.getReadHeader());
+                            String illuminaSampleId;
                             if (parsedHeader.getIndexSequenceString() != null)
                             {
                                 illuminaSampleId = parsedHeader.getIndexSequenceString();
@@ -143,23 +157,23 @@ public Map<Pair<SampleIdType, Integer>, File> parseFastqFiles() throws PipelineJ
                                 illuminaSampleId  = "S" + parsedHeader.getSampleNum();
                             }
 
-                            int pairNumber = parsedHeader.getPairNumber();
-
-                            FastqWriter writer = getWriter(illuminaSampleId, targetDir, pairNumber);
+                            return Pair.of(illuminaSampleId, parsedHeader.getPairNumber());
+                        }, (fq, sample) -> {
+                            FastqWriter writer = getWriter(sample.first, targetDir, sample.second);
                             if (writer != null)
                             {
                                 writer.write(fq);
 
-                                _parsedReads++;
-                                updateCount(illuminaSampleId, pairNumber);
+                                parsedReads[0]++;
+                                updateCount(sample.first, sample.second);
 
-                                if (0 == _parsedReads % 25000)
-                                    logReadsProgress(_parsedReads);
+                                if (0 == parsedReads[0] % 25000)
+                                    logReadsProgress(parsedReads[0]);
                             }
-                        }
+                        });
 
-                        if (0 != _parsedReads % 25000)
-                            logReadsProgress(_parsedReads);
+                        if (0 != parsedReads[0] % 25000)
+                            logReadsProgress(parsedReads[0]);
 
                         _logger.info("Finished parsing file: " + f.getName());
                     }
@@ -177,6 +191,12 @@ public Map<Pair<SampleIdType, Integer>, File> parseFastqFiles() throws PipelineJ
                 if (pair.second != null)
                     pair.second.close();
             }
+
+            if (_executor != null)
+            {
+                _executor.shutdownNow();
+                _executor = null;
+            }
         }
 
         Map<Pair<SampleIdType, Integer>, File> outputs = new HashMap<>();
@@ -252,7 +272,14 @@ else if (sampleId == null || Integer.valueOf(-1).equals(sampleId))
 
             // Buffer the output so we aren't constantly writing through to file system. See issue 19633
             FastqWriter syncWriter;
-            if (_outputGzip)
+            if (_outputGzip && _executor != null)
+            {
+                // blocks are compressed in parallel using the shared executor, so this does not need an async writer
+                FastqWriter writer = new BasicFastqWriter(new PrintStream(new ParallelBgzfOutputStream(new FileOutputStream(newFile), _executor, Math.min(2 * _threads, MAX_PENDING_BLOCKS))));
+                _fileMap.put(Pair.of(sampleId, pairNumber), Pair.of(newFile, writer));
+                return writer;
+            }
+            else if (_outputGzip)
             {
                 syncWriter = new BasicFastqWriter(new PrintStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(newFile), 64 * 1024))));
             }
@@ -274,6 +301,11 @@ public void setOutputGzip(boolean outputGzip)
         _outputGzip = outputGzip;
     }
 
+    public void setThreads(int threads)
+    {
+        _threads = Math.max(1, threads);
+    }
+
     public File getDestinationDir()
     {
         return _destinationDir;
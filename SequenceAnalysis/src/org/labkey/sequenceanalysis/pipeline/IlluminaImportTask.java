@@ -145,6 +145,12 @@ public RecordedActionSet run() throws PipelineJobException
             parser.setOutputGzip(true);
             parser.setDestinationDir(getSupport().getAnalysisDirectory());
 
+            Integer threads = SequenceTaskHelper.getMaxThreads(job);
+            if (threads != null)
+            {
+                parser.setThreads(threads);
+            }
+
             // the first element of the pair is the sample ID.  the second is either 1 or 2,
             // depending on whether the file represents the forward or reverse reads
             Map<Pair<Integer, Integer>, File> fileMap = parser.parseFastqFiles();
@@ -6,7 +6,6 @@
 import htsjdk.variant.vcf.VCFCodec;
 import htsjdk.variant.vcf.VCFFileReader;
 import htsjdk.variant.vcf.VCFHeader;
-import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.time.DurationFormatUtils;
 import org.apache.logging.log4j.LogManager;
@@ -35,7 +34,6 @@
 import org.labkey.api.sequenceanalysis.pipeline.SequencePipelineService;
 import org.labkey.api.sequenceanalysis.pipeline.ToolParameterDescriptor;
 import org.labkey.api.sequenceanalysis.pipeline.VariantProcessingStep;
-import org.labkey.api.sequenceanalysis.run.SimpleScriptWrapper;
 import org.labkey.api.util.FileType;
 import org.labkey.api.util.FileUtil;
 import org.labkey.api.util.URIUtil;
@@ -45,6 +43,7 @@
 import org.labkey.sequenceanalysis.run.util.AbstractGenomicsDBImportHandler;
 import org.labkey.sequenceanalysis.run.util.MergeVcfsAndGenotypesWrapper;
 import org.labkey.sequenceanalysis.util.SequenceUtil;
+import org.labkey.sequenceanalysis.util.VcfStats;
 
 import java.io.File;
 import java.io.IOException;
@@ -413,6 +412,7 @@ public static File processVCF(File input, Integer libraryId, JobContext ctx, Res
             {
                 resumer.getFileManager().addIntermediateFile(currentVCF);
                 resumer.getFileManager().addIntermediateFile(vcfIdx);
+                resumer.getFileManager().addIntermediateFile(VcfStats.getStatsFile(currentVCF));
             }
 
             ReferenceGenome genome = ctx.getSequenceSupport().getCachedGenome(libraryId);
@@ -430,8 +430,11 @@ public static File processVCF(File input, Integer libraryId, JobContext ctx, Res
             {
                 currentVCF = output.getVCF();
 
-                ctx.getJob().getLogger().info("total variants: " + getVCFLineCount(currentVCF, ctx.getJob().getLogger(), false));
-                ctx.getJob().getLogger().info("passing variants: " + getVCFLineCount(currentVCF, ctx.getJob().getLogger(), true));
+                //NOTE: the stats are cached alongside the VCF, so a later step or the merge of scattered jobs does not need to read it again.
+                //The cache is registered as an intermediate file along with the VCF
+                VcfStats stats = VcfStats.getStats(currentVCF, ctx.getJob().getLogger(), true);
+                ctx.getJob().getLogger().info("total variants: " + stats.getTotal());
+                ctx.getJob().getLogger().info("passing variants: " + stats.getPassing());
                 ctx.getJob().getLogger().debug("index exists: " + (new File(currentVCF.getPath() + ".tbi")).exists());
 
                 try
@@ -459,6 +462,8 @@ public static File processVCF(File input, Integer libraryId, JobContext ctx, Res
         {
             resumer.getFileManager().removeIntermediateFile(currentVCF);
             resumer.getFileManager().removeIntermediateFile(new File(currentVCF.getPath() + ".tbi"));
+            //the cached stats are only used during processing, so these are deleted even though the VCF is kept
+            resumer.getFileManager().addIntermediateFile(VcfStats.getStatsFile(currentVCF));
 
             return currentVCF;
         }
@@ -470,26 +475,9 @@ public static File processVCF(File input, Integer libraryId, JobContext ctx, Res
 
     public static String getVCFLineCount(File vcf, Logger log, boolean passOnly) throws PipelineJobException
     {
-        String cat = vcf.getName().endsWith(".gz") ? "zcat" : "cat";
-        SimpleScriptWrapper wrapper = new SimpleScriptWrapper(null);
+        VcfStats stats = VcfStats.getStats(vcf, log);
 
-        String ret = wrapper.executeWithOutput(Arrays.asList("/bin/bash", "-c", cat + " \"" + vcf.getPath() + "\" | grep -v \"#\" | " + (passOnly ? "awk ' $7 == \"PASS\" || $7 == \"\\.\" ' | " : "") + "wc -l | awk \" { print $1 } \""));
-
-        //NOTE: unsure how to get awk to omit this warning, so discard it:
-        //the warning is: escape '\.' treated as plain '.'
-        if (ret != null)
-        {
-            ret = ret.trim();
-            String[] tokens = ret.split("\n");
-            if (tokens.length > 1)
-            {
-                tokens = ArrayUtils.remove(tokens, 0);
-                ret = StringUtils.join(tokens, "\n");
-                ret = ret.trim();
-            }
-        }
-
-        return ret;
+        return String.valueOf(passOnly ? stats.getPassing() : stats.getTotal());
     }
 
     public class Processor implements SequenceOutputProcessor
@@ -19,6 +19,13 @@
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SAMRecordSetBuilder;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
 import htsjdk.samtools.ValidationStringency;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
@@ -27,6 +34,9 @@
 import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.lib.legacy.ClassImposteriser;
 import org.junit.Assert;
 import org.junit.Test;
 import org.labkey.api.collections.CaseInsensitiveHashSet;
@@ -51,8 +61,11 @@
 import org.labkey.api.sequenceanalysis.pipeline.AlignerIndexUtil;
 import org.labkey.api.sequenceanalysis.pipeline.AlignmentStep;
 import org.labkey.api.sequenceanalysis.pipeline.AnalysisStep;
+import org.labkey.api.sequenceanalysis.pipeline.BamProcessingOutputImpl;
 import org.labkey.api.sequenceanalysis.pipeline.BamProcessingStep;
+import org.labkey.api.sequenceanalysis.pipeline.BamRecordTransformStep;
 import org.labkey.api.sequenceanalysis.pipeline.IndexOutputImpl;
+import org.labkey.api.sequenceanalysis.pipeline.PipelineContext;
 import org.labkey.api.sequenceanalysis.pipeline.PipelineStepCtx;
 import org.labkey.api.sequenceanalysis.pipeline.PipelineStepOutput;
 import org.labkey.api.sequenceanalysis.pipeline.PipelineStepProvider;
@@ -60,12 +73,15 @@
 import org.labkey.api.sequenceanalysis.pipeline.ReferenceGenome;
 import org.labkey.api.sequenceanalysis.pipeline.ReferenceGenomeManager;
 import org.labkey.api.sequenceanalysis.pipeline.SequencePipelineService;
+import org.labkey.api.sequenceanalysis.pipeline.SortSamWrapper;
 import org.labkey.api.sequenceanalysis.pipeline.ToolParameterDescriptor;
 import org.labkey.api.util.FileType;
 import org.labkey.api.util.FileUtil;
 import org.labkey.api.util.Pair;
 import org.labkey.sequenceanalysis.ReadDataImpl;
 import org.labkey.sequenceanalysis.SequenceReadsetImpl;
+import org.labkey.sequenceanalysis.run.bampostprocessing.AddOrReplaceReadGroupsStep;
+import org.labkey.sequenceanalysis.run.bampostprocessing.DiscardUnmappedReadsStep;
 import org.labkey.sequenceanalysis.run.bampostprocessing.SortSamStep;
 import org.labkey.sequenceanalysis.run.preprocessing.TrimmomaticWrapper;
 import org.labkey.sequenceanalysis.run.util.AddOrReplaceReadGroupsWrapper;
@@ -85,6 +101,7 @@
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -96,6 +113,10 @@
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * This task is designed to act on either a FASTQ or zipped FASTQ file.  Each file should already have been imported as a readset using
@@ -126,9 +147,12 @@ public class SequenceAlignmentTask extends WorkDirectoryTask<SequenceAlignmentTa
     private static final String ALIGNMENT_SUBFOLDER_NAME = "Alignment";  //the subfolder within which alignment data will be placed
     private static final String COPY_REFERENCE_LIBRARY_ACTIONNAME = "Copy Reference";
     private static final String COPY_INPUTS_ACTIONNAME = "Copying Inputs";
+    private static final int MIN_THREADS_PER_ALIGNMENT = 4;
+    private static final int MIN_RAM_PER_ALIGNMENT = 8; //in GB
 
     private SequenceTaskHelper _taskHelper;
     private Resumer _resumer;
+    private volatile boolean _concurrentAlignments = false;
 
     protected SequenceAlignmentTask(Factory factory, PipelineJob job)
     {
@@ -693,8 +717,41 @@ private void alignSet(Readset rs, String basename, Map<ReadData, Pair<File, File
                     getHelper().getFileManager().addIntermediateFile(idx);
                 }
 
-                for (PipelineStepCtx<BamProcessingStep> stepCtx : steps)
+                for (int i = 0; i < steps.size(); i++)
                 {
+                    PipelineStepCtx<BamProcessingStep> stepCtx = steps.get(i);
+                    BamProcessingStep step = stepCtx.getProvider().create(getHelper());
+                    step.setStepIdx(stepCtx.getStepIdx());
+
+                    //consecutive steps that operate on one alignment at a time are applied in a single pass, rather than each writing a new BAM
+                    if (step instanceof BamRecordTransformStep)
+                    {
+                        List<PipelineStepCtx<BamProcessingStep>> segmentCtx = new ArrayList<>();
+                        List<BamRecordTransformStep> segment = new ArrayList<>();
+                        segmentCtx.add(stepCtx);
+                        segment.add((BamRecordTransformStep)step);
+                        while (i + 1 < steps.size())
+                        {
+                            BamProcessingStep next = steps.get(i + 1).getProvider().create(getHelper());
+                            if (!(next instanceof BamRecordTransformStep))
+                            {
+                                break;
+                            }
+
+                            i++;
+                            next.setStepIdx(steps.get(i).getStepIdx());
+                            segmentCtx.add(steps.get(i));
+                            segment.add((BamRecordTransformStep)next);
+                        }
+
+                        File transformed = transformBam(rs, bam, segmentCtx, segment, i + 1 == steps.size(), postProcessActions);
+                        getHelper().getFileManager().addIntermediateFile(bam);
+                        getHelper().getFileManager().addIntermediateFile(new File(bam.getPath() + ".bai"));
+                        bam = transformed;
+
+                        continue;
+                    }
+
                     getJob().getLogger().info("performing step: " + stepCtx.getProvider().getLabel());
                     getJob().setStatus(PipelineJob.TaskStatus.running, "RUNNING: " + stepCtx.getProvider().getLabel().toUpperCase());
                     getJob().getLogger().debug("BAM index exists: " + (new File(bam.getPath() + ".bai")).exists());
@@ -704,8 +761,6 @@ private void alignSet(Readset rs, String basename, Map<ReadData, Pair<File, File
                     action.setStartTime(start);
                     getHelper().getFileManager().addInput(action, "Input BAM", bam);
 
-                    BamProcessingStep step = stepCtx.getProvider().create(getHelper());
-                    step.setStepIdx(stepCtx.getStepIdx());
                     BamProcessingStep.Output output = step.processBam(rs, bam, referenceGenome, bam.getParentFile());
                     getHelper().getFileManager().addStepOutputs(action, output);
 
@@ -1050,6 +1105,102 @@ else if (step.expectToCreateNewBam())
         }
     }
 
+    /**
+     * Applies a series of BamRecordTransformSteps in one pass over the BAM.  Unless this is the final step, the output is only read once by the next step,
+     * so it is written with fast, light compression.
+     */
+    private File transformBam(Readset rs, File inputBam, List<PipelineStepCtx<BamProcessingStep>> stepCtxs, List<BamRecordTransformStep> steps, boolean isFinalStep, List<RecordedAction> actions) throws PipelineJobException
+    {
+        List<String> labels = new ArrayList<>();
+        stepCtxs.forEach(x -> labels.add(x.getProvider().getLabel()));
+        getJob().getLogger().info("performing steps in a single pass: " + StringUtils.join(labels, ", "));
+        getJob().setStatus(PipelineJob.TaskStatus.running, "RUNNING: " + StringUtils.join(labels, ", ").toUpperCase());
+
+        Date start = new Date();
+        File outputBam = new File(inputBam.getParentFile(), FileUtil.getBaseName(inputBam) + ".transformed.bam");
+        Pair<Long, Long> counts = transformRecords(rs, inputBam, outputBam, steps, isFinalStep);
+        long total = counts.first;
+        long omitted = counts.second;
+
+        getHelper().getFileManager().addIntermediateFile(outputBam);
+
+        Date end = new Date();
+        for (PipelineStepCtx<BamProcessingStep> stepCtx : stepCtxs)
+        {
+            RecordedAction action = new RecordedAction(stepCtx.getProvider().getLabel());
+            action.setStartTime(start);
+            action.setEndTime(end);
+            getHelper().getFileManager().addInput(action, "Input BAM", inputBam);
+            getHelper().getFileManager().addOutput(action, BamProcessingOutputImpl.PROCESSED_BAM_ROLE, outputBam);
+            actions.add(action);
+        }
+
+        getJob().getLogger().info("\ttotal alignments: " + total + ", omitted: " + omitted);
+        getJob().getLogger().info("\tfile size: " + FileUtils.byteCountToDisplaySize(outputBam.length()));
+        getJob().getLogger().info(StringUtils.join(labels, ", ") + " Duration: " + DurationFormatUtils.formatDurationWords(end.getTime() - start.getTime(), true, true));
+
+        return outputBam;
+    }
+
+    /**
+     * Writes a new BAM after applying each step to the header and every record, in order.  The input must be coordinate sorted.
+     * @return The total number of records read, and the number omitted by a step
+     */
+    static Pair<Long, Long> transformRecords(Readset rs, File inputBam, File outputBam, List<BamRecordTransformStep> steps, boolean isFinalStep) throws PipelineJobException
+    {
+        long total = 0;
+        long omitted = 0;
+        SamReaderFactory fact = SamReaderFactory.makeDefault();
+        fact.validationStringency(ValidationStringency.SILENT);
+        try (SamReader reader = fact.open(inputBam))
+        {
+            SAMFileHeader header = reader.getFileHeader().clone();
+            for (BamRecordTransformStep step : steps)
+            {
+                header = step.transformHeader(rs, header);
+            }
+
+            SAMFileWriterFactory factory = new SAMFileWriterFactory();
+            if (!isFinalStep)
+            {
+                factory.setCompressionLevel(1);
+            }
+
+            try (SAMFileWriter writer = factory.makeBAMWriter(header, true, outputBam); SAMRecordIterator it = reader.iterator())
+            {
+                while (it.hasNext())
+                {
+                    SAMRecord r = it.next();
+                    r.setHeader(header);
+                    total++;
+
+                    for (BamRecordTransformStep step : steps)
+                    {
+                        r = step.transformRecord(r);
+                        if (r == null)
+                        {
+                            break;
+                        }
+                    }
+
+                    if (r == null)
+                    {
+                        omitted++;
+                        continue;
+                    }
+
+                    writer.addAlignment(r);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            throw new PipelineJobException(e);
+        }
+
+        return Pair.of(total, omitted);
+    }
+
     private File doAlignment(ReferenceGenome referenceGenome, Readset rs, Map<ReadData, Pair<File, File>> files, List<RecordedAction> alignActions) throws PipelineJobException, IOException
     {
         if (files.isEmpty())
@@ -1166,16 +1317,113 @@ private File doAlignThenMerge(ReferenceGenome referenceGenome, Readset rs, Map<R
     {
         File bam;
         List<File> alignOutputs = new ArrayList<>();
-        int idx = 0;
-        for (ReadData rd : files.keySet())
+
+        //for aligners that allow it, and when there are enough threads and RAM, several inputs are aligned at once, dividing both between them.
+        //this keeps the CPUs busy during the single-threaded parts of each alignment
+        AlignmentStep alignmentStep = getHelper().getSingleStep(AlignmentStep.class).create(getHelper());
+        Integer maxThreads = SequenceTaskHelper.getMaxThreads(getJob());
+        Integer maxRam = SequencePipelineService.get().getMaxRam();
+        int concurrentAlignments = 1;
+        if (alignmentStep.supportsConcurrentAlignments() && maxThreads != null && maxRam != null)
+        {
+            concurrentAlignments = Math.max(1, Math.min(files.size(), Math.min(maxThreads / MIN_THREADS_PER_ALIGNMENT, maxRam / MIN_RAM_PER_ALIGNMENT)));
+        }
+
+        if (concurrentAlignments > 1)
+        {
+            int threadsPerAlignment = maxThreads / concurrentAlignments;
+            int ramPerAlignment = maxRam / concurrentAlignments;
+            getJob().getLogger().info("Aligning " + files.size() + " inputs, " + concurrentAlignments + " at a time, using " + threadsPerAlignment + " threads and " + ramPerAlignment + "GB RAM each");
+            getJob().setStatus(PipelineJob.TaskStatus.running, "RUNNING: " + alignmentStep.getProvider().getLabel().toUpperCase() + " (" + files.size() + " INPUTS, " + concurrentAlignments + " AT A TIME)");
+            _concurrentAlignments = true;
+
+            ExecutorService executor = Executors.newFixedThreadPool(concurrentAlignments);
+            List<String> sortCommands = Collections.synchronizedList(new ArrayList<>());
+            try
+            {
+                List<Future<File>> futures = new ArrayList<>();
+                int idx = 0;
+                for (ReadData rd : files.keySet())
+                {
+                    idx++;
+                    String msgSuffix = " (" + idx + " of " + files.size() + ")";
+                    Pair<File, File> pair = files.get(rd);
+                    futures.add(executor.submit(() -> {
+                        SequenceTaskHelper.setThreadLimit(threadsPerAlignment);
+                        SequenceTaskHelper.setRamLimit(ramPerAlignment);
+                        try
+                        {
+                            getJob().getLogger().info("Aligning inputs: " + pair.first.getName() + (pair.second == null ? "" : " and " + pair.second.getName()));
+
+                            File output = doAlignmentForPair(pair, referenceGenome, rs, rd.getRowid(), msgSuffix, rd.getPlatformUnit());
+
+                            //sorting each output here runs in parallel, and lets MergeSamFiles merge the sorted inputs in order rather than sorting every read after the merge
+                            if (alignmentStep.doSortIndexBam() && SequenceUtil.getBamSortOrder(output) != SAMFileHeader.SortOrder.coordinate)
+                            {
+                                SortSamWrapper sorter = new SortSamWrapper(getJob().getLogger());
+                                sorter.execute(output, null, SAMFileHeader.SortOrder.coordinate);
+                                sortCommands.addAll(sorter.getCommandsExecuted());
+                            }
+
+                            return output;
+                        }
+                        finally
+                        {
+                            SequenceTaskHelper.setThreadLimit(null);
+                            SequenceTaskHelper.setRamLimit(null);
+                        }
+                    }));
+                }
+
+                for (Future<File> f : futures)
+                {
+                    alignOutputs.add(f.get());
+                }
+
+                if (!sortCommands.isEmpty())
+                {
+                    RecordedAction sortAction = new RecordedAction(SORT_BAM_ACTION);
+                    getHelper().getFileManager().addCommandsToAction(sortCommands, sortAction);
+                    alignActions.add(sortAction);
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new PipelineJobException(e);
+            }
+            catch (ExecutionException e)
+            {
+                if (e.getCause() instanceof PipelineJobException)
+                {
+                    throw (PipelineJobException)e.getCause();
+                }
+                else if (e.getCause() instanceof IOException)
+                {
+                    throw (IOException)e.getCause();
+                }
+
+                throw new PipelineJobException(e.getCause());
+            }
+            finally
+            {
+                executor.shutdownNow();
+                _concurrentAlignments = false;
+            }
+        }
+        else
         {
-            idx++;
-            String msgSuffix = files.size() > 1 ? " (" + idx + " of " + files.size() + ")" : "";
-            Pair<File, File> pair = files.get(rd);
+            int idx = 0;
+            for (ReadData rd : files.keySet())
+            {
+                idx++;
+                String msgSuffix = files.size() > 1 ? " (" + idx + " of " + files.size() + ")" : "";
+                Pair<File, File> pair = files.get(rd);
 
-            getJob().getLogger().info("Aligning inputs: " + pair.first.getName() + (pair.second == null ? "" : " and " + pair.second.getName()));
+                getJob().getLogger().info("Aligning inputs: " + pair.first.getName() + (pair.second == null ? "" : " and " + pair.second.getName()));
 
-            alignOutputs.add(doAlignmentForPair(pair, referenceGenome, rs, rd.getRowid(), msgSuffix, rd.getPlatformUnit()));
+                alignOutputs.add(doAlignmentForPair(pair, referenceGenome, rs, rd.getRowid(), msgSuffix, rd.getPlatformUnit()));
+            }
         }
 
         //merge outputs
@@ -1186,6 +1434,7 @@ private File doAlignThenMerge(ReferenceGenome referenceGenome, Readset rs, Map<R
             RecordedAction mergeAction = new RecordedAction(MERGE_ALIGNMENT_ACTIONNAME);
             Date start = new Date();
             mergeAction.setStartTime(start);
+            //NOTE: if every input is coordinate sorted, which is the case after concurrent alignment, MergeSamFiles merges them in order.  Otherwise it sorts all reads.
             MergeSamFilesWrapper mergeSamFilesWrapper = new MergeSamFilesWrapper(getJob().getLogger());
             List<File> bams = new ArrayList<>();
             for (File o : alignOutputs)
@@ -1215,6 +1464,21 @@ private File doAlignThenMerge(ReferenceGenome referenceGenome, Readset rs, Map<R
         return bam;
     }
 
+    /**
+     * While several inputs are aligned concurrently, the job status stays fixed and per-input progress only goes to the log, rather than flipping between alignments
+     */
+    private void setAlignmentStatus(String status)
+    {
+        if (_concurrentAlignments)
+        {
+            getJob().getLogger().info(status);
+        }
+        else
+        {
+            getJob().setStatus(PipelineJob.TaskStatus.running, status);
+        }
+    }
+
     public File doAlignmentForPair(Pair<File, File> inputFiles, ReferenceGenome referenceGenome, Readset rs, int readDataId, @NotNull String msgSuffix, @Nullable String platformUnit) throws PipelineJobException, IOException
     {
         getJob().getLogger().info("Beginning alignment for: " + inputFiles.first.getName() + (inputFiles.second == null ? "" : " and " + inputFiles.second.getName()) + msgSuffix);
@@ -1235,7 +1499,7 @@ public File doAlignmentForPair(Pair<File, File> inputFiles, ReferenceGenome refe
             FileType gz = new FileType(".gz");
             if (!alignmentStep.supportsGzipFastqs() && gz.isType(inputFiles.first))
             {
-                getJob().setStatus(PipelineJob.TaskStatus.running, "DECOMPRESS INPUT FILES");
+                setAlignmentStatus("DECOMPRESS INPUT FILES" + msgSuffix);
                 getHelper().getFileManager().decompressInputFiles(inputFiles, actions);
                 getHelper().getFileManager().addIntermediateFile(inputFiles.first);
                 if (inputFiles.second != null)
@@ -1269,7 +1533,7 @@ public File doAlignmentForPair(Pair<File, File> inputFiles, ReferenceGenome refe
                 outputDirectory.mkdirs();
             }
 
-            getJob().setStatus(PipelineJob.TaskStatus.running, "RUNNING: " + alignmentStep.getProvider().getLabel().toUpperCase() + msgSuffix);
+            setAlignmentStatus("RUNNING: " + alignmentStep.getProvider().getLabel().toUpperCase() + msgSuffix);
             AlignmentStep.AlignmentOutput alignmentOutput = alignmentStep.performAlignment(rs, inputFiles.first, inputFiles.second, outputDirectory, referenceGenome, SequenceTaskHelper.getUnzippedBaseName(inputFiles.first.getName()) + "." + alignmentStep.getProvider().getName().toLowerCase(), String.valueOf(readDataId), platformUnit);
             getHelper().getFileManager().addStepOutputs(alignmentAction, alignmentOutput);
 
@@ -1288,7 +1552,7 @@ public File doAlignmentForPair(Pair<File, File> inputFiles, ReferenceGenome refe
             boolean doMergeUnaligned = mergeParam == null ? false : mergeParam.extractValue(getJob(), alignmentStep.getProvider(), alignmentStep.getStepIdx(), Boolean.class, false);
             if (doMergeUnaligned)
             {
-                getJob().setStatus(PipelineJob.TaskStatus.running, "MERGING UNALIGNED READS INTO BAM" + msgSuffix);
+                setAlignmentStatus("MERGING UNALIGNED READS INTO BAM" + msgSuffix);
                 getJob().getLogger().info("merging unaligned reads into BAM");
                 File idx = new File(alignmentOutput.getBAM().getPath() + ".bai");
                 if (idx.exists())
@@ -1309,7 +1573,7 @@ public File doAlignmentForPair(Pair<File, File> inputFiles, ReferenceGenome refe
 
             if (alignmentStep.doAddReadGroups())
             {
-                getJob().setStatus(PipelineJob.TaskStatus.running, "ADDING READ GROUPS" + msgSuffix);
+                setAlignmentStatus("ADDING READ GROUPS" + msgSuffix);
                 AddOrReplaceReadGroupsWrapper wrapper = new AddOrReplaceReadGroupsWrapper(getJob().getLogger());
                 wrapper.executeCommand(alignmentOutput.getBAM(), null, rs.getReadsetId().toString(), rs.getPlatform(), (platformUnit == null ? rs.getReadsetId().toString() : platformUnit), rs.getName().replaceAll(" ", "_"));
                 getHelper().getFileManager().addCommandsToAction(wrapper.getCommandsExecuted(), alignmentAction);
@@ -1320,7 +1584,7 @@ public File doAlignmentForPair(Pair<File, File> inputFiles, ReferenceGenome refe
             }
 
             //generate stats
-            getJob().setStatus(PipelineJob.TaskStatus.running, "Generating BAM Stats");
+            setAlignmentStatus("Generating BAM Stats" + msgSuffix);
             FlagStatRunner runner = new FlagStatRunner(getJob().getLogger());
             runner.execute(alignmentOutput.getBAM());
             getHelper().getFileManager().addCommandsToAction(runner.getCommandsExecuted(), alignmentAction);
@@ -1643,12 +1907,12 @@ public void setAlignmentMetricsDone(boolean alignmentMetricsDone, RecordedAction
             saveState();
         }
 
-        public boolean isReadDataAlignmentDone(int readDataId)
+        public synchronized boolean isReadDataAlignmentDone(int readDataId)
         {
             return _readDataBamMap.containsKey(readDataId);
         }
 
-        public void setReadDataAlignmentDone(int readDataId, List<RecordedAction> actions, File bam) throws PipelineJobException
+        public synchronized void setReadDataAlignmentDone(int readDataId, List<RecordedAction> actions, File bam) throws PipelineJobException
         {
             getLogger().debug("setting read data alignment done: " + readDataId + ", " + (actions == null ? "0" : actions.size()) + " actions");
             _readDataBamMap.put(readDataId, bam);
@@ -1659,7 +1923,7 @@ public void setReadDataAlignmentDone(int readDataId, List<RecordedAction> action
             saveState();
         }
 
-        public File getBamForReadData(int readDataId)
+        public synchronized File getBamForReadData(int readDataId)
         {
             return _readDataBamMap.get(readDataId);
         }
@@ -1752,6 +2016,92 @@ public void serializeTest() throws Exception
 
             file.delete();
         }
+
+        @Test
+        public void testTransformRecords() throws Exception
+        {
+            Mockery mock = new Mockery();
+            mock.setImposteriser(ClassImposteriser.INSTANCE);
+            PipelineContext ctx = mock.mock(PipelineContext.class);
+            mock.checking(new Expectations() {{
+                allowing(ctx).getLogger();
+                will(returnValue(_log));
+            }});
+
+            SequenceReadsetImpl rs = new SequenceReadsetImpl();
+            rs.setRowId(1);
+            rs.setName("Readset 1");
+            rs.setPlatform("ILLUMINA");
+
+            BamRecordTransformStep readGroups = new AddOrReplaceReadGroupsStep.Provider().create(ctx);
+            BamRecordTransformStep discardUnmapped = new DiscardUnmappedReadsStep.Provider().create(ctx);
+
+            File dir = Files.createTempDirectory("SequenceAlignmentTask").toFile();
+            try
+            {
+                SAMRecordSetBuilder builder = new SAMRecordSetBuilder(true, SAMFileHeader.SortOrder.coordinate);
+                for (int i = 0; i < 200; i++)
+                {
+                    builder.addPair("pair" + i, 0, 1 + (i * 13) % 5000, 100 + (i * 7) % 5000);
+                    if (i % 10 == 0)
+                    {
+                        builder.addUnmappedFragment("unmapped" + i);
+                    }
+                }
+
+                File input = new File(dir, "input.bam");
+                try (SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(builder.getHeader(), true, input))
+                {
+                    builder.forEach(writer::addAlignment);
+                }
+
+                //one step at a time, as each step would run separately
+                File readGroupsOnly = new File(dir, "readgroups.bam");
+                transformRecords(rs, input, readGroupsOnly, Collections.singletonList(readGroups), false);
+                File perStep = new File(dir, "perStep.bam");
+                Pair<Long, Long> perStepCounts = transformRecords(rs, readGroupsOnly, perStep, Collections.singletonList(discardUnmapped), true);
+
+                File fused = new File(dir, "fused.bam");
+                Pair<Long, Long> fusedCounts = transformRecords(rs, input, fused, Arrays.asList(readGroups, discardUnmapped), true);
+                assertEquals(Long.valueOf(builder.getRecords().size()), fusedCounts.first);
+                assertEquals(Long.valueOf(20), fusedCounts.second);
+                assertEquals(perStepCounts.second, fusedCounts.second);
+
+                SamReaderFactory fact = SamReaderFactory.makeDefault();
+                try (SamReader fusedReader = fact.open(fused); SamReader perStepReader = fact.open(perStep))
+                {
+                    SAMFileHeader header = fusedReader.getFileHeader();
+                    assertEquals(SAMFileHeader.SortOrder.coordinate, header.getSortOrder());
+                    assertEquals(1, header.getReadGroups().size());
+                    assertEquals("Readset_1", header.getReadGroups().get(0).getSample());
+                    assertEquals(perStepReader.getFileHeader().getSAMString(), header.getSAMString());
+
+                    List<String> fusedRecords = new ArrayList<>();
+                    SAMRecord previous = null;
+                    for (SAMRecord r : fusedReader)
+                    {
+                        assertFalse(r.getReadUnmappedFlag());
+                        assertEquals(header.getReadGroups().get(0), r.getReadGroup());
+                        if (previous != null)
+                        {
+                            assertTrue("Records are not in coordinate order", previous.getAlignmentStart() <= r.getAlignmentStart());
+                        }
+                        previous = r;
+                        fusedRecords.add(r.getSAMString());
+                    }
+
+                    List<String> perStepRecords = new ArrayList<>();
+                    perStepReader.forEach(r -> perStepRecords.add(r.getSAMString()));
+
+                    assertEquals(400, fusedRecords.size());
+                    assertEquals(perStepRecords, fusedRecords);
+                }
+            }
+            finally
+            {
+                FileUtils.deleteDirectory(dir);
+            }
+        }
     }
 }
 
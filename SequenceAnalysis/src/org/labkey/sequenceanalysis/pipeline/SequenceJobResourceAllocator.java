@@ -0,0 +1,102 @@
+package org.labkey.sequenceanalysis.pipeline;
+
+import org.apache.commons.lang3.StringUtils;
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.cluster.ClusterResourceAllocator;
+import org.labkey.api.cluster.ClusterService;
+import org.labkey.api.pipeline.PipelineJob;
+import org.labkey.api.pipeline.RemoteExecutionEngine;
+import org.labkey.api.pipeline.TaskId;
+import org.labkey.sequenceanalysis.SequencePipelineServiceImpl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Supplies the resource key the cluster module uses to match submissions doing the same work when it estimates CPU and memory requests
+ * from previous jobs.  Without this, every job of a given class (such as all SequenceOutputHandlerJobs) would share one history,
+ * regardless of the handler or pipeline steps it runs.  This does not request resources itself.
+ */
+public class SequenceJobResourceAllocator implements ClusterResourceAllocator
+{
+    public static class Factory implements ClusterResourceAllocator.Factory
+    {
+        @Override
+        public ClusterResourceAllocator getAllocator()
+        {
+            return new SequenceJobResourceAllocator();
+        }
+
+        @Override
+        public @Nullable Integer getPriority(TaskId taskId)
+        {
+            return taskId.getNamespaceClass() != null && taskId.getNamespaceClass().getName().startsWith("org.labkey.sequenceanalysis.") ? 0 : null;
+        }
+    }
+
+    /**
+     * Registers this allocator.  This should only be called if the cluster module is present, since that provides ClusterService.
+     * The cluster module may start after this one, in which case the allocator is registered once it does.
+     */
+    public static void register()
+    {
+        ClusterService.registerAllocatorFactory(new Factory());
+    }
+
+    @Override
+    public @Nullable Integer getMaxRequestCpus(PipelineJob job)
+    {
+        return null;
+    }
+
+    @Override
+    public @Nullable Integer getMaxRequestMemory(PipelineJob job)
+    {
+        return null;
+    }
+
+    @Override
+    public void addExtraSubmitScriptLines(PipelineJob job, RemoteExecutionEngine engine, List<String> existingExtraLines)
+    {
+
+    }
+
+    /**
+     * @return The handler, if any, plus the pipeline steps selected for each step type, such as: ProcessVariantsHandler:variantProcessing=SelectVariants;VariantFiltration
+     */
+    @Override
+    public @Nullable String getResourceKey(PipelineJob job)
+    {
+        if (!(job instanceof SequenceJob))
+        {
+            return null;
+        }
+
+        List<String> tokens = new ArrayList<>();
+        if (job instanceof SequenceOutputHandlerJob)
+        {
+            tokens.add(StringUtils.substringAfterLast(((SequenceOutputHandlerJob)job).getHandlerClassName(), "."));
+        }
+        else if (job instanceof SequenceReadsetHandlerJob)
+        {
+            tokens.add(StringUtils.substringAfterLast(((SequenceReadsetHandlerJob)job).getHandlerClassName(), "."));
+        }
+
+        Map<String, String> params = ((SequenceJob)job).getJobParams();
+        if (params != null)
+        {
+            //sorted, so the key does not depend on the order step types were registered
+            for (String paramName : new TreeSet<>(SequencePipelineServiceImpl.get().getPipelineStepTypes().values()))
+            {
+                if (StringUtils.isNotEmpty(params.get(paramName)))
+                {
+                    tokens.add(paramName + "=" + params.get(paramName));
+                }
+            }
+        }
+
+        return tokens.isEmpty() ? null : StringUtils.join(tokens, ":");
+    }
+}
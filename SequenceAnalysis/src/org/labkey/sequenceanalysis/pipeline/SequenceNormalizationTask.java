@@ -755,6 +755,12 @@ private Barcoder getBarcoder() throws PipelineJobException
         if (getBarcodeGroupsToScan(getHelper().getSettings()).size() > 0)
             barcoder.setScanAll(true);
 
+        Integer threads = SequenceTaskHelper.getMaxThreads(getJob());
+        if (threads != null)
+        {
+            barcoder.setThreads(threads);
+        }
+
         return barcoder;
     }
 
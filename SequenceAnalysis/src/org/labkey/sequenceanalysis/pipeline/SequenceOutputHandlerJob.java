@@ -165,6 +165,11 @@ public TaskPipeline getTaskPipeline()
         return  PipelineJobService.get().getTaskPipeline(new TaskId(SequenceOutputHandlerJob.class));
     }
 
+    public String getHandlerClassName()
+    {
+        return _handlerClassName;
+    }
+
     public SequenceOutputHandler<SequenceOutputHandler.SequenceOutputProcessor> getHandler()
     {
         SequenceOutputHandler handler = SequenceAnalysisManager.get().getFileHandler(_handlerClassName, SequenceOutputHandler.TYPE.OutputFile);
@@ -55,6 +55,11 @@ public TaskPipeline getTaskPipeline()
         return  PipelineJobService.get().getTaskPipeline(new TaskId(SequenceReadsetHandlerJob.class));
     }
 
+    public String getHandlerClassName()
+    {
+        return _handlerClassName;
+    }
+
     public SequenceOutputHandler<SequenceOutputHandler.SequenceReadsetProcessor> getHandler()
     {
         SequenceOutputHandler handler = SequenceAnalysisManager.get().getFileHandler(_handlerClassName, SequenceOutputHandler.TYPE.Readset);
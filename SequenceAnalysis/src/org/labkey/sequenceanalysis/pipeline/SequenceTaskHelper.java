@@ -284,9 +284,65 @@ public static Integer getMaxThreads(PipelineJob job)
 
     private static final String THREAD_PROP_NAME = "SEQUENCEANALYSIS_MAX_THREADS";
 
+    private static final ThreadLocal<Integer> _threadLimit = new ThreadLocal<>();
+
+    /**
+     * Caps the value returned by getMaxThreads() on the current thread.  This is used when a job runs several tools concurrently, so they divide the available threads.
+     */
+    public static void setThreadLimit(@Nullable Integer threads)
+    {
+        if (threads == null)
+        {
+            _threadLimit.remove();
+        }
+        else
+        {
+            _threadLimit.set(threads);
+        }
+    }
+
+    private static final ThreadLocal<Integer> _ramLimit = new ThreadLocal<>();
+
+    /**
+     * Caps the value returned by SequencePipelineService.getMaxRam() on the current thread, in GB.  This is set alongside setThreadLimit(), so concurrent tools also divide the job's memory.
+     */
+    public static void setRamLimit(@Nullable Integer ram)
+    {
+        if (ram == null)
+        {
+            _ramLimit.remove();
+        }
+        else
+        {
+            _ramLimit.set(ram);
+        }
+    }
+
+    public static Integer applyRamLimit(@Nullable Integer ram)
+    {
+        Integer limit = _ramLimit.get();
+        if (limit == null)
+        {
+            return ram;
+        }
+
+        return ram == null ? limit : Math.min(ram, limit);
+    }
+
     public static Integer getMaxThreads(Logger log)
     {
+        Integer threads = getConfiguredMaxThreads(log);
+        Integer limit = _threadLimit.get();
+        if (limit == null)
+        {
+            return threads;
+        }
 
+        return threads == null ? limit : Math.min(threads, limit);
+    }
+
+    private static Integer getConfiguredMaxThreads(Logger log)
+    {
         //read environment
         String threads = StringUtils.trimToNull(System.getenv(THREAD_PROP_NAME));
         if (threads != null && NumberUtils.isCreatable(threads))
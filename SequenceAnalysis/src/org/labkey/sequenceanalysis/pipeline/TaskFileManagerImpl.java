@@ -8,7 +8,6 @@
 import org.apache.commons.lang3.time.DurationFormatUtils;
 import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.Nullable;
-import org.labkey.api.data.Table;
 import org.labkey.api.data.TableInfo;
 import org.labkey.api.exp.PropertyType;
 import org.labkey.api.exp.api.ExpData;
@@ -20,11 +19,13 @@
 import org.labkey.api.pipeline.WorkDirectory;
 import org.labkey.api.pipeline.file.FileAnalysisJobSupport;
 import org.labkey.api.reader.Readers;
+import org.labkey.api.sequenceanalysis.BulkResultWriter;
 import org.labkey.api.sequenceanalysis.SequenceOutputFile;
 import org.labkey.api.sequenceanalysis.pipeline.AbstractResumer;
 import org.labkey.api.sequenceanalysis.pipeline.PipelineStepOutput;
 import org.labkey.api.sequenceanalysis.pipeline.SequenceAnalysisJobSupport;
 import org.labkey.api.sequenceanalysis.pipeline.TaskFileManager;
+import org.labkey.api.sequenceanalysis.run.CommandResourceMonitor;
 import org.labkey.api.util.Compress;
 import org.labkey.api.util.DebugInfoDumper;
 import org.labkey.api.util.FileType;
@@ -63,6 +64,8 @@
  */
 public class TaskFileManagerImpl implements TaskFileManager, Serializable
 {
+    private static final String COMMAND_RESOURCES_ROLE = "Command Resource Usage";
+
     transient SequenceJob _job;
     transient WorkDirectory _wd;
     transient File _workLocation;
@@ -98,7 +101,7 @@ public void onResume(PipelineJob job, WorkDirectory wd)
     }
 
     @Override
-    public void addSequenceOutput(SequenceOutputFile o)
+    public synchronized void addSequenceOutput(SequenceOutputFile o)
     {
         _outputsToCreate.add(o);
 
@@ -114,7 +117,7 @@ public void addSequenceOutput(SequenceOutputFile o)
     }
 
     @Override
-    public void addSequenceOutput(File file, String label, String category, @Nullable Integer readsetId, @Nullable Integer analysisId, @Nullable Integer genomeId, @Nullable String description)
+    public synchronized void addSequenceOutput(File file, String label, String category, @Nullable Integer readsetId, @Nullable Integer analysisId, @Nullable Integer genomeId, @Nullable String description)
     {
         SequenceOutputFile so = new SequenceOutputFile();
         so.setFile(file);
@@ -141,7 +144,7 @@ public void addInput(RecordedAction action, String role, File file)
     }
 
     @Override
-    public void addStepOutputs(RecordedAction action, PipelineStepOutput output)
+    public synchronized void addStepOutputs(RecordedAction action, PipelineStepOutput output)
     {
         for (Pair<File, String> pair : output.getInputs())
         {
@@ -170,7 +173,7 @@ public void addStepOutputs(RecordedAction action, PipelineStepOutput output)
     }
 
     @Override
-    public void addCommandsToAction(List<String> commands, RecordedAction action)
+    public synchronized void addCommandsToAction(List<String> commands, RecordedAction action)
     {
         if (!commands.isEmpty())
         {
@@ -192,6 +195,54 @@ private void addCommandToAction(String command, RecordedAction action)
         }
 
         action.addParameter(paramType, command);
+
+        //this should only occur in test scenarios
+        if (_job == null)
+        {
+            return;
+        }
+
+        CommandResourceMonitor.ResourceUsage usage = CommandResourceMonitor.takeUsage(_job.getLogger(), command);
+        if (usage != null)
+        {
+            action.addParameter(new RecordedAction.ParameterType("command" + commandIdx + "Resources", PropertyType.STRING), usage.toString());
+            writeCommandResourceUsage(action, command, usage);
+        }
+    }
+
+    /**
+     * Appends the resources used by this command to a per-job tab-delimited file, so usage can be compared across steps and jobs.
+     * This is a file rather than a table, since commands are often run on a remote server without database access.
+     */
+    private void writeCommandResourceUsage(RecordedAction action, String command, CommandResourceMonitor.ResourceUsage usage)
+    {
+        File log = getCommandResourceLog();
+        boolean writeHeader = !log.exists();
+        try (CSVWriter writer = new CSVWriter(new BufferedWriter(new FileWriter(log, true)), '\t', CSVWriter.NO_QUOTE_CHARACTER))
+        {
+            if (writeHeader)
+            {
+                List<String> header = new ArrayList<>(Arrays.asList("Action", "Command"));
+                header.addAll(CommandResourceMonitor.ResourceUsage.COLUMNS);
+                writer.writeNext(header.toArray(new String[0]));
+
+                //this file is shared by all actions in the job, so it is only registered with the first
+                addOutput(action, COMMAND_RESOURCES_ROLE, log);
+            }
+
+            List<String> row = new ArrayList<>(Arrays.asList(action.getName(), command.replaceAll("[\t\n]", " ")));
+            row.addAll(usage.getValues());
+            writer.writeNext(row.toArray(new String[0]));
+        }
+        catch (IOException e)
+        {
+            _job.getLogger().warn("Unable to write command resource usage to: " + log.getPath(), e);
+        }
+    }
+
+    private File getCommandResourceLog()
+    {
+        return new File(getSupport().getAnalysisDirectory(), "commandResources.txt");
     }
 
     private boolean isParamterNameUsed(RecordedAction.ParameterType paramType, RecordedAction action)
@@ -208,7 +259,7 @@ private boolean isParamterNameUsed(RecordedAction.ParameterType paramType, Recor
     }
 
     @Override
-    public void addDeferredIntermediateFile(File file)
+    public synchronized void addDeferredIntermediateFile(File file)
     {
         String path = FilenameUtils.normalize(file.getPath());
         String relPath = FileUtil.relativePath(_workLocation.getPath(), path);
@@ -398,7 +449,7 @@ private File convertRelPathToFile(String line)
     }
 
     @Override
-    public void addIntermediateFile(File f)
+    public synchronized void addIntermediateFile(File f)
     {
         _job.getLogger().debug("adding intermediate file: " + f.getPath());
         if (existsAsOutput(f))
@@ -425,14 +476,14 @@ private boolean existsAsOutput(File f)
     }
 
     @Override
-    public void removeIntermediateFile(File f)
+    public synchronized void removeIntermediateFile(File f)
     {
         _job.getLogger().debug("removing intermediate file: " + f.getPath());
         _intermediateFiles.remove(f);
     }
 
     @Override
-    public void addIntermediateFiles(Collection<File> files)
+    public synchronized void addIntermediateFiles(Collection<File> files)
     {
         for (File f : files)
         {
@@ -457,7 +508,7 @@ public void addIntermediateFiles(Collection<File> files)
 //    }
 
     @Override
-    public void addPicardMetricsFiles(List<PipelineStepOutput.PicardMetricsOutput> files)
+    public synchronized void addPicardMetricsFiles(List<PipelineStepOutput.PicardMetricsOutput> files)
     {
         //Note: in case there is a restarted job, inspect file for redundancy, and remove previous:
         Set<String> filePaths = files.stream().map(PipelineStepOutput.PicardMetricsOutput::getMetricFile).map(File::getPath).collect(Collectors.toSet());
@@ -549,7 +600,8 @@ public void writeMetricsToDb(Map<Integer, Integer> readsetMap, Map<Integer, Map<
             _job.getLogger().debug("importing picard metrics from: " + metricLog.getPath());
 
             TableInfo ti = SequenceAnalysisManager.get().getTable(SequenceAnalysisSchema.TABLE_QUALITY_METRICS);
-            try (CSVReader reader = new CSVReader(Readers.getReader(metricLog), '\t'))
+            BulkResultWriter.LookupCache<File, ExpData> dataCache = new BulkResultWriter.LookupCache<>(f -> ExperimentService.get().getExpDataByURL(f, _job.getContainer()));
+            try (CSVReader reader = new CSVReader(Readers.getReader(metricLog), '\t'); BulkResultWriter writer = new BulkResultWriter(ti, Arrays.asList("container", "createdby", "created", "modifiedby", "modified", "readset", "analysis_id", "dataid", "category", "metricname", "metricvalue"), _job.getLogger()))
             {
                 String[] line;
                 int i = 0;
@@ -570,6 +622,8 @@ public void writeMetricsToDb(Map<Integer, Integer> readsetMap, Map<Integer, Map<
                     toInsert.put("container", _job.getContainer().getId());
                     toInsert.put("createdby", _job.getUser().getUserId());
                     toInsert.put("created", new Date());
+                    toInsert.put("modifiedby", _job.getUser().getUserId());
+                    toInsert.put("modified", new Date());
 
                     Integer readsetId = Integer.parseInt(line[0]);
                     toInsert.put("readset", readsetId);
@@ -589,7 +643,7 @@ public void writeMetricsToDb(Map<Integer, Integer> readsetMap, Map<Integer, Map<
                             if (typeMap.get(readsetId).containsKey(t))
                             {
                                 _job.getLogger().debug("attempting to find file: " + typeMap.get(readsetId).get(t).getPath());
-                                ExpData d = ExperimentService.get().getExpDataByURL(typeMap.get(readsetId).get(t), _job.getContainer());
+                                ExpData d = dataCache.get(typeMap.get(readsetId).get(t));
                                 if (d != null)
                                 {
                                     dataId = d.getRowId();
@@ -616,7 +670,7 @@ public void writeMetricsToDb(Map<Integer, Integer> readsetMap, Map<Integer, Map<
                         File f = convertRelPathToFile(relPath);
                         if (f != null)
                         {
-                            ExpData d = ExperimentService.get().getExpDataByURL(f, _job.getContainer());
+                            ExpData d = dataCache.get(f);
                             if (d != null)
                             {
                                 dataId = d.getRowId();
@@ -645,7 +699,7 @@ public void writeMetricsToDb(Map<Integer, Integer> readsetMap, Map<Integer, Map<
                     toInsert.put("metricname", line[4]);
                     toInsert.put("metricvalue", line[5]);
 
-                    Table.insert(_job.getUser(), ti, toInsert);
+                    writer.add(toInsert);
                 }
             }
             catch (IOException e)
@@ -1050,7 +1104,10 @@ private File decompressFile(File i, List<RecordedAction> actions)
             unzipped = Compress.decompressGzip(i, unzipped);
             _job.getLogger().debug("\tunzipped: " + unzipped.getPath());
 
-            _unzippedMap.put(i, unzipped);
+            synchronized (this)
+            {
+                _unzippedMap.put(i, unzipped);
+            }
 
             action.addInputIfNotPresent(i, "Compressed File");
             action.addOutputIfNotPresent(unzipped, "Decompressed File", true);
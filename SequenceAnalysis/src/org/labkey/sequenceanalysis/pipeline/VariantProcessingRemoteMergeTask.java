@@ -15,6 +15,8 @@
 import org.labkey.api.sequenceanalysis.pipeline.ReferenceGenome;
 import org.labkey.api.sequenceanalysis.pipeline.SequenceOutputHandler;
 import org.labkey.api.util.FileType;
+import org.labkey.sequenceanalysis.util.SequenceUtil;
+import org.labkey.sequenceanalysis.util.VcfStats;
 
 import java.io.File;
 import java.io.IOException;
@@ -169,6 +171,7 @@ private File runDefaultVariantMerge(TaskFileManagerImpl manager, RecordedAction
             manager.addInput(action, "Input VCF", vcf);
             manager.addIntermediateFile(vcf);
             manager.addIntermediateFile(new File(vcf.getPath() + ".tbi"));
+            manager.addIntermediateFile(VcfStats.getStatsFile(vcf));
         }
 
         String basename = SequenceAnalysisService.get().getUnzippedBaseName(toConcat.get(0).getName());
@@ -193,7 +196,7 @@ private File runDefaultVariantMerge(TaskFileManagerImpl manager, RecordedAction
             }
 
             ReferenceGenome genome = getPipelineJob().getSequenceSupport().getCachedGenome(genomeIds.iterator().next());
-            combined = SequenceAnalysisService.get().combineVcfs(toConcat, combined, genome, getJob().getLogger(), true, null);
+            combined = SequenceUtil.combineVcfsByBlockCopy(toConcat, genome, combined, getJob().getLogger(), true);
         }
         manager.addOutput(action, "Merged VCF", combined);
 
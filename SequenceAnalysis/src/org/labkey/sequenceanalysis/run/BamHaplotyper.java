@@ -28,7 +28,6 @@
 import org.labkey.api.sequenceanalysis.SequenceOutputFile;
 import org.labkey.api.sequenceanalysis.model.Readset;
 import org.labkey.api.sequenceanalysis.pipeline.ReferenceGenome;
-import org.labkey.api.util.Pair;
 import org.labkey.api.view.UnauthorizedException;
 import org.labkey.sequenceanalysis.api.picard.CigarPositionIterable;
 
@@ -36,11 +35,17 @@
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by bimber on 2/3/2016.
@@ -48,6 +53,13 @@
 public class BamHaplotyper
 {
     private static final Logger _log = LogManager.getLogger(BamHaplotyper.class);
+
+    //this is called from the webserver, so limit the threads and memory used by a single request
+    private static final int MAX_THREADS = 4;
+    private static final long MAX_MEMORY_BYTES = 256L * 1024 * 1024;
+    private static final int OBJECT_OVERHEAD = 64;
+    private static final byte NOT_COVERED = 0;
+
     private User _u;
 
     public BamHaplotyper(User u)
@@ -87,56 +99,85 @@ public JSONObject calculateNTHaplotypes(int[] inputFileIds, String[] regions, in
             }
         }
 
-        for (Interval i : intervals)
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(bams.size(), MAX_THREADS)));
+        try
         {
-            List<Pair<Character[][], Map<Integer, Integer>>> combinedResults = new ArrayList<>();
-            ReferenceSequence ref = null;
-            for (SequenceOutputFile so : bams)
+            for (Interval i : intervals)
             {
-                ReferenceGenome referenceGenome = SequenceAnalysisService.get().getReferenceGenome(so.getLibrary_id(), _u);
-                try (IndexedFastaSequenceFile idx = new IndexedFastaSequenceFile(referenceGenome.getWorkingFastaFile()))
+                //the BAMs are processed in parallel, and share one memory budget
+                AtomicLong memoryRemaining = new AtomicLong(MAX_MEMORY_BYTES);
+                List<Future<Map<Haplotype, Integer>>> futures = new ArrayList<>();
+                for (SequenceOutputFile so : bams)
                 {
-                    ref = idx.getSubsequenceAt(i.getContig(), i.getStart(), i.getEnd());
+                    futures.add(executor.submit(() -> processBam(i, so.getFile(), minQual, requireCompleteCoverage, memoryRemaining)));
                 }
 
-                List<Pair<Character[][], Integer>> haplotypes = processBam(i, so.getFile(), minQual, requireCompleteCoverage);
-                for (Pair<Character[][], Integer> newPair : haplotypes)
+                Map<Integer, ReferenceSequence> refByGenome = new HashMap<>();
+                ReferenceSequence ref = null;
+                Map<Haplotype, Map<Integer, Integer>> combinedResults = new LinkedHashMap<>();
+                for (int j = 0; j < bams.size(); j++)
                 {
-                    //add to our map
-                    boolean found = false;
-                    for (Pair<Character[][], Map<Integer, Integer>> pair : combinedResults)
+                    SequenceOutputFile so = bams.get(j);
+                    ref = refByGenome.get(so.getLibrary_id());
+                    if (ref == null)
                     {
-                        if (Arrays.deepEquals(pair.first, newPair.first))
+                        ReferenceGenome referenceGenome = SequenceAnalysisService.get().getReferenceGenome(so.getLibrary_id(), _u);
+                        try (IndexedFastaSequenceFile idx = new IndexedFastaSequenceFile(referenceGenome.getWorkingFastaFile()))
                         {
-                            Integer count = pair.second.containsKey(so.getRowid()) ? pair.second.get(so.getRowid()) : 0;
-                            count += newPair.second;
-                            pair.second.put(so.getRowid(), count);
-
-                            found = true;
+                            ref = idx.getSubsequenceAt(i.getContig(), i.getStart(), i.getEnd());
                         }
+                        refByGenome.put(so.getLibrary_id(), ref);
                     }
 
-                    if (!found)
+                    for (Map.Entry<Haplotype, Integer> e : getResult(futures.get(j)).entrySet())
                     {
-                        Map<Integer, Integer> map = new HashMap<>();
-                        map.put(so.getRowid(), newPair.second);
-                        combinedResults.add(Pair.of(newPair.first, map));
+                        combinedResults.computeIfAbsent(e.getKey(), x -> new HashMap<>()).merge(so.getRowid(), e.getValue(), Integer::sum);
                     }
                 }
-            }
 
-            JSONObject o = new JSONObject();
+                JSONObject o = new JSONObject();
 
-            Map<Integer, TreeSet<Integer>> indels = getInsertionMap(combinedResults);
-            o.put("intervals", convertResults(combinedResults, ref.getBases(), indels));
-            o.put("referenceSequence", getReferenceSequence(ref, indels));
-            o.put("name", (i.getContig() + ":" + i.getStart() + "-" + i.getEnd()));
-            ret.getJSONArray("intervals").put(o);
+                Map<Integer, TreeSet<Integer>> indels = getInsertionMap(combinedResults.keySet());
+                o.put("intervals", convertResults(combinedResults, ref.getBases(), indels));
+                o.put("referenceSequence", getReferenceSequence(ref, indels));
+                o.put("name", (i.getContig() + ":" + i.getStart() + "-" + i.getEnd()));
+                ret.getJSONArray("intervals").put(o);
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
         }
 
         return ret;
     }
 
+    private Map<Haplotype, Integer> getResult(Future<Map<Haplotype, Integer>> future) throws IOException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+            {
+                throw (IOException)e.getCause();
+            }
+            else if (e.getCause() instanceof RuntimeException)
+            {
+                throw (RuntimeException)e.getCause();
+            }
+
+            throw new IOException(e.getCause());
+        }
+    }
+
     private String getReferenceSequence(ReferenceSequence ref, Map<Integer, TreeSet<Integer>> indels)
     {
         StringBuilder sb = new StringBuilder();
@@ -158,25 +199,25 @@ private String getReferenceSequence(ReferenceSequence ref, Map<Integer, TreeSet<
         return sb.toString();
     }
 
-    private Map<Integer, TreeSet<Integer>> getInsertionMap(List<Pair<Character[][], Map<Integer, Integer>>> combinedResults)
+    private Map<Integer, TreeSet<Integer>> getInsertionMap(Collection<Haplotype> haplotypes)
     {
         //build list of all insertions that are present
         Map<Integer, TreeSet<Integer>> indels = new HashMap<>();
-        for (Pair<Character[][], Map<Integer, Integer>> pair : combinedResults)
+        for (Haplotype h : haplotypes)
         {
-            for (int idx = 0;idx < pair.first.length;idx++)
+            if (h._insertions == null)
             {
-                Character[] arr = pair.first[idx];
-                if (arr == null)
-                {
-                    continue;
-                }
+                continue;
+            }
 
-                if (arr.length > 1)
+            for (int idx = 0; idx < h._insertions.length; idx++)
+            {
+                byte[] inserted = h._insertions[idx];
+                if (inserted != null)
                 {
-                    for (int i = 1; i < arr.length; i++)
+                    TreeSet<Integer> l = indels.computeIfAbsent(idx, x -> new TreeSet<>());
+                    for (int i = 1; i <= inserted.length; i++)
                     {
-                        Set<Integer> l = indels.containsKey(idx) ? indels.get(idx) : new TreeSet<>();
                         l.add(i);
                     }
                 }
@@ -185,38 +226,39 @@ private Map<Integer, TreeSet<Integer>> getInsertionMap(List<Pair<Character[][],
 
         return indels;
     }
-    private Map<String, Map<Integer, Integer>> convertResults(List<Pair<Character[][], Map<Integer, Integer>>> combinedResults, byte[] refBases, Map<Integer, TreeSet<Integer>> indels)
+
+    private Map<String, Map<Integer, Integer>> convertResults(Map<Haplotype, Map<Integer, Integer>> combinedResults, byte[] refBases, Map<Integer, TreeSet<Integer>> indels)
     {
-        //now iterate each array, convert to string and return results
+        //now iterate each haplotype, convert to string and return results
         Map<String, Map<Integer, Integer>> ret = new HashMap<>();
-        for (Pair<Character[][], Map<Integer, Integer>> pair : combinedResults)
+        for (Map.Entry<Haplotype, Map<Integer, Integer>> e : combinedResults.entrySet())
         {
+            Haplotype h = e.getKey();
             StringBuilder sb = new StringBuilder();
-            for (int idx = 0;idx < pair.first.length;idx++)
+            for (int idx = 0; idx < h._bases.length; idx++)
             {
-                Character[] arr = pair.first[idx];
-                char ref = (char)refBases[idx];
-
-                if (arr == null)
+                byte base = h._bases[idx];
+                if (base == NOT_COVERED)
                 {
                     sb.append(':');
                 }
-                else if (arr[0] == ref)
+                else if (base == refBases[idx])
                 {
                     sb.append('.');
                 }
                 else
                 {
-                    sb.append(arr[0]);
+                    sb.append((char)base);
                 }
 
                 if (indels.containsKey(idx))
                 {
+                    byte[] inserted = h._insertions == null ? null : h._insertions[idx];
                     for (int insertIdx : indels.get(idx))
                     {
-                        if (arr != null && insertIdx < arr.length)
+                        if (inserted != null && insertIdx <= inserted.length)
                         {
-                            sb.append(arr[insertIdx]);
+                            sb.append((char)inserted[insertIdx - 1]);
                         }
                         else
                         {
@@ -226,13 +268,19 @@ else if (arr[0] == ref)
                 }
             }
 
-            ret.put(sb.toString(), pair.second);
+            ret.put(sb.toString(), e.getValue());
         }
 
         return ret;
     }
 
-    private List<Pair<Character[][], Integer>> processBam(Interval interval, File bam, int minQual, boolean requireCompleteCoverage) throws IOException
+    /**
+     * Counts the distinct haplotypes in this interval as reads stream from the BAM.  Only the counts of distinct haplotypes are retained,
+     * along with reads whose mate is expected later in the iteration.  Mates are paired from the same query rather than with queryMate(),
+     * since a mate that does not overlap the interval contributes no bases.  As before, each pair is anchored on the first read,
+     * so a second read whose mate does not overlap the interval is not counted.
+     */
+    private Map<Haplotype, Integer> processBam(Interval interval, File bam, int minQual, boolean requireCompleteCoverage, AtomicLong memoryRemaining) throws IOException
     {
         _log.info("processing bam: " + bam.getName());
 
@@ -242,10 +290,12 @@ private List<Pair<Character[][], Integer>> processBam(Interval interval, File ba
             throw new IOException("No index found for BAM: " + bam.getPath());
         }
 
-        List<Pair<Character[][], Integer>> ret = new ArrayList<>();
+        Map<Haplotype, Integer> ret = new HashMap<>();
+        Map<String, ReadEncoding> pendingFirstReads = new HashMap<>();
+        Map<String, ReadEncoding> pendingSecondReads = new HashMap<>();
 
         SamReaderFactory fact = SamReaderFactory.makeDefault();
-        try (SamReader reader = fact.open(bam);SamReader mateReader = fact.open(bam))
+        try (SamReader reader = fact.open(bam))
         {
             SAMFileHeader header = reader.getFileHeader();
             int idx = header.getSequenceIndex(interval.getContig());
@@ -266,58 +316,99 @@ private List<Pair<Character[][], Integer>> processBam(Interval interval, File ba
                     }
 
                     SAMRecord r = it.next();
-                    if (r.getReadPairedFlag() && r.getSecondOfPairFlag())
+                    ReadEncoding read = new ReadEncoding(interval.length());
+                    processRead(r, interval, read, minQual);
+
+                    if (!r.getReadPairedFlag())
                     {
-                        //we will address this read with first of pair
+                        addHaplotype(ret, read, requireCompleteCoverage, memoryRemaining, bam);
                         continue;
                     }
 
-                    Character[][] arr = new Character[interval.length()][];
-                    Integer[][] qualArr = new Integer[interval.length()][];
-
-                    //process read
-                    processRead(r, interval, arr, qualArr, minQual);
-
-                    if (r.getReadPairedFlag())
+                    //the mate has not been seen yet if it starts at or after this read, on the same contig
+                    boolean mateExpected = !r.getMateUnmappedFlag() && r.getMateReferenceIndex().equals(r.getReferenceIndex()) && r.getMateAlignmentStart() >= r.getAlignmentStart() && r.getMateAlignmentStart() <= interval.getEnd();
+                    if (r.getSecondOfPairFlag())
                     {
-                        SAMRecord mate = mateReader.queryMate(r);
-                        if (mate != null)
+                        ReadEncoding first = pendingFirstReads.remove(r.getReadName());
+                        if (first != null)
                         {
-                            processRead(mate, interval, arr, qualArr, minQual);
+                            releaseMemory(memoryRemaining, first);
+                            first.merge(read);
+                            addHaplotype(ret, first, requireCompleteCoverage, memoryRemaining, bam);
                         }
-                    }
-
-                    if (requireCompleteCoverage)
-                    {
-                        if (ArrayUtils.indexOf(arr, null) > -1)
+                        else if (mateExpected)
                         {
-                            continue;
+                            reserveMemory(memoryRemaining, read.getSize(), bam);
+                            pendingSecondReads.put(r.getReadName(), read);
                         }
                     }
-
-                    //add to our map
-                    boolean found = false;
-                    for (Pair<Character[][], Integer> pair : ret)
+                    else
                     {
-                        if (Arrays.deepEquals(pair.first, arr))
+                        ReadEncoding second = pendingSecondReads.remove(r.getReadName());
+                        if (second != null)
                         {
-                            pair.second = pair.second + 1;
-                            found = true;
+                            releaseMemory(memoryRemaining, second);
+                            read.merge(second);
+                            addHaplotype(ret, read, requireCompleteCoverage, memoryRemaining, bam);
+                        }
+                        else if (mateExpected)
+                        {
+                            reserveMemory(memoryRemaining, read.getSize(), bam);
+                            pendingFirstReads.put(r.getReadName(), read);
+                        }
+                        else
+                        {
+                            addHaplotype(ret, read, requireCompleteCoverage, memoryRemaining, bam);
                         }
-                    }
-
-                    if (!found)
-                    {
-                        ret.add(Pair.of(arr, 1));
                     }
                 }
             }
         }
 
+        //the mates of these reads did not overlap the interval
+        for (ReadEncoding read : pendingFirstReads.values())
+        {
+            releaseMemory(memoryRemaining, read);
+            addHaplotype(ret, read, requireCompleteCoverage, memoryRemaining, bam);
+        }
+
+        pendingSecondReads.values().forEach(read -> releaseMemory(memoryRemaining, read));
+
         return ret;
     }
 
-    private void processRead(SAMRecord r, Interval interval, Character[][] arr, Integer[][] qualArr, int minQual)
+    private void addHaplotype(Map<Haplotype, Integer> haplotypes, ReadEncoding read, boolean requireCompleteCoverage, AtomicLong memoryRemaining, File bam) throws IOException
+    {
+        if (requireCompleteCoverage && ArrayUtils.indexOf(read._bases, NOT_COVERED) > -1)
+        {
+            return;
+        }
+
+        Haplotype h = new Haplotype(read._bases, read._insertions);
+        Integer count = haplotypes.get(h);
+        if (count == null)
+        {
+            reserveMemory(memoryRemaining, h.getSize(), bam);
+            count = 0;
+        }
+
+        haplotypes.put(h, count + 1);
+    }
+
+    private void reserveMemory(AtomicLong memoryRemaining, long size, File bam) throws IOException
+    {
+        if (memoryRemaining.addAndGet(-size) < 0)
+        {
+            throw new IOException("Too many distinct haplotypes to summarize while processing: " + bam.getName() + ".  Please try a smaller region, or fewer files.");
+        }
+    }
+
+    private void releaseMemory(AtomicLong memoryRemaining, ReadEncoding read)
+    {
+        memoryRemaining.addAndGet(read.getSize());
+    }
+
+    private void processRead(SAMRecord r, Interval interval, ReadEncoding read, int minQual)
     {
         //add this value to a reference coordinate to find array position
         final int offset = interval.getStart() * -1;
@@ -356,71 +447,173 @@ else if (pi.isIndel())
             {
                 if (pi.isDel())
                 {
-                    if (arr[arrayPos] == null)
-                    {
-                        arr[arrayPos] = new Character[]{pi.getBaseQuality() < minQual ? 'N' : '-'};
-                        qualArr[arrayPos] = new Integer[]{pi.getBaseQuality()};
-                    }
-                    else
-                    {
-                        mergePositions(arr, qualArr, arrayPos, 0, pi.getBaseQuality() < minQual ? 'N' : '-', pi.getBaseQuality(), pi);
-                    }
+                    read.setBase(arrayPos, pi.getBaseQuality() < minQual ? (byte)'N' : (byte)'-', pi.getBaseQuality(), pi);
                 }
                 else if (pi.isInsertion() && pi.getBaseQuality() >= minQual)
                 {
-                    _log.info("indel: " + pi.getRecord().getReadName() + ", " + pi.getRefPosition());
-                    //TODO: account for second mate
+                    _log.debug("indel: " + pi.getRecord().getReadName() + ", " + pi.getRefPosition());
                     effectiveInsertIdx++;
-                    Character[] posArr = arr[arrayPos];
-                    if (posArr == null)
+                    if (read._bases[arrayPos] == NOT_COVERED)
                     {
                         throw new IllegalArgumentException("No previous array for position: " + pi.getRefPosition());
                     }
 
-                    Character[] newArr = Arrays.copyOf(posArr, effectiveInsertIdx + 1);
-                    newArr[effectiveInsertIdx] = (char)pi.getReadBase();
-
-                    arr[arrayPos] = newArr;
+                    read.setInsertedBase(arrayPos, effectiveInsertIdx, pi.getReadBase());
                 }
             }
             else
             {
-                if (arr[arrayPos] == null)
-                {
-                    arr[arrayPos] = new Character[]{pi.getBaseQuality() < minQual ? 'N' : (char) pi.getReadBase()};
-                    qualArr[arrayPos] = new Integer[]{pi.getBaseQuality()};
-                }
-                else
-                {
-                    mergePositions(arr, qualArr, arrayPos, 0, pi.getBaseQuality() < minQual ? 'N' : (char) pi.getReadBase(), pi.getBaseQuality(), pi);
-                }
+                read.setBase(arrayPos, pi.getBaseQuality() < minQual ? (byte)'N' : pi.getReadBase(), pi.getBaseQuality(), pi);
             }
         }
     }
 
-    private void mergePositions(Character[][] arr, Integer[][] qualArray, int arrayPos, int idx, char base, int qual, CigarPositionIterable.PositionInfo pi)
+    /**
+     * The bases of one read or pair over the interval, one byte per reference position, with NOT_COVERED where there is no data.
+     * Inserted bases are only allocated for positions that have them.
+     */
+    private static class ReadEncoding
     {
-        char existing = arr[arrayPos][idx];
-        if (existing == 'N')
+        private final byte[] _bases;
+        private final byte[] _quals;
+        private byte[][] _insertions = null;
+
+        public ReadEncoding(int length)
         {
-            arr[arrayPos][idx] = base;
+            _bases = new byte[length];
+            _quals = new byte[length];
         }
-        else if (base == 'N')
+
+        public void setBase(int arrayPos, byte base, int qual, CigarPositionIterable.PositionInfo pi)
         {
-            return;
+            if (_bases[arrayPos] == NOT_COVERED)
+            {
+                _bases[arrayPos] = base;
+                _quals[arrayPos] = (byte)Math.min(qual, Byte.MAX_VALUE);
+            }
+            else
+            {
+                mergePositions(arrayPos, base, qual, pi);
+            }
         }
-        else if (existing != base)
+
+        /**
+         * @param insertIdx The 1-based index of this base within the insertion
+         */
+        public void setInsertedBase(int arrayPos, int insertIdx, byte base)
         {
-            Integer existingQual = qualArray[arrayPos][idx];
-            if (existingQual < qual)
+            if (_insertions == null)
             {
-                arr[arrayPos][idx] = base;
+                _insertions = new byte[_bases.length][];
             }
-            else if (existingQual == qual)
+
+            //NOTE: this replaces any insertion at this position from the other read of the pair
+            byte[] existing = _insertions[arrayPos];
+            byte[] inserted = existing == null ? new byte[insertIdx] : Arrays.copyOf(existing, insertIdx);
+            inserted[insertIdx - 1] = base;
+            _insertions[arrayPos] = inserted;
+        }
+
+        /**
+         * Adds the bases of the other read in this pair, as though that read was processed after this one
+         */
+        public void merge(ReadEncoding mate)
+        {
+            for (int i = 0; i < _bases.length; i++)
             {
-                _log.info("conflicting bases: " + pi.getRecord().getReadName() + ", " + pi.getRefPosition() + ", " + arrayPos + ", " + idx + ", " + existing + ", " + base + ", " + qual);
+                if (mate._bases[i] != NOT_COVERED)
+                {
+                    setBase(i, mate._bases[i], mate._quals[i], null);
+                }
+
+                if (mate._insertions != null && mate._insertions[i] != null)
+                {
+                    if (_insertions == null)
+                    {
+                        _insertions = new byte[_bases.length][];
+                    }
+
+                    _insertions[i] = mate._insertions[i];
+                }
             }
         }
+
+        private void mergePositions(int arrayPos, byte base, int qual, CigarPositionIterable.PositionInfo pi)
+        {
+            byte existing = _bases[arrayPos];
+            if (existing == 'N')
+            {
+                _bases[arrayPos] = base;
+            }
+            else if (base == 'N')
+            {
+                return;
+            }
+            else if (existing != base)
+            {
+                int existingQual = _quals[arrayPos];
+                if (existingQual < qual)
+                {
+                    _bases[arrayPos] = base;
+                }
+                else if (existingQual == qual && pi != null)
+                {
+                    _log.info("conflicting bases: " + pi.getRecord().getReadName() + ", " + pi.getRefPosition() + ", " + arrayPos + ", " + (char)existing + ", " + (char)base + ", " + qual);
+                }
+            }
+        }
+
+        public long getSize()
+        {
+            return 2L * _bases.length + OBJECT_OVERHEAD;
+        }
+    }
+
+    /**
+     * A distinct haplotype over the interval, used as the key when counting reads
+     */
+    private static class Haplotype
+    {
+        private final byte[] _bases;
+        private final byte[][] _insertions;
+        private final int _hashCode;
+
+        public Haplotype(byte[] bases, byte[][] insertions)
+        {
+            _bases = bases;
+            _insertions = insertions;
+            _hashCode = 31 * Arrays.hashCode(bases) + (insertions == null ? 0 : Arrays.deepHashCode(insertions));
+        }
+
+        public long getSize()
+        {
+            long size = _bases.length + OBJECT_OVERHEAD;
+            if (_insertions != null)
+            {
+                size += 8L * _insertions.length;
+            }
+
+            return size;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o)
+                return true;
+
+            if (!(o instanceof Haplotype))
+                return false;
+
+            Haplotype h = (Haplotype)o;
+            return _hashCode == h._hashCode && Arrays.equals(_bases, h._bases) && Arrays.deepEquals(_insertions, h._insertions);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return _hashCode;
+        }
     }
 
     private List<Interval> getIntervals(String[] regions)
@@ -92,6 +92,12 @@ public boolean supportsGzipFastqs()
             return true;
         }
 
+        @Override
+        public boolean supportsConcurrentAlignments()
+        {
+            return true;
+        }
+
         @Override
         public String getIndexCachedDirName(PipelineJob job)
         {
@@ -53,6 +53,12 @@ public boolean supportsGzipFastqs()
             return false;
         }
 
+        @Override
+        public boolean supportsConcurrentAlignments()
+        {
+            return true;
+        }
+
         @Override
         public AlignmentOutput performAlignment(Readset rs, File inputFastq1, @Nullable File inputFastq2, File outputDirectory, ReferenceGenome referenceGenome, String basename, String readGroupId, @Nullable String platformUnit) throws PipelineJobException
         {
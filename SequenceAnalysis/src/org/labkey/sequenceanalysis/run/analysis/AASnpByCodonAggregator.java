@@ -28,6 +28,7 @@
 import org.labkey.api.pipeline.PipelineJobException;
 import org.labkey.api.query.FieldKey;
 import org.labkey.api.security.User;
+import org.labkey.api.sequenceanalysis.BulkResultWriter;
 import org.labkey.api.sequenceanalysis.model.AnalysisModel;
 import org.labkey.api.util.Pair;
 import org.labkey.sequenceanalysis.SequenceAnalysisSchema;
@@ -37,6 +38,7 @@
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -64,9 +66,9 @@ public AASnpByCodonAggregator(Logger log, File refFasta, AvgBaseQualityAggregato
     }
 
     @Override
-    public void inspectAlignment(SAMRecord record, ReferenceSequence ref, Map<Integer, List<NTSnp>> snps) throws PipelineJobException
+    protected void inspectSnps(SAMRecord record, ReferenceSequence ref, Map<Integer, List<NTSnp>> snps) throws PipelineJobException
     {
-        super.inspectAlignment(record, ref, snps);
+        super.inspectSnps(record, ref, snps);
 
         if (!isPassingAlignment(record, true))
         {
@@ -138,6 +140,39 @@ private String getAAKey(AASnp snp)
             .append(snp.getCodon()).append("||").toString();
     }
 
+    @Override
+    public AASnpByCodonAggregator createShardInstance(Map<AlignmentAggregator, AlignmentAggregator> shardInstances)
+    {
+        return initShardInstance(new AASnpByCodonAggregator(getLogger(), getRefFasta(), _avgQualAggregator, getSettings()), shardInstances);
+    }
+
+    @Override
+    public void merge(ShardableAlignmentAggregator other)
+    {
+        super.merge(other);
+
+        AASnpByCodonAggregator o = (AASnpByCodonAggregator)other;
+        _totalAlignments += o._totalAlignments;
+        _totalFilteredSnps += o._totalFilteredSnps;
+        _refSequenceMap.putAll(o._refSequenceMap);
+        for (String key : o._snps.keySet())
+        {
+            _snps.merge(key, o._snps.get(key), Integer::sum);
+
+            //NOTE: CacheKeyInfo calculates depth using the coverage aggregator of its enclosing instance, so always copy into a local instance
+            CacheKeyInfo info = _cacheDef.get(key);
+            if (info == null)
+            {
+                info = new CacheKeyInfo(o._cacheDef.get(key));
+                _cacheDef.put(key, info);
+            }
+            else
+            {
+                info.merge(o._cacheDef.get(key));
+            }
+        }
+    }
+
     public List<Map<String, Object>> getResults(User u, Container c, AnalysisModel model)
     {
         List<Map<String, Object>> rows = new ArrayList<>();
@@ -196,6 +231,7 @@ public void writeOutput(User u, Container c, AnalysisModel model)
             TableInfo ti = SequenceAnalysisSchema.getInstance().getSchema().getTable(SequenceAnalysisSchema.TABLE_AA_SNP_BY_CODON);
             SimpleFilter filter = new SimpleFilter(FieldKey.fromString("analysis_id"), model.getAnalysisId());
             long deleted = Table.delete(ti, filter);
+            BulkResultWriter writer = new BulkResultWriter(ti, Arrays.asList("analysis_id", "ref_aa_id", "ref_nt_id", "ref_aa_position", "ref_aa_insert_index", "ref_aa", "q_aa", "codon", "readcount", "ref_nt_positions", "depth", "adj_depth", "pct", "container", "createdby", "modifiedby", "created", "modified"), getLogger());
 
             List<Map<String, Object>> rows = getResults(u, c, model);
             for (Map<String, Object> row : rows)
@@ -210,9 +246,10 @@ public void writeOutput(User u, Container c, AnalysisModel model)
                 totalSaved++;
                 summary.put(refId, totalSaved);
 
-                Table.insert(u, ti, row);
+                writer.add(row);
             }
 
+            writer.close();
             transaction.commit();
 
             getLogger().info("\tTotal AA Reference sequences encountered: " + summary.keySet().size());
@@ -263,6 +300,47 @@ public CacheKeyInfo(AASnp snp)
             addSNP(snp);
         }
 
+        public CacheKeyInfo(CacheKeyInfo other)
+        {
+            _aaRefId = other._aaRefId;
+            _aaRefName = other._aaRefName;
+            _ntRefName = other._ntRefName;
+            _ntRefId = other._ntRefId;
+            _aaRefPos = other._aaRefPos;
+            _aaInsertIndex = other._aaInsertIndex;
+
+            _readResidue = other._readResidue;
+            _refResidue = other._refResidue;
+            _codon = other._codon;
+
+            merge(other);
+        }
+
+        public void merge(CacheKeyInfo other)
+        {
+            _ntPositions.addAll(other._ntPositions);
+            _readnames.addAll(other._readnames);
+            _dupReadnames.addAll(other._dupReadnames);
+
+            //replay the per-position readnames, so counts are only incremented once per read
+            for (String ntPosString : other._readnamesByPos.keySet())
+            {
+                Set<String> readnames = _readnamesByPos.computeIfAbsent(ntPosString, k -> new HashSet<>());
+                for (String readname : other._readnamesByPos.get(ntPosString))
+                {
+                    if (readnames.contains(readname))
+                    {
+                        _dupReadnames.add(readname);
+                    }
+                    else
+                    {
+                        _ntPositionStrings.merge(ntPosString, 1, Integer::sum);
+                        readnames.add(readname);
+                    }
+                }
+            }
+        }
+
         public int getAaRefId()
         {
             return _aaRefId;
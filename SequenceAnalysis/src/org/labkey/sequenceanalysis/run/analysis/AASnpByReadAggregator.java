@@ -39,9 +39,9 @@ public AASnpByReadAggregator(Logger log, File refFasta, AvgBaseQualityAggregator
     }
 
     @Override
-    public void inspectAlignment(SAMRecord record, ReferenceSequence ref, Map<Integer, List<NTSnp>> snps) throws PipelineJobException
+    protected void inspectSnps(SAMRecord record, ReferenceSequence ref, Map<Integer, List<NTSnp>> snps) throws PipelineJobException
     {
-        super.inspectAlignment(record, ref, snps);
+        super.inspectSnps(record, ref, snps);
 
         if (!isPassingAlignment(record, true))
         {
@@ -110,6 +110,38 @@ private String getAAKey(AASnp snp)
             .append(snp.getNtSnp().getReadname()).toString();
     }
 
+    @Override
+    public AASnpByReadAggregator createShardInstance(Map<AlignmentAggregator, AlignmentAggregator> shardInstances)
+    {
+        return initShardInstance(new AASnpByReadAggregator(getLogger(), getRefFasta(), _avgQualAggregator, getSettings()), shardInstances);
+    }
+
+    @Override
+    public void merge(ShardableAlignmentAggregator other)
+    {
+        super.merge(other);
+
+        AASnpByReadAggregator o = (AASnpByReadAggregator)other;
+        _refSequenceMap.putAll(o._refSequenceMap);
+        for (String key : o._snps.keySet())
+        {
+            _snps.merge(key, o._snps.get(key), Integer::sum);
+        }
+
+        for (String key : o._cacheDef.keySet())
+        {
+            CacheKeyInfo info = _cacheDef.get(key);
+            if (info == null)
+            {
+                _cacheDef.put(key, o._cacheDef.get(key));
+            }
+            else
+            {
+                info.merge(o._cacheDef.get(key));
+            }
+        }
+    }
+
     @Override
     public List<Map<String, Object>> getResults(User u, Container c, AnalysisModel model)
     {
@@ -210,6 +242,12 @@ public String getNtPositionString()
             return sb.toString();
         }
 
+        public void merge(CacheKeyInfo other)
+        {
+            _ntPositions.addAll(other._ntPositions);
+            _ntPositionStrings.addAll(other._ntPositionStrings);
+        }
+
         public void addSNP(AASnp snp)
         {
             _ntPositions.add(Pair.of(snp.getNtSnp().getLastRefPosition(), snp.getNtSnp().getInsertIndex()));
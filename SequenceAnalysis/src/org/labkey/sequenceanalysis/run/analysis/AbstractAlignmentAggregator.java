@@ -17,7 +17,6 @@
 
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.reference.ReferenceSequence;
-import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 import org.labkey.api.pipeline.PipelineJobException;
@@ -28,7 +27,6 @@
 import org.labkey.sequenceanalysis.util.TranslatingReferenceSequence;
 
 import java.io.File;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -53,6 +51,7 @@ abstract public class AbstractAlignmentAggregator implements AlignmentAggregator
     protected boolean _logProgress = true;
     private File _refFasta;
     private ReferenceLibraryHelper _libraryHelper;
+    private Map<String, String> _settings;
 
     protected long _lowMappingQual = 0L;
 
@@ -60,11 +59,45 @@ public AbstractAlignmentAggregator(Logger log, File refFasta, AvgBaseQualityAggr
     {
         _log = log;
         _refFasta = refFasta;
+        _settings = settings;
         initSettings(settings);
 
         _avgQualAggregator = avgQualAggregator;
     }
 
+    protected Map<String, String> getSettings()
+    {
+        return _settings;
+    }
+
+    /**
+     * Copies any thresholds set after construction onto a new shard instance
+     */
+    protected <T extends AbstractAlignmentAggregator> T initShardInstance(T shard)
+    {
+        shard.setMinAvgSnpQual(_minAvgSnpQual);
+        shard.setMinSnpQual(_minSnpQual);
+        shard.setMinAvgDipQual(_minAvgDipQual);
+        shard.setMinDipQual(_minDipQual);
+        shard.setMinMapQual(_minMapQual);
+        shard.setLogProgress(_logProgress);
+
+        return shard;
+    }
+
+    /**
+     * Combines the state held by this class, for subclasses that implement ShardableAlignmentAggregator
+     */
+    protected void merge(ShardableAlignmentAggregator other)
+    {
+        AbstractAlignmentAggregator o = (AbstractAlignmentAggregator)other;
+        _lowMappingQual += o._lowMappingQual;
+        for (String key : o._cacheDef.keySet())
+        {
+            _cacheDef.putIfAbsent(key, o._cacheDef.get(key));
+        }
+    }
+
     protected File getRefFasta()
     {
         return _refFasta;
@@ -86,11 +119,21 @@ protected Logger getLogger()
     }
 
     protected boolean inspectMapQual(SAMRecord r)
+    {
+        return inspectMapQual(r, true);
+    }
+
+    /**
+     * @param countFiltered If true, alignments below the minimum mapping quality are added to the total reported for this aggregator
+     */
+    protected boolean inspectMapQual(SAMRecord r, boolean countFiltered)
     {
         //zero mapping quality usually indicates that the aligner didnt set it
         if (r.getMappingQuality() < _minMapQual && r.getMappingQuality() != 0)
         {
-            _lowMappingQual++;
+            if (countFiltered)
+                _lowMappingQual++;
+
             return false;
         }
 
@@ -98,6 +141,11 @@ protected boolean inspectMapQual(SAMRecord r)
     }
 
     protected boolean isPassingAlignment(SAMRecord record, boolean skipUnmapped)
+    {
+        return isPassingAlignment(record, skipUnmapped, true);
+    }
+
+    protected boolean isPassingAlignment(SAMRecord record, boolean skipUnmapped, boolean countFiltered)
     {
         //NOTE: in order to match the behavior of SamLocusIterator, skip over Duplicate or Secondary/Supplemental reads
         if (record.getDuplicateReadFlag() || record.isSecondaryOrSupplementary())
@@ -110,7 +158,7 @@ protected boolean isPassingAlignment(SAMRecord record, boolean skipUnmapped)
             return false;
         }
 
-        if (!inspectMapQual(record))
+        if (!inspectMapQual(record, countFiltered))
         {
             return false;
         }
@@ -126,37 +174,28 @@ protected boolean isPassingSnp(SAMRecord r, NTSnp snp) throws PipelineJobExcepti
             return snp.getFlag() == null;
         }
 
-        Map<Integer, Map<String, Double>> avgQualsForRef = getQualsForReference(r.getReferenceIndex());
-        assert avgQualsForRef != null;
-
         int lastRef = snp.getLastRefPosition();
         if (snp.isDel())
             lastRef += snp.getIndel();
 
-        Map<String, Double> avgQuals = avgQualsForRef.get(lastRef);
         int qual = r.getBaseQualities()[snp.getLastReadPosition()]; //always used last available read quality
 
         //NOTE: for insertions, default to the last non-indel base
         //TODO: track avgQuals based on insertIndex too
-        String qBase;
+        byte qBase;
         if (snp.isInsertion())
         {
-            qBase = Character.toString((char) r.getReadBases()[snp.getLastReadPosition() - snp.getIndel()]);
+            qBase = r.getReadBases()[snp.getLastReadPosition() - snp.getIndel()];
         }
         else
         {
-            qBase = Character.toString((char) r.getReadBases()[snp.getLastReadPosition()]);
-        }
-
-        Double avgQualAtPosition = null;
-        if (avgQuals != null && avgQuals.containsKey(qBase))
-        {
-            avgQualAtPosition = avgQuals.get(qBase);
+            qBase = r.getReadBases()[snp.getLastReadPosition()];
         }
 
+        Double avgQualAtPosition = _avgQualAggregator.getAvgQual(r.getReferenceIndex(), lastRef, qBase);
         if (avgQualAtPosition == null)
         {
-            getLogger().error("missing avgQual: " + snp.getIndel() + " / " + snp.getReadPosition() + " / " + snp.getLastReadPosition() + " /read base: [" + snp.getReadBaseString() + "] /lastRef: " + snp.getLastRefPosition() + " /bases with quals: " + (avgQuals == null ? "" : StringUtils.join(Arrays.asList(avgQuals.keySet()), ";")));
+            getLogger().error("missing avgQual: " + snp.getIndel() + " / " + snp.getReadPosition() + " / " + snp.getLastReadPosition() + " /read base: [" + snp.getReadBaseString() + "] /lastRef: " + snp.getLastRefPosition() + " /qual base: " + (char)qBase);
             avgQualAtPosition = 95.0;
         }
 
@@ -237,16 +276,6 @@ private TranslatingReferenceSequence getReferenceFromDb(String refName)
         return ref;
     }
 
-    private Map<Integer, Map<Integer, Map<String, Double>>> _qualMap = new HashMap<>();
-
-    private Map<Integer, Map<String, Double>> getQualsForReference(Integer refId) throws PipelineJobException
-    {
-        if (!_qualMap.containsKey(refId))
-            _qualMap.put(refId, _avgQualAggregator.getQualsForReference(refId));
-
-        return _qualMap.get(refId);
-    }
-
     /**
      * Because SNPs within an insert can be discarded, we might need to re-number the SNPs
      */
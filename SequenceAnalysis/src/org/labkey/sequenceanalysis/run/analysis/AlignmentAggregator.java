@@ -40,5 +40,34 @@
 
     public void inspectAlignment(SAMRecord record, @Nullable ReferenceSequence ref, Map<Integer, List<NTSnp>> snps) throws PipelineJobException;
 
+    /**
+     * Called by BamIterator for each alignment.  The buffer is reused between alignments, so it should not be retained.
+     * By default this delegates to inspectAlignment() using the map of NTSnps, which is created once per alignment and shared across aggregators.
+     */
+    default public void inspectAlignment(SAMRecord record, @Nullable ReferenceSequence ref, ReadMismatchBuffer buffer) throws PipelineJobException
+    {
+        inspectAlignment(record, ref, buffer.getSnpMap());
+    }
+
+    /**
+     * Used when BamIterator accumulates average qualities during the same pass (see BamIterator.setAvgQualAggregator()).  For an alignment with mismatches,
+     * this is called during that pass, before the SNP quality filters can be applied, and should record only data that does not depend on them,
+     * such as coverage of the matching positions.  The same alignment is later passed to inspectDeferredAlignment().  By default this does nothing.
+     */
+    default public void inspectMatchedPositions(SAMRecord record, ReferenceSequence ref, ReadMismatchBuffer buffer) throws PipelineJobException
+    {
+
+    }
+
+    /**
+     * The counterpart to inspectMatchedPositions(), called once average qualities are complete.  The record is rebuilt from the compact copy held
+     * by BamIterator (see DeferredAlignments), so soft-clipped bases and the qualities of matching positions are not available.
+     * By default this delegates to inspectAlignment(), which is appropriate for any aggregator that does not override inspectMatchedPositions().
+     */
+    default public void inspectDeferredAlignment(SAMRecord record, ReferenceSequence ref, ReadMismatchBuffer buffer) throws PipelineJobException
+    {
+        inspectAlignment(record, ref, buffer);
+    }
+
     public String getSynopsis();
 }
@@ -15,24 +15,28 @@
  */
 package org.labkey.sequenceanalysis.run.analysis;
 
-import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.AlignmentBlock;
+import htsjdk.samtools.QueryInterval;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
 import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
 import htsjdk.samtools.ValidationStringency;
+import htsjdk.samtools.filter.DuplicateReadFilter;
 import htsjdk.samtools.filter.SamRecordFilter;
+import htsjdk.samtools.filter.SecondaryOrSupplementaryFilter;
 import htsjdk.samtools.util.Interval;
-import htsjdk.samtools.util.IntervalList;
-import htsjdk.samtools.util.SamLocusIterator;
 import org.apache.logging.log4j.Logger;
-import org.apache.logging.log4j.LogManager;
+import org.jetbrains.annotations.Nullable;
 import org.labkey.api.pipeline.PipelineJobException;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -40,15 +44,23 @@
  * User: bimber
  * Date: 10/19/12
  * Time: 4:18 PM
+ *
+ * Calculates the average quality of each base observed at each reference position.  Qualities are accumulated as a running sum
+ * and count per position/base in primitive arrays, one per reference.  Like SamLocusIterator, this only considers aligned bases (not indels),
+ * and by default skips duplicate and secondary/supplementary alignments.
  */
 public class AvgBaseQualityAggregator
 {
+    //A, C, G, T, and N.  Any other base is tracked as N
+    public static final int TOTAL_BASES = 5;
+
     private Logger _log;
     private File _bam;
     private File _bai;
     private File _ref;
-    private Map<Integer, Map<String, Double>> _quals = null;
+    private volatile Map<Integer, ReferenceQuals> _quals = null;
     private List<SamRecordFilter> _filters = null;
+    private volatile boolean _accumulating = false;
 
     public AvgBaseQualityAggregator(Logger log, File bam, File refFasta) throws FileNotFoundException
     {
@@ -60,7 +72,7 @@ public AvgBaseQualityAggregator(Logger log, File bam, File refFasta, List<SamRec
         _log = log;
         _bam = bam;
         _ref = refFasta;
-        _filters = filters;
+        _filters = filters == null ? Arrays.asList(new SecondaryOrSupplementaryFilter(), new DuplicateReadFilter()) : filters;
 
         _bai = new File(_bam.getPath() + ".bai");
         if(!_bai.exists())
@@ -72,33 +84,24 @@ public AvgBaseQualityAggregator(Logger log, File bam, File refFasta, List<SamRec
     }
 
     public void calculateAvgQuals(String refName, int start, int stop) throws PipelineJobException
+    {
+        calculateAvgQuals(Collections.singletonList(new Interval(refName, start, stop)));
+    }
+
+    /**
+     * Calculates average qualities only using alignments overlapping the supplied intervals
+     */
+    public void calculateAvgQuals(List<Interval> intervals) throws PipelineJobException
     {
         SamReaderFactory fact = SamReaderFactory.makeDefault();
         fact.validationStringency(ValidationStringency.SILENT);
         try (SamReader reader = fact.open(_bam))
         {
-            SAMFileHeader header = reader.getFileHeader();
-            List<SAMSequenceRecord> sequences = header.getSequenceDictionary().getSequences();
-
-            SAMSequenceRecord sr = null;
-            for (SAMSequenceRecord it : sequences)
+            QueryInterval[] queryIntervals = BamIterator.getQueryIntervals(reader.getFileHeader(), intervals);
+            try (SAMRecordIterator it = reader.query(queryIntervals, false))
             {
-                if (refName.equalsIgnoreCase(it.getSequenceName()))
-                {
-                    sr = it;
-                    break;
-                }
+                calculateAvgQuals(it);
             }
-
-            if (sr == null)
-                throw new IllegalArgumentException("Unknown reference: " + refName);
-
-            Map<Integer, Map<String, Double>> quals = new HashMap<>();
-            IntervalList il = new IntervalList(header);
-            il.add(new Interval(refName, start, stop));
-            quals.put(sr.getSequenceIndex(), calculateAvgQualsForInterval(reader, il));
-
-            _quals = quals;
         }
         catch (IOException e)
         {
@@ -110,122 +113,311 @@ public void calculateAvgQuals() throws PipelineJobException
     {
         SamReaderFactory bamFact = SamReaderFactory.makeDefault();
         bamFact.validationStringency(ValidationStringency.SILENT);
-        try (SamReader reader = bamFact.open(_bam))
+        try (SamReader reader = bamFact.open(_bam); SAMRecordIterator it = reader.iterator())
         {
-            SAMFileHeader header = reader.getFileHeader();
-            List<SAMSequenceRecord> sequences = header.getSequenceDictionary().getSequences();
+            calculateAvgQuals(it);
+        }
+        catch (IOException e)
+        {
+            throw new PipelineJobException(e);
+        }
+    }
 
-            Map<Integer, Map<String, Double>> quals = new HashMap<>();
-            for(SAMSequenceRecord sr : sequences) {
-                IntervalList il = new IntervalList(header);
-                il.add(new Interval(sr.getSequenceName(), 1, sr.getSequenceLength()));
+    private synchronized void calculateAvgQuals(SAMRecordIterator it)
+    {
+        Map<Integer, ReferenceQuals> quals = new HashMap<>();
 
-                quals.put(sr.getSequenceIndex(), calculateAvgQualsForInterval(reader, il));
-            }
+        int idx = 0;
+        while (it.hasNext())
+        {
+            addAlignment(it.next(), quals);
 
-            _quals = quals;
+            idx++;
+            if (idx % 100000 == 0)
+            {
+                _log.info("processed " + idx + " alignments in AvgBaseQualityAggregator");
+            }
         }
-        catch (IOException e)
+
+        _quals = quals;
+    }
+
+    /**
+     * Prepares this aggregator to accumulate qualities from alignments supplied by the caller using addAlignment(), such as during
+     * BamIterator's main pass.  Average qualities cannot be read until finalizeQuals() is called.
+     */
+    public void beginAccumulation()
+    {
+        _quals = new HashMap<>();
+        _accumulating = true;
+    }
+
+    public void finalizeQuals()
+    {
+        _accumulating = false;
+    }
+
+    public boolean isCalculated()
+    {
+        return _quals != null && !_accumulating;
+    }
+
+    /**
+     * @return A new, empty aggregator using the same BAM and filters, which can be used to accumulate qualities on another thread and then merged into this one
+     */
+    public AvgBaseQualityAggregator createShardInstance() throws FileNotFoundException
+    {
+        AvgBaseQualityAggregator ret = new AvgBaseQualityAggregator(_log, _bam, _ref, _filters);
+        ret.beginAccumulation();
+
+        return ret;
+    }
+
+    public void merge(AvgBaseQualityAggregator other)
+    {
+        for (Integer refId : other._quals.keySet())
         {
-            throw new PipelineJobException(e);
+            ReferenceQuals quals = _quals.get(refId);
+            if (quals == null)
+            {
+                _quals.put(refId, other._quals.get(refId));
+            }
+            else
+            {
+                quals.merge(other._quals.get(refId));
+            }
         }
     }
 
     /**
-     * @return 0-based map
+     * Adds the quality of each aligned base of this record to the running totals
      */
-    private Map<String, Double> calculateAvgQualsForInterval(SamReader sam, IntervalList il)
+    public void addAlignment(SAMRecord r)
+    {
+        if (_quals == null)
+        {
+            _quals = new HashMap<>();
+        }
+
+        addAlignment(r, _quals);
+    }
+
+    private void addAlignment(SAMRecord r, Map<Integer, ReferenceQuals> qualMap)
     {
-        Map<String, Double> quals = new HashMap<>();
+        if (r.getReadUnmappedFlag())
+        {
+            return;
+        }
 
-        try (SamLocusIterator sli = new SamLocusIterator(sam, il, true))
+        for (SamRecordFilter filter : _filters)
         {
-            sli.setEmitUncoveredLoci(false);
-            if (_filters != null)
+            if (filter.filterOut(r))
             {
-                //_log.debug("using custom filters for SamLocusIterator");
-                sli.setSamFilters(_filters);
+                return;
             }
+        }
+
+        ReferenceQuals quals = qualMap.get(r.getReferenceIndex());
+        if (quals == null)
+        {
+            SAMSequenceRecord sr = r.getHeader().getSequence(r.getReferenceIndex());
+            quals = new ReferenceQuals(sr.getSequenceLength());
+            qualMap.put(r.getReferenceIndex(), quals);
+        }
 
-            Iterator<SamLocusIterator.LocusInfo> it = sli.iterator();
-            int idx = 0;
-            while (it.hasNext())
+        byte[] readBases = r.getReadBases();
+        byte[] baseQuals = r.getBaseQualities();
+        for (AlignmentBlock block : r.getAlignmentBlocks())
+        {
+            int readStart = block.getReadStart() - 1; //convert to 0-based
+            int refStart = block.getReferenceStart() - 1; //convert to 0-based
+            for (int i = 0; i < block.getLength(); i++)
             {
-                SamLocusIterator.LocusInfo locus = it.next();
-                idx++;
+                quals.add(refStart + i, readBases[readStart + i], baseQuals[readStart + i]);
+            }
+        }
+    }
 
-                if (idx % 2500 == 0)
-                {
-                    _log.info("processed " + idx + " loci in AvgBaseQualityAggregator");
-                }
+    private void ensureQuals() throws PipelineJobException
+    {
+        if (_accumulating)
+        {
+            throw new IllegalStateException("Average qualities cannot be used until accumulation is complete");
+        }
 
-                Map<String, Integer> snpMap = new HashMap<>();
-                Map<String, Integer> baseCountMap = new HashMap<>();
+        if (_quals == null)
+        {
+            synchronized (this)
+            {
+                if (_quals == null)
+                    calculateAvgQuals();
+            }
+        }
+    }
 
-                for (SamLocusIterator.RecordAndOffset r : locus.getRecordAndOffsets())
-                {
-                    //debugging only:
-                    if (r.getOffset() >= r.getRecord().getReadBases().length)
-                    {
-                        throw new RuntimeException("Read lacks sequence over locus: " + r.getReadName() + "/ offset: " + r.getOffset() + "/ start: " + r.getRecord().getStart() + " / sequence: " + r.getRecord().getReadString() + " / " + r.getRecord().getSAMString());
-                    }
-
-                    String base = Character.toString((char) r.getReadBase());
-                    if (!snpMap.containsKey(base))
-                    {
-                        snpMap.put(base, (int) r.getBaseQuality());
-                        baseCountMap.put(base, 1);
-                    }
-                    else
-                    {
-                        snpMap.put(base, snpMap.get(base) + r.getBaseQuality());
-                        baseCountMap.put(base, baseCountMap.get(base) + 1);
-                    }
-                }
+    /**
+     * @param pos 0-based position
+     * @return The average quality of the base at this position, or null if this base was not observed at this position
+     */
+    @Nullable
+    public Double getAvgQual(int refId, int pos, byte base) throws PipelineJobException
+    {
+        ensureQuals();
+
+        ReferenceQuals quals = _quals.get(refId);
+        return quals == null ? null : quals.getAvgQual(pos, base);
+    }
+
+    /**
+     * @return A map of 0-based position to the average quality of each base observed at that position.  This is primarily intended for debugging and tests.
+     */
+    public Map<Integer, Map<String, Double>> getQualsForReference(Integer refId) throws PipelineJobException
+    {
+        ensureQuals();
+
+        ReferenceQuals quals = _quals.get(refId);
+        if (quals == null)
+            return null;
+
+        Map<Integer, Map<String, Double>> ret = new HashMap<>();
+        for (int pos = 0; pos < quals.getLength(); pos++)
+        {
+            if (quals.isEmptyPage(pos))
+            {
+                pos += quals.getPageSize() - (pos % quals.getPageSize()) - 1;
+                continue;
+            }
 
-                for (String b : baseCountMap.keySet())
+            for (byte base : new byte[]{'A', 'C', 'G', 'T', 'N'})
+            {
+                Double avg = quals.getAvgQual(pos, base);
+                if (avg != null)
                 {
-                    double avg = snpMap.get(b) / baseCountMap.get(b).doubleValue();
-                    Integer pos = locus.getPosition() - 1; //convert to 0-based
-                    String key = getBaseKey(pos, b);
-                    quals.put(key, avg);
+                    ret.computeIfAbsent(pos, k -> new HashMap<>()).put(Character.toString((char)base), avg);
                 }
             }
         }
 
-        return quals;
+        return ret;
     }
 
-    private String getBaseKey(Integer pos, String base)
+    public static int getBaseIndex(byte base)
     {
-        return pos + "||" + base;
+        switch (base)
+        {
+            case 'A':
+            case 'a':
+                return 0;
+            case 'C':
+            case 'c':
+                return 1;
+            case 'G':
+            case 'g':
+                return 2;
+            case 'T':
+            case 't':
+                return 3;
+            default:
+                return 4;
+        }
     }
 
-    public Map<Integer, Map<String, Double>> getQualsForReference(Integer refId) throws PipelineJobException
+    /**
+     * Running quality sums and counts for one reference, stored as position * TOTAL_BASES + base index.  The reference is split into fixed-size pages,
+     * which are only allocated once a position within them is observed, so memory is proportional to the region covered by reads rather than the reference length.
+     * This matters because each shard of a parallel iteration holds its own copy.
+     * Quality sums are longs, since deep amplicon data can exceed the range of an int at a single position.  Counts are ints, which limits depth
+     * to Integer.MAX_VALUE reads per position and base.
+     */
+    private static class ReferenceQuals
     {
-        if (_quals == null)
-            calculateAvgQuals();
+        private static final int PAGE_SIZE = 65536;
 
-        Map<String, Double> map = _quals.get(refId);
-        if (map == null)
-            return null;
+        private final int _length;
+        private final long[][] _qualSums;
+        private final int[][] _counts;
 
-        Map<Integer, Map<String, Double>> ret = new HashMap<>();
-        for (String key : map.keySet())
+        public ReferenceQuals(int length)
         {
-            String[] tokens = key.split("\\|\\|");
-            assert tokens.length == 2;
+            if (length < 0)
+            {
+                throw new IllegalArgumentException("Invalid reference length: " + length);
+            }
 
-            Integer pos = Integer.parseInt(tokens[0]);
+            _length = length;
 
-            Map<String, Double> baseMap = ret.get(pos);
-            if (baseMap == null)
-                baseMap = new HashMap<>();
+            long totalPages = ((long)length + PAGE_SIZE - 1) / PAGE_SIZE;
+            _qualSums = new long[(int)totalPages][];
+            _counts = new int[(int)totalPages][];
+        }
 
-            baseMap.put(tokens[1], map.get(key));
-            ret.put(pos, baseMap);
+        public void add(int pos, byte base, byte qual)
+        {
+            int page = pos / PAGE_SIZE;
+            if (_counts[page] == null)
+            {
+                _qualSums[page] = new long[PAGE_SIZE * TOTAL_BASES];
+                _counts[page] = new int[PAGE_SIZE * TOTAL_BASES];
+            }
+
+            int idx = (pos % PAGE_SIZE) * TOTAL_BASES + getBaseIndex(base);
+            _qualSums[page][idx] += qual;
+            _counts[page][idx]++;
         }
 
-        return ret;
+        public void merge(ReferenceQuals other)
+        {
+            for (int page = 0; page < _counts.length; page++)
+            {
+                if (other._counts[page] == null)
+                {
+                    continue;
+                }
+
+                if (_counts[page] == null)
+                {
+                    _qualSums[page] = other._qualSums[page];
+                    _counts[page] = other._counts[page];
+                    continue;
+                }
+
+                for (int i = 0; i < _counts[page].length; i++)
+                {
+                    _qualSums[page][i] += other._qualSums[page][i];
+                    _counts[page][i] += other._counts[page][i];
+                }
+            }
+        }
+
+        public Double getAvgQual(int pos, byte base)
+        {
+            if (pos < 0 || pos >= _length)
+                return null;
+
+            int page = pos / PAGE_SIZE;
+            if (_counts[page] == null)
+                return null;
+
+            int idx = (pos % PAGE_SIZE) * TOTAL_BASES + getBaseIndex(base);
+            return _counts[page][idx] == 0 ? null : _qualSums[page][idx] / (double)_counts[page][idx];
+        }
+
+        /**
+         * @return True if no position within the page containing this position has been observed
+         */
+        public boolean isEmptyPage(int pos)
+        {
+            return _counts[pos / PAGE_SIZE] == null;
+        }
+
+        public int getPageSize()
+        {
+            return PAGE_SIZE;
+        }
+
+        public int getLength()
+        {
+            return _length;
+        }
     }
 }
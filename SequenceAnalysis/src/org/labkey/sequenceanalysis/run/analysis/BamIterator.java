@@ -15,17 +15,27 @@
  */
 package org.labkey.sequenceanalysis.run.analysis;
 
+import htsjdk.samtools.BAMIndex;
+import htsjdk.samtools.BAMIndexMetaData;
+import htsjdk.samtools.QueryInterval;
+import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
 import htsjdk.samtools.ValidationStringency;
+import htsjdk.samtools.filter.FilteringSamIterator;
+import htsjdk.samtools.filter.SamRecordFilter;
 import htsjdk.samtools.reference.FastaSequenceIndex;
 import htsjdk.samtools.reference.IndexedFastaSequenceFile;
 import htsjdk.samtools.reference.ReferenceSequence;
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.Interval;
 import org.apache.commons.io.FileUtils;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
+import org.jetbrains.annotations.Nullable;
 import org.jmock.Expectations;
 import org.jmock.Mockery;
 import org.jmock.lib.legacy.ClassImposteriser;
@@ -62,9 +72,7 @@
 import org.labkey.sequenceanalysis.SequenceAnalysisModule;
 import org.labkey.sequenceanalysis.SequenceAnalysisSchema;
 import org.labkey.sequenceanalysis.SequenceIntegrationTests;
-import org.labkey.sequenceanalysis.api.picard.CigarPositionIterable;
 import org.labkey.sequenceanalysis.model.AnalysisModelImpl;
-import org.labkey.sequenceanalysis.run.util.NTSnp;
 
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -72,13 +80,19 @@
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
 
 /**
  * User: bbimber
@@ -98,6 +112,10 @@
     public static final byte AMBIGUITY_CHARACTER = (byte)'N';
 
     private List<AlignmentAggregator> _alignmentAggregators = new ArrayList<>();
+    private AvgBaseQualityAggregator _avgQualAggregator = null;
+
+    //reused for every alignment processed by a given thread
+    private final ThreadLocal<ReadMismatchBuffer> _mismatchBuffer = ThreadLocal.withInitial(ReadMismatchBuffer::new);
 
     public BamIterator(File bam, File refFasta, Logger logger) throws FileNotFoundException
     {
@@ -124,122 +142,533 @@ public void addAggregator(AlignmentAggregator aggregator)
         _alignmentAggregators.add(aggregator);
     }
 
+    /**
+     * If provided and the average qualities have not already been calculated, they will be accumulated during the same pass
+     * used to iterate reads, rather than requiring a separate pass over the BAM.  Alignments without any mismatches are passed to the aggregators immediately.
+     * For alignments with mismatches, the aggregators record the matching positions immediately (see AlignmentAggregator.inspectMatchedPositions()),
+     * and a compact copy of the mismatches is held in memory (see DeferredAlignments) until the average qualities are complete, at which point
+     * the quality filters are applied and the mismatches are passed to the aggregators.
+     */
+    public void setAvgQualAggregator(AvgBaseQualityAggregator avgQualAggregator)
+    {
+        _avgQualAggregator = avgQualAggregator;
+    }
+
+    private boolean isSinglePass()
+    {
+        return _avgQualAggregator != null && !_avgQualAggregator.isCalculated();
+    }
+
     public void iterateReads(String refName, int start, int stop) throws IOException, PipelineJobException
     {
+        //when a reference is provided, use the BAM index rather than scanning the entire file
+        if (refName != null)
+        {
+            iterateReads(Collections.singletonList(new Interval(refName, Math.max(start, 1), stop)));
+            return;
+        }
+
+        if (start == Integer.MIN_VALUE && stop == Integer.MAX_VALUE)
+        {
+            iterateReads(SamReader::iterator);
+        }
+        else
+        {
+            iterateReads(sam -> new FilteringSamIterator(sam.iterator(), new RecordFilter(r -> r.getAlignmentEnd() >= start && r.getAlignmentStart() <= stop)));
+        }
+    }
+
+    /**
+     * Iterates only the alignments overlapping the supplied intervals, using the BAM index.  Overlapping or abutting intervals
+     * are merged prior to the query, and because all intervals are passed to a single query, an alignment spanning
+     * the boundary between two intervals will only be processed once.
+     * @param intervals 1-based, closed intervals
+     */
+    public void iterateReads(List<Interval> intervals) throws IOException, PipelineJobException
+    {
+        iterateReads(sam -> {
+            if (!sam.hasIndex())
+            {
+                throw new PipelineJobException("BAM index could not be loaded for: " + _bam.getPath());
+            }
+
+            QueryInterval[] queryIntervals = getQueryIntervals(sam.getFileHeader(), intervals);
+            _logger.info("querying " + queryIntervals.length + " interval(s) from the BAM");
+
+            return sam.query(queryIntervals, false);
+        });
+    }
+
+    private void iterateReads(RecordSource source) throws IOException, PipelineJobException
+    {
+        boolean singlePass = isSinglePass();
+        IterationState state = new IterationState(_references, _alignmentAggregators, singlePass ? _avgQualAggregator : null);
+        if (singlePass)
+        {
+            _logger.info("average qualities will be calculated while iterating reads");
+            _avgQualAggregator.beginAccumulation();
+        }
+
         SamReaderFactory bamFact = SamReaderFactory.makeDefault();
         bamFact.validationStringency(ValidationStringency.SILENT);
 
         File fai = new File(_ref.getPath() + ".fai");
         try (SamReader sam = bamFact.open(_bam);IndexedFastaSequenceFile indexedRef = new IndexedFastaSequenceFile(_ref, new FastaSequenceIndex(fai)))
         {
-            try (SAMRecordIterator it = sam.iterator())
+            try (CloseableIterator<SAMRecord> it = source.open(sam))
             {
-                int i = 0;
-                long startTime = new Date().getTime();
+                processRecords(it, indexedRef, state);
+            }
 
-                while (it.hasNext())
-                {
-                    i++;
+            if (singlePass)
+            {
+                _avgQualAggregator.finalizeQuals();
+                processDeferred(state);
+            }
+        }
+    }
+
+    /**
+     * Converts the intervals into sorted, non-overlapping QueryIntervals
+     */
+    public static QueryInterval[] getQueryIntervals(SAMFileHeader header, List<Interval> intervals) throws PipelineJobException
+    {
+        List<QueryInterval> queryIntervals = new ArrayList<>();
+        for (Interval i : intervals)
+        {
+            int refIdx = header.getSequenceIndex(i.getContig());
+            if (refIdx < 0)
+            {
+                throw new PipelineJobException("Unknown reference: " + i.getContig());
+            }
 
-                    SAMRecord r = it.next();
-                    if (refName != null && (r.getReadUnmappedFlag() || !refName.equals(r.getReferenceName())))
-                        continue;
+            queryIntervals.add(new QueryInterval(refIdx, i.getStart(), i.getEnd()));
+        }
 
-                    if (r.getAlignmentEnd() < start || r.getAlignmentStart() > stop)
-                        continue;
+        return QueryInterval.optimizeIntervals(queryIntervals.toArray(new QueryInterval[0]));
+    }
 
-                    processAlignment(r, indexedRef);
+    private void processRecords(Iterator<SAMRecord> it, IndexedFastaSequenceFile indexedRef, IterationState state) throws PipelineJobException
+    {
+        int i = 0;
+        long startTime = new Date().getTime();
 
-                    if (i % 10000 == 0)
-                    {
-                        long newTime = new Date().getTime();
-                        _logger.info("processed " + i + " alignments in " + ((newTime - startTime) / 1000) + " seconds");
-                        startTime = newTime;
-                    }
-                }
+        while (it.hasNext())
+        {
+            i++;
+
+            SAMRecord r = it.next();
+            if (state.getQualAccumulator() == null)
+            {
+                processAlignment(r, indexedRef, state);
+            }
+            else
+            {
+                collectAlignment(r, indexedRef, state);
+            }
+
+            if (i % 10000 == 0)
+            {
+                long newTime = new Date().getTime();
+                _logger.info("processed " + i + " alignments in " + ((newTime - startTime) / 1000) + " seconds");
+                startTime = newTime;
             }
         }
     }
 
     /**
-     * Iterates all reads in the alignment
-     * @return
+     * The first phase of single-pass iteration: accumulate qualities, process alignments without mismatches, and for those with mismatches,
+     * process the matching positions and hold the mismatches until average qualities are complete.
      */
-    public void iterateReads() throws IOException, PipelineJobException
+    private void collectAlignment(SAMRecord r, IndexedFastaSequenceFile indexedRef, IterationState state) throws PipelineJobException
     {
-        iterateReads(null, Integer.MIN_VALUE, Integer.MAX_VALUE);
+        state.getQualAccumulator().addAlignment(r);
+        if (r.getReadUnmappedFlag())
+        {
+            processAlignment(r, indexedRef, state);
+            return;
+        }
+
+        ReadMismatchBuffer buffer = _mismatchBuffer.get();
+        ReferenceSequence ref = getReferenceSequenceFromFasta(r.getReferenceName(), indexedRef, state.getReferences());
+        buffer.load(r, ref.getBases());
+        if (buffer.getMismatchCount() == 0)
+        {
+            inspectAlignment(r, ref, buffer, state);
+        }
+        else
+        {
+            for (AlignmentAggregator aggregator : state.getAggregators())
+            {
+                aggregator.inspectMatchedPositions(r, ref, buffer);
+            }
+
+            state.getDeferred().add(r, buffer);
+        }
     }
 
-    private void processAlignment(SAMRecord r, IndexedFastaSequenceFile indexedRef) throws PipelineJobException
+    /**
+     * The second phase of single-pass iteration, which must be called once average qualities are complete.  Each alignment held in memory
+     * is rebuilt from its compact copy and its mismatches are passed to the aggregators.
+     */
+    private void processDeferred(IterationState state) throws PipelineJobException
     {
-        if (r.getReadUnmappedFlag())
+        DeferredAlignments deferred = state.getDeferred();
+        if (deferred.size() > 0)
+        {
+            _logger.info("processing " + deferred.size() + " alignments with mismatches");
+        }
+
+        ReadMismatchBuffer buffer = _mismatchBuffer.get();
+        for (int i = 0; i < deferred.size(); i++)
         {
-            for (AlignmentAggregator aggregator : _alignmentAggregators)
+            //the reference was cached when this alignment was first encountered
+            ReferenceSequence ref = state.getReferences().get(deferred.getReferenceName(i));
+            SAMRecord r = deferred.getRecord(i, ref.getBases());
+            buffer.load(r, ref.getBases());
+            for (AlignmentAggregator aggregator : state.getAggregators())
             {
-                aggregator.inspectAlignment(r, null, new HashMap<>());
+                aggregator.inspectDeferredAlignment(r, ref, buffer);
             }
+        }
+
+        deferred.clear();
+    }
+
+    /**
+     * Iterates all reads in the alignment using multiple threads.  The BAM is split into shards, either one per reference
+     * or fixed-size windows if windowSize is provided, and each shard is processed by its own copy of the aggregators,
+     * which are merged into the original aggregators once all shards complete.  If any aggregator does not support
+     * sharding, this falls back to serial iteration.
+     */
+    public void iterateReadsParallel(int threads, @Nullable Integer windowSize) throws IOException, PipelineJobException
+    {
+        List<ShardableAlignmentAggregator> shardable = getShardableAggregators();
+        if (threads <= 1 || shardable == null)
+        {
+            _logger.info("iterating reads serially");
+            iterateReads();
             return;
         }
-        assert !(r.getReferenceName().equals(SAMRecord.NO_ALIGNMENT_REFERENCE_NAME));
 
-        ReferenceSequence ref = getReferenceSequenceFromFasta(r.getReferenceName(), indexedRef);
+        List<BamShard> shards = getShards(windowSize);
+        _logger.info("iterating reads using " + threads + " threads and " + shards.size() + " shards");
+
+        boolean singlePass = isSinglePass();
+        if (singlePass)
+        {
+            _logger.info("average qualities will be calculated while iterating reads");
+            _avgQualAggregator.beginAccumulation();
+        }
+
+        List<Callable<IterationState>> tasks = new ArrayList<>();
+        for (BamShard shard : shards)
+        {
+            tasks.add(() -> processShard(shardable, shard, singlePass));
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try
+        {
+            List<IterationState> shardStates = new ArrayList<>();
+            for (Future<IterationState> future : pool.invokeAll(tasks))
+            {
+                shardStates.add(future.get());
+            }
+
+            //once qualities from all shards are combined, process the alignments with mismatches
+            if (singlePass)
+            {
+                for (IterationState state : shardStates)
+                {
+                    _avgQualAggregator.merge(state.getQualAccumulator());
+                }
+                _avgQualAggregator.finalizeQuals();
+
+                List<Callable<IterationState>> deferredTasks = new ArrayList<>();
+                for (IterationState state : shardStates)
+                {
+                    deferredTasks.add(() -> {
+                        processDeferred(state);
+                        return state;
+                    });
+                }
+
+                for (Future<IterationState> future : pool.invokeAll(deferredTasks))
+                {
+                    future.get();
+                }
+            }
+
+            //merge in coordinate order
+            for (int i = 0; i < shardable.size(); i++)
+            {
+                for (IterationState state : shardStates)
+                {
+                    shardable.get(i).merge((ShardableAlignmentAggregator)state.getAggregators().get(i));
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            throw new PipelineJobException(e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof PipelineJobException)
+            {
+                throw (PipelineJobException)e.getCause();
+            }
+
+            throw new PipelineJobException(e.getCause());
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
 
-        Map<Integer, List<NTSnp>> snpPositions = new TreeMap<>();
-        CigarPositionIterable cpi = new CigarPositionIterable(r);
-        CigarPositionIterable.CigarIterator ci = cpi.iterator();
-        while (ci.hasNext())
+    /**
+     * @return The aggregators, in order, or null if any does not support sharding
+     */
+    private @Nullable List<ShardableAlignmentAggregator> getShardableAggregators()
+    {
+        List<ShardableAlignmentAggregator> ret = new ArrayList<>();
+        for (AlignmentAggregator a : _alignmentAggregators)
         {
-            CigarPositionIterable.PositionInfo pi = ci.next();
-            List<NTSnp> snps = snpPositions.get(pi.getLastRefPosition());
-            if (snps == null)
-                snps = new ArrayList<>();
+            if (!(a instanceof ShardableAlignmentAggregator))
+            {
+                _logger.info("aggregator does not support parallel iteration: " + a.getClass().getSimpleName());
+                return null;
+            }
+
+            ret.add((ShardableAlignmentAggregator)a);
+        }
+
+        return ret;
+    }
 
-            if (pi.includeInSnpCount())
+    private List<BamShard> getShards(@Nullable Integer windowSize) throws IOException
+    {
+        SamReaderFactory bamFact = SamReaderFactory.makeDefault();
+        bamFact.validationStringency(ValidationStringency.SILENT);
+
+        List<BamShard> shards = new ArrayList<>();
+        try (SamReader sam = bamFact.open(_bam))
+        {
+            BAMIndex index = sam.indexing().getIndex();
+            for (SAMSequenceRecord sr : sam.getFileHeader().getSequenceDictionary().getSequences())
             {
-                NTSnp ntSnp = new NTSnp(pi);
+                //skip references without any reads
+                BAMIndexMetaData metaData = index.getMetaData(sr.getSequenceIndex());
+                if (metaData == null || (metaData.getAlignedRecordCount() + metaData.getUnalignedRecordCount()) == 0)
+                {
+                    continue;
+                }
 
-                // test whether refBase equals the readBase
-                if (ntSnp.getReferenceBase(ref.getBases()) != ntSnp.getReadBase())
+                int step = windowSize == null ? sr.getSequenceLength() : windowSize;
+                for (int start = 1; start <= sr.getSequenceLength(); start += step)
                 {
-                    snps.add(ntSnp);
+                    shards.add(new BamShard(sr.getSequenceIndex(), start, Math.min(start + step - 1, sr.getSequenceLength())));
                 }
             }
+        }
+
+        //reads lacking a reference
+        shards.add(new BamShard(-1, 0, 0));
+
+        return shards;
+    }
+
+    private IterationState processShard(List<ShardableAlignmentAggregator> shardable, BamShard shard, boolean singlePass) throws IOException, PipelineJobException
+    {
+        Map<AlignmentAggregator, AlignmentAggregator> shardInstances = new HashMap<>();
+        List<AlignmentAggregator> aggregators = new ArrayList<>();
+        for (ShardableAlignmentAggregator a : shardable)
+        {
+            AlignmentAggregator shardInstance = shardInstances.get(a);
+            if (shardInstance == null)
+            {
+                shardInstance = a.createShardInstance(shardInstances);
+                shardInstances.put(a, shardInstance);
+            }
+
+            aggregators.add(shardInstance);
+        }
+
+        IterationState state = new IterationState(new HashMap<>(), aggregators, singlePass ? _avgQualAggregator.createShardInstance() : null);
+
+        SamReaderFactory bamFact = SamReaderFactory.makeDefault();
+        bamFact.validationStringency(ValidationStringency.SILENT);
+
+        File fai = new File(_ref.getPath() + ".fai");
+        try (SamReader sam = bamFact.open(_bam);IndexedFastaSequenceFile indexedRef = new IndexedFastaSequenceFile(_ref, new FastaSequenceIndex(fai)); CloseableIterator<SAMRecord> it = shard.open(sam))
+        {
+            processRecords(it, indexedRef, state);
+        }
+
+        return state;
+    }
+
+    private interface RecordSource
+    {
+        CloseableIterator<SAMRecord> open(SamReader sam) throws PipelineJobException;
+    }
+
+    private static class BamShard implements RecordSource
+    {
+        private final int _refIdx;
+        private final int _start;
+        private final int _end;
+
+        public BamShard(int refIdx, int start, int end)
+        {
+            _refIdx = refIdx;
+            _start = start;
+            _end = end;
+        }
+
+        public int getRefIdx()
+        {
+            return _refIdx;
+        }
+
+        public int getStart()
+        {
+            return _start;
+        }
+
+        public int getEnd()
+        {
+            return _end;
+        }
+
+        @Override
+        public CloseableIterator<SAMRecord> open(SamReader sam)
+        {
+            if (_refIdx < 0)
+            {
+                return sam.queryUnmapped();
+            }
+
+            //only process reads starting within this window, so reads spanning two windows are counted once
+            SAMRecordIterator it = sam.query(new QueryInterval[]{new QueryInterval(_refIdx, _start, _end)}, false);
+            return new FilteringSamIterator(it, new RecordFilter(r -> r.getAlignmentStart() >= _start));
+        }
+    }
+
+    private static class RecordFilter implements SamRecordFilter
+    {
+        private final Predicate<SAMRecord> _include;
+
+        public RecordFilter(Predicate<SAMRecord> include)
+        {
+            _include = include;
+        }
+
+        @Override
+        public boolean filterOut(SAMRecord r)
+        {
+            return !_include.test(r);
+        }
+
+        @Override
+        public boolean filterOut(SAMRecord first, SAMRecord second)
+        {
+            return filterOut(first) || filterOut(second);
+        }
+    }
+
+    /**
+     * Holds the aggregators and cached references used by one iteration (or one shard), plus any alignments with mismatches held until average qualities are complete
+     */
+    private static class IterationState
+    {
+        private final Map<String, ReferenceSequence> _references;
+        private final List<AlignmentAggregator> _aggregators;
+        private final AvgBaseQualityAggregator _qualAccumulator;
+        private DeferredAlignments _deferred = null;
+
+        public IterationState(Map<String, ReferenceSequence> references, List<AlignmentAggregator> aggregators, @Nullable AvgBaseQualityAggregator qualAccumulator)
+        {
+            _references = references;
+            _aggregators = aggregators;
+            _qualAccumulator = qualAccumulator;
+        }
+
+        public Map<String, ReferenceSequence> getReferences()
+        {
+            return _references;
+        }
 
-            if (snps.size() > 0)
-                snpPositions.put(pi.getLastRefPosition(), snps);
+        public List<AlignmentAggregator> getAggregators()
+        {
+            return _aggregators;
+        }
+
+        @Nullable
+        public AvgBaseQualityAggregator getQualAccumulator()
+        {
+            return _qualAccumulator;
         }
 
-        //sort SNPs on insert idx
-        for (Integer pos : snpPositions.keySet())
+        public DeferredAlignments getDeferred()
         {
-            List<NTSnp> sortedSnps = snpPositions.get(pos);
-            sortedSnps.sort((snp1, snp2) ->
+            //created on demand, so shards without any mismatches do not allocate the buffers
+            if (_deferred == null)
             {
-                Integer pos1 = snp1.getLastRefPosition();
-                Integer idx1 = snp1.getInsertIndex();
-                Integer compare1 = pos1.compareTo(snp2.getLastRefPosition());
+                _deferred = new DeferredAlignments();
+            }
+
+            return _deferred;
+        }
+    }
+
+    /**
+     * Iterates all reads in the alignment
+     * @return
+     */
+    public void iterateReads() throws IOException, PipelineJobException
+    {
+        iterateReads(null, Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
 
-                return compare1 != 0 ? compare1 : idx1.compareTo(snp2.getInsertIndex());
-            });
-            snpPositions.put(pos, sortedSnps);
+    private void processAlignment(SAMRecord r, IndexedFastaSequenceFile indexedRef, IterationState state) throws PipelineJobException
+    {
+        ReadMismatchBuffer buffer = _mismatchBuffer.get();
+        if (r.getReadUnmappedFlag())
+        {
+            buffer.reset(r);
+            inspectAlignment(r, null, buffer, state);
+            return;
         }
+        assert !(r.getReferenceName().equals(SAMRecord.NO_ALIGNMENT_REFERENCE_NAME));
+
+        ReferenceSequence ref = getReferenceSequenceFromFasta(r.getReferenceName(), indexedRef, state.getReferences());
 
-        for (AlignmentAggregator aggregator : _alignmentAggregators)
+        //NOTE: positions are recorded in CIGAR order, so SNPs are already sorted on position and insert index
+        buffer.load(r, ref.getBases());
+        inspectAlignment(r, ref, buffer, state);
+    }
+
+    private void inspectAlignment(SAMRecord r, @Nullable ReferenceSequence ref, ReadMismatchBuffer buffer, IterationState state) throws PipelineJobException
+    {
+        for (AlignmentAggregator aggregator : state.getAggregators())
         {
-            aggregator.inspectAlignment(r, ref, snpPositions);
+            aggregator.inspectAlignment(r, ref, buffer);
         }
     }
 
-    private ReferenceSequence getReferenceSequenceFromFasta(String refName, IndexedFastaSequenceFile indexedRef)
+    private ReferenceSequence getReferenceSequenceFromFasta(String refName, IndexedFastaSequenceFile indexedRef, Map<String, ReferenceSequence> references)
     {
-        if (_references.containsKey(refName))
+        if (references.containsKey(refName))
         {
-            return _references.get(refName);
+            return references.get(refName);
         }
         else
         {
-            _references.put(refName, indexedRef.getSequence(refName));
-            return _references.get(refName);
+            references.put(refName, indexedRef.getSequence(refName));
+            return references.get(refName);
         }
     }
 
@@ -0,0 +1,305 @@
+package org.labkey.sequenceanalysis.run.analysis;
+
+import htsjdk.samtools.BinaryCigarCodec;
+import htsjdk.samtools.Cigar;
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.CigarOperator;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Holds the alignments with mismatches encountered while average qualities are still being accumulated (see BamIterator.setAvgQualAggregator()),
+ * so they can be inspected once the qualities are complete without a second pass over the BAM.  Rather than retaining each SAMRecord,
+ * this stores the name, flags, position, mapping quality and CIGAR of each alignment, plus the base and raw quality of only those read positions
+ * needed to evaluate its mismatches, in primitive arrays.
+ *
+ * getRecord() rebuilds a minimal SAMRecord for each alignment.  Read bases at aligned positions are taken from the reference, which is exact
+ * for every position not stored here, since those matched the reference.  Soft-clipped bases and the qualities of matching positions are not retained.
+ */
+public class DeferredAlignments
+{
+    private static final int INITIAL_SIZE = 1024;
+
+    private SAMFileHeader _header = null;
+    private int _size = 0;
+
+    //one entry per alignment.  offsets have one extra entry, so the values for alignment i are [offsets[i], offsets[i + 1])
+    private int[] _refIndexes = new int[INITIAL_SIZE];
+    private int[] _alignmentStarts = new int[INITIAL_SIZE];
+    private int[] _flags = new int[INITIAL_SIZE];
+    private byte[] _mappingQuals = new byte[INITIAL_SIZE];
+    private int[] _readLengths = new int[INITIAL_SIZE];
+    private int[] _nameOffsets = new int[INITIAL_SIZE + 1];
+    private int[] _cigarOffsets = new int[INITIAL_SIZE + 1];
+    private int[] _baseOffsets = new int[INITIAL_SIZE + 1];
+
+    private byte[] _names = new byte[INITIAL_SIZE * 32];
+    private int[] _cigars = new int[INITIAL_SIZE * 4];
+    private int[] _readPositions = new int[INITIAL_SIZE * 8];
+    private byte[] _bases = new byte[INITIAL_SIZE * 8];
+    private byte[] _quals = new byte[INITIAL_SIZE * 8];
+
+    public DeferredAlignments()
+    {
+
+    }
+
+    /**
+     * @param buffer The positions of this alignment, as loaded by ReadMismatchBuffer.load()
+     */
+    public void add(SAMRecord r, ReadMismatchBuffer buffer)
+    {
+        if (_header == null)
+        {
+            _header = r.getHeader();
+        }
+
+        if (_size == _refIndexes.length)
+        {
+            int newLength = grow(_refIndexes.length, _size + 1);
+            _refIndexes = Arrays.copyOf(_refIndexes, newLength);
+            _alignmentStarts = Arrays.copyOf(_alignmentStarts, newLength);
+            _flags = Arrays.copyOf(_flags, newLength);
+            _mappingQuals = Arrays.copyOf(_mappingQuals, newLength);
+            _readLengths = Arrays.copyOf(_readLengths, newLength);
+            _nameOffsets = Arrays.copyOf(_nameOffsets, newLength + 1);
+            _cigarOffsets = Arrays.copyOf(_cigarOffsets, newLength + 1);
+            _baseOffsets = Arrays.copyOf(_baseOffsets, newLength + 1);
+        }
+
+        _refIndexes[_size] = r.getReferenceIndex();
+        _alignmentStarts[_size] = r.getAlignmentStart();
+        _flags[_size] = r.getFlags();
+        _mappingQuals[_size] = (byte)r.getMappingQuality();
+        _readLengths[_size] = r.getReadLength();
+
+        byte[] name = r.getReadName().getBytes(StandardCharsets.US_ASCII);
+        int nameStart = _nameOffsets[_size];
+        if (nameStart + name.length > _names.length)
+        {
+            _names = Arrays.copyOf(_names, grow(_names.length, (long)nameStart + name.length));
+        }
+        System.arraycopy(name, 0, _names, nameStart, name.length);
+        _nameOffsets[_size + 1] = nameStart + name.length;
+
+        int[] cigar = BinaryCigarCodec.encode(r.getCigar());
+        int cigarStart = _cigarOffsets[_size];
+        if (cigarStart + cigar.length > _cigars.length)
+        {
+            _cigars = Arrays.copyOf(_cigars, grow(_cigars.length, (long)cigarStart + cigar.length));
+        }
+        System.arraycopy(cigar, 0, _cigars, cigarStart, cigar.length);
+        _cigarOffsets[_size + 1] = cigarStart + cigar.length;
+
+        //retain the read positions used by isPassingSnp() and the NTSnp of each mismatch
+        _baseOffsets[_size + 1] = _baseOffsets[_size];
+        byte[] readBases = r.getReadBases();
+        byte[] quals = r.getBaseQualities();
+        for (int i = 0; i < buffer.size(); i++)
+        {
+            if (!buffer.isMismatch(i))
+                continue;
+
+            if (buffer.getReadPosition(i) > -1)
+                addBase(buffer.getReadPosition(i), readBases, quals);
+
+            addBase(buffer.getLastReadPosition(i), readBases, quals);
+
+            if (buffer.getCigarOperator(i) == CigarOperator.INSERTION && buffer.getLastReadPosition(i) - buffer.getIndel(i) > -1)
+                addBase(buffer.getLastReadPosition(i) - buffer.getIndel(i), readBases, quals);
+        }
+
+        _size++;
+    }
+
+    private void addBase(int readPos, byte[] readBases, byte[] quals)
+    {
+        int idx = _baseOffsets[_size + 1];
+        if (idx == _readPositions.length)
+        {
+            int newLength = grow(_readPositions.length, (long)idx + 1);
+            _readPositions = Arrays.copyOf(_readPositions, newLength);
+            _bases = Arrays.copyOf(_bases, newLength);
+            _quals = Arrays.copyOf(_quals, newLength);
+        }
+
+        _readPositions[idx] = readPos;
+        _bases[idx] = readBases[readPos];
+        _quals[idx] = readPos < quals.length ? quals[readPos] : 0;
+        _baseOffsets[_size + 1] = idx + 1;
+    }
+
+    private int grow(int currentLength, long minLength)
+    {
+        //leave headroom below the maximum array size supported by most JVMs
+        final long maxLength = Integer.MAX_VALUE - 8;
+        if (minLength > maxLength)
+        {
+            throw new IllegalStateException("Too many alignments with mismatches to hold in memory: " + _size);
+        }
+
+        return (int)Math.min(maxLength, Math.max(minLength, (long)currentLength * 2));
+    }
+
+    public int size()
+    {
+        return _size;
+    }
+
+    public String getReferenceName(int idx)
+    {
+        return _header.getSequence(_refIndexes[idx]).getSequenceName();
+    }
+
+    /**
+     * @param referenceBases The bases of this alignment's reference, which are used for the read bases at aligned positions
+     */
+    public SAMRecord getRecord(int idx, byte[] referenceBases)
+    {
+        SAMRecord r = new SAMRecord(_header);
+        r.setReadName(new String(_names, _nameOffsets[idx], _nameOffsets[idx + 1] - _nameOffsets[idx], StandardCharsets.US_ASCII));
+        r.setFlags(_flags[idx]);
+        r.setReferenceIndex(_refIndexes[idx]);
+        r.setAlignmentStart(_alignmentStarts[idx]);
+        r.setMappingQuality(_mappingQuals[idx] & 0xFF);
+
+        Cigar cigar = BinaryCigarCodec.decode(Arrays.copyOfRange(_cigars, _cigarOffsets[idx], _cigarOffsets[idx + 1]));
+        r.setCigar(cigar);
+
+        byte[] readBases = new byte[_readLengths[idx]];
+        Arrays.fill(readBases, BamIterator.AMBIGUITY_CHARACTER);
+        int readPos = 0; //0-based
+        int refPos = _alignmentStarts[idx] - 1; //0-based
+        for (CigarElement el : cigar.getCigarElements())
+        {
+            CigarOperator op = el.getOperator();
+            if (op.consumesReadBases() && op.consumesReferenceBases())
+            {
+                System.arraycopy(referenceBases, refPos, readBases, readPos, el.getLength());
+            }
+
+            if (op.consumesReadBases())
+                readPos += el.getLength();
+
+            if (op.consumesReferenceBases())
+                refPos += el.getLength();
+        }
+
+        byte[] quals = new byte[_readLengths[idx]];
+        for (int i = _baseOffsets[idx]; i < _baseOffsets[idx + 1]; i++)
+        {
+            readBases[_readPositions[i]] = _bases[i];
+            quals[_readPositions[i]] = _quals[i];
+        }
+
+        r.setReadBases(readBases);
+        r.setBaseQualities(quals);
+
+        return r;
+    }
+
+    /**
+     * Releases the stored alignments
+     */
+    public void clear()
+    {
+        _header = null;
+        _size = 0;
+        _refIndexes = new int[INITIAL_SIZE];
+        _alignmentStarts = new int[INITIAL_SIZE];
+        _flags = new int[INITIAL_SIZE];
+        _mappingQuals = new byte[INITIAL_SIZE];
+        _readLengths = new int[INITIAL_SIZE];
+        _nameOffsets = new int[INITIAL_SIZE + 1];
+        _cigarOffsets = new int[INITIAL_SIZE + 1];
+        _baseOffsets = new int[INITIAL_SIZE + 1];
+        _names = new byte[INITIAL_SIZE * 32];
+        _cigars = new int[INITIAL_SIZE * 4];
+        _readPositions = new int[INITIAL_SIZE * 8];
+        _bases = new byte[INITIAL_SIZE * 8];
+        _quals = new byte[INITIAL_SIZE * 8];
+    }
+
+    public static class TestCase extends Assert
+    {
+        @Test
+        public void testRecordMatchesOriginal() throws Exception
+        {
+            byte[] refBases = "ACGTACGTACGTACGTACGTACGTACGTACGT".getBytes();
+            SAMFileHeader header = new SAMFileHeader();
+            header.addSequence(new SAMSequenceRecord("ref", refBases.length));
+
+            DeferredAlignments deferred = new DeferredAlignments();
+            List<SAMRecord> originals = new ArrayList<>();
+            ReadMismatchBuffer buffer = new ReadMismatchBuffer();
+            int idx = 0;
+            for (String[] test : new String[][]{
+                    {"ACCTACGTAC", "10M"},
+                    {"GGACGTTTACGT", "2S4M2I4M"},
+                    {"ACGTGTAC", "4M2D4M"},
+                    {"ACGTAGGTAC", "3M1I2M1D4M"}
+            })
+            {
+                SAMRecord r = new SAMRecord(header);
+                r.setReferenceName("ref");
+                r.setAlignmentStart(3);
+                r.setReadName("read" + idx);
+                r.setFlags(idx % 2 == 0 ? 0 : 16);
+                r.setMappingQuality(60);
+                r.setReadString(test[0]);
+                r.setCigarString(test[1]);
+                byte[] quals = new byte[test[0].length()];
+                for (int i = 0; i < quals.length; i++)
+                {
+                    quals[i] = (byte)(20 + i);
+                }
+                r.setBaseQualities(quals);
+
+                buffer.load(r, refBases);
+                deferred.add(r, buffer);
+                originals.add(r);
+                idx++;
+            }
+
+            assertEquals(originals.size(), deferred.size());
+
+            ReadMismatchBuffer replayBuffer = new ReadMismatchBuffer();
+            for (int i = 0; i < deferred.size(); i++)
+            {
+                SAMRecord original = originals.get(i);
+                SAMRecord r = deferred.getRecord(i, refBases);
+                assertEquals("ref", deferred.getReferenceName(i));
+                assertEquals(original.getReadName(), r.getReadName());
+                assertEquals(original.getFlags(), r.getFlags());
+                assertEquals(original.getMappingQuality(), r.getMappingQuality());
+                assertEquals(original.getCigarString(), r.getCigarString());
+                assertEquals(original.getAlignmentEnd(), r.getAlignmentEnd());
+
+                buffer.load(original, refBases);
+                replayBuffer.load(r, refBases);
+                assertEquals(original.getCigarString(), buffer.size(), replayBuffer.size());
+                assertEquals(original.getCigarString(), buffer.getMismatchCount(), replayBuffer.getMismatchCount());
+                for (int j = 0; j < buffer.size(); j++)
+                {
+                    assertEquals(original.getCigarString(), buffer.isMismatch(j), replayBuffer.isMismatch(j));
+                    assertEquals(original.getCigarString(), buffer.getReadBase(j), replayBuffer.getReadBase(j));
+                    if (buffer.isMismatch(j))
+                    {
+                        assertEquals(original.getCigarString(), buffer.getBaseQuality(j), replayBuffer.getBaseQuality(j));
+                    }
+                }
+            }
+
+            deferred.clear();
+            assertEquals(0, deferred.size());
+        }
+    }
+}
@@ -43,6 +43,7 @@
 import org.labkey.api.pipeline.PipelineJobException;
 import org.labkey.api.query.FieldKey;
 import org.labkey.api.reader.Readers;
+import org.labkey.api.sequenceanalysis.BulkResultWriter;
 import org.labkey.api.sequenceanalysis.SequenceAnalysisService;
 import org.labkey.api.sequenceanalysis.model.AnalysisModel;
 import org.labkey.api.sequenceanalysis.model.Readset;
@@ -1020,7 +1021,7 @@ private void importNtSnps(AnalysisModel model, File inputBam, File outDir) throw
 
         TableInfo ti = SequenceAnalysisSchema.getTable(SequenceAnalysisSchema.TABLE_NT_SNP_BY_POS);
 
-        try (VCFFileReader reader = new VCFFileReader(vcf);CloseableIterator<VariantContext> it = reader.iterator())
+        try (VCFFileReader reader = new VCFFileReader(vcf);CloseableIterator<VariantContext> it = reader.iterator();BulkResultWriter writer = new BulkResultWriter(ti, Arrays.asList("analysis_id", "ref_nt_id", "ref_nt_position", "ref_nt_insert_index", "ref_nt", "q_nt", "readcount", "depth", "adj_depth", "pct", "container", "createdby", "modifiedby", "created", "modified"), getPipelineCtx().getLogger()))
         {
             while (it.hasNext())
             {
@@ -1075,7 +1076,7 @@ private void importNtSnps(AnalysisModel model, File inputBam, File outDir) throw
                 ntRow.put("created", new Date());
                 ntRow.put("modified", new Date());
 
-                Table.insert(getPipelineCtx().getJob().getUser(), ti, ntRow);
+                writer.add(ntRow);
             }
         }
     }
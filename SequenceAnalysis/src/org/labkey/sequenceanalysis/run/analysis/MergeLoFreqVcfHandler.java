@@ -7,6 +7,7 @@
 import htsjdk.samtools.reference.IndexedFastaSequenceFile;
 import htsjdk.samtools.reference.ReferenceSequence;
 import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.PeekableIterator;
 import htsjdk.variant.utils.SAMSequenceDictionaryExtractor;
 import htsjdk.variant.variantcontext.Allele;
 import htsjdk.variant.variantcontext.VariantContext;
@@ -40,9 +41,11 @@
 import org.labkey.sequenceanalysis.SequenceAnalysisModule;
 import org.labkey.sequenceanalysis.run.variant.SNPEffStep;
 import org.labkey.sequenceanalysis.run.variant.SnpEffWrapper;
+import org.labkey.sequenceanalysis.util.DepthOfCoverageIndex;
 import org.labkey.sequenceanalysis.util.SequenceUtil;
 
 import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -51,10 +54,10 @@
 import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -69,6 +72,7 @@ public class MergeLoFreqVcfHandler extends AbstractParameterizedOutputHandler<Se
     private static final String MIN_AF = "minAfThreshold";
     private static final String MIN_AF_INDEL = "minIndelAfThreshold";
     private static final String MIN_COVERAGE = "minCoverage";
+    private static final String VALIDATE_DEPTH = "validateDepth";
 
     public MergeLoFreqVcfHandler()
     {
@@ -89,6 +93,9 @@ public MergeLoFreqVcfHandler()
                 ToolParameterDescriptor.create(MIN_COVERAGE, "Min Coverage To Include", "A site will be reported as ND, unless coverage is above this threshold", "ldk-integerfield", new JSONObject(){{
                     put("minValue", 0);
                 }}, 25),
+                ToolParameterDescriptor.create(VALIDATE_DEPTH, "Validate Depth Lookups", "If selected, every depth read from the binary depth index will also be read from the DepthOfCoverage text file and compared.  This is primarily for debugging and is much slower.", "checkbox", new JSONObject(){{
+                    put("checked", false);
+                }}, false),
                 ToolParameterDescriptor.createExpDataParam(SNPEffStep.GENE_PARAM, "Gene File", "This is the ID of a GTF or GFF3 file containing genes from this genome.", "sequenceanalysis-genomefileselectorfield", new JSONObject()
                 {{
                     put("extensions", Arrays.asList("gtf", "gff", "gbk"));
@@ -348,10 +355,13 @@ else if ("I".equals(line[0]))
             }
 
             ctx.getLogger().info("total sites: " + whitelistSites.size());
-            Collections.sort(whitelistSites);
 
             ReferenceGenome genome = ctx.getSequenceSupport().getCachedGenome(genomeIds.iterator().next());
             SAMSequenceDictionary dict = SAMSequenceDictionaryExtractor.extractDictionary(genome.getSequenceDictionary().toPath());
+
+            //NOTE: sites are sorted in the order of the genome, which is the order of the VCFs, so that each VCF can be read in one forward pass
+            whitelistSites.sort(Comparator.comparingInt((Pair<String, Integer> x) -> dict.getSequenceIndex(x.getLeft())).thenComparing(Pair::getRight));
+
             Map<String, Integer> contigToOffset = getContigToOffset(dict);
 
             //Write whitelist as VCF, then run SNPEff:
@@ -359,10 +369,16 @@ else if ("I".equals(line[0]))
 
             ctx.getLogger().info("Pass 2: Building merged table");
 
+            Map<Integer, VcfCursor> cursorMap = new HashMap<>();
+            for (SequenceOutputFile so : inputFiles)
+            {
+                cursorMap.put(so.getRowid(), new VcfCursor(so.getFile(), dict));
+            }
+
             File output = new File(ctx.getOutputDir(), basename + "txt.gz");
             int idx = 0;
             int totalAdjusted = 0;
-            try (CSVWriter writer = new CSVWriter(new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(output)), StringUtilsLabKey.DEFAULT_CHARSET)), '\t', CSVWriter.NO_QUOTE_CHARACTER))
+            try (DepthIndexCache depthIndexes = new DepthIndexCache(dict, ctx); CSVWriter writer = new CSVWriter(new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(output)), StringUtilsLabKey.DEFAULT_CHARSET)), '\t', CSVWriter.NO_QUOTE_CHARACTER))
             {
                 writer.writeNext(new String[]{"ReadsetName", "OutputFileId", "ReadsetId", "Contig", "Start", "End", "Ref", "AltAlleles", "GatkDepth", "LoFreqDepth", "RefAF", "AltAFs", "NonRefCount", "AltCounts"});
 
@@ -377,192 +393,188 @@ else if ("I".equals(line[0]))
 
                     for (SequenceOutputFile so : inputFiles)
                     {
-                        VCFFileReader reader = getReader(so.getFile());
-
                         //NOTE: LoFreq should output one VCF line per allele:
-                        try (CloseableIterator<VariantContext> it = reader.query(site.getLeft(), site.getRight(), site.getRight()))
+                        Iterator<VariantContext> it = cursorMap.get(so.getRowid()).getOverlapping(site.getLeft(), site.getRight()).iterator();
+                        List<String> line = new ArrayList<>();
+                        line.add(ctx.getSequenceSupport().getCachedReadset(so.getReadset()).getName());
+                        line.add(String.valueOf(so.getRowid()));
+                        line.add(String.valueOf(so.getReadset()));
+
+                        String key = getCacheKey(site.getLeft(), site.getRight());
+                        SiteAndAlleles siteDef = siteToAlleleNoIndel.get(key);
+                        if (siteDef._alternates.isEmpty())
+                        {
+                            continue;
+                        }
+
+                        line.add(site.getLeft());
+                        line.add(String.valueOf(site.getRight()));
+                        line.add(String.valueOf(site.getRight() + siteDef._ref.length() - 1));
+
+                        line.add(siteDef._ref.getBaseString());
+                        line.add(StringUtils.join(siteDef._alternates, ";"));
+
+                        if (!it.hasNext())
                         {
-                            List<String> line = new ArrayList<>();
-                            line.add(ctx.getSequenceSupport().getCachedReadset(so.getReadset()).getName());
-                            line.add(String.valueOf(so.getRowid()));
-                            line.add(String.valueOf(so.getReadset()));
-
-                            String key = getCacheKey(site.getLeft(), site.getRight());
-                            SiteAndAlleles siteDef = siteToAlleleNoIndel.get(key);
-                            if (siteDef._alternates.isEmpty())
+                            //No variant was called, so this is either considered all WT, or no-call
+                            int depth = getReadDepth(so, depthIndexes, contigToOffset, site.getLeft(), site.getRight(), ctx);
+                            if (depth < minDepth)
                             {
-                                continue;
+                                line.add(String.valueOf(depth));
+                                line.add("ND");
+                                line.add("ND"); //RefAF
+                                line.add("ND"); //AltAFs
+                                line.add("ND"); //Non-Ref Count
+                                line.add("ND"); //AltCounts
                             }
+                            else
+                            {
+                                line.add(String.valueOf(depth));
+                                line.add("ND");
+                                line.add("1"); //RefAF
+                                line.add(";0".repeat(siteDef._alternates.size()).substring(1));  //AltAFs
 
-                            line.add(site.getLeft());
-                            line.add(String.valueOf(site.getRight()));
-                            line.add(String.valueOf(site.getRight() + siteDef._ref.length() - 1));
+                                line.add("0"); //NonRefCount
+                                line.add(";0".repeat(siteDef._alternates.size()).substring(1)); //AltCounts
+                            }
 
-                            line.add(siteDef._ref.getBaseString());
-                            line.add(StringUtils.join(siteDef._alternates, ";"));
+                            writer.writeNext(line.toArray(new String[]{}));
+                            idx++;
+                        }
+                        else
+                        {
+                            Integer gatkDepth = null;
+                            Integer lofreqDepth = null;
+                            Map<String, Double> alleleToAf = new HashMap<>();
+                            Map<String, Integer> alleleToDp = new HashMap<>();
 
-                            if (!it.hasNext())
+                            while (it.hasNext())
                             {
-                                //No variant was called, so this is either considered all WT, or no-call
-                                int depth = getReadDepth(so.getFile(), contigToOffset, site.getLeft(), site.getRight(), ctx);
-                                if (depth < minDepth)
+                                VariantContext vc = it.next();
+                                if (vc.isIndel() || vc.isFiltered())
                                 {
-                                    line.add(String.valueOf(depth));
-                                    line.add("ND");
-                                    line.add("ND"); //RefAF
-                                    line.add("ND"); //AltAFs
-                                    line.add("ND"); //Non-Ref Count
-                                    line.add("ND"); //AltCounts
+                                    continue;
                                 }
-                                else
-                                {
-                                    line.add(String.valueOf(depth));
-                                    line.add("ND");
-                                    line.add("1"); //RefAF
-                                    line.add(";0".repeat(siteDef._alternates.size()).substring(1));  //AltAFs
 
-                                    line.add("0"); //NonRefCount
-                                    line.add(";0".repeat(siteDef._alternates.size()).substring(1)); //AltCounts
+                                if (vc.getStart() > siteDef._start)
+                                {
+                                    throw new PipelineJobException("Unexpected variant start.  site: " + siteDef._start + " / vc: " + vc.getStart() + " / " + so.getFile().getPath());
                                 }
 
-                                writer.writeNext(line.toArray(new String[]{}));
-                                idx++;
-                            }
-                            else
-                            {
-                                Integer gatkDepth = null;
-                                Integer lofreqDepth = null;
-                                Map<String, Double> alleleToAf = new HashMap<>();
-                                Map<String, Integer> alleleToDp = new HashMap<>();
-
-                                while (it.hasNext())
+                                if (vc.getAlternateAlleles().size() > 1)
                                 {
-                                    VariantContext vc = it.next();
-                                    if (vc.isIndel() || vc.isFiltered())
-                                    {
-                                        continue;
-                                    }
+                                    throw new PipelineJobException("Expected LoFreq VCFs to have only one alternate allele per line.  line " + key + " in file: " + so.getFile().getPath());
+                                }
 
-                                    if (vc.getStart() > siteDef._start)
-                                    {
-                                        throw new PipelineJobException("Unexpected variant start.  site: " + siteDef._start + " / vc: " + vc.getStart() + " / " + so.getFile().getPath());
-                                    }
+                                if (vc.getAttribute("GATK_DP") == null)
+                                {
+                                    throw new PipelineJobException("Expected GATK_DP annotation on line " + key + " in file: " + so.getFile().getPath());
+                                }
 
-                                    if (vc.getAlternateAlleles().size() > 1)
-                                    {
-                                        throw new PipelineJobException("Expected LoFreq VCFs to have only one alternate allele per line.  line " + key + " in file: " + so.getFile().getPath());
-                                    }
+                                if (vc.getAttribute("DP") == null)
+                                {
+                                    throw new PipelineJobException("Expected DP annotation on line " + key + " in file: " + so.getFile().getPath());
+                                }
 
-                                    if (vc.getAttribute("GATK_DP") == null)
-                                    {
-                                        throw new PipelineJobException("Expected GATK_DP annotation on line " + key + " in file: " + so.getFile().getPath());
-                                    }
+                                if (vc.getAttribute("AF") == null)
+                                {
+                                    throw new PipelineJobException("Expected AF annotation on line " + key + " in file: " + so.getFile().getPath());
+                                }
 
-                                    if (vc.getAttribute("DP") == null)
-                                    {
-                                        throw new PipelineJobException("Expected DP annotation on line " + key + " in file: " + so.getFile().getPath());
-                                    }
+                                gatkDepth = vc.getAttributeAsInt("GATK_DP", 0);
+                                lofreqDepth = vc.getAttributeAsInt("DP", 0);
+                                List<Integer> depths = vc.getAttributeAsIntList("DP4", 0);
+                                int alleleDepth = depths.get(2) + depths.get(3);
 
-                                    if (vc.getAttribute("AF") == null)
+                                if (gatkDepth < minDepth)
+                                {
+                                    vc.getAlternateAlleles().forEach(a -> {
+                                        String translatedAllele = a.getBaseString();
+                                        double val = alleleToAf.getOrDefault(translatedAllele, NO_DATA_VAL);
+                                        alleleToAf.put(translatedAllele, val);
+
+                                        int val1 = alleleToDp.getOrDefault(translatedAllele, (int)NO_DATA_VAL);
+                                        alleleToDp.put(translatedAllele, val1);
+                                    });
+                                }
+                                else
+                                {
+                                    double af = vc.getAttributeAsDouble("AF", 0.0);
+                                    String a = vc.getAlternateAlleles().get(0).getBaseString();
+                                    double val = alleleToAf.getOrDefault(a, 0.0);
+                                    if (val == NO_DATA_VAL)
                                     {
-                                        throw new PipelineJobException("Expected AF annotation on line " + key + " in file: " + so.getFile().getPath());
+                                        val = 0;
                                     }
 
-                                    gatkDepth = vc.getAttributeAsInt("GATK_DP", 0);
-                                    lofreqDepth = vc.getAttributeAsInt("DP", 0);
-                                    List<Integer> depths = vc.getAttributeAsIntList("DP4", 0);
-                                    int alleleDepth = depths.get(2) + depths.get(3);
+                                    val = val + af;
+                                    alleleToAf.put(a, val);
 
-                                    if (gatkDepth < minDepth)
-                                    {
-                                        vc.getAlternateAlleles().forEach(a -> {
-                                            String translatedAllele = a.getBaseString();
-                                            double val = alleleToAf.getOrDefault(translatedAllele, NO_DATA_VAL);
-                                            alleleToAf.put(translatedAllele, val);
-
-                                            int val1 = alleleToDp.getOrDefault(translatedAllele, (int)NO_DATA_VAL);
-                                            alleleToDp.put(translatedAllele, val1);
-                                        });
-                                    }
-                                    else
+                                    int val1 = alleleToDp.getOrDefault(a, 0);
+                                    if (val1 == (int)NO_DATA_VAL)
                                     {
-                                        double af = vc.getAttributeAsDouble("AF", 0.0);
-                                        String a = vc.getAlternateAlleles().get(0).getBaseString();
-                                        double val = alleleToAf.getOrDefault(a, 0.0);
-                                        if (val == NO_DATA_VAL)
-                                        {
-                                            val = 0;
-                                        }
-
-                                        val = val + af;
-                                        alleleToAf.put(a, val);
-
-                                        int val1 = alleleToDp.getOrDefault(a, 0);
-                                        if (val1 == (int)NO_DATA_VAL)
-                                        {
-                                            val1 = 0;
-                                        }
-
-                                        val1 = val1 + alleleDepth;
-                                        alleleToDp.put(a, val1);
+                                        val1 = 0;
                                     }
-                                }
-
-                                if (gatkDepth == null)
-                                {
-                                    //No variant was called, so this is either considered all WT, or no-call
-                                    gatkDepth = getReadDepth(so.getFile(), contigToOffset, site.getLeft(), site.getRight(), ctx);
-                                    lofreqDepth = (int)NO_DATA_VAL;
 
+                                    val1 = val1 + alleleDepth;
+                                    alleleToDp.put(a, val1);
                                 }
+                            }
 
-                                List<String> toWrite = new ArrayList<>(line);
-                                toWrite.add(String.valueOf(gatkDepth));
-                                toWrite.add(String.valueOf(lofreqDepth));
+                            if (gatkDepth == null)
+                            {
+                                //No variant was called, so this is either considered all WT, or no-call
+                                gatkDepth = getReadDepth(so, depthIndexes, contigToOffset, site.getLeft(), site.getRight(), ctx);
+                                lofreqDepth = (int)NO_DATA_VAL;
 
-                                int totalAltDepth = 0;
-                                double totalAltAf = 0.0;
-                                for (String a : siteDef._alternates)
-                                {
-                                    double af = alleleToAf.getOrDefault(a, 0.0);
-                                    int dp = alleleToDp.getOrDefault(a, 0);
+                            }
 
-                                    if (dp == (int)NO_DATA_VAL)
-                                    {
-                                        af = 0.0;
-                                        dp = 0;
-                                    }
+                            List<String> toWrite = new ArrayList<>(line);
+                            toWrite.add(String.valueOf(gatkDepth));
+                            toWrite.add(String.valueOf(lofreqDepth));
 
-                                    totalAltDepth += dp;
-                                    totalAltAf += af;
-                                }
+                            int totalAltDepth = 0;
+                            double totalAltAf = 0.0;
+                            for (String a : siteDef._alternates)
+                            {
+                                double af = alleleToAf.getOrDefault(a, 0.0);
+                                int dp = alleleToDp.getOrDefault(a, 0);
 
-                                double refAF = 1 - totalAltAf;
-                                toWrite.add(String.valueOf(refAF));
-                                if (refAF < 0)
+                                if (dp == (int)NO_DATA_VAL)
                                 {
-                                    ctx.getLogger().error("Negative REF AF: " + line.get(0) + "/" + line.get(4) + "/" + refAF);
+                                    af = 0.0;
+                                    dp = 0;
                                 }
 
-                                //Add AFs in order:
-                                List<Object> toAdd = new ArrayList<>();
-                                List<Object> toAddDp = new ArrayList<>();
-                                for (String a : siteDef._alternates)
-                                {
-                                    double af = alleleToAf.getOrDefault(a, 0.0);
-                                    toAdd.add(af == NO_DATA_VAL ? "ND" : af);
+                                totalAltDepth += dp;
+                                totalAltAf += af;
+                            }
 
-                                    int dp = alleleToDp.getOrDefault(a, 0);
-                                    toAddDp.add(dp == NO_DATA_VAL ? "ND" : dp);
-                                }
-                                toWrite.add(toAdd.stream().map(String::valueOf).collect(Collectors.joining(";")));
+                            double refAF = 1 - totalAltAf;
+                            toWrite.add(String.valueOf(refAF));
+                            if (refAF < 0)
+                            {
+                                ctx.getLogger().error("Negative REF AF: " + line.get(0) + "/" + line.get(4) + "/" + refAF);
+                            }
 
-                                toWrite.add(String.valueOf(totalAltDepth));
-                                toWrite.add(toAddDp.stream().map(String::valueOf).collect(Collectors.joining(";")));
+                            //Add AFs in order:
+                            List<Object> toAdd = new ArrayList<>();
+                            List<Object> toAddDp = new ArrayList<>();
+                            for (String a : siteDef._alternates)
+                            {
+                                double af = alleleToAf.getOrDefault(a, 0.0);
+                                toAdd.add(af == NO_DATA_VAL ? "ND" : af);
 
-                                writer.writeNext(toWrite.toArray(new String[]{}));
-                                idx++;
+                                int dp = alleleToDp.getOrDefault(a, 0);
+                                toAddDp.add(dp == NO_DATA_VAL ? "ND" : dp);
                             }
+                            toWrite.add(toAdd.stream().map(String::valueOf).collect(Collectors.joining(";")));
+
+                            toWrite.add(String.valueOf(totalAltDepth));
+                            toWrite.add(toAddDp.stream().map(String::valueOf).collect(Collectors.joining(";")));
+
+                            writer.writeNext(toWrite.toArray(new String[]{}));
+                            idx++;
                         }
 
                         if (idx % 250000 == 0)
@@ -576,16 +588,18 @@ else if ("I".equals(line[0]))
             {
                 throw new PipelineJobException(e);
             }
-
-            for (VCFFileReader reader : readerMap.values())
+            finally
             {
-                try
+                for (VcfCursor cursor : cursorMap.values())
                 {
-                    reader.close();
-                }
-                catch (Throwable e)
-                {
-                    ctx.getLogger().error("Unable to close reader: " + e.getMessage());
+                    try
+                    {
+                        cursor.close();
+                    }
+                    catch (Throwable e)
+                    {
+                        ctx.getLogger().error("Unable to close reader: " + e.getMessage());
+                    }
                 }
             }
 
@@ -642,7 +656,70 @@ private File getDepthFile(File vcf) throws PipelineJobException
             return gatkDepth;
         }
 
-        private int getReadDepth(File vcf, Map<String, Integer> contigToOffset, String contig, int position1, JobContext ctx) throws PipelineJobException
+        /**
+         * Opens the depth index of each input on first use.  The indexes are memory-mapped, so this must be closed once the merge completes or fails.
+         */
+        private class DepthIndexCache implements Closeable
+        {
+            private final Map<Integer, DepthOfCoverageIndex> _indexes = new HashMap<>();
+            private final SAMSequenceDictionary _dict;
+            private final JobContext _ctx;
+
+            public DepthIndexCache(SAMSequenceDictionary dict, JobContext ctx)
+            {
+                _dict = dict;
+                _ctx = ctx;
+            }
+
+            public DepthOfCoverageIndex get(SequenceOutputFile so) throws PipelineJobException
+            {
+                DepthOfCoverageIndex index = _indexes.get(so.getRowid());
+                if (index == null)
+                {
+                    File indexFile = new File(_ctx.getOutputDir(), so.getRowid() + ".depth.idx");
+                    index = DepthOfCoverageIndex.open(getDepthFile(so.getFile()), indexFile, _dict, _ctx.getLogger());
+                    _ctx.getFileManager().addIntermediateFile(indexFile);
+                    _indexes.put(so.getRowid(), index);
+                }
+
+                return index;
+            }
+
+            @Override
+            public void close()
+            {
+                for (DepthOfCoverageIndex index : _indexes.values())
+                {
+                    try
+                    {
+                        index.close();
+                    }
+                    catch (IOException e)
+                    {
+                        _ctx.getLogger().error("Unable to close depth index: " + e.getMessage());
+                    }
+                }
+
+                _indexes.clear();
+            }
+        }
+
+        private int getReadDepth(SequenceOutputFile so, DepthIndexCache depthIndexes, Map<String, Integer> contigToOffset, String contig, int position1, JobContext ctx) throws PipelineJobException
+        {
+            int depth = depthIndexes.get(so).getDepth(contig, position1);
+            if (ctx.getParams().optBoolean(VALIDATE_DEPTH, false))
+            {
+                int textDepth = getReadDepthFromText(so.getFile(), contigToOffset, contig, position1, ctx);
+                if (depth != textDepth)
+                {
+                    throw new PipelineJobException("Depth index does not match the DepthOfCoverage file for " + so.getFile().getName() + " at " + contig + ":" + position1 + ": " + depth + " / " + textDepth);
+                }
+            }
+
+            return depth;
+        }
+
+        private int getReadDepthFromText(File vcf, Map<String, Integer> contigToOffset, String contig, int position1, JobContext ctx) throws PipelineJobException
         {
             File gatkDepth = getDepthFile(vcf);
 
@@ -708,16 +785,59 @@ private void sortTsvFile(JobContext ctx, File input) throws PipelineJobException
             }
         }
 
-        private Map<File, VCFFileReader> readerMap = new HashMap<>();
-
-        private VCFFileReader getReader(File f)
+        /**
+         * Reads a VCF in one forward pass, as the sites to inspect move forward through the genome.
+         * This returns the same records as a query of each site, without the cost of a separate index seek per site.
+         */
+        private static class VcfCursor implements Closeable
         {
-            if (!readerMap.containsKey(f))
+            private final VCFFileReader _reader;
+            private final PeekableIterator<VariantContext> _it;
+            private final SAMSequenceDictionary _dict;
+
+            //records that start at or before the current site, and might overlap it or a later one
+            private final List<VariantContext> _active = new ArrayList<>();
+
+            public VcfCursor(File vcf, SAMSequenceDictionary dict)
             {
-                readerMap.put(f, new VCFFileReader(f));
+                _reader = new VCFFileReader(vcf, false);
+                _it = new PeekableIterator<>(_reader.iterator());
+                _dict = dict;
             }
 
-            return readerMap.get(f);
+            /**
+             * @return The records overlapping this site, in file order.  Sites must be requested in genome order.
+             */
+            public List<VariantContext> getOverlapping(String contig, int position)
+            {
+                int contigIdx = _dict.getSequenceIndex(contig);
+                _active.removeIf(vc -> !vc.getContig().equals(contig) || vc.getEnd() < position);
+
+                while (_it.hasNext())
+                {
+                    VariantContext vc = _it.peek();
+                    int idx = _dict.getSequenceIndex(vc.getContig());
+                    if (idx > contigIdx || (idx == contigIdx && vc.getStart() > position))
+                    {
+                        break;
+                    }
+
+                    _it.next();
+                    if (idx == contigIdx && vc.getEnd() >= position)
+                    {
+                        _active.add(vc);
+                    }
+                }
+
+                return _active;
+            }
+
+            @Override
+            public void close()
+            {
+                _it.close();
+                _reader.close();
+            }
         }
 
         private void runSnpEff(JobContext ctx, Map<String, SiteAndAlleles> siteToAlleleNoIndel, List<Pair<String, Integer>> whitelistSites, Set<String> uniqueIndels, ReferenceGenome genome, String basename) throws PipelineJobException
@@ -29,12 +29,15 @@
 import org.labkey.api.query.FieldKey;
 import org.labkey.api.security.User;
 import org.labkey.api.sequenceanalysis.ReferenceLibraryHelper;
+import org.labkey.api.sequenceanalysis.BulkResultWriter;
 import org.labkey.api.sequenceanalysis.model.AnalysisModel;
 import org.labkey.sequenceanalysis.SequenceAnalysisSchema;
 import org.labkey.sequenceanalysis.api.picard.CigarPositionIterable;
 import org.labkey.sequenceanalysis.run.util.NTSnp;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -47,7 +50,7 @@
  * Date: 9/22/12
  * Time: 3:02 PM
  */
-public class NtCoverageAggregator extends AbstractAlignmentAggregator
+public class NtCoverageAggregator extends AbstractAlignmentAggregator implements ShardableAlignmentAggregator
 {
     private Map<String, int[][]> _totalCoverage = new HashMap<>();
     private Map<String, int[][]> _totalQual = new HashMap<>();
@@ -130,6 +133,75 @@ public void inspectAlignment(SAMRecord record, ReferenceSequence ref, Map<Intege
         }
     }
 
+    /**
+     * Equivalent to the version above, except this uses positions already calculated by BamIterator rather than walking the CIGAR again
+     */
+    @Override
+    public void inspectAlignment(SAMRecord record, ReferenceSequence ref, ReadMismatchBuffer buffer) throws PipelineJobException
+    {
+        if (!isPassingAlignment(record, true))
+        {
+            return;
+        }
+
+        _totalAlignments++;
+
+        initHashes(ref);
+        inspectPositions(record, ref, buffer, true, true);
+    }
+
+    @Override
+    public void inspectMatchedPositions(SAMRecord record, ReferenceSequence ref, ReadMismatchBuffer buffer) throws PipelineJobException
+    {
+        if (!isPassingAlignment(record, true))
+        {
+            return;
+        }
+
+        _totalAlignments++;
+
+        initHashes(ref);
+        inspectPositions(record, ref, buffer, true, false);
+    }
+
+    @Override
+    public void inspectDeferredAlignment(SAMRecord record, ReferenceSequence ref, ReadMismatchBuffer buffer) throws PipelineJobException
+    {
+        //NOTE: this alignment was already counted by inspectMatchedPositions()
+        if (!isPassingAlignment(record, true, false))
+        {
+            return;
+        }
+
+        inspectPositions(record, ref, buffer, false, true);
+    }
+
+    private void inspectPositions(SAMRecord record, ReferenceSequence ref, ReadMismatchBuffer buffer, boolean includeMatched, boolean includeSnps) throws PipelineJobException
+    {
+        Map<Integer, List<NTSnp>> snps = buffer.getMismatchCount() == 0 ? null : buffer.getSnpMap();
+        for (int i = 0; i < buffer.size(); i++)
+        {
+            if (snps != null && snps.containsKey(buffer.getRefPosition(i)))
+            {
+                if (!includeSnps)
+                    continue;
+
+                for (NTSnp ntSnp : snps.get(buffer.getRefPosition(i)))
+                {
+                    inspectSnp(record, ntSnp);
+                }
+            }
+            else if (includeMatched)
+            {
+                char base = (char)buffer.getReadBase(i);
+                appendSnp(ref.getName(), buffer.getLastRefPosition(i), buffer.getInsertIndex(i), buffer.getBaseQuality(i), base, _totalCoverage, _totalQual, _totalCoverageByBase, _totalQualByBase);
+
+                if (buffer.getReadBase(i) != BamIterator.AMBIGUITY_CHARACTER)
+                    appendSnp(ref.getName(), buffer.getLastRefPosition(i), buffer.getInsertIndex(i), buffer.getBaseQuality(i), base, _hcCoverage, _hcQual, null, null);
+            }
+        }
+    }
+
     private void initHashes(ReferenceSequence ref)
     {
         if (_encounteredReferences.contains(ref.getName()))
@@ -335,6 +407,81 @@ private int getValueForPositionAndBase(String refName, int position, int index,
         return arr[position][index][baseInx];
     }
 
+    @Override
+    public NtCoverageAggregator createShardInstance(Map<AlignmentAggregator, AlignmentAggregator> shardInstances)
+    {
+        return initShardInstance(new NtCoverageAggregator(getLogger(), getRefFasta(), _avgQualAggregator, getSettings()));
+    }
+
+    @Override
+    public void merge(ShardableAlignmentAggregator other)
+    {
+        super.merge(other);
+
+        NtCoverageAggregator o = (NtCoverageAggregator)other;
+        _totalFilteredSnps += o._totalFilteredSnps;
+        _totalAlignments += o._totalAlignments;
+
+        for (String refName : o._encounteredReferences)
+        {
+            //if this reference was only seen by the other shard, adopt its arrays
+            if (!_encounteredReferences.contains(refName))
+            {
+                _encounteredReferences.add(refName);
+                _refSequences.put(refName, o._refSequences.get(refName));
+                _totalCoverage.put(refName, o._totalCoverage.get(refName));
+                _totalQual.put(refName, o._totalQual.get(refName));
+                _hcCoverage.put(refName, o._hcCoverage.get(refName));
+                _hcQual.put(refName, o._hcQual.get(refName));
+                _totalCoverageByBase.put(refName, o._totalCoverageByBase.get(refName));
+                _totalQualByBase.put(refName, o._totalQualByBase.get(refName));
+                continue;
+            }
+
+            mergeArrays(_totalCoverage.get(refName), o._totalCoverage.get(refName));
+            mergeArrays(_totalQual.get(refName), o._totalQual.get(refName));
+            mergeArrays(_hcCoverage.get(refName), o._hcCoverage.get(refName));
+            mergeArrays(_hcQual.get(refName), o._hcQual.get(refName));
+            mergeArrays(_totalCoverageByBase.get(refName), o._totalCoverageByBase.get(refName));
+            mergeArrays(_totalQualByBase.get(refName), o._totalQualByBase.get(refName));
+        }
+    }
+
+    private void mergeArrays(int[][] target, int[][] source)
+    {
+        for (int position = 0; position < source.length; position++)
+        {
+            if (target[position].length < source[position].length)
+            {
+                target[position] = extendArray(target[position], source[position].length, 0);
+            }
+
+            for (int index = 0; index < source[position].length; index++)
+            {
+                target[position][index] += source[position][index];
+            }
+        }
+    }
+
+    private void mergeArrays(int[][][] target, int[][][] source)
+    {
+        for (int position = 0; position < source.length; position++)
+        {
+            if (target[position].length < source[position].length)
+            {
+                target[position] = extendArray(target[position], source[position].length, 0);
+            }
+
+            for (int index = 0; index < source[position].length; index++)
+            {
+                for (int baseIdx = 0; baseIdx < source[position][index].length; baseIdx++)
+                {
+                    target[position][index][baseIdx] += source[position][index][baseIdx];
+                }
+            }
+        }
+    }
+
     @Override
     public void writeOutput(User u, Container c, AnalysisModel model)
     {
@@ -347,6 +494,14 @@ public void writeOutput(User u, Container c, AnalysisModel model)
             TableInfo ti = SequenceAnalysisSchema.getInstance().getSchema().getTable(SequenceAnalysisSchema.TABLE_COVERAGE);
             SimpleFilter filter = new SimpleFilter(FieldKey.fromString("analysis_id"), model.getAnalysisId());
             long deleted = Table.delete(ti, filter);
+            List<String> columns = new ArrayList<>(Arrays.asList("analysis_id", "ref_nt_id", "ref_nt_position", "ref_nt_insert_index", "depth", "adj_depth", "wt", "container", "createdby", "modifiedby", "created", "modified"));
+            for (String fieldSuffix : _baseMap.values())
+            {
+                columns.add("total_" + fieldSuffix);
+                columns.add("avgqual_" + fieldSuffix);
+            }
+
+            BulkResultWriter writer = new BulkResultWriter(ti, columns, getLogger());
             int processed = 0;
 
             ReferenceLibraryHelper libraryHelper = getReferenceLibraryHelper();
@@ -427,7 +582,7 @@ public void writeOutput(User u, Container c, AnalysisModel model)
                         row.put("modifiedby", u.getUserId());
                         row.put("created", new Date());
                         row.put("modified", new Date());
-                        Table.insert(u, ti, row);
+                        writer.add(row);
                         totalSaved++;
                     }
 
@@ -441,6 +596,7 @@ public void writeOutput(User u, Container c, AnalysisModel model)
                 summary.put(refName, totalSaved);
             }
 
+            writer.close();
             transaction.commit();
 
             getLogger().info("\tReference sequences saved: " + summary.keySet().size());
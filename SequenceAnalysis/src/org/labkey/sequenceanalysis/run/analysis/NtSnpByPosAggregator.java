@@ -28,12 +28,14 @@
 import org.labkey.api.pipeline.PipelineJobException;
 import org.labkey.api.query.FieldKey;
 import org.labkey.api.security.User;
+import org.labkey.api.sequenceanalysis.BulkResultWriter;
 import org.labkey.api.sequenceanalysis.model.AnalysisModel;
 import org.labkey.sequenceanalysis.SequenceAnalysisSchema;
 import org.labkey.sequenceanalysis.api.picard.CigarPositionIterable;
 import org.labkey.sequenceanalysis.run.util.NTSnp;
 
 import java.io.File;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -44,25 +46,23 @@
  * Date: 9/22/12
  * Time: 2:57 PM
  */
-public class NtSnpByPosAggregator extends AbstractAlignmentAggregator
+public class NtSnpByPosAggregator extends AbstractAlignmentAggregator implements ShardableAlignmentAggregator
 {
     private NtCoverageAggregator _coverageAggregator = null;
     private boolean _coverageTrackedExternally;
     private Map<String, Integer> _snps = new HashMap<>();
-    private Map<String, String> _settings;
     private int _totalFilteredSnps = 0;
     private int _totalAlignments = 0;
 
     public NtSnpByPosAggregator(Logger log, File refFasta, AvgBaseQualityAggregator avgQualAggregator, Map<String, String> settings)
     {
         super(log, refFasta, avgQualAggregator, settings);
-        _settings = settings;
     }
 
     public NtCoverageAggregator getCoverageAggregator()
     {
         if (_coverageAggregator == null)
-            _coverageAggregator = new NtCoverageAggregator(getLogger(), getRefFasta(), _avgQualAggregator, _settings);
+            _coverageAggregator = new NtCoverageAggregator(getLogger(), getRefFasta(), _avgQualAggregator, getSettings());
 
         return _coverageAggregator;
     }
@@ -76,6 +76,34 @@ public void inspectAlignment(SAMRecord record, ReferenceSequence ref, Map<Intege
             getCoverageAggregator().inspectAlignment(record, ref, snps);
         }
 
+        inspectSnps(record, ref, snps);
+    }
+
+    @Override
+    public void inspectMatchedPositions(SAMRecord record, ReferenceSequence ref, ReadMismatchBuffer buffer) throws PipelineJobException
+    {
+        if (!_coverageTrackedExternally)
+        {
+            getCoverageAggregator().inspectMatchedPositions(record, ref, buffer);
+        }
+    }
+
+    @Override
+    public void inspectDeferredAlignment(SAMRecord record, ReferenceSequence ref, ReadMismatchBuffer buffer) throws PipelineJobException
+    {
+        if (!_coverageTrackedExternally)
+        {
+            getCoverageAggregator().inspectDeferredAlignment(record, ref, buffer);
+        }
+
+        inspectSnps(record, ref, buffer.getSnpMap());
+    }
+
+    /**
+     * Inspects the SNPs of this alignment, independent of coverage, which is tracked separately
+     */
+    protected void inspectSnps(SAMRecord record, ReferenceSequence ref, Map<Integer, List<NTSnp>> snps) throws PipelineJobException
+    {
         if (!isPassingAlignment(record, true))
         {
             return;
@@ -139,6 +167,7 @@ public void writeOutput(User u, Container c, AnalysisModel model)
             TableInfo ti = SequenceAnalysisSchema.getInstance().getSchema().getTable(SequenceAnalysisSchema.TABLE_NT_SNP_BY_POS);
             SimpleFilter filter = new SimpleFilter(FieldKey.fromString("analysis_id"), model.getAnalysisId());
             long deleted = Table.delete(ti, filter);
+            BulkResultWriter writer = new BulkResultWriter(ti, Arrays.asList("analysis_id", "ref_nt_id", "ref_nt_name", "ref_nt_position", "ref_nt_insert_index", "ref_nt", "q_nt", "readcount", "depth", "adj_depth", "pct", "container", "createdby", "modifiedby", "created", "modified"), getLogger());
 
             int processed = 0;
             for (String key : _snps.keySet())
@@ -192,7 +221,7 @@ public void writeOutput(User u, Container c, AnalysisModel model)
                 row.put("created", new Date());
                 row.put("modified", new Date());
 
-                Table.insert(u, ti, row);
+                writer.add(row);
 
                 processed++;
                 if (_logProgress && processed % 5000 == 0)
@@ -201,6 +230,7 @@ public void writeOutput(User u, Container c, AnalysisModel model)
                 }
             }
 
+            writer.close();
             transaction.commit();
 
             getLogger().info("\tReference sequences saved: " + summary.keySet().size());
@@ -214,6 +244,53 @@ public void writeOutput(User u, Container c, AnalysisModel model)
         }
     }
 
+    @Override
+    public NtSnpByPosAggregator createShardInstance(Map<AlignmentAggregator, AlignmentAggregator> shardInstances)
+    {
+        return initShardInstance(new NtSnpByPosAggregator(getLogger(), getRefFasta(), _avgQualAggregator, getSettings()), shardInstances);
+    }
+
+    /**
+     * If coverage is tracked by a separate aggregator, the shard must use that aggregator's shard instance
+     */
+    protected <T extends NtSnpByPosAggregator> T initShardInstance(T shard, Map<AlignmentAggregator, AlignmentAggregator> shardInstances)
+    {
+        initShardInstance(shard);
+        if (_coverageTrackedExternally && _coverageAggregator != null)
+        {
+            NtCoverageAggregator coverage = (NtCoverageAggregator)shardInstances.get(_coverageAggregator);
+            if (coverage == null)
+            {
+                coverage = _coverageAggregator.createShardInstance(shardInstances);
+                shardInstances.put(_coverageAggregator, coverage);
+            }
+
+            shard.setCoverageAggregator(coverage, true);
+        }
+
+        return shard;
+    }
+
+    @Override
+    public void merge(ShardableAlignmentAggregator other)
+    {
+        super.merge(other);
+
+        NtSnpByPosAggregator o = (NtSnpByPosAggregator)other;
+        _totalFilteredSnps += o._totalFilteredSnps;
+        _totalAlignments += o._totalAlignments;
+        for (String key : o._snps.keySet())
+        {
+            _snps.merge(key, o._snps.get(key), Integer::sum);
+        }
+
+        //when tracked externally, the coverage aggregator is merged independently
+        if (!_coverageTrackedExternally)
+        {
+            getCoverageAggregator().merge(o.getCoverageAggregator());
+        }
+    }
+
     public void setCoverageAggregator(NtCoverageAggregator coverageAggregator, boolean coverageTrackedExternally)
     {
         _coverageAggregator = coverageAggregator;
@@ -0,0 +1,344 @@
+package org.labkey.sequenceanalysis.run.analysis;
+
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.CigarOperator;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.sequenceanalysis.api.picard.CigarPositionIterable;
+import org.labkey.sequenceanalysis.run.util.NTSnp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A reusable, array-backed view of the positions of a single alignment that would be included in a SNP count
+ * (see CigarPositionIterable.PositionInfo.includeInSnpCount()), along with whether each position differs from the reference.
+ * A single instance is intended to be reused for each alignment processed by one thread, so that walking the CIGAR does not
+ * allocate objects per position.  Because the CIGAR is walked in order, positions are already sorted on ref position and insert index.
+ *
+ * The Map<Integer, List<NTSnp>> used by AlignmentAggregator is only created on demand, using getSnpMap().
+ */
+public class ReadMismatchBuffer
+{
+    private static final int INITIAL_SIZE = 512;
+
+    private SAMRecord _record;
+    private int _size = 0;
+    private int _mismatches = 0;
+
+    private CigarOperator[] _ops = new CigarOperator[INITIAL_SIZE];
+    private int[] _readPositions = new int[INITIAL_SIZE];
+    private int[] _refPositions = new int[INITIAL_SIZE];
+    private int[] _lastReadPositions = new int[INITIAL_SIZE];
+    private int[] _lastRefPositions = new int[INITIAL_SIZE];
+    private int[] _indels = new int[INITIAL_SIZE];
+    private byte[] _readBases = new byte[INITIAL_SIZE];
+    private boolean[] _isMismatch = new boolean[INITIAL_SIZE];
+
+    private Map<Integer, List<NTSnp>> _snpMap = null;
+
+    public ReadMismatchBuffer()
+    {
+
+    }
+
+    /**
+     * Clears the buffer, such as for an unmapped read
+     */
+    public void reset(SAMRecord record)
+    {
+        _record = record;
+        _size = 0;
+        _mismatches = 0;
+        _snpMap = null;
+    }
+
+    /**
+     * Walks the CIGAR of this alignment, recording every position that would be included in a SNP count.  The values match
+     * those calculated by CigarPositionIterable.PositionInfo.
+     */
+    public void load(SAMRecord record, byte[] referenceBases)
+    {
+        reset(record);
+
+        byte[] readBases = record.getReadBases();
+        int readPos = 0; //0-based
+        int refPos = record.getAlignmentStart() - 1; //0-based
+
+        //these track the last exploded CIGAR index that consumed read or ref bases, which is used to calculate the indel
+        int explodedIdx = 0;
+        int lastReadIdx = -1;
+        int lastRefIdx = -1;
+        int lastReadPos = 0;
+        int lastRefPos = 0;
+
+        for (CigarElement el : record.getCigar().getCigarElements())
+        {
+            CigarOperator op = el.getOperator();
+            boolean consumesRead = op.consumesReadBases();
+            boolean consumesRef = op.consumesReferenceBases();
+            boolean isIndel = op == CigarOperator.INSERTION || op == CigarOperator.DELETION;
+            boolean include = isIndel || (consumesRead && consumesRef && !isSkipped(op));
+
+            for (int i = 0; i < el.getLength(); i++)
+            {
+                int thisReadPos = consumesRead ? readPos : -1;
+                int thisRefPos = consumesRef ? refPos : -1;
+                int indel = 0;
+
+                if (consumesRead)
+                {
+                    lastReadPos = readPos;
+                    lastReadIdx = explodedIdx;
+                }
+                else if (lastReadIdx > -1)
+                {
+                    indel = lastReadIdx - explodedIdx;
+                }
+
+                if (consumesRef)
+                {
+                    lastRefPos = refPos;
+                    lastRefIdx = explodedIdx;
+                }
+                else if (lastRefIdx > -1)
+                {
+                    indel = explodedIdx - lastRefIdx;
+                }
+
+                if (include)
+                {
+                    byte readBase = op == CigarOperator.DELETION ? BamIterator.INDEL_CHARACTER : readBases[thisReadPos];
+                    byte refBase = op == CigarOperator.INSERTION ? BamIterator.INDEL_CHARACTER : referenceBases[thisRefPos];
+
+                    append(op, thisReadPos, thisRefPos, lastReadPos, lastRefPos, indel, readBase, readBase != refBase);
+                }
+
+                if (consumesRead)
+                    readPos++;
+
+                if (consumesRef)
+                    refPos++;
+
+                explodedIdx++;
+            }
+        }
+    }
+
+    private boolean isSkipped(CigarOperator op)
+    {
+        return op == CigarOperator.SOFT_CLIP || op == CigarOperator.HARD_CLIP || op == CigarOperator.SKIPPED_REGION;
+    }
+
+    private void append(CigarOperator op, int readPos, int refPos, int lastReadPos, int lastRefPos, int indel, byte readBase, boolean isMismatch)
+    {
+        if (_size == _ops.length)
+        {
+            int newLength = _ops.length * 2;
+            _ops = Arrays.copyOf(_ops, newLength);
+            _readPositions = Arrays.copyOf(_readPositions, newLength);
+            _refPositions = Arrays.copyOf(_refPositions, newLength);
+            _lastReadPositions = Arrays.copyOf(_lastReadPositions, newLength);
+            _lastRefPositions = Arrays.copyOf(_lastRefPositions, newLength);
+            _indels = Arrays.copyOf(_indels, newLength);
+            _readBases = Arrays.copyOf(_readBases, newLength);
+            _isMismatch = Arrays.copyOf(_isMismatch, newLength);
+        }
+
+        _ops[_size] = op;
+        _readPositions[_size] = readPos;
+        _refPositions[_size] = refPos;
+        _lastReadPositions[_size] = lastReadPos;
+        _lastRefPositions[_size] = lastRefPos;
+        _indels[_size] = indel;
+        _readBases[_size] = readBase;
+        _isMismatch[_size] = isMismatch;
+
+        if (isMismatch)
+            _mismatches++;
+
+        _size++;
+    }
+
+    public SAMRecord getRecord()
+    {
+        return _record;
+    }
+
+    /**
+     * @return The number of positions included in the SNP count
+     */
+    public int size()
+    {
+        return _size;
+    }
+
+    public int getMismatchCount()
+    {
+        return _mismatches;
+    }
+
+    public boolean isMismatch(int idx)
+    {
+        return _isMismatch[idx];
+    }
+
+    public CigarOperator getCigarOperator(int idx)
+    {
+        return _ops[idx];
+    }
+
+    /**
+     * @return The zero-based ref position, -1 indicates an insertion
+     */
+    public int getRefPosition(int idx)
+    {
+        return _refPositions[idx];
+    }
+
+    /**
+     * @return The zero-based read position, -1 indicates a deletion
+     */
+    public int getReadPosition(int idx)
+    {
+        return _readPositions[idx];
+    }
+
+    public int getLastRefPosition(int idx)
+    {
+        return _lastRefPositions[idx];
+    }
+
+    public int getLastReadPosition(int idx)
+    {
+        return _lastReadPositions[idx];
+    }
+
+    public int getIndel(int idx)
+    {
+        return _indels[idx];
+    }
+
+    public int getInsertIndex(int idx)
+    {
+        return _indels[idx] <= 0 ? 0 : _indels[idx];
+    }
+
+    /**
+     * @return The read base at this position.  '-' indicates a deletion.
+     */
+    public byte getReadBase(int idx)
+    {
+        return _readBases[idx];
+    }
+
+    public int getBaseQuality(int idx)
+    {
+        return _record.getBaseQualities()[_lastReadPositions[idx]];
+    }
+
+    /**
+     * Adapter for aggregators that use the map of NTSnps, keyed on the last ref position.  This is only created once per alignment,
+     * so that flags set on each NTSnp by one aggregator are visible to the others.
+     */
+    public Map<Integer, List<NTSnp>> getSnpMap()
+    {
+        if (_snpMap != null)
+        {
+            return _snpMap;
+        }
+
+        if (_mismatches == 0)
+        {
+            _snpMap = Collections.emptyMap();
+            return _snpMap;
+        }
+
+        _snpMap = new TreeMap<>();
+        CigarPositionIterable cpi = new CigarPositionIterable(_record);
+        for (int i = 0; i < _size; i++)
+        {
+            if (!_isMismatch[i])
+                continue;
+
+            CigarPositionIterable.PositionInfo pi = cpi.new PositionInfo(_record, _ops[i], _readPositions[i], _refPositions[i], _lastReadPositions[i], _lastRefPositions[i], _indels[i]);
+            _snpMap.computeIfAbsent(_lastRefPositions[i], k -> new ArrayList<>()).add(new NTSnp(pi));
+        }
+
+        return _snpMap;
+    }
+
+    public static class TestCase extends Assert
+    {
+        @Test
+        public void testMatchesCigarPositionIterable() throws Exception
+        {
+            byte[] refBases = "ACGTACGTACGTACGTACGTACGTACGTACGT".getBytes();
+            SAMFileHeader header = new SAMFileHeader();
+            header.addSequence(new SAMSequenceRecord("ref", refBases.length));
+
+            ReadMismatchBuffer buffer = new ReadMismatchBuffer();
+            for (String[] test : new String[][]{
+                    {"ACGTACGTAC", "10M"},
+                    {"ACCTACGTAC", "10M"},
+                    {"GGACGTTTACGT", "2S4M2I4M"},
+                    {"ACGTGTAC", "4M2D4M"},
+                    {"ACGTAGGTAC", "3M1I2M1D4M"}
+            })
+            {
+                SAMRecord r = new SAMRecord(header);
+                r.setReferenceName("ref");
+                r.setAlignmentStart(1);
+                r.setReadName("read");
+                r.setReadString(test[0]);
+                r.setCigarString(test[1]);
+                byte[] quals = new byte[test[0].length()];
+                Arrays.fill(quals, (byte)30);
+                r.setBaseQualities(quals);
+
+                buffer.load(r, refBases);
+
+                int idx = 0;
+                int mismatches = 0;
+                CigarPositionIterable.CigarIterator ci = new CigarPositionIterable(r).iterator();
+                while (ci.hasNext())
+                {
+                    CigarPositionIterable.PositionInfo pi = ci.next();
+                    if (!pi.includeInSnpCount())
+                        continue;
+
+                    assertEquals(test[1], pi.getRefPosition(), buffer.getRefPosition(idx));
+                    assertEquals(test[1], pi.getReadPosition(), buffer.getReadPosition(idx));
+                    assertEquals(test[1], pi.getLastRefPosition(), buffer.getLastRefPosition(idx));
+                    assertEquals(test[1], pi.getLastReadPosition(), buffer.getLastReadPosition(idx));
+                    assertEquals(test[1], pi.getInsertIndex(), buffer.getInsertIndex(idx));
+                    assertEquals(test[1], pi.getReadBase(), buffer.getReadBase(idx));
+
+                    boolean isMismatch = pi.getReferenceBase(refBases) != pi.getReadBase();
+                    assertEquals(test[1], isMismatch, buffer.isMismatch(idx));
+                    if (isMismatch)
+                        mismatches++;
+
+                    idx++;
+                }
+
+                assertEquals(test[1], idx, buffer.size());
+                assertEquals(test[1], mismatches, buffer.getMismatchCount());
+
+                int snps = 0;
+                for (List<NTSnp> list : buffer.getSnpMap().values())
+                {
+                    snps += list.size();
+                }
+                assertEquals(test[1], mismatches, snps);
+            }
+        }
+    }
+}
@@ -45,6 +45,7 @@
 import org.labkey.api.query.FieldKey;
 import org.labkey.api.reader.Readers;
 import org.labkey.api.security.User;
+import org.labkey.api.sequenceanalysis.BulkResultWriter;
 import org.labkey.api.sequenceanalysis.model.AnalysisModel;
 import org.labkey.api.util.FileType;
 import org.labkey.api.util.Pair;
@@ -1057,6 +1058,7 @@ public static void processSBTSummary(User u, Container c, AnalysisModel model, F
 
                 TableInfo ti_junction = SequenceAnalysisSchema.getInstance().getSchema().getTable(SequenceAnalysisSchema.TABLE_ALIGNMENT_SUMMARY_JUNCTION);
                 Table.delete(ti_junction, filter);
+                BulkResultWriter junctionWriter = new BulkResultWriter(ti_junction, Arrays.asList("analysis_id", "ref_nt_id", "alignment_id", "status", "container", "createdby", "modifiedby", "created", "modified"), log);
 
                 //insert new
                 String[] line;
@@ -1100,11 +1102,12 @@ public static void processSBTSummary(User u, Container c, AnalysisModel model, F
                             junction_row.put("modifiedby", u.getUserId());
                             junction_row.put("created", new Date());
                             junction_row.put("modified", new Date());
-                            Table.insert(u, ti_junction, junction_row);
+                            junctionWriter.add(junction_row);
                         }
                     }
                 }
 
+                junctionWriter.close();
                 transaction.commit();
             }
         }
@@ -237,16 +237,14 @@ public Output performAnalysisPerSampleRemote(Readset rs, File inputBam, Referenc
                 toolParams.put(td.getName(), td.extractValue(getPipelineCtx().getJob(), getProvider(), getStepIdx()));
             }
 
-            //first calculate avg qualities at each position
-            getPipelineCtx().getLogger().info("Calculating avg quality scores");
+            //NOTE: avg qualities at each position are calculated by BamIterator in the same pass used to inspect alignments
             AvgBaseQualityAggregator avgBaseQualityAggregator = new AvgBaseQualityAggregator(getPipelineCtx().getLogger(), inputBam, referenceGenome.getWorkingFastaFile(), Arrays.asList(
                     new DuplicateReadFilter()
             ));
-            avgBaseQualityAggregator.calculateAvgQuals();
-            getPipelineCtx().getLogger().info("\tCalculation complete");
 
             getPipelineCtx().getLogger().info("Inspecting alignments in BAM");
             BamIterator bi = new BamIterator(inputBam, referenceGenome.getWorkingFastaFile(), getPipelineCtx().getLogger());
+            bi.setAvgQualAggregator(avgBaseQualityAggregator);
 
             List<AlignmentAggregator> aggregators = new ArrayList<>();
             SequenceBasedTypingAlignmentAggregator agg = new SequenceBasedTypingAlignmentAggregator(getPipelineCtx().getLogger(), referenceGenome.getWorkingFastaFile(), avgBaseQualityAggregator, toolParams);
@@ -0,0 +1,22 @@
+package org.labkey.sequenceanalysis.run.analysis;
+
+import java.util.Map;
+
+/**
+ * An AlignmentAggregator that can accumulate data for separate shards of a BAM, which allows BamIterator to iterate it in parallel.
+ * If any aggregator does not implement this, BamIterator uses serial iteration.
+ */
+public interface ShardableAlignmentAggregator extends AlignmentAggregator
+{
+    /**
+     * Creates a new, empty aggregator using the same settings as this one, which will accumulate data for a single shard.
+     * @param shardInstances the instances already created for this shard, keyed by the original aggregator.  This allows
+     *                       aggregators that share state (such as a coverage aggregator) to resolve the shard's copy.
+     */
+    public ShardableAlignmentAggregator createShardInstance(Map<AlignmentAggregator, AlignmentAggregator> shardInstances);
+
+    /**
+     * Combines the data accumulated by another instance, created using createShardInstance(), into this aggregator.
+     */
+    public void merge(ShardableAlignmentAggregator other);
+}
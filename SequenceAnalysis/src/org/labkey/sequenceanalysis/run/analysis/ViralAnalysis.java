@@ -1,5 +1,6 @@
 package org.labkey.sequenceanalysis.run.analysis;
 
+import htsjdk.samtools.util.Interval;
 import org.json.JSONObject;
 import org.labkey.api.pipeline.PipelineJobException;
 import org.labkey.api.sequenceanalysis.model.AnalysisModel;
@@ -10,7 +11,9 @@
 import org.labkey.api.sequenceanalysis.pipeline.PipelineContext;
 import org.labkey.api.sequenceanalysis.pipeline.PipelineStepProvider;
 import org.labkey.api.sequenceanalysis.pipeline.ReferenceGenome;
+import org.labkey.api.sequenceanalysis.pipeline.SequencePipelineService;
 import org.labkey.api.sequenceanalysis.pipeline.ToolParameterDescriptor;
+import org.labkey.sequenceanalysis.util.SequenceUtil;
 
 import java.io.File;
 import java.io.IOException;
@@ -56,7 +59,8 @@ public Provider()
                     ToolParameterDescriptor.create("minMapQual", "Minimum Mapping Qual", "If provided, any alignment with a mapping quality lower than this value will be discarded", "ldk-integerfield", new JSONObject()
                     {{
                         put("minValue", 0);
-                    }}, 30)
+                    }}, 30),
+                    ToolParameterDescriptor.create("intervals", "Intervals", "If provided, only alignments overlapping these intervals will be inspected, using the BAM index rather than reading the entire file.  They should be in the form: chr01:102-20394", "sequenceanalysis-intervalfield", null, null)
             ), null, null);
         }
 
@@ -79,14 +83,13 @@ public Output performAnalysisPerSampleLocal(AnalysisModel model, File inputBam,
                 toolParams.put(td.getName(), td.extractValue(getPipelineCtx().getJob(), getProvider(), getStepIdx()));
             }
 
-            //first calculate avg qualities at each position
-            getPipelineCtx().getLogger().info("Calculating avg quality scores");
+            //NOTE: avg qualities at each position are calculated by BamIterator in the same pass used to inspect alignments
+            List<Interval> intervals = SequenceUtil.parseAndSortIntervals(toolParams.get("intervals"));
             AvgBaseQualityAggregator avgBaseQualityAggregator = new AvgBaseQualityAggregator(getPipelineCtx().getLogger(), inputBam, referenceFasta);
-            avgBaseQualityAggregator.calculateAvgQuals();
-            getPipelineCtx().getLogger().info("\tCalculation complete");
 
             getPipelineCtx().getLogger().info("Inspecting alignments in BAM");
             BamIterator bi = new BamIterator(inputBam, referenceFasta, getPipelineCtx().getLogger());
+            bi.setAvgQualAggregator(avgBaseQualityAggregator);
 
             List<AlignmentAggregator> aggregators = new ArrayList<>();
             NtCoverageAggregator coverage = new NtCoverageAggregator(getPipelineCtx().getLogger(), referenceFasta, avgBaseQualityAggregator, toolParams);
@@ -101,7 +104,15 @@ public Output performAnalysisPerSampleLocal(AnalysisModel model, File inputBam,
             aggregators.add(aaSnp);
 
             bi.addAggregators(aggregators);
-            bi.iterateReads();
+            if (intervals != null)
+            {
+                bi.iterateReads(intervals);
+            }
+            else
+            {
+                Integer threads = SequencePipelineService.get().getMaxThreads(getPipelineCtx().getLogger());
+                bi.iterateReadsParallel(threads == null ? 1 : threads, null);
+            }
             getPipelineCtx().getLogger().info("Inspection complete");
 
             for (AlignmentAggregator a : aggregators)
@@ -1,11 +1,15 @@
 package org.labkey.sequenceanalysis.run.bampostprocessing;
 
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMReadGroupRecord;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMTag;
 import org.labkey.api.pipeline.PipelineJobException;
 import org.labkey.api.sequenceanalysis.model.Readset;
 import org.labkey.api.sequenceanalysis.pipeline.BamProcessingOutputImpl;
 import org.labkey.api.util.FileUtil;
 import org.labkey.api.sequenceanalysis.pipeline.AbstractPipelineStepProvider;
-import org.labkey.api.sequenceanalysis.pipeline.BamProcessingStep;
+import org.labkey.api.sequenceanalysis.pipeline.BamRecordTransformStep;
 import org.labkey.api.sequenceanalysis.pipeline.PipelineContext;
 import org.labkey.api.sequenceanalysis.pipeline.PipelineStepProvider;
 import org.labkey.api.sequenceanalysis.pipeline.ReferenceGenome;
@@ -13,14 +17,18 @@
 import org.labkey.sequenceanalysis.run.util.AddOrReplaceReadGroupsWrapper;
 
 import java.io.File;
+import java.util.Collections;
 
 /**
  * User: bimber
  * Date: 6/15/2014
  * Time: 4:45 PM
  */
-public class AddOrReplaceReadGroupsStep extends AbstractCommandPipelineStep<AddOrReplaceReadGroupsWrapper> implements BamProcessingStep
+public class AddOrReplaceReadGroupsStep extends AbstractCommandPipelineStep<AddOrReplaceReadGroupsWrapper> implements BamRecordTransformStep
 {
+    //NOTE: this matches the default RGID used by AddOrReplaceReadGroups
+    private static final String READ_GROUP_ID = "1";
+
     public AddOrReplaceReadGroupsStep(PipelineStepProvider provider, PipelineContext ctx)
     {
         super(provider, ctx, new AddOrReplaceReadGroupsWrapper(ctx.getLogger()));
@@ -52,4 +60,25 @@ public Output processBam(Readset rs, File inputBam, ReferenceGenome referenceGen
 
         return output;
     }
+
+    @Override
+    public SAMFileHeader transformHeader(Readset rs, SAMFileHeader header)
+    {
+        SAMReadGroupRecord rg = new SAMReadGroupRecord(READ_GROUP_ID);
+        rg.setLibrary(rs.getReadsetId().toString());
+        rg.setPlatform(rs.getPlatform() == null ? "ILLUMINA" : rs.getPlatform());
+        rg.setPlatformUnit(rs.getReadsetId().toString());
+        rg.setSample(rs.getName().replaceAll(" ", "_"));
+        header.setReadGroups(Collections.singletonList(rg));
+
+        return header;
+    }
+
+    @Override
+    public SAMRecord transformRecord(SAMRecord record)
+    {
+        record.setAttribute(SAMTag.RG.name(), READ_GROUP_ID);
+
+        return record;
+    }
 }
@@ -1,12 +1,13 @@
 package org.labkey.sequenceanalysis.run.bampostprocessing;
 
 import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.ValidationStringency;
 import org.labkey.api.pipeline.PipelineJobException;
 import org.labkey.api.sequenceanalysis.model.Readset;
 import org.labkey.api.sequenceanalysis.pipeline.AbstractPipelineStepProvider;
 import org.labkey.api.sequenceanalysis.pipeline.BamProcessingOutputImpl;
-import org.labkey.api.sequenceanalysis.pipeline.BamProcessingStep;
+import org.labkey.api.sequenceanalysis.pipeline.BamRecordTransformStep;
 import org.labkey.api.sequenceanalysis.pipeline.PipelineContext;
 import org.labkey.api.sequenceanalysis.pipeline.PipelineStepProvider;
 import org.labkey.api.sequenceanalysis.pipeline.ReferenceGenome;
@@ -27,7 +28,7 @@
  * Date: 6/15/2014
  * Time: 4:46 PM
  */
-public class DiscardUnmappedReadsStep extends AbstractCommandPipelineStep<SamtoolsRunner> implements BamProcessingStep
+public class DiscardUnmappedReadsStep extends AbstractCommandPipelineStep<SamtoolsRunner> implements BamRecordTransformStep
 {
     public DiscardUnmappedReadsStep(PipelineStepProvider provider, PipelineContext ctx)
     {
@@ -78,4 +79,16 @@ public Output processBam(Readset rs, File inputBam, ReferenceGenome referenceGen
 
         return output;
     }
+
+    @Override
+    public SAMFileHeader transformHeader(Readset rs, SAMFileHeader header)
+    {
+        return header;
+    }
+
+    @Override
+    public SAMRecord transformRecord(SAMRecord record)
+    {
+        return record.getReadUnmappedFlag() ? null : record;
+    }
 }
@@ -23,12 +23,12 @@
 import org.labkey.api.util.PageFlowUtil;
 import org.labkey.sequenceanalysis.pipeline.SequenceTaskHelper;
 import org.labkey.sequenceanalysis.pipeline.VariantProcessingJob;
+import org.labkey.sequenceanalysis.util.SequenceUtil;
 
 import javax.annotation.Nullable;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
 
 /**
@@ -142,7 +142,7 @@ public Output processVariants(File inputVCF, File outputDirectory, ReferenceGeno
         }
 
         String intervalText = StringUtils.trimToNull(getProvider().getParameterByName("intervals").extractValue(getPipelineCtx().getJob(), getProvider(), getStepIdx(), String.class));
-        List<Interval> il = parseAndSortIntervals(intervalText);
+        List<Interval> il = SequenceUtil.parseAndSortIntervals(intervalText);
         if (il != null)
         {
             for (Interval i : il)
@@ -223,31 +223,4 @@ public void generateTable(File inputVcf, File outputFile, File referenceFasta, L
             }
         }
     }
-
-    private List<Interval> parseAndSortIntervals(String intervalString) throws PipelineJobException
-    {
-        intervalString = StringUtils.trimToNull(intervalString);
-        if (intervalString == null)
-        {
-            return null;
-        }
-
-        intervalString = intervalString.replaceAll("(\\n|\\r|;)+", ";");
-        List<Interval> intervals = new ArrayList<>();
-        for (String i : intervalString.split(";"))
-        {
-            String[] tokens = i.split(":|-");
-            if (tokens.length != 3)
-            {
-                throw new PipelineJobException("Invalid interval: " + i);
-            }
-
-            intervals.add(new Interval(tokens[0], Integer.parseInt(tokens[1]), Integer.parseInt(tokens[2])));
-        }
-
-
-        Collections.sort(intervals);
-
-        return intervals;
-    }
 }
@@ -11,6 +11,7 @@
 
 import java.io.File;
 import java.util.Collection;
+import java.util.IdentityHashMap;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -40,6 +41,10 @@
     protected File _summaryLog = null;
     protected CSVWriter _summaryLogWriter = null;
 
+    private final Map<Collection<SequenceTag>, SequenceTagIndex> _indexes5 = new IdentityHashMap<>();
+    private final Map<Collection<SequenceTag>, SequenceTagIndex> _indexes3 = new IdentityHashMap<>();
+    private final ThreadLocal<int[]> _indexHits = ThreadLocal.withInitial(() -> new int[0]);
+
     abstract protected void initDetailLog(File fastq);
 
     abstract protected void initSummaryLog(File fastq);
@@ -86,19 +91,7 @@ protected void processTag5(FastqRecord rec, String sequenceToTest, SequenceTag b
         int editDist = StringUtils.getLevenshteinDistance(barcodeSeq, targetSeq);
         if (editDist <= _editDistance)
         {
-            Map<String, SequenceMatch> matchesAtDist = trackingMap.get(editDist);
-            if (matchesAtDist == null)
-                matchesAtDist = new TreeMap<>();
-
-            if (!matchesAtDist.containsKey(bc.getName()))
-            {
-                int start = barcodeSeq.length() + (offset > 0 ? offset : 0);
-                SequenceMatch match = new SequenceMatch(bc, rec, true, editDist, offset, start, null);
-                matchesAtDist.put(bc.getName(), match);
-                trackingMap.put(editDist, matchesAtDist);
-
-                writeDetailedLine(match, barcodeSeq, targetSeq);
-            }
+            addMatch(rec, sequenceToTest, bc, true, offset, editDist, barcodeSeq.length(), trackingMap, barcodeSeq, targetSeq);
         }
     }
 
@@ -121,19 +114,95 @@ protected void processTag3(FastqRecord rec, String sequenceToTest, SequenceTag b
         int editDist = StringUtils.getLevenshteinDistance(barcodeSeq, targetSeq);
         if (editDist <= _editDistance)
         {
-            Map<String, SequenceMatch> matchesAtDist = trackingMap.get(editDist);
-            if (matchesAtDist == null)
-                matchesAtDist = new TreeMap<>();
+            addMatch(rec, sequenceToTest, bc, false, offset, editDist, barcodeSeq.length(), trackingMap, barcodeSeq, targetSeq);
+        }
+    }
+
+    /**
+     * Tests every tag against the read at this offset, using the precomputed SequenceTagIndex when possible.  The results,
+     * including the order of lines in the detailed log, are the same as calling processTag5()/processTag3() on each tag.
+     */
+    protected void processTags(FastqRecord rec, String sequenceToTest, Collection<SequenceTag> barcodes, boolean is5Prime, int offset, Map<Integer, Map<String, SequenceMatch>> trackingMap)
+    {
+        SequenceTagIndex index = getIndex(barcodes, is5Prime);
+        int[] hits = _indexHits.get();
+        if (index.isEnabled() && hits.length < index.getMaxHits())
+        {
+            hits = new int[index.getMaxHits()];
+            _indexHits.set(hits);
+        }
 
-            if (!matchesAtDist.containsKey(bc.getName()))
+        int total = index.isEnabled() ? index.lookup(sequenceToTest, offset, hits) : -1;
+        if (total == -1)
+        {
+            for (SequenceTag bc : barcodes)
             {
-                int stop = (sequenceToTest.length() - barcodeSeq.length() - (offset > 0 ? offset : 0));
-                SequenceMatch match = new SequenceMatch(bc, rec, false, editDist, offset, null, stop);
-                matchesAtDist.put(bc.getName(), match);
-                trackingMap.put(editDist, matchesAtDist);
+                if (is5Prime)
+                    processTag5(rec, sequenceToTest, bc, offset, trackingMap);
+                else
+                    processTag3(rec, sequenceToTest, bc, offset, trackingMap);
+            }
+
+            return;
+        }
+
+        for (int i = 0; i < total; i++)
+        {
+            int hit = hits[i];
+            String barcodeSeq = index.getComparedTagSequence(hit, offset);
+            String targetSeq = _createDetailedLog ? index.getComparedTargetSequence(sequenceToTest, hit, offset) : null;
+
+            addMatch(rec, sequenceToTest, index.getTag(hit), is5Prime, offset, index.getEditDistance(hit), barcodeSeq.length(), trackingMap, barcodeSeq, targetSeq);
+        }
+    }
+
+    private SequenceTagIndex getIndex(Collection<SequenceTag> barcodes, boolean is5Prime)
+    {
+        //NOTE: indexes are cached on the identity of the collection, since the same collection is passed for every read
+        Map<Collection<SequenceTag>, SequenceTagIndex> indexes = is5Prime ? _indexes5 : _indexes3;
+        SequenceTagIndex index = indexes.get(barcodes);
+        if (index == null || !index.isIndexOf(barcodes, _editDistance, _deletionsAllowed))
+        {
+            index = SequenceTagIndex.create(barcodes, is5Prime, _editDistance, _deletionsAllowed, _logger);
+            indexes.put(barcodes, index);
+        }
+
+        return index;
+    }
 
-                writeDetailedLine(match, barcodeSeq, targetSeq);
+    /**
+     * Builds the indexes used to scan for these tags.  This must be called before scanForMatches() is used from multiple threads.
+     */
+    protected void prepareIndexes(Collection<SequenceTag> barcodes5, Collection<SequenceTag> barcodes3)
+    {
+        getIndex(barcodes5, true);
+        getIndex(barcodes3, false);
+    }
+
+    private void addMatch(FastqRecord rec, String sequenceToTest, SequenceTag bc, boolean is5Prime, int offset, int editDist, int barcodeLength, Map<Integer, Map<String, SequenceMatch>> trackingMap, String barcodeSeq, String targetSeq)
+    {
+        Map<String, SequenceMatch> matchesAtDist = trackingMap.get(editDist);
+        if (matchesAtDist == null)
+            matchesAtDist = new TreeMap<>();
+
+        if (!matchesAtDist.containsKey(bc.getName()))
+        {
+            SequenceMatch match;
+            if (is5Prime)
+            {
+                int start = barcodeLength + (offset > 0 ? offset : 0);
+                match = new SequenceMatch(bc, rec, true, editDist, offset, start, null);
             }
+            else
+            {
+                int stop = (sequenceToTest.length() - barcodeLength - (offset > 0 ? offset : 0));
+                match = new SequenceMatch(bc, rec, false, editDist, offset, null, stop);
+            }
+
+            matchesAtDist.put(bc.getName(), match);
+            trackingMap.put(editDist, matchesAtDist);
+
+            writeDetailedLine(match, barcodeSeq, targetSeq);
         }
     }
 
@@ -207,20 +276,14 @@ protected void scanForMatches(FastqRecord rec, Collection<SequenceTag> barcodes5
             sequenceToTest5 = rec.getReadString();
         }
 
-        for (SequenceTag bc : barcodes5)
-        {
-            processTag5(rec, sequenceToTest5, bc, 0, matches5);
-        }
+        processTags(rec, sequenceToTest5, barcodes5, true, 0, matches5);
 
         if (_offsetDistance > 0)
         {
             int i = 1;
             while (i <= _offsetDistance)
             {
-                for (SequenceTag bc : barcodes5)
-                {
-                    processTag5(rec, sequenceToTest5, bc, i, matches5);
-                }
+                processTags(rec, sequenceToTest5, barcodes5, true, i, matches5);
                 i++;
 
                 if (matches5.size() > 0)
@@ -234,10 +297,7 @@ protected void scanForMatches(FastqRecord rec, Collection<SequenceTag> barcodes5
             int i = 1;
             while (i <= _deletionsAllowed)
             {
-                for (SequenceTag bc : barcodes5)
-                {
-                    processTag5(rec, sequenceToTest5, bc, -i, matches5);
-                }
+                processTags(rec, sequenceToTest5, barcodes5, true, -i, matches5);
                 i++;
 
                 if (matches5.size() > 0)
@@ -264,20 +324,14 @@ protected void scanForMatches(FastqRecord rec, Collection<SequenceTag> barcodes5
         }
 
         //try default matching from end, without deletions first
-        for (SequenceTag bc : barcodes3)
-        {
-            processTag3(rec, sequenceToTest3, bc, 0, matches3);
-        }
+        processTags(rec, sequenceToTest3, barcodes3, false, 0, matches3);
 
         if (_offsetDistance > 0)
         {
             int i = 1;
             while (i <= _offsetDistance)
             {
-                for (SequenceTag bc : barcodes3)
-                {
-                    processTag3(rec, sequenceToTest3, bc, i, matches3);
-                }
+                processTags(rec, sequenceToTest3, barcodes3, false, i, matches3);
                 i++;
 
                 if (matches3.size() > 0)
@@ -291,10 +345,7 @@ protected void scanForMatches(FastqRecord rec, Collection<SequenceTag> barcodes5
             int i = 1;
             while (i <= _deletionsAllowed)
             {
-                for (SequenceTag bc : barcodes3)
-                {
-                    processTag3(rec, sequenceToTest3, bc, -i, matches3);
-                }
+                processTags(rec, sequenceToTest3, barcodes3, false, -i, matches3);
                 i++;
 
                 if (matches3.size() > 0)
@@ -304,6 +355,17 @@ protected void scanForMatches(FastqRecord rec, Collection<SequenceTag> barcodes5
     }
 
     protected SequenceMatch findBestMatch(Map<Integer, Map<String, SequenceMatch>> matchesMap, Map<String, Integer> counter)
+    {
+        SequenceMatch bestMatch = selectBestMatch(matchesMap);
+        countMatch(bestMatch, counter);
+
+        return bestMatch;
+    }
+
+    /**
+     * Unlike findBestMatch(), this does not update any counts, and is safe to call from multiple threads
+     */
+    protected SequenceMatch selectBestMatch(Map<Integer, Map<String, SequenceMatch>> matchesMap)
     {
         SequenceMatch bestMatch = null;
         if (matchesMap.size() > 0)
@@ -313,17 +375,24 @@ protected SequenceMatch findBestMatch(Map<Integer, Map<String, SequenceMatch>> m
             if (matches.size() == 1)
             {
                 bestMatch = matches.get(matches.keySet().iterator().next());
-                Integer count = counter.get(bestMatch.getSequenceTag().getName());
-                if (count == null)
-                    count = 0;
-                count++;
-
-                counter.put(bestMatch.getSequenceTag().getName(), count);
             }
         }
 
         return bestMatch;
     }
+
+    protected void countMatch(SequenceMatch bestMatch, Map<String, Integer> counter)
+    {
+        if (bestMatch == null)
+            return;
+
+        Integer count = counter.get(bestMatch.getSequenceTag().getName());
+        if (count == null)
+            count = 0;
+        count++;
+
+        counter.put(bestMatch.getSequenceTag().getName(), count);
+    }
     
     public File getDetailedLogFile()
     {
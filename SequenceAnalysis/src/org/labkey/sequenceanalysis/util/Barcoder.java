@@ -44,6 +44,8 @@
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -60,6 +62,13 @@ public class Barcoder extends AbstractSequenceMatcher
     private Map<String, BarcodeModel> _barcodes = new HashMap<>();
     private FastqWriterFactory _fastqWriterFactory = new FastqWriterFactory();
     private boolean _scanAll = false;
+    private int _threads = 1;
+    private ExecutorService _executor = null;
+
+    private static final int BATCH_SIZE = 5000;
+
+    //limits the number of uncompressed blocks held per output file
+    private static final int MAX_PENDING_BLOCKS = 16;
 
     public Barcoder(Logger logger)
     {
@@ -164,52 +173,86 @@ public Set<File> demultiplexPairs(List<Pair<File, File>> fastqPairs, List<Readse
 
             _logger.info("\tWill scan for a total of " + _barcodes.size() + " barcodes");
 
+            Collection<SequenceTag> tags5 = barcodes5.values();
+            Collection<SequenceTag> tags3 = barcodes3.values();
+            prepareIndexes(tags5, tags3);
+
+            //NOTE: the detailed log is written while scanning, so this must be single-threaded to preserve its order
+            int threads = _createDetailedLog ? 1 : _threads;
+            if (threads > 1)
+            {
+                _logger.info("\tUsing " + threads + " threads");
+                _executor = Executors.newFixedThreadPool(threads);
+            }
+
+            //matching and compression share one pool, so the total number of threads does not exceed what the job requested
+            OrderedBatchProcessor<Pair<FastqRecord, FastqRecord>, Pair<ReadMatches, ReadMatches>> processor = new OrderedBatchProcessor<>(_executor, threads, BATCH_SIZE);
             for (Pair<File, File> fastqs : fastqPairs)
             {
                 _logger.info("processing file(s): " + fastqs.first.getPath());
                 if (fastqs.second != null)
                 {
                     _logger.info("\tand: " + fastqs.second.getPath());
+                    prepareIndexes(tags3, tags5);
                 }
 
                 try (FastqReader reader1 = new FastqReader(fastqs.first); FastqReader reader2 = fastqs.second == null ? null : new FastqReader(fastqs.second))
                 {
-                    Iterator<FastqRecord> it = reader1.iterator();
-                    Iterator<FastqRecord> it2 = null;
-                    if (reader2 != null)
-                    {
-                        it2 = reader2.iterator();
-                    }
-
-                    long count = 0;
-                    while (it.hasNext())
+                    final Iterator<FastqRecord> it = reader1.iterator();
+                    final Iterator<FastqRecord> it2 = reader2 == null ? null : reader2.iterator();
+                    Iterator<Pair<FastqRecord, FastqRecord>> pairIterator = new Iterator<>()
                     {
-                        count++;
-                        if (count % 100000 == 0)
+                        @Override
+                        public boolean hasNext()
                         {
-                            _logger.info("\tprocessed " + NumberFormat.getInstance().format(count) + " reads");
+                            return it.hasNext();
                         }
 
-                        if (reader2 == null)
-                        {
-                            FastqRecord rec = it.next();
-                            processSequence(fastqs.first, rec, readsets, barcodes5.values(), barcodes3.values());
-                        }
-                        else
+                        @Override
+                        public Pair<FastqRecord, FastqRecord> next()
                         {
                             FastqRecord rec1 = it.next();
+                            if (it2 == null)
+                            {
+                                return Pair.of(rec1, null);
+                            }
+
                             if (!it2.hasNext())
                             {
                                 throw new IllegalArgumentException("Second FASTQ has fewer records than the primary FASTQ");
                             }
 
-                            FastqRecord rec2 = it2.next();
+                            return Pair.of(rec1, it2.next());
+                        }
+                    };
 
-                            processSequencePair(fastqs.first, fastqs.second, rec1, rec2, readsets, barcodes5.values(), barcodes3.values());
+                    //matching runs on the worker threads, while counting and writing happen in the original order on this thread
+                    final long[] count = new long[]{0};
+                    processor.process(pairIterator, recs -> {
+                        if (recs.second == null)
+                        {
+                            return Pair.of(matchSequence(recs.first, tags5, tags3), null);
                         }
-                    }
 
-                    _logger.info("\tfinished " + NumberFormat.getInstance().format(count) + " reads");
+                        return Pair.of(matchSequence(recs.first, tags5, tags3), matchSequence(recs.second, tags3, tags5));
+                    }, (recs, matches) -> {
+                        count[0]++;
+                        if (count[0] % 100000 == 0)
+                        {
+                            _logger.info("\tprocessed " + NumberFormat.getInstance().format(count[0]) + " reads");
+                        }
+
+                        if (recs.second == null)
+                        {
+                            processSequence(fastqs.first, recs.first, readsets, matches.first);
+                        }
+                        else
+                        {
+                            processSequencePair(fastqs.first, fastqs.second, recs.first, recs.second, readsets, matches.first, matches.second);
+                        }
+                    });
+
+                    _logger.info("\tfinished " + NumberFormat.getInstance().format(count[0]) + " reads");
                 }
             }
         }
@@ -221,6 +264,12 @@ public Set<File> demultiplexPairs(List<Pair<File, File>> fastqPairs, List<Readse
                     writer.close();
             }
 
+            if (_executor != null)
+            {
+                _executor.shutdownNow();
+                _executor = null;
+            }
+
             try
             {
                 if (_detailLogWriter != null)
@@ -337,22 +386,31 @@ private File getSummaryLogFile(File fastq)
         return new File(_outputDir, basename + ".barcode-summary.txt.gz");
     }
 
-    private void processSequencePair(File fastq1, File fastq2, FastqRecord rec1, FastqRecord rec2, List<Readset> readsets, Collection<SequenceTag> barcodes5, Collection<SequenceTag> barcodes3) throws IOException
+    /**
+     * Finds the best match for each end of this read.  This does not modify any shared state, so it can be called from multiple threads.
+     */
+    private ReadMatches matchSequence(FastqRecord rec, Collection<SequenceTag> barcodes5, Collection<SequenceTag> barcodes3)
     {
-        Map<Integer, Map<String, SequenceMatch>> forwardMatches5 = new TreeMap<>();
-        Map<Integer, Map<String, SequenceMatch>> forwardMatches3 = new TreeMap<>();
-        Map<Integer, Map<String, SequenceMatch>> reverseMatches5 = new TreeMap<>();
-        Map<Integer, Map<String, SequenceMatch>> reverseMatches3 = new TreeMap<>();
-        _totalReads++;
+        Map<Integer, Map<String, SequenceMatch>> matches5 = new TreeMap<>();
+        Map<Integer, Map<String, SequenceMatch>> matches3 = new TreeMap<>();
+        scanForMatches(rec, barcodes5, barcodes3, matches5, matches3);
 
-        scanForMatches(rec1, barcodes5, barcodes3, forwardMatches5, forwardMatches3);
-        scanForMatches(rec2, barcodes3, barcodes5, reverseMatches5, reverseMatches3);
+        return new ReadMatches(selectBestMatch(matches5), selectBestMatch(matches3));
+    }
+
+    private void processSequencePair(File fastq1, File fastq2, FastqRecord rec1, FastqRecord rec2, List<Readset> readsets, ReadMatches forwardMatches, ReadMatches reverseMatches) throws IOException
+    {
+        _totalReads++;
 
         //find the best match for each end:
-        SequenceMatch forwardBc5 = findBestMatch(forwardMatches5, _sequenceMatch5Counts);
-        SequenceMatch forwardBc3 = findBestMatch(forwardMatches3, _sequenceMatch3Counts);
-        SequenceMatch reverseBc5 = findBestMatch(reverseMatches5, _sequenceMatch5Counts);
-        SequenceMatch reverseBc3 = findBestMatch(reverseMatches3, _sequenceMatch3Counts);
+        SequenceMatch forwardBc5 = forwardMatches.getMatch5();
+        SequenceMatch forwardBc3 = forwardMatches.getMatch3();
+        SequenceMatch reverseBc5 = reverseMatches.getMatch5();
+        SequenceMatch reverseBc3 = reverseMatches.getMatch3();
+        countMatch(forwardBc5, _sequenceMatch5Counts);
+        countMatch(forwardBc3, _sequenceMatch3Counts);
+        countMatch(reverseBc5, _sequenceMatch5Counts);
+        countMatch(reverseBc3, _sequenceMatch3Counts);
 
         List<Readset> readsetMatches = new ArrayList<>();
         for (Readset model : readsets)
@@ -398,15 +456,13 @@ else if (model.getBarcode3() == null && reverseBc5 == null)
         }
     }
 
-    private void processSequence(File fastq, FastqRecord rec, List<Readset> readsets, Collection<SequenceTag> barcodes5, Collection<SequenceTag> barcodes3) throws IOException
+    private void processSequence(File fastq, FastqRecord rec, List<Readset> readsets, ReadMatches matches) throws IOException
     {
-        Map<Integer, Map<String, SequenceMatch>> matches5 = new TreeMap<>();
-        Map<Integer, Map<String, SequenceMatch>> matches3 = new TreeMap<>();
-        scanForMatches(rec, barcodes5, barcodes3, matches5, matches3);
-
         //find the best match for each end:
-        SequenceMatch bc5 = findBestMatch(matches5, _sequenceMatch5Counts);
-        SequenceMatch bc3 = findBestMatch(matches3, _sequenceMatch3Counts);
+        SequenceMatch bc5 = matches.getMatch5();
+        SequenceMatch bc3 = matches.getMatch3();
+        countMatch(bc5, _sequenceMatch5Counts);
+        countMatch(bc3, _sequenceMatch3Counts);
         _totalReads++;
 
         boolean found = false;
@@ -500,7 +556,15 @@ else if (match3 != null)
         FastqWriter writer = _fileMap.get(output);
         if (writer == null)
         {
-            writer = new AsyncFastqWriter(new BasicFastqWriter(new PrintStream(new GZIPOutputStream(new FileOutputStream(output)))), AsyncFastqWriter.DEFAULT_QUEUE_SIZE);
+            if (_executor == null)
+            {
+                writer = new AsyncFastqWriter(new BasicFastqWriter(new PrintStream(new GZIPOutputStream(new FileOutputStream(output)))), AsyncFastqWriter.DEFAULT_QUEUE_SIZE);
+            }
+            else
+            {
+                //blocks are compressed in parallel using the shared executor, so a writer thread per file is not needed
+                writer = new BasicFastqWriter(new PrintStream(new ParallelBgzfOutputStream(new FileOutputStream(output), _executor, Math.min(2 * _threads, MAX_PENDING_BLOCKS))));
+            }
             _fileMap.put(output, writer);
         }
 
@@ -536,6 +600,38 @@ public boolean isScanAll()
         return _scanAll;
     }
 
+    public int getThreads()
+    {
+        return _threads;
+    }
+
+    public void setThreads(int threads)
+    {
+        _threads = Math.max(1, threads);
+    }
+
+    private class ReadMatches
+    {
+        private final SequenceMatch _match5;
+        private final SequenceMatch _match3;
+
+        public ReadMatches(@Nullable SequenceMatch match5, @Nullable SequenceMatch match3)
+        {
+            _match5 = match5;
+            _match3 = match3;
+        }
+
+        public SequenceMatch getMatch5()
+        {
+            return _match5;
+        }
+
+        public SequenceMatch getMatch3()
+        {
+            return _match3;
+        }
+    }
+
     public void setScanAll(boolean scanAll)
     {
         _scanAll = scanAll;
@@ -0,0 +1,452 @@
+package org.labkey.sequenceanalysis.util;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.tribble.Feature;
+import htsjdk.tribble.index.Index;
+import htsjdk.tribble.index.tabix.TabixFormat;
+import htsjdk.tribble.index.tabix.TabixIndexCreator;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.variant.vcf.VCFFileReader;
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Concatenates BGZF-compressed VCFs that share the same samples by copying their compressed blocks, rather than decompressing
+ * and recompressing every file.  Only the merged header and the remainder of the block holding the first record of each input
+ * are compressed.  Because every copied block must be inflated to find the records anyway, the tabix index and the VcfStats
+ * summary are built during the copy, using the block offsets of the output, rather than reading the output again afterwards.
+ */
+public class BgzfVcfConcatenator
+{
+    private final Logger _log;
+    private static final byte[] NEWLINE = new byte[]{'\n'};
+
+    private long _position = 0;
+    private long _totalRecords = 0;
+    private VcfStats _stats = null;
+
+    public BgzfVcfConcatenator(Logger log)
+    {
+        _log = log;
+    }
+
+    /**
+     * @return True if every input is BGZF-compressed
+     */
+    public static boolean canConcatenate(List<File> vcfs) throws IOException
+    {
+        for (File vcf : vcfs)
+        {
+            if (!IOUtil.isBlockCompressed(vcf.toPath()))
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * This can be called more than once on the same instance.  Each call uses its own Inflater, which is released before returning.
+     *
+     * @param header A VCF holding the merged header for the output, and no records.  This is not compressed.
+     */
+    public void concatenate(File header, List<File> vcfs, SAMSequenceDictionary dict, File output) throws IOException
+    {
+        _position = 0;
+        _totalRecords = 0;
+
+        byte[] headerBytes = Files.readAllBytes(header.toPath());
+        _stats = VcfStats.create(getSamples(headerBytes));
+
+        TabixIndexCreator indexer = new TabixIndexCreator(dict, TabixFormat.VCF);
+        Inflater inflater = new Inflater(true);
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(output)))
+        {
+            for (int i = 0; i < headerBytes.length; i += ParallelBgzfOutputStream.UNCOMPRESSED_BLOCK_SIZE)
+            {
+                writeBlock(out, ParallelBgzfOutputStream.compressBlock(headerBytes, i, Math.min(ParallelBgzfOutputStream.UNCOMPRESSED_BLOCK_SIZE, headerBytes.length - i), Deflater.DEFAULT_COMPRESSION));
+            }
+
+            for (File vcf : vcfs)
+            {
+                _log.info("copying: " + vcf.getName());
+                copyRecords(vcf, out, indexer, inflater);
+            }
+
+            long finalPosition = _position << 16;
+            writeBlock(out, ParallelBgzfOutputStream.EMPTY_BLOCK);
+
+            Index index = indexer.finalizeIndex(finalPosition);
+            index.write(new File(output.getPath() + ".tbi").toPath());
+        }
+        finally
+        {
+            inflater.end();
+        }
+
+        _log.info("total records copied: " + _totalRecords);
+    }
+
+    /**
+     * @return The stats for the most recently concatenated VCF
+     */
+    public VcfStats getStats()
+    {
+        return _stats;
+    }
+
+    private static String[] getSamples(byte[] headerBytes)
+    {
+        for (String line : new String(headerBytes, StandardCharsets.UTF_8).split("\n"))
+        {
+            if (line.startsWith("#CHROM"))
+            {
+                return VcfStats.parseSamples(line.trim());
+            }
+        }
+
+        return new String[0];
+    }
+
+    private void copyRecords(File vcf, OutputStream out, TabixIndexCreator indexer, Inflater inflater) throws IOException
+    {
+        RecordParser parser = new RecordParser(indexer);
+        try (InputStream is = new BufferedInputStream(new FileInputStream(vcf)))
+        {
+            boolean inHeader = true;
+            byte[] block;
+            while ((block = readBlock(is, vcf)) != null)
+            {
+                byte[] data = inflate(inflater, block, vcf);
+                if (data.length == 0)
+                {
+                    //this includes the EOF marker, which is only written once, at the end of the output
+                    continue;
+                }
+
+                if (inHeader)
+                {
+                    int dataStart = parser.findFirstRecord(data);
+                    if (dataStart == -1)
+                    {
+                        continue;
+                    }
+
+                    inHeader = false;
+                    if (dataStart > 0)
+                    {
+                        //this block also contains header lines, so it must be re-blocked
+                        parser.parse(data, dataStart, _position, dataStart);
+                        writeBlock(out, ParallelBgzfOutputStream.compressBlock(data, dataStart, data.length - dataStart, Deflater.DEFAULT_COMPRESSION));
+                        continue;
+                    }
+                }
+
+                parser.parse(data, 0, _position, 0);
+                writeBlock(out, block);
+            }
+
+            if (!inHeader && !parser.isAtLineStart())
+            {
+                //the final record lacks a trailing newline, which would otherwise join it to the first record of the next input
+                writeBlock(out, ParallelBgzfOutputStream.compressBlock(NEWLINE, 0, NEWLINE.length, Deflater.DEFAULT_COMPRESSION));
+            }
+
+            parser.finish();
+        }
+    }
+
+    private void writeBlock(OutputStream out, byte[] block) throws IOException
+    {
+        out.write(block);
+        _position += block.length;
+    }
+
+    private static byte[] readBlock(InputStream is, File vcf) throws IOException
+    {
+        byte[] header = new byte[ParallelBgzfOutputStream.BLOCK_HEADER_LENGTH];
+        int read = is.readNBytes(header, 0, header.length);
+        if (read == 0)
+        {
+            return null;
+        }
+
+        //NOTE: this expects BC to be the only extra subfield, which is the case for files written by bgzip and htsjdk
+        if (read != header.length || header[0] != 31 || (header[1] & 0xFF) != 139 || header[12] != 'B' || header[13] != 'C')
+        {
+            throw new IOException("Not a valid BGZF block in file: " + vcf.getPath());
+        }
+
+        int blockSize = ((header[16] & 0xFF) | ((header[17] & 0xFF) << 8)) + 1;
+        byte[] block = Arrays.copyOf(header, blockSize);
+        if (is.readNBytes(block, header.length, blockSize - header.length) != blockSize - header.length)
+        {
+            throw new IOException("Truncated BGZF block in file: " + vcf.getPath());
+        }
+
+        return block;
+    }
+
+    private static byte[] inflate(Inflater inflater, byte[] block, File vcf) throws IOException
+    {
+        int idx = block.length - 4;
+        int uncompressedSize = (block[idx] & 0xFF) | ((block[idx + 1] & 0xFF) << 8) | ((block[idx + 2] & 0xFF) << 16) | ((block[idx + 3] & 0xFF) << 24);
+        byte[] ret = new byte[uncompressedSize];
+
+        inflater.reset();
+        inflater.setInput(block, ParallelBgzfOutputStream.BLOCK_HEADER_LENGTH, block.length - ParallelBgzfOutputStream.BLOCK_HEADER_LENGTH - ParallelBgzfOutputStream.BLOCK_FOOTER_LENGTH);
+        try
+        {
+            int inflated = inflater.inflate(ret);
+            if (inflated != uncompressedSize)
+            {
+                throw new IOException("Unexpected BGZF block size in file: " + vcf.getPath());
+            }
+        }
+        catch (DataFormatException e)
+        {
+            throw new IOException("Unable to inflate BGZF block in file: " + vcf.getPath(), e);
+        }
+
+        return ret;
+    }
+
+    /**
+     * Tracks the position of each record as blocks are written, and adds it to the tabix index and stats once the record is complete.
+     */
+    private class RecordParser
+    {
+        private final TabixIndexCreator _indexer;
+        private final StringBuilder _line = new StringBuilder();
+        private boolean _atLineStart = true;
+        private long _recordStart = -1;
+
+        public RecordParser(TabixIndexCreator indexer)
+        {
+            _indexer = indexer;
+        }
+
+        /**
+         * @return The index of the first byte of the first record in this block, or -1 if the block only contains header lines
+         */
+        public int findFirstRecord(byte[] data)
+        {
+            for (int i = 0; i < data.length; i++)
+            {
+                if (_atLineStart && data[i] != '#')
+                {
+                    return i;
+                }
+
+                _atLineStart = data[i] == '\n';
+            }
+
+            return -1;
+        }
+
+        /**
+         * @param blockAddress The position of this block in the output file
+         * @param offsetShift The number of bytes from the start of the data that will not be written to the output block
+         */
+        public void parse(byte[] data, int start, long blockAddress, int offsetShift)
+        {
+            for (int i = start; i < data.length; i++)
+            {
+                byte b = data[i];
+                if (_atLineStart)
+                {
+                    _recordStart = (blockAddress << 16) | (i - offsetShift);
+                    _atLineStart = false;
+                }
+
+                if (b == '\n')
+                {
+                    addRecord();
+                    _atLineStart = true;
+                }
+                else if (b != '\r')
+                {
+                    _line.append((char)b);
+                }
+            }
+        }
+
+        public boolean isAtLineStart()
+        {
+            return _atLineStart;
+        }
+
+        public void finish()
+        {
+            if (!_atLineStart)
+            {
+                addRecord();
+                _atLineStart = true;
+            }
+        }
+
+        private void addRecord()
+        {
+            if (_line.length() > 0)
+            {
+                String line = _line.toString();
+                _indexer.addFeature(parseRecord(line), _recordStart);
+                _stats.addRecord(line);
+                _totalRecords++;
+            }
+
+            _line.setLength(0);
+        }
+    }
+
+    private static VcfRecordLocation parseRecord(String line)
+    {
+        //genotypes are not needed for the index
+        String[] tokens = line.split("\t", 9);
+        if (tokens.length < 4)
+        {
+            throw new IllegalArgumentException("Improper VCF line: " + line);
+        }
+
+        int start = Integer.parseInt(tokens[1]);
+        int end = start + tokens[3].length() - 1;
+        if (tokens.length > 7)
+        {
+            for (String info : tokens[7].split(";"))
+            {
+                if (info.startsWith("END="))
+                {
+                    end = Integer.parseInt(info.substring(4));
+                    break;
+                }
+            }
+        }
+
+        return new VcfRecordLocation(tokens[0], start, end);
+    }
+
+    private static class VcfRecordLocation implements Feature
+    {
+        private final String _contig;
+        private final int _start;
+        private final int _end;
+
+        public VcfRecordLocation(String contig, int start, int end)
+        {
+            _contig = contig;
+            _start = start;
+            _end = end;
+        }
+
+        @Override
+        public String getContig()
+        {
+            return _contig;
+        }
+
+        @Override
+        public int getStart()
+        {
+            return _start;
+        }
+
+        @Override
+        public int getEnd()
+        {
+            return _end;
+        }
+    }
+
+    public static class TestCase extends Assert
+    {
+        private static final String HEADER = "##fileformat=VCFv4.2\n##contig=<ID=chr1,length=10000>\n##contig=<ID=chr2,length=10000>\n#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT\tSample1\n";
+
+        @Test
+        public void testConcatenate() throws Exception
+        {
+            File dir = Files.createTempDirectory("BgzfVcfConcatenator").toFile();
+            try
+            {
+                List<File> inputs = new ArrayList<>();
+                int expected = 0;
+                for (String contig : Arrays.asList("chr1", "chr2"))
+                {
+                    File vcf = new File(dir, contig + ".vcf.gz");
+                    try (PrintWriter writer = new PrintWriter(new OutputStreamWriter(new BlockCompressedOutputStream(vcf), StandardCharsets.UTF_8)))
+                    {
+                        writer.write(HEADER);
+                        for (int i = 1; i <= 5000; i++)
+                        {
+                            //the final record of the first input has no trailing newline
+                            writer.write(contig + "\t" + i + "\t.\tA\tG\t50\t" + (i % 2 == 0 ? "PASS" : "LowQual") + "\tAF=0.5\tGT\t0/1" + ("chr1".equals(contig) && i == 5000 ? "" : "\n"));
+                            expected++;
+                        }
+                    }
+                    inputs.add(vcf);
+                }
+
+                File header = new File(dir, "header.vcf");
+                Files.writeString(header.toPath(), HEADER);
+
+                SAMSequenceDictionary dict = new SAMSequenceDictionary(Arrays.asList(new SAMSequenceRecord("chr1", 10000), new SAMSequenceRecord("chr2", 10000)));
+                File output = new File(dir, "combined.vcf.gz");
+                assertTrue(BgzfVcfConcatenator.canConcatenate(inputs));
+                BgzfVcfConcatenator concatenator = new BgzfVcfConcatenator(LogManager.getLogger(BgzfVcfConcatenator.class));
+                concatenator.concatenate(header, inputs, dict, output);
+
+                try (VCFFileReader reader = new VCFFileReader(output, true))
+                {
+                    assertEquals(expected, reader.iterator().stream().count());
+                    assertEquals(11, reader.query("chr2", 4990, 5000).stream().count());
+                    assertEquals(1, reader.query("chr1", 2000, 2000).stream().count());
+                    assertEquals(1, reader.query("chr1", 5000, 5000).stream().count());
+                    assertEquals(1, reader.query("chr2", 1, 1).stream().count());
+                }
+
+                assertEquals(expected, concatenator.getStats().getTotal());
+                assertEquals(expected / 2, concatenator.getStats().getPassing());
+                assertEquals(Long.valueOf(expected), concatenator.getStats().getCalledGenotypes().get("Sample1"));
+                assertFalse(VcfStats.getStatsFile(output).exists());
+
+                //the same instance must be reusable, with the state of the first call reset
+                File output2 = new File(dir, "combined2.vcf.gz");
+                concatenator.concatenate(header, inputs, dict, output2);
+                try (VCFFileReader reader = new VCFFileReader(output2, true))
+                {
+                    assertEquals(expected, reader.iterator().stream().count());
+                    assertEquals(1, reader.query("chr2", 1, 1).stream().count());
+                }
+                assertEquals(expected, concatenator.getStats().getTotal());
+            }
+            finally
+            {
+                FileUtils.deleteDirectory(dir);
+            }
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package org.labkey.sequenceanalysis.util;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.util.IOUtil;
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.api.pipeline.PipelineJobException;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A binary copy of the total depth column from a GATK DepthOfCoverage per-locus table, which has one line per genome position.
+ * The depth of each position is stored as an int, in the order of the sequence dictionary, so a lookup is a read from a
+ * memory-mapped buffer rather than a scan of the text file.  The text file is read once, when the index is created, and each
+ * line is validated against the expected contig and position at that time.
+ */
+public class DepthOfCoverageIndex implements Closeable
+{
+    private static final int MAGIC = 0x44504958;
+    private static final int HEADER_LENGTH = 4 + 8 + 8 + 8;
+
+    private final File _indexFile;
+    private final FileChannel _channel;
+    private final Map<String, Long> _contigOffsets = new HashMap<>();
+    private final Map<String, Integer> _contigLengths = new HashMap<>();
+    private final Map<String, IntBuffer> _buffers = new HashMap<>();
+
+    private DepthOfCoverageIndex(File indexFile, SAMSequenceDictionary dict) throws IOException
+    {
+        _indexFile = indexFile;
+
+        long offset = 0;
+        for (SAMSequenceRecord rec : dict.getSequences())
+        {
+            _contigOffsets.put(rec.getSequenceName(), offset);
+            _contigLengths.put(rec.getSequenceName(), rec.getSequenceLength());
+            offset += rec.getSequenceLength();
+        }
+
+        _channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ);
+    }
+
+    /**
+     * Opens the index for this depth file, creating it first if it does not exist or does not match the current depth file
+     */
+    public static DepthOfCoverageIndex open(File depthFile, File indexFile, SAMSequenceDictionary dict, Logger log) throws PipelineJobException
+    {
+        try
+        {
+            if (!isCurrent(depthFile, indexFile, dict))
+            {
+                log.debug("creating depth index for: " + depthFile.getName());
+                createIndex(depthFile, indexFile, dict);
+            }
+
+            return new DepthOfCoverageIndex(indexFile, dict);
+        }
+        catch (IOException | NumberFormatException e)
+        {
+            throw new PipelineJobException(e);
+        }
+    }
+
+    private static boolean isCurrent(File depthFile, File indexFile, SAMSequenceDictionary dict) throws IOException
+    {
+        if (!indexFile.exists() || indexFile.length() != HEADER_LENGTH + 4L * dict.getReferenceLength())
+        {
+            return false;
+        }
+
+        try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ))
+        {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            channel.read(header, 0);
+            header.flip();
+
+            return header.getInt() == MAGIC && header.getLong() == depthFile.length() && header.getLong() == depthFile.lastModified() && header.getLong() == dict.getReferenceLength();
+        }
+    }
+
+    private static void createIndex(File depthFile, File indexFile, SAMSequenceDictionary dict) throws IOException, PipelineJobException
+    {
+        File tmp = new File(indexFile.getPath() + ".tmp");
+        try (BufferedReader reader = IOUtil.openFileForBufferedReading(depthFile); DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp))))
+        {
+            out.writeInt(MAGIC);
+            out.writeLong(depthFile.length());
+            out.writeLong(depthFile.lastModified());
+            out.writeLong(dict.getReferenceLength());
+
+            //the first line is the header
+            long lineNo = 1;
+            reader.readLine();
+            for (SAMSequenceRecord rec : dict.getSequences())
+            {
+                String expectedPrefix = rec.getSequenceName() + ":";
+                for (int position1 = 1; position1 <= rec.getSequenceLength(); position1++)
+                {
+                    lineNo++;
+                    String line = reader.readLine();
+                    if (line == null)
+                    {
+                        throw new PipelineJobException("Depth file ended at line " + lineNo + ", expected " + expectedPrefix + position1 + ": " + depthFile.getPath());
+                    }
+
+                    int idx = line.indexOf('\t');
+                    if (idx <= expectedPrefix.length() || !line.startsWith(expectedPrefix) || Integer.parseInt(line, expectedPrefix.length(), idx, 10) != position1)
+                    {
+                        throw new PipelineJobException("Incorrect line at " + lineNo + ", expected " + expectedPrefix + position1 + ", but was: " + (idx == -1 ? line : line.substring(0, idx)));
+                    }
+
+                    int end = line.indexOf('\t', idx + 1);
+                    out.writeInt(Integer.parseInt(line, idx + 1, end == -1 ? line.length() : end, 10));
+                }
+            }
+        }
+
+        Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * @return The total depth at this 1-based position
+     */
+    public int getDepth(String contig, int position1) throws PipelineJobException
+    {
+        Integer length = _contigLengths.get(contig);
+        if (length == null || position1 < 1 || position1 > length)
+        {
+            throw new PipelineJobException("Position not found in depth index: " + contig + ":" + position1 + ", " + _indexFile.getName());
+        }
+
+        return getBuffer(contig, length).get(position1 - 1);
+    }
+
+    /**
+     * Each contig is mapped separately, since a single buffer is limited to 2GB
+     */
+    private IntBuffer getBuffer(String contig, int length) throws PipelineJobException
+    {
+        IntBuffer buffer = _buffers.get(contig);
+        if (buffer == null)
+        {
+            try
+            {
+                buffer = _channel.map(FileChannel.MapMode.READ_ONLY, HEADER_LENGTH + 4L * _contigOffsets.get(contig), 4L * length).asIntBuffer();
+            }
+            catch (IOException e)
+            {
+                throw new PipelineJobException(e);
+            }
+
+            _buffers.put(contig, buffer);
+        }
+
+        return buffer;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        _buffers.clear();
+        _channel.close();
+    }
+
+    public static class TestCase extends Assert
+    {
+        private static final Logger _log = LogManager.getLogger(DepthOfCoverageIndex.TestCase.class);
+
+        @Test
+        public void testIndex() throws Exception
+        {
+            File dir = Files.createTempDirectory("DepthOfCoverageIndex").toFile();
+            try
+            {
+                SAMSequenceDictionary dict = new SAMSequenceDictionary(Arrays.asList(new SAMSequenceRecord("chr1", 100), new SAMSequenceRecord("chr:2", 50)));
+                File depthFile = new File(dir, "test.lofreq.coverage");
+                try (PrintWriter writer = new PrintWriter(depthFile))
+                {
+                    writer.println("Locus\tTotal_Depth\tAverage_Depth_sample\tDepth_for_Sample1");
+                    for (SAMSequenceRecord rec : dict.getSequences())
+                    {
+                        for (int i = 1; i <= rec.getSequenceLength(); i++)
+                        {
+                            writer.println(rec.getSequenceName() + ":" + i + "\t" + (rec.getSequenceIndex() * 1000 + i) + "\t1.00\t" + i);
+                        }
+                    }
+                }
+
+                File indexFile = new File(dir, "test.depth.idx");
+                try (DepthOfCoverageIndex index = DepthOfCoverageIndex.open(depthFile, indexFile, dict, _log))
+                {
+                    assertEquals(1, index.getDepth("chr1", 1));
+                    assertEquals(100, index.getDepth("chr1", 100));
+                    assertEquals(1001, index.getDepth("chr:2", 1));
+                    assertEquals(1050, index.getDepth("chr:2", 50));
+                }
+
+                assertTrue(isCurrent(depthFile, indexFile, dict));
+
+                //a truncated file should fail validation
+                Files.writeString(depthFile.toPath(), "Locus\tTotal_Depth\nchr1:1\t5\nchr1:3\t5\n");
+                try
+                {
+                    DepthOfCoverageIndex.open(depthFile, indexFile, dict, _log).close();
+                    fail("Expected an exception");
+                }
+                catch (PipelineJobException e)
+                {
+                    assertTrue(e.getMessage().startsWith("Incorrect line at 3"));
+                }
+            }
+            finally
+            {
+                FileUtils.deleteDirectory(dir);
+            }
+        }
+    }
+}
@@ -1,26 +1,12 @@
 package org.labkey.sequenceanalysis.util;
 
-import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang3.SystemUtils;
 import org.apache.logging.log4j.Logger;
-import org.apache.logging.log4j.LogManager;
 import org.labkey.api.pipeline.PipelineJobException;
-import org.labkey.api.reader.Readers;
-import org.labkey.api.sequenceanalysis.run.SimpleScriptWrapper;
 import org.labkey.api.util.FileType;
-import org.labkey.api.writer.PrintWriters;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 /**
  * User: bimber
@@ -39,64 +25,28 @@ public FastqMerger(Logger logger)
     public void mergeFiles(File output, List<File> inputs) throws PipelineJobException
     {
         _logger.info("merging FASTQ files: " + inputs.size());
-
-        FileType gz = new FileType(".gz");
-        if (gz.isType(output) && !SystemUtils.IS_OS_WINDOWS)
+        if (new FileType(".gz").isType(output))
         {
-            mergeUsingCat(output, inputs);
+            _logger.info("gzipped inputs will be concatenated without decompression");
         }
-        else
+
+        for (File f : inputs)
         {
-            try (PrintWriter writer = PrintWriters.getPrintWriter(gz.isType(output) ? new GZIPOutputStream(new FileOutputStream(output)) : new FileOutputStream(output)))
-            {
-                for (File f : inputs)
-                {
-                    _logger.info("reading file: " + f.getPath());
-                    try (BufferedReader reader = Readers.getReader(gz.isType(f) ? new GZIPInputStream(new FileInputStream(f)) : new FileInputStream(f)))
-                    {
-                        IOUtils.copyLarge(reader, writer);
-                    }
-                }
-            }
-            catch (IOException e)
+            if (!f.exists())
             {
-                throw new PipelineJobException(e);
+                throw new PipelineJobException("File does not exist: " + f.getPath());
             }
-        }
-    }
 
-    private void mergeUsingCat(File output, List<File> inputs) throws PipelineJobException
-    {
-        List<String> bashCommands = new ArrayList<>();
-        for (File f : inputs)
-        {
-            String cat = f.getName().toLowerCase().endsWith(".gz") ? "zcat" : "cat";
-            bashCommands.add(cat + " " + f.getPath());
+            _logger.info("reading file: " + f.getPath());
         }
 
         try
         {
-            File bashTmp = new File(output.getParentFile(), "fastqMerge.sh");
-            try (PrintWriter writer = PrintWriters.getPrintWriter(bashTmp))
-            {
-                writer.write("#!/bin/bash\n");
-                writer.write("set -x\n");
-                writer.write("set -e\n");
-                writer.write("{\n");
-                bashCommands.forEach(x -> writer.write(x + '\n'));
-
-                writer.write("} | gzip -c > " + output.getPath() + "\n");
-            }
-
-            SimpleScriptWrapper wrapper = new SimpleScriptWrapper(_logger);
-            wrapper.execute(Arrays.asList("/bin/bash", bashTmp.getPath()));
-
-            bashTmp.delete();
+            FastqUtils.mergeFastqFiles(output, inputs.toArray(new File[0]));
         }
         catch (IOException e)
         {
             throw new PipelineJobException(e);
         }
-
     }
 }
@@ -22,26 +22,39 @@
 import org.apache.commons.io.Charsets;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CloseShieldOutputStream;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 import org.jetbrains.annotations.Nullable;
+import org.junit.Assert;
+import org.junit.Test;
 import org.labkey.api.pipeline.PipelineJobException;
 import org.labkey.api.util.FileType;
 import org.labkey.api.util.Pair;
 import org.labkey.api.view.NotFoundException;
-import org.labkey.api.writer.PrintWriters;
 
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.text.NumberFormat;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * User: bbimber
@@ -216,24 +229,109 @@ public static Map<String, Object> getQualityMetrics(File f, @Nullable Logger log
         }
     }
 
+    /**
+     * Merges FASTQ files.  If the output is gzipped, gzipped inputs are copied without decompression, since a file with multiple gzip members is valid
+     * and is read as the concatenation of the members.  Otherwise, gzipped inputs are decompressed.
+     */
     public static void mergeFastqFiles(File output, File... inputs) throws IOException
     {
-        if (!output.exists())
+        List<File> files = Arrays.asList(inputs);
+        for (File f : files)
         {
-            output.createNewFile();
+            if (!f.exists())
+            {
+                throw new NotFoundException("File " + f.getPath() + " does not exist");
+            }
         }
 
-        FileType gz = new FileType(".gz");
+        try (FileChannel out = FileChannel.open(output.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            if (new FileType(".gz").isType(output))
+            {
+                concatenateAsGzip(files, out);
+            }
+            else
+            {
+                OutputStream os = Channels.newOutputStream(out);
+                for (File f : files)
+                {
+                    if (isGzip(f))
+                    {
+                        try (InputStream in = new GZIPInputStream(new FileInputStream(f)))
+                        {
+                            IOUtils.copyLarge(in, os);
+                        }
+                    }
+                    else
+                    {
+                        transferFully(f, out);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the inputs to a single gzip stream.  Gzipped inputs are copied as-is, and others are compressed as a new gzip member.
+     */
+    public static void concatenateAsGzip(Collection<File> inputs, WritableByteChannel out) throws IOException
+    {
         for (File f : inputs)
         {
-            if (!f.exists())
+            if (isGzip(f))
             {
-                throw new NotFoundException("File " + f.getPath() + " does not exist");
+                transferFully(f, out);
+            }
+            else
+            {
+                //NOTE: the output is shielded, since closing the gzip stream would otherwise close it
+                try (GZIPOutputStream gz = new GZIPOutputStream(new CloseShieldOutputStream(Channels.newOutputStream(out)), 64 * 1024))
+                {
+                    Files.copy(f.toPath(), gz);
+                }
             }
+        }
+    }
 
-            try (InputStream in = gz.isType(f) ? new GZIPInputStream(new FileInputStream(f)) : new FileInputStream(f); PrintWriter writer = PrintWriters.getPrintWriter(output))
+    /**
+     * @return The size of the output of concatenateAsGzip(), or -1 if this cannot be known without compressing, because not all inputs are gzipped
+     */
+    public static long getGzipConcatenationLength(Collection<File> inputs) throws IOException
+    {
+        long total = 0;
+        for (File f : inputs)
+        {
+            if (!isGzip(f))
             {
-                IOUtils.copy(in, writer);
+                return -1;
+            }
+
+            total += f.length();
+        }
+
+        return total;
+    }
+
+    /**
+     * @return True if this file begins with the gzip magic number, which also includes BGZF
+     */
+    public static boolean isGzip(File f) throws IOException
+    {
+        try (InputStream is = new FileInputStream(f))
+        {
+            return is.read() == 0x1f && is.read() == 0x8b;
+        }
+    }
+
+    private static void transferFully(File input, WritableByteChannel out) throws IOException
+    {
+        try (FileChannel in = FileChannel.open(input.toPath(), StandardOpenOption.READ))
+        {
+            long size = in.size();
+            long position = 0;
+            while (position < size)
+            {
+                position += in.transferTo(position, size - position, out);
             }
         }
     }
@@ -253,4 +351,47 @@ else if (FastqQualityFormat.Standard == encoding)
             return null;
         }
     }
-}
\ No newline at end of file
+
+    public static class TestCase extends Assert
+    {
+        @Test
+        public void testMerge() throws Exception
+        {
+            File dir = Files.createTempDirectory("FastqUtils").toFile();
+            try
+            {
+                String fq1 = "@read1\nACGT\n+\nIIII\n";
+                String fq2 = "@read2\nTTGA\n+\nIIII\n";
+
+                File plain = new File(dir, "plain.fastq");
+                Files.writeString(plain.toPath(), fq1, StandardCharsets.US_ASCII);
+
+                File gzipped = new File(dir, "gzipped.fastq.gz");
+                try (OutputStream os = new GZIPOutputStream(new FileOutputStream(gzipped)))
+                {
+                    os.write(fq2.getBytes(StandardCharsets.US_ASCII));
+                }
+
+                assertFalse(isGzip(plain));
+                assertTrue(isGzip(gzipped));
+                assertEquals(-1, getGzipConcatenationLength(Arrays.asList(plain, gzipped)));
+                assertEquals(2 * gzipped.length(), getGzipConcatenationLength(Arrays.asList(gzipped, gzipped)));
+
+                File mergedGz = new File(dir, "merged.fastq.gz");
+                mergeFastqFiles(mergedGz, gzipped, plain, gzipped);
+                try (InputStream is = new GZIPInputStream(new FileInputStream(mergedGz)))
+                {
+                    assertEquals(fq2 + fq1 + fq2, new String(is.readAllBytes(), StandardCharsets.US_ASCII));
+                }
+
+                File merged = new File(dir, "merged.fastq");
+                mergeFastqFiles(merged, plain, gzipped);
+                assertEquals(fq1 + fq2, Files.readString(merged.toPath(), StandardCharsets.US_ASCII));
+            }
+            finally
+            {
+                FileUtils.deleteDirectory(dir);
+            }
+        }
+    }
+}
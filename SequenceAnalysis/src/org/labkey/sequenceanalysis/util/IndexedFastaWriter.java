@@ -0,0 +1,246 @@
+package org.labkey.sequenceanalysis.util;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceDictionaryCodec;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.reference.IndexedFastaSequenceFile;
+import htsjdk.samtools.util.SequenceUtil;
+import htsjdk.samtools.util.StringUtil;
+import htsjdk.variant.utils.SAMSequenceDictionaryExtractor;
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.api.util.FileUtil;
+import org.labkey.api.writer.PrintWriters;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes a FASTA file with fixed-width lines, and creates the .fai index and the .dict sequence dictionary as the bases are written,
+ * rather than with separate passes over the finished file by samtools faidx and Picard CreateSequenceDictionary.
+ * As with those tools, the name of each sequence is the header up to the first whitespace, and the MD5 in the dictionary is calculated from the uppercase bases.
+ */
+public class IndexedFastaWriter implements Closeable
+{
+    private final File _fasta;
+    private final int _basesPerLine;
+    private final CountingOutputStream _out;
+    private final MessageDigest _md5;
+    private final List<String> _indexLines = new ArrayList<>();
+    private final SAMSequenceDictionary _dict = new SAMSequenceDictionary();
+    private final byte[] _upperCase = new byte[64 * 1024];
+
+    private String _currentName = null;
+    private long _currentOffset = 0;
+    private long _currentLength = 0;
+    private int _lineRemaining;
+
+    public IndexedFastaWriter(File fasta, int basesPerLine) throws IOException
+    {
+        _fasta = fasta;
+        _basesPerLine = basesPerLine;
+        _out = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(fasta), 64 * 1024));
+
+        try
+        {
+            _md5 = MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IOException(e);
+        }
+    }
+
+    public static File getIndexFile(File fasta)
+    {
+        return new File(fasta.getPath() + ".fai");
+    }
+
+    public static File getDictionaryFile(File fasta)
+    {
+        return new File(fasta.getParentFile(), FileUtil.getBaseName(fasta) + ".dict");
+    }
+
+    public void startSequence(String header) throws IOException
+    {
+        finishSequence();
+
+        _out.write((">" + header + "\n").getBytes(StandardCharsets.UTF_8));
+        _currentName = header.split("\\s", 2)[0];
+        _currentOffset = _out._count;
+        _currentLength = 0;
+        _lineRemaining = _basesPerLine;
+        _md5.reset();
+    }
+
+    public void appendBases(byte[] bases, int offset, int length) throws IOException
+    {
+        if (_currentName == null)
+        {
+            throw new IllegalStateException("startSequence() must be called before bases are added");
+        }
+
+        _currentLength += length;
+        for (int i = 0; i < length; i += _upperCase.length)
+        {
+            int toCopy = Math.min(_upperCase.length, length - i);
+            for (int j = 0; j < toCopy; j++)
+            {
+                _upperCase[j] = StringUtil.toUpperCase(bases[offset + i + j]);
+            }
+            _md5.update(_upperCase, 0, toCopy);
+        }
+
+        int end = offset + length;
+        while (offset < end)
+        {
+            int toWrite = Math.min(end - offset, _lineRemaining);
+            _out.write(bases, offset, toWrite);
+            offset += toWrite;
+            _lineRemaining -= toWrite;
+            if (_lineRemaining == 0)
+            {
+                _out.write('\n');
+                _lineRemaining = _basesPerLine;
+            }
+        }
+    }
+
+    public void addSequence(String header, byte[] bases) throws IOException
+    {
+        startSequence(header);
+        appendBases(bases, 0, bases.length);
+    }
+
+    private void finishSequence() throws IOException
+    {
+        if (_currentName == null)
+        {
+            return;
+        }
+
+        if (_lineRemaining != _basesPerLine)
+        {
+            _out.write('\n');
+        }
+
+        _indexLines.add(_currentName + "\t" + _currentLength + "\t" + _currentOffset + "\t" + _basesPerLine + "\t" + (_basesPerLine + 1));
+
+        SAMSequenceRecord rec = new SAMSequenceRecord(_currentName, (int)_currentLength);
+        rec.setAttribute(SAMSequenceRecord.MD5_TAG, String.format("%032x", new BigInteger(1, _md5.digest())));
+        rec.setAttribute(SAMSequenceRecord.URI_TAG, "file:" + _fasta.getAbsolutePath());
+        _dict.addSequence(rec);
+
+        _currentName = null;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        finishSequence();
+        _out.close();
+
+        try (PrintWriter writer = PrintWriters.getPrintWriter(getIndexFile(_fasta)))
+        {
+            for (String line : _indexLines)
+            {
+                writer.write(line + "\n");
+            }
+        }
+
+        try (PrintWriter writer = PrintWriters.getPrintWriter(getDictionaryFile(_fasta)))
+        {
+            new SAMSequenceDictionaryCodec(writer).encode(_dict);
+        }
+    }
+
+    private static class CountingOutputStream extends OutputStream
+    {
+        private final OutputStream _out;
+        private long _count = 0;
+
+        public CountingOutputStream(OutputStream out)
+        {
+            _out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            _out.write(b);
+            _count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            _out.write(b, off, len);
+            _count += len;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            _out.close();
+        }
+    }
+
+    public static class TestCase extends Assert
+    {
+        @Test
+        public void testWriter() throws Exception
+        {
+            File dir = Files.createTempDirectory("IndexedFastaWriter").toFile();
+            try
+            {
+                File fasta = new File(dir, "library.fasta");
+                String[] seqs = new String[]{"ACGTACGTACgtnnACGTAC", "ACGTA", "ACGTACGTAC", ""};
+                try (IndexedFastaWriter writer = new IndexedFastaWriter(fasta, 10))
+                {
+                    writer.addSequence("seq1 (1-20)", seqs[0].getBytes(StandardCharsets.US_ASCII));
+
+                    //bases can be added in pieces
+                    writer.startSequence("seq2");
+                    writer.appendBases("xACGx".getBytes(StandardCharsets.US_ASCII), 1, 3);
+                    writer.appendBases("TA".getBytes(StandardCharsets.US_ASCII), 0, 2);
+
+                    writer.addSequence("seq3", seqs[2].getBytes(StandardCharsets.US_ASCII));
+                    writer.addSequence("seq4", seqs[3].getBytes(StandardCharsets.US_ASCII));
+                }
+
+                assertEquals(">seq1 (1-20)\nACGTACGTAC\ngtnnACGTAC\n>seq2\nACGTA\n>seq3\nACGTACGTAC\n>seq4\n", Files.readString(fasta.toPath()));
+
+                //the index should allow random access, using htsjdk
+                try (IndexedFastaSequenceFile ref = new IndexedFastaSequenceFile(fasta.toPath()))
+                {
+                    assertEquals("gtnnA", ref.getSubsequenceAt("seq1", 11, 15).getBaseString());
+                    assertEquals("CGTA", ref.getSubsequenceAt("seq2", 2, 5).getBaseString());
+                    assertEquals(seqs[2], ref.getSequence("seq3").getBaseString());
+                }
+
+                SAMSequenceDictionary dict = SAMSequenceDictionaryExtractor.extractDictionary(getDictionaryFile(fasta).toPath());
+                assertEquals(4, dict.size());
+                assertEquals(20, dict.getSequence("seq1").getSequenceLength());
+                assertEquals(0, dict.getSequence("seq4").getSequenceLength());
+                assertEquals(SequenceUtil.calculateMD5String(seqs[0].toUpperCase().getBytes(StandardCharsets.US_ASCII)), dict.getSequence("seq1").getMd5());
+            }
+            finally
+            {
+                FileUtils.deleteDirectory(dir);
+            }
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package org.labkey.sequenceanalysis.util;
+
+import org.jetbrains.annotations.Nullable;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * A bounded, staged pipeline that reads items on one thread, transforms them in batches on a pool of workers,
+ * and then passes the results to a consumer on the calling thread in the same order as the input.
+ * This is intended for work like FASTQ demultiplexing, where matching each read is CPU intensive, but the outputs
+ * must be written in order and the consumer does not need to be thread-safe.
+ *
+ * The number of batches in flight is bounded, so memory use does not depend on the size of the input.  The workers can be supplied by the caller,
+ * so one pool can be shared with other work, such as compressing the output, rather than each using its own threads.
+ */
+public class OrderedBatchProcessor<I, O>
+{
+    public interface Transformer<I, O>
+    {
+        O transform(I item) throws Exception;
+    }
+
+    public interface Consumer<I, O>
+    {
+        void accept(I item, O result) throws IOException;
+    }
+
+    private final int _threads;
+    private final int _batchSize;
+    private final int _maxPendingBatches;
+    private final ExecutorService _sharedWorkers;
+
+    public OrderedBatchProcessor(int threads, int batchSize)
+    {
+        this(null, threads, batchSize);
+    }
+
+    /**
+     * @param sharedWorkers If provided, batches are transformed on this pool, which is not shut down by the processor.  Otherwise a pool of this many threads is created for each call to process().
+     * @param threads The number of threads transforming batches, which also determines the number of batches in flight
+     */
+    public OrderedBatchProcessor(@Nullable ExecutorService sharedWorkers, int threads, int batchSize)
+    {
+        _sharedWorkers = sharedWorkers;
+        _threads = Math.max(1, threads);
+        _batchSize = Math.max(1, batchSize);
+        _maxPendingBatches = 2 * _threads;
+    }
+
+    /**
+     * @return The number of items processed
+     */
+    public long process(Iterator<I> input, Transformer<I, O> transformer, Consumer<I, O> consumer) throws IOException
+    {
+        if (_threads == 1)
+        {
+            long count = 0;
+            while (input.hasNext())
+            {
+                I item = input.next();
+                consumer.accept(item, transformItem(transformer, item));
+                count++;
+            }
+
+            return count;
+        }
+
+        ExecutorService workers = _sharedWorkers == null ? Executors.newFixedThreadPool(_threads) : _sharedWorkers;
+        BlockingQueue<Future<Batch<I, O>>> queue = new ArrayBlockingQueue<>(_maxPendingBatches);
+        Thread reader = new Thread(() -> readBatches(input, transformer, workers, queue), "OrderedBatchProcessor-reader");
+        reader.setDaemon(true);
+        reader.start();
+
+        long count = 0;
+        try
+        {
+            while (true)
+            {
+                Batch<I, O> batch = queue.take().get();
+                if (batch.isEnd())
+                {
+                    break;
+                }
+
+                for (int i = 0; i < batch._items.size(); i++)
+                {
+                    consumer.accept(batch._items.get(i), batch._results.get(i));
+                }
+                count += batch._items.size();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+            {
+                throw (IOException)e.getCause();
+            }
+            else if (e.getCause() instanceof RuntimeException)
+            {
+                throw (RuntimeException)e.getCause();
+            }
+
+            throw new IOException(e.getCause());
+        }
+        finally
+        {
+            reader.interrupt();
+            if (_sharedWorkers == null)
+            {
+                workers.shutdownNow();
+            }
+        }
+
+        return count;
+    }
+
+    private void readBatches(Iterator<I> input, Transformer<I, O> transformer, ExecutorService workers, BlockingQueue<Future<Batch<I, O>>> queue)
+    {
+        try
+        {
+            try
+            {
+                while (input.hasNext())
+                {
+                    List<I> items = new ArrayList<>(_batchSize);
+                    while (items.size() < _batchSize && input.hasNext())
+                    {
+                        items.add(input.next());
+                    }
+
+                    queue.put(workers.submit(() -> {
+                        List<O> results = new ArrayList<>(items.size());
+                        for (I item : items)
+                        {
+                            results.add(transformItem(transformer, item));
+                        }
+
+                        return new Batch<>(items, results);
+                    }));
+                }
+
+                queue.put(CompletableFuture.completedFuture(new Batch<>(null, null)));
+            }
+            catch (RuntimeException | Error e)
+            {
+                //pass errors reading the input to the consumer thread
+                queue.put(CompletableFuture.failedFuture(e));
+            }
+        }
+        catch (InterruptedException e)
+        {
+            //the consumer has stopped
+        }
+    }
+
+    private O transformItem(Transformer<I, O> transformer, I item) throws IOException
+    {
+        try
+        {
+            return transformer.transform(item);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new IOException(e);
+        }
+    }
+
+    private static class Batch<I, O>
+    {
+        private final List<I> _items;
+        private final List<O> _results;
+
+        public Batch(List<I> items, List<O> results)
+        {
+            _items = items;
+            _results = results;
+        }
+
+        public boolean isEnd()
+        {
+            return _items == null;
+        }
+    }
+
+    public static class TestCase extends Assert
+    {
+        @Test
+        public void testOrder() throws Exception
+        {
+            List<Integer> input = IntStream.range(0, 10000).boxed().collect(Collectors.toList());
+            for (int threads : new int[]{1, 4})
+            {
+                List<String> output = new ArrayList<>();
+                long count = new OrderedBatchProcessor<Integer, String>(threads, 7).process(input.iterator(), i -> "item" + i, (i, s) -> {
+                    assertEquals("item" + i, s);
+                    output.add(s);
+                });
+
+                assertEquals(input.size(), count);
+                assertEquals(input.stream().map(i -> "item" + i).collect(Collectors.toList()), output);
+            }
+        }
+
+        @Test
+        public void testSharedWorkers() throws Exception
+        {
+            List<Integer> input = IntStream.range(0, 1000).boxed().collect(Collectors.toList());
+            ExecutorService executor = Executors.newFixedThreadPool(2);
+            try
+            {
+                //the shared pool must remain usable by the caller after each call
+                for (int i = 0; i < 2; i++)
+                {
+                    List<Integer> output = new ArrayList<>();
+                    new OrderedBatchProcessor<Integer, Integer>(executor, 2, 10).process(input.iterator(), j -> j * 2, (j, o) -> output.add(o));
+
+                    assertEquals(input.stream().map(j -> j * 2).collect(Collectors.toList()), output);
+                    assertFalse(executor.isShutdown());
+                }
+            }
+            finally
+            {
+                executor.shutdownNow();
+            }
+        }
+
+        @Test
+        public void testError() throws Exception
+        {
+            List<Integer> input = IntStream.range(0, 1000).boxed().collect(Collectors.toList());
+            try
+            {
+                new OrderedBatchProcessor<Integer, Integer>(4, 10).process(input.iterator(), i -> {
+                    if (i == 500)
+                        throw new IOException("Expected error");
+
+                    return i;
+                }, (i, o) -> {});
+
+                fail("Expected an exception");
+            }
+            catch (IOException e)
+            {
+                assertEquals("Expected error", e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package org.labkey.sequenceanalysis.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * An OutputStream that writes BGZF (blocked gzip), compressing blocks in parallel on a shared ExecutorService.
+ * Because each BGZF block is a complete gzip member, the output can be read by GZIPInputStream, htsjdk or any gzip reader.
+ * Blocks are always written in the order they were submitted, and the number of blocks held in memory is bounded.
+ *
+ * A single executor is intended to be shared across all of the outputs of a job, so that compression of many files
+ * (such as one per sample) does not require a thread per file.
+ */
+public class ParallelBgzfOutputStream extends OutputStream
+{
+    //these follow the BGZF spec, and the values used by htsjdk's BlockCompressedOutputStream
+    static final int UNCOMPRESSED_BLOCK_SIZE = 64 * 1024 - 26 - 256;
+    static final int BLOCK_HEADER_LENGTH = 18;
+    static final int BLOCK_FOOTER_LENGTH = 8;
+    static final int MAX_COMPRESSED_BLOCK_SIZE = 64 * 1024;
+    static final byte[] EMPTY_BLOCK = new byte[]{
+            31, -117, 8, 4, 0, 0, 0, 0, 0, -1, 6, 0, 66, 67, 2, 0, 27, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0
+    };
+
+    private final OutputStream _out;
+    private final ExecutorService _executor;
+    private final int _maxPendingBlocks;
+    private final int _compressionLevel;
+    private final Deque<Future<byte[]>> _pending = new ArrayDeque<>();
+
+    private byte[] _buffer = new byte[UNCOMPRESSED_BLOCK_SIZE];
+    private int _bufferSize = 0;
+    private boolean _closed = false;
+
+    public ParallelBgzfOutputStream(OutputStream out, ExecutorService executor, int maxPendingBlocks)
+    {
+        this(out, executor, maxPendingBlocks, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public ParallelBgzfOutputStream(OutputStream out, ExecutorService executor, int maxPendingBlocks, int compressionLevel)
+    {
+        _out = out;
+        _executor = executor;
+        _maxPendingBlocks = Math.max(1, maxPendingBlocks);
+        _compressionLevel = compressionLevel;
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        _buffer[_bufferSize++] = (byte)b;
+        if (_bufferSize == _buffer.length)
+        {
+            submitBlock();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        while (len > 0)
+        {
+            int toCopy = Math.min(len, _buffer.length - _bufferSize);
+            System.arraycopy(b, off, _buffer, _bufferSize, toCopy);
+            _bufferSize += toCopy;
+            off += toCopy;
+            len -= toCopy;
+
+            if (_bufferSize == _buffer.length)
+            {
+                submitBlock();
+            }
+        }
+    }
+
+    /**
+     * NOTE: this only writes blocks that have finished compression, it does not end the current block, since
+     * that would produce many small blocks when wrapped by a PrintStream or similar.
+     */
+    @Override
+    public void flush() throws IOException
+    {
+        writeCompletedBlocks(false);
+        _out.flush();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (_closed)
+        {
+            return;
+        }
+
+        _closed = true;
+        try
+        {
+            if (_bufferSize > 0)
+            {
+                submitBlock();
+            }
+
+            writeCompletedBlocks(true);
+            _out.write(EMPTY_BLOCK);
+        }
+        finally
+        {
+            _out.close();
+        }
+    }
+
+    private void submitBlock() throws IOException
+    {
+        final byte[] block = _buffer;
+        final int length = _bufferSize;
+        final int level = _compressionLevel;
+        _pending.add(_executor.submit(() -> compressBlock(block, 0, length, level)));
+
+        _buffer = new byte[UNCOMPRESSED_BLOCK_SIZE];
+        _bufferSize = 0;
+
+        writeCompletedBlocks(false);
+        while (_pending.size() > _maxPendingBlocks)
+        {
+            writeBlock(_pending.poll());
+        }
+    }
+
+    private void writeCompletedBlocks(boolean waitForAll) throws IOException
+    {
+        while (!_pending.isEmpty() && (waitForAll || _pending.peek().isDone()))
+        {
+            writeBlock(_pending.poll());
+        }
+    }
+
+    private void writeBlock(Future<byte[]> future) throws IOException
+    {
+        try
+        {
+            _out.write(future.get());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        catch (ExecutionException e)
+        {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * @return A complete BGZF block, including the header and footer
+     */
+    protected static byte[] compressBlock(byte[] input, int offset, int length, int compressionLevel)
+    {
+        byte[] compressed = new byte[MAX_COMPRESSED_BLOCK_SIZE];
+        Deflater deflater = new Deflater(compressionLevel, true);
+        try
+        {
+            deflater.setInput(input, offset, length);
+            deflater.finish();
+            int compressedSize = deflater.deflate(compressed, BLOCK_HEADER_LENGTH, MAX_COMPRESSED_BLOCK_SIZE - BLOCK_HEADER_LENGTH - BLOCK_FOOTER_LENGTH);
+
+            //if the data does not compress, store it instead
+            if (!deflater.finished())
+            {
+                deflater.reset();
+                deflater.setLevel(Deflater.NO_COMPRESSION);
+                deflater.setInput(input, offset, length);
+                deflater.finish();
+                compressedSize = deflater.deflate(compressed, BLOCK_HEADER_LENGTH, MAX_COMPRESSED_BLOCK_SIZE - BLOCK_HEADER_LENGTH - BLOCK_FOOTER_LENGTH);
+                if (!deflater.finished())
+                {
+                    throw new IllegalStateException("Unable to compress BGZF block");
+                }
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(input, offset, length);
+
+            int totalSize = BLOCK_HEADER_LENGTH + compressedSize + BLOCK_FOOTER_LENGTH;
+            writeHeader(compressed, totalSize);
+
+            int idx = BLOCK_HEADER_LENGTH + compressedSize;
+            writeInt(compressed, idx, (int)crc.getValue());
+            writeInt(compressed, idx + 4, length);
+
+            return Arrays.copyOf(compressed, totalSize);
+        }
+        finally
+        {
+            deflater.end();
+        }
+    }
+
+    private static void writeHeader(byte[] block, int totalSize)
+    {
+        block[0] = 31;          //gzip ID1
+        block[1] = (byte)139;   //gzip ID2
+        block[2] = 8;           //deflate
+        block[3] = 4;           //FEXTRA
+        block[4] = 0;           //MTIME
+        block[5] = 0;
+        block[6] = 0;
+        block[7] = 0;
+        block[8] = 0;           //XFL
+        block[9] = (byte)255;   //OS unknown
+        block[10] = 6;          //XLEN
+        block[11] = 0;
+        block[12] = 66;         //BC subfield
+        block[13] = 67;
+        block[14] = 2;          //subfield length
+        block[15] = 0;
+        block[16] = (byte)((totalSize - 1) & 0xFF);
+        block[17] = (byte)(((totalSize - 1) >> 8) & 0xFF);
+    }
+
+    private static void writeInt(byte[] block, int idx, int val)
+    {
+        block[idx] = (byte)(val & 0xFF);
+        block[idx + 1] = (byte)((val >> 8) & 0xFF);
+        block[idx + 2] = (byte)((val >> 16) & 0xFF);
+        block[idx + 3] = (byte)((val >> 24) & 0xFF);
+    }
+
+    public static class TestCase extends Assert
+    {
+        @Test
+        public void testRoundTrip() throws Exception
+        {
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            try
+            {
+                //random bases and random bytes, so that both compressed and stored blocks are used
+                Random r = new Random(1);
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < 50000; i++)
+                {
+                    sb.append("@read").append(i).append("\n");
+                    for (int j = 0; j < 20; j++)
+                    {
+                        sb.append("ACGT".charAt(r.nextInt(4)));
+                    }
+                    sb.append("\n+\nIIIIIIIIIIIIIIIIIIII\n");
+                }
+
+                byte[] text = sb.toString().getBytes(StandardCharsets.UTF_8);
+                byte[] noise = new byte[500000];
+                r.nextBytes(noise);
+
+                for (byte[] expected : new byte[][]{text, noise, new byte[0]})
+                {
+                    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                    try (ParallelBgzfOutputStream out = new ParallelBgzfOutputStream(bos, executor, 2))
+                    {
+                        //write in uneven chunks, to span block boundaries
+                        int idx = 0;
+                        while (idx < expected.length)
+                        {
+                            int len = Math.min(expected.length - idx, 1 + r.nextInt(10000));
+                            out.write(expected, idx, len);
+                            idx += len;
+                        }
+                    }
+
+                    ByteArrayOutputStream actual = new ByteArrayOutputStream();
+                    try (InputStream is = new GZIPInputStream(new ByteArrayInputStream(bos.toByteArray())))
+                    {
+                        is.transferTo(actual);
+                    }
+
+                    assertArrayEquals(expected, actual.toByteArray());
+                }
+            }
+            finally
+            {
+                executor.shutdownNow();
+            }
+        }
+    }
+}
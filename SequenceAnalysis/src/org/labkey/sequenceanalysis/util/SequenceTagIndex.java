@@ -0,0 +1,559 @@
+package org.labkey.sequenceanalysis.util;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.sequenceanalysis.model.BarcodeModel;
+import org.labkey.sequenceanalysis.model.SequenceTag;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * A precomputed index of every sequence within the allowed edit distance of a set of SequenceTags, used by AbstractSequenceMatcher
+ * to find barcode matches by hash lookup rather than calculating the Levenshtein distance against every barcode.
+ * For each tag, the set of same-length variants is generated by breadth-first search over single-base edits, so the distance
+ * stored for a variant is exactly the Levenshtein distance used by the original scan.  One table is built for the full tag and one
+ * for each number of deletions (i.e. the tag with bases trimmed from the start), and variants that fall within the edit distance
+ * of more than one tag are retained for all of them, so ambiguous reads are still reported as ambiguous.
+ *
+ * Sequences are oriented as in processTag5()/processTag3(): for the 3' end, both the tag and the read are reversed, which is
+ * handled here by reading the sequence from the end, without creating any new strings.
+ */
+public class SequenceTagIndex
+{
+    //the number of variants grows very rapidly with edit distance, so above this the Levenshtein scan is used
+    public static final int MAX_EDIT_DISTANCE = 2;
+
+    //3 bits per base, which must fit in a positive long
+    private static final int MAX_TAG_LENGTH = 21;
+    private static final char[] ALPHABET = new char[]{'A', 'C', 'G', 'T', 'N'};
+
+    private final Collection<SequenceTag> _tags;
+    private final boolean _is5Prime;
+    private final int _editDistance;
+    private final int _deletionsAllowed;
+
+    private final List<SequenceTag> _tagList = new ArrayList<>();
+    private final List<String> _orientedSequences = new ArrayList<>();
+    private boolean _enabled = false;
+
+    //the first index is the number of deletions, the second holds one table per tag length
+    private VariantTable[][] _tables;
+    private int _maxLength = 0;
+
+    private SequenceTagIndex(Collection<SequenceTag> tags, boolean is5Prime, int editDistance, int deletionsAllowed)
+    {
+        _tags = tags;
+        _is5Prime = is5Prime;
+        _editDistance = editDistance;
+        _deletionsAllowed = deletionsAllowed;
+    }
+
+    /**
+     * Builds the index.  If these tags cannot be indexed (for example, the edit distance is above MAX_EDIT_DISTANCE), an index
+     * is still returned, but isEnabled() will be false and the caller should use the Levenshtein scan.
+     */
+    public static SequenceTagIndex create(Collection<SequenceTag> tags, boolean is5Prime, int editDistance, int deletionsAllowed, Logger log)
+    {
+        SequenceTagIndex index = new SequenceTagIndex(tags, is5Prime, editDistance, deletionsAllowed);
+        index.build(log);
+
+        return index;
+    }
+
+    private void build(Logger log)
+    {
+        if (_editDistance > MAX_EDIT_DISTANCE || _tags.isEmpty())
+        {
+            return;
+        }
+
+        for (SequenceTag tag : _tags)
+        {
+            String seq = tag.getSequence();
+            if (seq == null || seq.length() > MAX_TAG_LENGTH || seq.length() <= _deletionsAllowed)
+            {
+                return;
+            }
+
+            String oriented = _is5Prime ? seq : StringUtils.reverse(tag.getReverseComplement());
+            for (int i = 0; i < oriented.length(); i++)
+            {
+                if (encodeBase(oriented.charAt(i)) < 0)
+                {
+                    return;
+                }
+            }
+
+            _tagList.add(tag);
+            _orientedSequences.add(oriented);
+            _maxLength = Math.max(_maxLength, oriented.length());
+        }
+
+        int totalVariants = 0;
+        int ambiguousVariants = 0;
+        _tables = new VariantTable[_deletionsAllowed + 1][];
+        for (int deletions = 0; deletions <= _deletionsAllowed; deletions++)
+        {
+            //NOTE: TreeMap is used so tables are always checked in the same order
+            Map<Integer, Map<Long, List<Integer>>> variantsByLength = new TreeMap<>();
+            for (int tagIdx = 0; tagIdx < _tagList.size(); tagIdx++)
+            {
+                String toIndex = _orientedSequences.get(tagIdx).substring(deletions);
+                Map<Long, List<Integer>> variants = variantsByLength.computeIfAbsent(toIndex.length(), k -> new HashMap<>());
+                for (Map.Entry<String, Integer> e : getVariants(toIndex, _editDistance).entrySet())
+                {
+                    variants.computeIfAbsent(encode(e.getKey()), k -> new ArrayList<>()).add(packHit(tagIdx, e.getValue()));
+                }
+            }
+
+            _tables[deletions] = new VariantTable[variantsByLength.size()];
+            int i = 0;
+            for (Map.Entry<Integer, Map<Long, List<Integer>>> e : variantsByLength.entrySet())
+            {
+                _tables[deletions][i] = new VariantTable(e.getKey(), e.getValue());
+                totalVariants += e.getValue().size();
+                for (List<Integer> hits : e.getValue().values())
+                {
+                    if (hits.size() > 1)
+                        ambiguousVariants++;
+                }
+                i++;
+            }
+        }
+
+        _enabled = true;
+
+        if (log != null)
+        {
+            log.debug("indexed " + totalVariants + " variants of " + _tagList.size() + " " + (_is5Prime ? "5'" : "3'") + " barcodes");
+            if (ambiguousVariants > 0)
+            {
+                log.info("\t" + ambiguousVariants + " sequences are within the edit distance of more than one " + (_is5Prime ? "5'" : "3'") + " barcode.  Reads matching these will not be assigned to a barcode.");
+            }
+        }
+    }
+
+    /**
+     * @return Every string of the same length as the input with a Levenshtein distance of editDistance or less, mapped to that distance
+     */
+    protected static Map<String, Integer> getVariants(String seq, int editDistance)
+    {
+        Map<String, Integer> ret = new HashMap<>();
+        ret.put(seq, 0);
+
+        //because each step applies one edit, the first level at which a string is found is its Levenshtein distance
+        Set<String> seen = new HashSet<>();
+        seen.add(seq);
+        Set<String> level = new HashSet<>(seen);
+        for (int dist = 1; dist <= editDistance; dist++)
+        {
+            int remaining = editDistance - dist;
+            Set<String> next = new HashSet<>();
+            for (String s : level)
+            {
+                StringBuilder sb = new StringBuilder(s.length() + 1);
+                for (int pos = 0; pos <= s.length(); pos++)
+                {
+                    for (char base : ALPHABET)
+                    {
+                        //insertion
+                        addVariant(sb, s.substring(0, pos), base, s.substring(pos), seq.length(), remaining, seen, next);
+
+                        //substitution
+                        if (pos < s.length() && s.charAt(pos) != base)
+                        {
+                            addVariant(sb, s.substring(0, pos), base, s.substring(pos + 1), seq.length(), remaining, seen, next);
+                        }
+                    }
+
+                    //deletion
+                    if (pos < s.length())
+                    {
+                        addVariant(sb, s.substring(0, pos), null, s.substring(pos + 1), seq.length(), remaining, seen, next);
+                    }
+                }
+            }
+
+            for (String s : next)
+            {
+                if (s.length() == seq.length())
+                {
+                    ret.put(s, dist);
+                }
+            }
+
+            level = next;
+        }
+
+        return ret;
+    }
+
+    private static void addVariant(StringBuilder sb, String prefix, Character base, String suffix, int targetLength, int remaining, Set<String> seen, Set<String> next)
+    {
+        sb.setLength(0);
+        sb.append(prefix);
+        if (base != null)
+            sb.append(base);
+        sb.append(suffix);
+
+        //strings that cannot return to the target length with the remaining edits are not useful
+        if (Math.abs(sb.length() - targetLength) > remaining)
+            return;
+
+        String variant = sb.toString();
+        if (seen.add(variant))
+        {
+            next.add(variant);
+        }
+    }
+
+    public boolean isEnabled()
+    {
+        return _enabled;
+    }
+
+    public boolean isIndexOf(Collection<SequenceTag> tags, int editDistance, int deletionsAllowed)
+    {
+        return _tags == tags && _editDistance == editDistance && _deletionsAllowed == deletionsAllowed;
+    }
+
+    public int getMaxHits()
+    {
+        return _tagList.size();
+    }
+
+    /**
+     * Finds all tags within the edit distance of the sequence at the given offset, using the same offset semantics as processTag5()/processTag3():
+     * a positive offset skips that number of bases at the end of the read, and a negative offset trims that number of bases from the tag.
+     * Hits are written in the order the tags were supplied, and should be decoded using getTag() and getEditDistance().
+     *
+     * @return The number of hits, or -1 if the index cannot be used for this sequence (for example, it contains a base other than ACGTN
+     * or is shorter than the tags), in which case the caller should use the Levenshtein scan.
+     */
+    public int lookup(String sequence, int offset, int[] hits)
+    {
+        int deletions = offset < 0 ? -offset : 0;
+        int start = offset < 0 ? 0 : offset;
+        if (deletions > _deletionsAllowed || start + _maxLength - deletions > sequence.length())
+        {
+            return -1;
+        }
+
+        int total = 0;
+        for (VariantTable table : _tables[deletions])
+        {
+            long key = encode(sequence, start, table.getLength());
+            if (key < 0)
+            {
+                return -1;
+            }
+
+            int[] tableHits = table.get(key);
+            if (tableHits != null)
+            {
+                System.arraycopy(tableHits, 0, hits, total, tableHits.length);
+                total += tableHits.length;
+            }
+        }
+
+        //hits from different tag lengths are interleaved, so restore the original tag order
+        if (_tables[deletions].length > 1 && total > 1)
+        {
+            Arrays.sort(hits, 0, total);
+        }
+
+        return total;
+    }
+
+    public SequenceTag getTag(int hit)
+    {
+        return _tagList.get(hit >>> 8);
+    }
+
+    public int getEditDistance(int hit)
+    {
+        return hit & 0xFF;
+    }
+
+    /**
+     * @return The tag sequence, as it would have been compared by processTag5()/processTag3()
+     */
+    public String getComparedTagSequence(int hit, int offset)
+    {
+        String oriented = _orientedSequences.get(hit >>> 8);
+        return offset < 0 ? oriented.substring(-offset) : oriented;
+    }
+
+    /**
+     * @return The portion of the read, as it would have been compared by processTag5()/processTag3()
+     */
+    public String getComparedTargetSequence(String sequence, int hit, int offset)
+    {
+        int length = getComparedTagSequence(hit, offset).length();
+        int start = offset < 0 ? 0 : offset;
+        if (_is5Prime)
+        {
+            return sequence.substring(start, start + length);
+        }
+
+        return StringUtils.reverse(sequence).substring(start, start + length);
+    }
+
+    private static int packHit(int tagIdx, int editDistance)
+    {
+        return (tagIdx << 8) | editDistance;
+    }
+
+    private static int encodeBase(char base)
+    {
+        switch (base)
+        {
+            case 'A':
+                return 0;
+            case 'C':
+                return 1;
+            case 'G':
+                return 2;
+            case 'T':
+                return 3;
+            case 'N':
+                return 4;
+            default:
+                return -1;
+        }
+    }
+
+    private static long encode(String seq)
+    {
+        long ret = 0;
+        for (int i = 0; i < seq.length(); i++)
+        {
+            ret = (ret << 3) | encodeBase(seq.charAt(i));
+        }
+
+        return ret;
+    }
+
+    /**
+     * Encodes the oriented slice of the read directly from the string.  For the 3' end, this reads backwards from the end of the sequence.
+     */
+    private long encode(String sequence, int start, int length)
+    {
+        long ret = 0;
+        int lastIdx = sequence.length() - 1;
+        for (int i = start; i < start + length; i++)
+        {
+            int base = encodeBase(sequence.charAt(_is5Prime ? i : lastIdx - i));
+            if (base < 0)
+            {
+                return -1;
+            }
+
+            ret = (ret << 3) | base;
+        }
+
+        return ret;
+    }
+
+    /**
+     * A primitive open-addressing hash table of encoded variants to the packed hits for that variant
+     */
+    private static class VariantTable
+    {
+        private final int _length;
+        private final long[] _keys;
+        private final int[][] _values;
+        private final int _mask;
+
+        public VariantTable(int length, Map<Long, List<Integer>> variants)
+        {
+            _length = length;
+
+            int capacity = Integer.highestOneBit(Math.max(variants.size(), 1) * 2) * 2;
+            _mask = capacity - 1;
+            _keys = new long[capacity];
+            Arrays.fill(_keys, -1L);
+            _values = new int[capacity][];
+
+            for (Map.Entry<Long, List<Integer>> e : variants.entrySet())
+            {
+                int slot = findSlot(e.getKey());
+                _keys[slot] = e.getKey();
+                _values[slot] = e.getValue().stream().mapToInt(Integer::intValue).toArray();
+            }
+        }
+
+        public int getLength()
+        {
+            return _length;
+        }
+
+        private int findSlot(long key)
+        {
+            int slot = hash(key) & _mask;
+            while (_keys[slot] != -1L && _keys[slot] != key)
+            {
+                slot = (slot + 1) & _mask;
+            }
+
+            return slot;
+        }
+
+        public int[] get(long key)
+        {
+            int slot = findSlot(key);
+
+            return _keys[slot] == key ? _values[slot] : null;
+        }
+
+        private static int hash(long key)
+        {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int)(h ^ (h >>> 32));
+        }
+    }
+
+    public static class TestCase extends Assert
+    {
+        @Test
+        public void testMatchesLevenshtein() throws Exception
+        {
+            Random r = new Random(1);
+            List<SequenceTag> tags = new ArrayList<>();
+            for (int i = 0; i < 12; i++)
+            {
+                BarcodeModel bc = new BarcodeModel();
+                bc.setName("BC" + i);
+                bc.setSequence(randomSequence(r, i % 3 == 0 ? 6 : 8, false));
+                tags.add(bc);
+            }
+
+            for (boolean is5Prime : new boolean[]{true, false})
+            {
+                for (int editDistance = 0; editDistance <= MAX_EDIT_DISTANCE; editDistance++)
+                {
+                    SequenceTagIndex index = SequenceTagIndex.create(tags, is5Prime, editDistance, 2, null);
+                    assertTrue(index.isEnabled());
+
+                    int[] hits = new int[index.getMaxHits()];
+                    for (int i = 0; i < 500; i++)
+                    {
+                        String seq;
+                        if (i % 2 == 0)
+                        {
+                            //mutate a real barcode, so there are hits to compare
+                            SequenceTag tag = tags.get(r.nextInt(tags.size()));
+                            String bc = is5Prime ? tag.getSequence() : tag.getReverseComplement();
+                            String flank = randomSequence(r, 20, true);
+                            seq = is5Prime ? mutate(r, bc) + flank : flank + mutate(r, bc);
+                        }
+                        else
+                        {
+                            seq = randomSequence(r, 28, true);
+                        }
+
+                        for (int offset = -2; offset <= 2; offset++)
+                        {
+                            Map<String, Integer> expected = new HashMap<>();
+                            for (SequenceTag tag : tags)
+                            {
+                                String barcodeSeq = is5Prime ? tag.getSequence() : StringUtils.reverse(tag.getReverseComplement());
+                                String target = is5Prime ? seq : StringUtils.reverse(seq);
+                                if (offset < 0)
+                                {
+                                    barcodeSeq = barcodeSeq.substring(-offset);
+                                    target = target.substring(0, barcodeSeq.length());
+                                }
+                                else
+                                {
+                                    target = target.substring(offset, offset + barcodeSeq.length());
+                                }
+
+                                int dist = StringUtils.getLevenshteinDistance(barcodeSeq, target);
+                                if (dist <= editDistance)
+                                {
+                                    expected.put(tag.getName(), dist);
+                                }
+                            }
+
+                            int total = index.lookup(seq, offset, hits);
+                            Map<String, Integer> actual = new HashMap<>();
+                            int lastTag = -1;
+                            for (int j = 0; j < total; j++)
+                            {
+                                assertTrue("hits not in tag order", (hits[j] >>> 8) > lastTag);
+                                lastTag = hits[j] >>> 8;
+                                actual.put(index.getTag(hits[j]).getName(), index.getEditDistance(hits[j]));
+                            }
+
+                            assertEquals(seq + ", offset: " + offset, expected, actual);
+                        }
+                    }
+                }
+            }
+        }
+
+        @Test
+        public void testFallback() throws Exception
+        {
+            BarcodeModel bc = new BarcodeModel();
+            bc.setName("BC1");
+            bc.setSequence("ACGTACGT");
+            List<SequenceTag> tags = Arrays.asList(bc);
+
+            assertFalse(SequenceTagIndex.create(tags, true, MAX_EDIT_DISTANCE + 1, 0, null).isEnabled());
+
+            SequenceTagIndex index = SequenceTagIndex.create(tags, true, 1, 0, null);
+            int[] hits = new int[index.getMaxHits()];
+            assertEquals(-1, index.lookup("ACGT.CGTAAAA", 0, hits));
+            assertEquals(-1, index.lookup("ACGT", 0, hits));
+            assertEquals(1, index.lookup("ACGTACGAAAAA", 0, hits));
+            assertEquals(1, index.getEditDistance(hits[0]));
+        }
+
+        private String randomSequence(Random r, int length, boolean allowN)
+        {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < length; i++)
+            {
+                sb.append(ALPHABET[r.nextInt(allowN ? 5 : 4)]);
+            }
+
+            return sb.toString();
+        }
+
+        private String mutate(Random r, String seq)
+        {
+            StringBuilder sb = new StringBuilder(seq);
+            int edits = r.nextInt(3);
+            for (int i = 0; i < edits; i++)
+            {
+                int pos = r.nextInt(sb.length());
+                switch (r.nextInt(3))
+                {
+                    case 0:
+                        sb.setCharAt(pos, ALPHABET[r.nextInt(4)]);
+                        break;
+                    case 1:
+                        sb.insert(pos, ALPHABET[r.nextInt(4)]);
+                        break;
+                    default:
+                        sb.deleteCharAt(pos);
+                }
+            }
+
+            return sb.toString();
+        }
+    }
+}
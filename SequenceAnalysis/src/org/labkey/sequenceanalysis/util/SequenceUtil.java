@@ -23,6 +23,7 @@
 import htsjdk.variant.vcf.VCFHeader;
 import htsjdk.variant.vcf.VCFUtils;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.SystemUtils;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
@@ -52,6 +53,7 @@
 import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -344,6 +346,37 @@ public static List<Interval> bedToIntervalList(File input) throws IOException
         return ret;
     }
 
+    /**
+     * Parses intervals entered as text, such as a tool parameter, in the form chr1:100-200, separated by newlines or semicolons
+     * @return The sorted intervals, or null if the string is empty
+     */
+    @Nullable
+    public static List<Interval> parseAndSortIntervals(@Nullable String intervalString) throws PipelineJobException
+    {
+        intervalString = StringUtils.trimToNull(intervalString);
+        if (intervalString == null)
+        {
+            return null;
+        }
+
+        intervalString = intervalString.replaceAll("(\\n|\\r|;)+", ";");
+        List<Interval> intervals = new ArrayList<>();
+        for (String i : intervalString.split(";"))
+        {
+            String[] tokens = i.split(":|-");
+            if (tokens.length != 3)
+            {
+                throw new PipelineJobException("Invalid interval: " + i);
+            }
+
+            intervals.add(new Interval(tokens[0], Integer.parseInt(tokens[1]), Integer.parseInt(tokens[2])));
+        }
+
+        Collections.sort(intervals);
+
+        return intervals;
+    }
+
     public static JSONArray getReadGroupsForBam(File bam) throws IOException
     {
         if (bam == null || !bam.exists())
@@ -456,34 +489,7 @@ public static File combineVcfs(List<File> files, ReferenceGenome genome, File ou
     {
         log.info("combining VCFs: ");
 
-        log.info("Merging headers:");
-        List<VCFHeader> headers = new ArrayList<>();
-        final List<String> samples = new ArrayList<>();
-        files.forEach(x -> {
-            try (VCFFileReader reader = new VCFFileReader(x))
-            {
-                VCFHeader header = reader.getFileHeader();
-                headers.add(header);
-
-                if (samples.isEmpty())
-                {
-                    samples.addAll(header.getGenotypeSamples());
-                }
-                else if (!samples.equals(header.getGenotypeSamples()))
-                {
-                    throw new IllegalArgumentException("Samples list different between VCF headers!  Encountered for: " + x.getPath());
-                }
-            }
-        });
-
-        File headerFile = new File(outputGzip.getParentFile(), "header.vcf");
-        VariantContextWriterBuilder builder = new VariantContextWriterBuilder().setOutputFile(headerFile);
-        builder.setReferenceDictionary(SAMSequenceDictionaryExtractor.extractDictionary(genome.getSequenceDictionary().toPath()));
-        try (VariantContextWriter writer = builder.build())
-        {
-            log.info("total samples: " + samples.size());
-            writer.writeHeader(new VCFHeader(VCFUtils.smartMergeHeaders(headers, true), samples));
-        }
+        File headerFile = writeMergedVcfHeader(files, genome, outputGzip, log);
 
         List<String> bashCommands = new ArrayList<>();
         bashCommands.add("cat " + headerFile.getPath());
@@ -521,15 +527,45 @@ else if (!samples.equals(header.getGenotypeSamples()))
 
             bashTmp.delete();
 
-            log.info("total variants: " + SequenceAnalysisService.get().getVCFLineCount(outputGzip, log, false));
-            log.info("passing variants: " + SequenceAnalysisService.get().getVCFLineCount(outputGzip, log, true));
+            VcfStats stats = VcfStats.getStats(outputGzip, log);
+            log.info("total variants: " + stats.getTotal());
+            log.info("passing variants: " + stats.getPassing());
+
+            deleteMergedVcfHeader(headerFile);
+        }
+        catch (IOException e)
+        {
+            throw new PipelineJobException(e);
+        }
 
-            headerFile.delete();
-            File headerIdx = new File(headerFile.getPath() + ".idx");
-            if (headerIdx.exists())
+        return outputGzip;
+    }
+
+    /**
+     * Concatenates BGZF-compressed VCFs by copying their compressed blocks, which avoids decompressing and recompressing the data.
+     * The tabix index is created during the copy.  If any input is not BGZF-compressed, this uses combineVcfs().
+     */
+    public static File combineVcfsByBlockCopy(List<File> files, ReferenceGenome genome, File outputGzip, Logger log, boolean multiThreaded) throws PipelineJobException
+    {
+        try
+        {
+            if (!BgzfVcfConcatenator.canConcatenate(files))
             {
-                headerIdx.delete();
+                log.info("not all VCFs are BGZF-compressed, will decompress and recompress");
+                return combineVcfs(files, genome, outputGzip, log, multiThreaded, null);
             }
+
+            log.info("combining VCFs by copying BGZF blocks: ");
+            File headerFile = writeMergedVcfHeader(files, genome, outputGzip, log);
+
+            BgzfVcfConcatenator concatenator = new BgzfVcfConcatenator(log);
+            concatenator.concatenate(headerFile, files, SAMSequenceDictionaryExtractor.extractDictionary(genome.getSequenceDictionary().toPath()), outputGzip);
+
+            //these are collected during the copy, so the output does not need to be read again
+            log.info("total variants: " + concatenator.getStats().getTotal());
+            log.info("passing variants: " + concatenator.getStats().getPassing());
+
+            deleteMergedVcfHeader(headerFile);
         }
         catch (IOException e)
         {
@@ -539,6 +575,50 @@ else if (!samples.equals(header.getGenotypeSamples()))
         return outputGzip;
     }
 
+    private static File writeMergedVcfHeader(List<File> files, ReferenceGenome genome, File outputGzip, Logger log)
+    {
+        log.info("Merging headers:");
+        List<VCFHeader> headers = new ArrayList<>();
+        final List<String> samples = new ArrayList<>();
+        files.forEach(x -> {
+            try (VCFFileReader reader = new VCFFileReader(x))
+            {
+                VCFHeader header = reader.getFileHeader();
+                headers.add(header);
+
+                if (samples.isEmpty())
+                {
+                    samples.addAll(header.getGenotypeSamples());
+                }
+                else if (!samples.equals(header.getGenotypeSamples()))
+                {
+                    throw new IllegalArgumentException("Samples list different between VCF headers!  Encountered for: " + x.getPath());
+                }
+            }
+        });
+
+        File headerFile = new File(outputGzip.getParentFile(), "header.vcf");
+        VariantContextWriterBuilder builder = new VariantContextWriterBuilder().setOutputFile(headerFile);
+        builder.setReferenceDictionary(SAMSequenceDictionaryExtractor.extractDictionary(genome.getSequenceDictionary().toPath()));
+        try (VariantContextWriter writer = builder.build())
+        {
+            log.info("total samples: " + samples.size());
+            writer.writeHeader(new VCFHeader(VCFUtils.smartMergeHeaders(headers, true), samples));
+        }
+
+        return headerFile;
+    }
+
+    private static void deleteMergedVcfHeader(File headerFile)
+    {
+        headerFile.delete();
+        File headerIdx = new File(headerFile.getPath() + ".idx");
+        if (headerIdx.exists())
+        {
+            headerIdx.delete();
+        }
+    }
+
     public static Set<String> getContigsInVcf(File vcf) throws PipelineJobException
     {
         try
@@ -0,0 +1,411 @@
+package org.labkey.sequenceanalysis.util;
+
+import htsjdk.samtools.util.IOUtil;
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.api.pipeline.PipelineJobException;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Summary statistics for a VCF, calculated in a single pass over the file.  The result can be cached in a JSON file alongside the VCF
+ * (and its index), so repeated calls, such as logging the total and passing variants after each step, only read the VCF once.
+ * The cache is ignored if the size or modification time of the VCF has changed.  Callers that write the cache are responsible for
+ * registering or deleting it, since it is not part of the job's outputs.
+ */
+public class VcfStats
+{
+    private static final String STATS_SUFFIX = ".stats.json";
+
+    private long _fileSize = -1;
+    private long _lastModified = -1;
+
+    private long _total = 0;
+    private long _passing = 0;
+    private long _snps = 0;
+    private long _indels = 0;
+    private long _multiAllelic = 0;
+    private final Map<String, Long> _contigCounts = new LinkedHashMap<>();
+    private final Map<String, Long> _calledGenotypes = new LinkedHashMap<>();
+
+    private String[] _samples = new String[0];
+
+    private VcfStats()
+    {
+
+    }
+
+    public static File getStatsFile(File vcf)
+    {
+        return new File(vcf.getPath() + STATS_SUFFIX);
+    }
+
+    /**
+     * Returns the stats for this VCF, using the cached values if present and current.  This does not write the cache.
+     */
+    public static VcfStats getStats(File vcf, Logger log) throws PipelineJobException
+    {
+        return getStats(vcf, log, false);
+    }
+
+    /**
+     * Returns the stats for this VCF, using the cached values if present and current
+     * @param writeCache If true, newly calculated stats are written to getStatsFile(vcf), which the caller must register or delete
+     */
+    public static VcfStats getStats(File vcf, Logger log, boolean writeCache) throws PipelineJobException
+    {
+        File statsFile = getStatsFile(vcf);
+        if (statsFile.exists())
+        {
+            try
+            {
+                VcfStats cached = fromJson(new JSONObject(Files.readString(statsFile.toPath())));
+                if (cached._fileSize == vcf.length() && cached._lastModified == vcf.lastModified())
+                {
+                    return cached;
+                }
+            }
+            catch (Exception e)
+            {
+                log.debug("unable to read cached VCF stats, will recalculate: " + statsFile.getPath());
+            }
+        }
+
+        VcfStats stats = calculate(vcf);
+        if (writeCache)
+        {
+            stats.writeStatsFile(vcf, log);
+        }
+
+        return stats;
+    }
+
+    /**
+     * Creates empty stats, which are populated one record at a time by code that already reads the VCF, such as BgzfVcfConcatenator
+     */
+    static VcfStats create(String[] samples)
+    {
+        VcfStats stats = new VcfStats();
+        stats.setSamples(samples);
+
+        return stats;
+    }
+
+    /**
+     * Caches these stats for the supplied VCF, so a later call to getStats() does not need to read it
+     */
+    private void writeStatsFile(File vcf, Logger log)
+    {
+        _fileSize = vcf.length();
+        _lastModified = vcf.lastModified();
+
+        File statsFile = getStatsFile(vcf);
+        try
+        {
+            Files.writeString(statsFile.toPath(), toJson().toString(1));
+        }
+        catch (IOException e)
+        {
+            //the stats are still valid, they simply will not be cached
+            log.debug("unable to cache VCF stats: " + statsFile.getPath());
+        }
+    }
+
+    /**
+     * @return The sample names from the #CHROM line of a VCF header
+     */
+    static String[] parseSamples(String headerLine)
+    {
+        String[] header = headerLine.split("\t");
+        return header.length > 9 ? Arrays.copyOfRange(header, 9, header.length) : new String[0];
+    }
+
+    private void setSamples(String[] samples)
+    {
+        _samples = samples;
+        for (String sample : _samples)
+        {
+            _calledGenotypes.put(sample, 0L);
+        }
+    }
+
+    private static VcfStats calculate(File vcf) throws PipelineJobException
+    {
+        VcfStats stats = new VcfStats();
+        stats._fileSize = vcf.length();
+        stats._lastModified = vcf.lastModified();
+
+        try (BufferedReader reader = IOUtil.openFileForBufferedReading(vcf))
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                if (line.startsWith("#CHROM"))
+                {
+                    stats.setSamples(parseSamples(line));
+                }
+                else if (!line.startsWith("#") && !line.isEmpty())
+                {
+                    stats.addRecord(line);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            throw new PipelineJobException(e);
+        }
+
+        return stats;
+    }
+
+    void addRecord(String line)
+    {
+        //NOTE: the genotype columns are only split if there are samples
+        String[] tokens = line.split("\t", _samples.length == 0 ? 9 : -1);
+        if (tokens.length < 8)
+        {
+            throw new IllegalArgumentException("Improper VCF line: " + line);
+        }
+
+        _total++;
+        _contigCounts.merge(tokens[0], 1L, Long::sum);
+
+        String filter = tokens[6];
+        if ("PASS".equals(filter) || ".".equals(filter))
+        {
+            _passing++;
+        }
+
+        String ref = tokens[3];
+        String[] alts = tokens[4].split(",");
+        if (alts.length > 1)
+        {
+            _multiAllelic++;
+        }
+
+        boolean isSnp = false;
+        boolean isIndel = false;
+        for (String alt : alts)
+        {
+            //skip missing, spanning deletions and symbolic alleles
+            if (".".equals(alt) || "*".equals(alt) || alt.startsWith("<") || alt.contains("[") || alt.contains("]"))
+            {
+                continue;
+            }
+
+            if (alt.length() == ref.length())
+            {
+                if (ref.length() == 1)
+                {
+                    isSnp = true;
+                }
+            }
+            else
+            {
+                isIndel = true;
+            }
+        }
+
+        if (isSnp)
+        {
+            _snps++;
+        }
+
+        if (isIndel)
+        {
+            _indels++;
+        }
+
+        if (_samples.length > 0 && tokens.length > 9 && tokens[8].startsWith("GT"))
+        {
+            for (int i = 9; i < tokens.length && i - 9 < _samples.length; i++)
+            {
+                if (isCalled(tokens[i]))
+                {
+                    _calledGenotypes.merge(_samples[i - 9], 1L, Long::sum);
+                }
+            }
+        }
+    }
+
+    /**
+     * A genotype is considered called if any allele in the GT field is not missing.  GT is always the first FORMAT field.
+     */
+    private static boolean isCalled(String genotype)
+    {
+        for (int i = 0; i < genotype.length(); i++)
+        {
+            char c = genotype.charAt(i);
+            if (c == ':')
+            {
+                break;
+            }
+
+            if (c != '.' && c != '/' && c != '|')
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private JSONObject toJson()
+    {
+        JSONObject json = new JSONObject();
+        json.put("fileSize", _fileSize);
+        json.put("lastModified", _lastModified);
+        json.put("total", _total);
+        json.put("passing", _passing);
+        json.put("snps", _snps);
+        json.put("indels", _indels);
+        json.put("multiAllelic", _multiAllelic);
+        json.put("samples", Arrays.asList(_samples));
+
+        JSONObject contigs = new JSONObject();
+        _contigCounts.forEach(contigs::put);
+        json.put("contigs", contigs);
+        json.put("contigOrder", _contigCounts.keySet());
+
+        JSONObject called = new JSONObject();
+        _calledGenotypes.forEach(called::put);
+        json.put("calledGenotypes", called);
+
+        return json;
+    }
+
+    private static VcfStats fromJson(JSONObject json)
+    {
+        VcfStats stats = new VcfStats();
+        stats._fileSize = json.getLong("fileSize");
+        stats._lastModified = json.getLong("lastModified");
+        stats._total = json.getLong("total");
+        stats._passing = json.getLong("passing");
+        stats._snps = json.getLong("snps");
+        stats._indels = json.getLong("indels");
+        stats._multiAllelic = json.getLong("multiAllelic");
+
+        List<String> samples = new ArrayList<>();
+        json.getJSONArray("samples").forEach(x -> samples.add(String.valueOf(x)));
+        stats._samples = samples.toArray(new String[0]);
+
+        //NOTE: JSONObject does not retain order, so the order of contigs and samples is stored separately
+        JSONObject contigs = json.getJSONObject("contigs");
+        json.getJSONArray("contigOrder").forEach(x -> stats._contigCounts.put(String.valueOf(x), contigs.getLong(String.valueOf(x))));
+
+        JSONObject called = json.getJSONObject("calledGenotypes");
+        for (String sample : stats._samples)
+        {
+            stats._calledGenotypes.put(sample, called.getLong(sample));
+        }
+
+        return stats;
+    }
+
+    public long getTotal()
+    {
+        return _total;
+    }
+
+    /**
+     * @return The number of records with a FILTER of PASS or '.'
+     */
+    public long getPassing()
+    {
+        return _passing;
+    }
+
+    /**
+     * @return The number of records with at least one single-base substitution allele
+     */
+    public long getSnps()
+    {
+        return _snps;
+    }
+
+    /**
+     * @return The number of records with at least one allele that differs in length from the reference
+     */
+    public long getIndels()
+    {
+        return _indels;
+    }
+
+    public long getMultiAllelic()
+    {
+        return _multiAllelic;
+    }
+
+    /**
+     * @return The number of records per contig, in the order they appear in the VCF
+     */
+    public Map<String, Long> getContigCounts()
+    {
+        return _contigCounts;
+    }
+
+    /**
+     * @return The number of records with a non-missing genotype, per sample
+     */
+    public Map<String, Long> getCalledGenotypes()
+    {
+        return _calledGenotypes;
+    }
+
+    public static class TestCase extends Assert
+    {
+        private static final Logger _log = LogManager.getLogger(VcfStats.TestCase.class);
+
+        @Test
+        public void testStats() throws Exception
+        {
+            File dir = Files.createTempDirectory("VcfStats").toFile();
+            try
+            {
+                File vcf = new File(dir, "test.vcf");
+                Files.writeString(vcf.toPath(), "##fileformat=VCFv4.2\n" +
+                        "#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT\tS1\tS2\n" +
+                        "chr1\t1\t.\tA\tG\t50\tPASS\t.\tGT\t0/1\t./.\n" +
+                        "chr1\t2\t.\tA\tAT\t50\tLowQual\t.\tGT:DP\t.|.:5\t1|1:5\n" +
+                        "chr2\t3\t.\tA\tG,C\t50\t.\t.\tGT\t1/2\t0/0\n" +
+                        "chr2\t4\t.\tAT\tA,*\t50\tLowQual\t.\tGT\t./.\t./.\n", StandardCharsets.UTF_8);
+
+                VcfStats stats = VcfStats.getStats(vcf, _log);
+                assertFalse(getStatsFile(vcf).exists());
+
+                stats = VcfStats.getStats(vcf, _log, true);
+                assertEquals(4, stats.getTotal());
+                assertEquals(2, stats.getPassing());
+                assertEquals(2, stats.getSnps());
+                assertEquals(2, stats.getIndels());
+                assertEquals(2, stats.getMultiAllelic());
+                assertEquals(Arrays.asList("chr1", "chr2"), new ArrayList<>(stats.getContigCounts().keySet()));
+                assertEquals(Long.valueOf(2), stats.getContigCounts().get("chr2"));
+                assertEquals(Long.valueOf(2), stats.getCalledGenotypes().get("S1"));
+                assertEquals(Long.valueOf(2), stats.getCalledGenotypes().get("S2"));
+                assertTrue(getStatsFile(vcf).exists());
+
+                //the second call should use the cached values
+                VcfStats cached = VcfStats.getStats(vcf, _log);
+                assertEquals(stats.toJson().toString(), cached.toJson().toString());
+            }
+            finally
+            {
+                FileUtils.deleteDirectory(dir);
+            }
+        }
+    }
+}
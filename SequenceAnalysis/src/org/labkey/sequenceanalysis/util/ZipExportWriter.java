@@ -0,0 +1,548 @@
+package org.labkey.sequenceanalysis.util;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Writes files to a ZIP archive.  Files that are already compressed, such as BAM, CRAM and gzipped FASTQ or VCF, are STORED rather than deflated,
+ * since recompressing them uses a full core and saves almost nothing.  Because the header of a STORED entry must include its CRC, these are
+ * calculated in parallel before the archive is written, and the file contents are then copied without any further processing.
+ * If every entry is STORED, the length of the archive is known before it is written.  ZIP64 is used for entries and archives over 4GB.
+ */
+public class ZipExportWriter
+{
+    private static final Set<String> COMPRESSED_EXTENSIONS = Set.of("gz", "bgz", "bam", "cram", "tbi", "csi", "bz2", "xz", "zip");
+
+    private static final long ZIP64_THRESHOLD = 0xFFFFFFFFL;
+    private static final int ZIP64_ENTRY_THRESHOLD = 0xFFFF;
+
+    //deflated entries are streamed, so their size is not known in advance. Above this input size, sizes in the data descriptor use ZIP64.
+    private static final long DEFLATE_ZIP64_INPUT_THRESHOLD = 0xFFFF0000L;
+
+    private static final int LOCAL_HEADER_LENGTH = 30;
+    private static final int CENTRAL_HEADER_LENGTH = 46;
+    private static final int END_LENGTH = 22;
+    private static final int ZIP64_END_LENGTH = 56;
+    private static final int ZIP64_LOCATOR_LENGTH = 20;
+
+    private static final int FLAG_DATA_DESCRIPTOR = 0x08;
+    private static final int FLAG_UTF8 = 0x800;
+
+    private final List<Entry> _entries = new ArrayList<>();
+    private boolean _prepared = false;
+
+    private static class Entry
+    {
+        private final String _name;
+        private final byte[] _nameBytes;
+        private final File _file;
+        private final boolean _stored;
+        private final long _size;
+        private final long _dosTime;
+
+        private long _crc;
+        private long _compressedSize;
+        private long _offset;
+
+        public Entry(String name, File file, boolean stored)
+        {
+            _name = name;
+            _nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            _file = file;
+            _stored = stored;
+            _size = file.length();
+            _compressedSize = stored ? _size : 0;
+            _dosTime = toDosTime(file.lastModified());
+        }
+
+        private boolean isZip64Local()
+        {
+            return _stored ? _size >= ZIP64_THRESHOLD : _size >= DEFLATE_ZIP64_INPUT_THRESHOLD;
+        }
+
+        private int getLocalExtraLength()
+        {
+            return isZip64Local() ? 20 : 0;
+        }
+
+        private int getCentralExtraLength()
+        {
+            int length = 0;
+            length += _size >= ZIP64_THRESHOLD ? 8 : 0;
+            length += _compressedSize >= ZIP64_THRESHOLD ? 8 : 0;
+            length += _offset >= ZIP64_THRESHOLD ? 8 : 0;
+
+            return length == 0 ? 0 : length + 4;
+        }
+
+        private int getFlags()
+        {
+            return FLAG_UTF8 | (_stored ? 0 : FLAG_DATA_DESCRIPTOR);
+        }
+
+        private int getVersion()
+        {
+            return isZip64Local() || getCentralExtraLength() > 0 ? 45 : 20;
+        }
+    }
+
+    public static boolean isCompressed(File f)
+    {
+        String name = f.getName().toLowerCase();
+        int idx = name.lastIndexOf('.');
+
+        return idx > -1 && COMPRESSED_EXTENSIONS.contains(name.substring(idx + 1));
+    }
+
+    /**
+     * Adds a file, which will be STORED if it is already compressed and otherwise deflated
+     */
+    public void addFile(String name, File file)
+    {
+        addFile(name, file, isCompressed(file));
+    }
+
+    public void addFile(String name, File file, boolean stored)
+    {
+        if (_prepared)
+        {
+            throw new IllegalStateException("Files cannot be added after the archive is prepared");
+        }
+
+        _entries.add(new Entry(name, file, stored));
+    }
+
+    /**
+     * Calculates the CRC of each STORED entry, in parallel
+     */
+    public void prepare(int threads) throws IOException
+    {
+        List<Entry> toCalculate = _entries.stream().filter(e -> e._stored).toList();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, toCalculate.size())));
+        try
+        {
+            List<Future<Long>> futures = new ArrayList<>();
+            for (Entry e : toCalculate)
+            {
+                futures.add(executor.submit(() -> calculateCrc(e._file)));
+            }
+
+            for (int i = 0; i < toCalculate.size(); i++)
+            {
+                toCalculate.get(i)._crc = futures.get(i).get();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        catch (ExecutionException e)
+        {
+            throw e.getCause() instanceof IOException ? (IOException)e.getCause() : new IOException(e.getCause());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        _prepared = true;
+    }
+
+    private static long calculateCrc(File f) throws IOException
+    {
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+        try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ))
+        {
+            while (channel.read(buffer) != -1)
+            {
+                buffer.flip();
+                crc.update(buffer);
+                buffer.clear();
+            }
+        }
+
+        return crc.getValue();
+    }
+
+    /**
+     * @return The total length of the archive, or -1 if this is not known because some entries are deflated
+     */
+    public long getLength()
+    {
+        long offset = 0;
+        long centralLength = 0;
+        for (Entry e : _entries)
+        {
+            if (!e._stored)
+            {
+                return -1;
+            }
+
+            e._offset = offset;
+            offset += LOCAL_HEADER_LENGTH + e._nameBytes.length + e.getLocalExtraLength() + e._size;
+            centralLength += CENTRAL_HEADER_LENGTH + e._nameBytes.length + e.getCentralExtraLength();
+        }
+
+        return offset + centralLength + getEndLength(offset, centralLength);
+    }
+
+    private long getEndLength(long centralOffset, long centralLength)
+    {
+        return (isZip64End(centralOffset, centralLength) ? ZIP64_END_LENGTH + ZIP64_LOCATOR_LENGTH : 0) + END_LENGTH;
+    }
+
+    private boolean isZip64End(long centralOffset, long centralLength)
+    {
+        return _entries.size() >= ZIP64_ENTRY_THRESHOLD || centralOffset >= ZIP64_THRESHOLD || centralLength >= ZIP64_THRESHOLD;
+    }
+
+    public void write(OutputStream os) throws IOException
+    {
+        if (!_prepared)
+        {
+            throw new IllegalStateException("The archive must be prepared before it is written");
+        }
+
+        CountingOutputStream out = new CountingOutputStream(os);
+        WritableByteChannel channel = Channels.newChannel(out);
+        for (Entry e : _entries)
+        {
+            e._offset = out._count;
+            writeLocalHeader(out, e);
+            if (e._stored)
+            {
+                try (FileChannel in = FileChannel.open(e._file.toPath(), StandardOpenOption.READ))
+                {
+                    long position = 0;
+                    while (position < e._size)
+                    {
+                        position += in.transferTo(position, e._size - position, channel);
+                    }
+                }
+            }
+            else
+            {
+                writeDeflated(out, e);
+            }
+        }
+
+        long centralOffset = out._count;
+        for (Entry e : _entries)
+        {
+            writeCentralHeader(out, e);
+        }
+
+        writeEnd(out, centralOffset, out._count - centralOffset);
+        out.flush();
+    }
+
+    private void writeDeflated(CountingOutputStream out, Entry e) throws IOException
+    {
+        long start = out._count;
+        CRC32 crc = new CRC32();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        byte[] input = new byte[64 * 1024];
+        byte[] output = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(e._file.toPath()))
+        {
+            int read;
+            while ((read = in.read(input)) != -1)
+            {
+                crc.update(input, 0, read);
+                deflater.setInput(input, 0, read);
+                while (!deflater.needsInput())
+                {
+                    out.write(output, 0, deflater.deflate(output));
+                }
+            }
+
+            deflater.finish();
+            while (!deflater.finished())
+            {
+                out.write(output, 0, deflater.deflate(output));
+            }
+        }
+        finally
+        {
+            deflater.end();
+        }
+
+        e._crc = crc.getValue();
+        e._compressedSize = out._count - start;
+
+        //the data descriptor
+        writeInt(out, 0x08074b50);
+        writeInt(out, e._crc);
+        if (e.isZip64Local())
+        {
+            writeLong(out, e._compressedSize);
+            writeLong(out, e._size);
+        }
+        else
+        {
+            writeInt(out, e._compressedSize);
+            writeInt(out, e._size);
+        }
+    }
+
+    private void writeLocalHeader(OutputStream out, Entry e) throws IOException
+    {
+        writeInt(out, 0x04034b50);
+        writeShort(out, e.isZip64Local() ? 45 : 20);
+        writeShort(out, e.getFlags());
+        writeShort(out, e._stored ? ZipEntry.STORED : ZipEntry.DEFLATED);
+        writeInt(out, e._dosTime);
+        writeInt(out, e._stored ? e._crc : 0);
+        if (e.isZip64Local())
+        {
+            writeInt(out, ZIP64_THRESHOLD);
+            writeInt(out, ZIP64_THRESHOLD);
+        }
+        else
+        {
+            writeInt(out, e._compressedSize);
+            writeInt(out, e._stored ? e._size : 0);
+        }
+        writeShort(out, e._nameBytes.length);
+        writeShort(out, e.getLocalExtraLength());
+        out.write(e._nameBytes);
+
+        if (e.isZip64Local())
+        {
+            //NOTE: for deflated entries the sizes are in the data descriptor, and these are zero
+            writeShort(out, 0x0001);
+            writeShort(out, 16);
+            writeLong(out, e._stored ? e._size : 0);
+            writeLong(out, e._stored ? e._size : 0);
+        }
+    }
+
+    private void writeCentralHeader(OutputStream out, Entry e) throws IOException
+    {
+        writeInt(out, 0x02014b50);
+        writeShort(out, e.getVersion());
+        writeShort(out, e.getVersion());
+        writeShort(out, e.getFlags());
+        writeShort(out, e._stored ? ZipEntry.STORED : ZipEntry.DEFLATED);
+        writeInt(out, e._dosTime);
+        writeInt(out, e._crc);
+        writeInt(out, Math.min(e._compressedSize, ZIP64_THRESHOLD));
+        writeInt(out, Math.min(e._size, ZIP64_THRESHOLD));
+        writeShort(out, e._nameBytes.length);
+        writeShort(out, e.getCentralExtraLength());
+        writeShort(out, 0);
+        writeShort(out, 0);
+        writeShort(out, 0);
+        writeInt(out, 0);
+        writeInt(out, Math.min(e._offset, ZIP64_THRESHOLD));
+        out.write(e._nameBytes);
+
+        if (e.getCentralExtraLength() > 0)
+        {
+            //only the values that overflowed are included, in this order
+            writeShort(out, 0x0001);
+            writeShort(out, e.getCentralExtraLength() - 4);
+            if (e._size >= ZIP64_THRESHOLD)
+            {
+                writeLong(out, e._size);
+            }
+            if (e._compressedSize >= ZIP64_THRESHOLD)
+            {
+                writeLong(out, e._compressedSize);
+            }
+            if (e._offset >= ZIP64_THRESHOLD)
+            {
+                writeLong(out, e._offset);
+            }
+        }
+    }
+
+    private void writeEnd(CountingOutputStream out, long centralOffset, long centralLength) throws IOException
+    {
+        if (isZip64End(centralOffset, centralLength))
+        {
+            long zip64EndOffset = out._count;
+            writeInt(out, 0x06064b50);
+            writeLong(out, ZIP64_END_LENGTH - 12);
+            writeShort(out, 45);
+            writeShort(out, 45);
+            writeInt(out, 0);
+            writeInt(out, 0);
+            writeLong(out, _entries.size());
+            writeLong(out, _entries.size());
+            writeLong(out, centralLength);
+            writeLong(out, centralOffset);
+
+            writeInt(out, 0x07064b50);
+            writeInt(out, 0);
+            writeLong(out, zip64EndOffset);
+            writeInt(out, 1);
+        }
+
+        writeInt(out, 0x06054b50);
+        writeShort(out, 0);
+        writeShort(out, 0);
+        writeShort(out, Math.min(_entries.size(), ZIP64_ENTRY_THRESHOLD));
+        writeShort(out, Math.min(_entries.size(), ZIP64_ENTRY_THRESHOLD));
+        writeInt(out, Math.min(centralLength, ZIP64_THRESHOLD));
+        writeInt(out, Math.min(centralOffset, ZIP64_THRESHOLD));
+        writeShort(out, 0);
+    }
+
+    private static long toDosTime(long millis)
+    {
+        LocalDateTime ldt = LocalDateTime.ofInstant(java.time.Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+        if (ldt.getYear() < 1980)
+        {
+            return (1 << 21) | (1 << 16);
+        }
+
+        return ((long)(ldt.getYear() - 1980) << 25) | ((long)ldt.getMonthValue() << 21) | ((long)ldt.getDayOfMonth() << 16) | ((long)ldt.getHour() << 11) | ((long)ldt.getMinute() << 5) | (ldt.getSecond() >> 1);
+    }
+
+    private static void writeShort(OutputStream out, int val) throws IOException
+    {
+        out.write(val & 0xFF);
+        out.write((val >> 8) & 0xFF);
+    }
+
+    private static void writeInt(OutputStream out, long val) throws IOException
+    {
+        writeShort(out, (int)(val & 0xFFFF));
+        writeShort(out, (int)((val >> 16) & 0xFFFF));
+    }
+
+    private static void writeLong(OutputStream out, long val) throws IOException
+    {
+        writeInt(out, val & 0xFFFFFFFFL);
+        writeInt(out, (val >> 32) & 0xFFFFFFFFL);
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream
+    {
+        private long _count = 0;
+
+        public CountingOutputStream(OutputStream out)
+        {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            out.write(b);
+            _count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            out.write(b, off, len);
+            _count += len;
+        }
+    }
+
+    public static class TestCase extends Assert
+    {
+        @Test
+        public void testArchive() throws Exception
+        {
+            File dir = Files.createTempDirectory("ZipExportWriter").toFile();
+            try
+            {
+                Random r = new Random(1);
+                byte[] compressed = new byte[300000];
+                r.nextBytes(compressed);
+                File bam = new File(dir, "reads.bam");
+                Files.write(bam.toPath(), compressed);
+
+                File text = new File(dir, "reads.fasta");
+                Files.writeString(text.toPath(), ">seq1\n" + "ACGT".repeat(10000) + "\n");
+
+                File empty = new File(dir, "empty.vcf.gz");
+                Files.write(empty.toPath(), new byte[0]);
+
+                //all STORED, so the length is known in advance
+                ZipExportWriter writer = new ZipExportWriter();
+                writer.addFile("reads.bam", bam);
+                writer.addFile("empty.vcf.gz", empty);
+                writer.prepare(2);
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                writer.write(bos);
+                assertEquals(bos.size(), writer.getLength());
+                verifyArchive(bos.toByteArray(), dir, Arrays.asList(bam, empty), ZipEntry.STORED);
+
+                //mixed
+                writer = new ZipExportWriter();
+                writer.addFile("reads.bam", bam);
+                writer.addFile("reads.fasta", text);
+                writer.prepare(2);
+                assertEquals(-1, writer.getLength());
+                bos = new ByteArrayOutputStream();
+                writer.write(bos);
+                verifyArchive(bos.toByteArray(), dir, Arrays.asList(bam, text), -1);
+            }
+            finally
+            {
+                FileUtils.deleteDirectory(dir);
+            }
+        }
+
+        private void verifyArchive(byte[] archive, File dir, List<File> expected, int expectedMethod) throws IOException
+        {
+            File zip = new File(dir, "archive.zip");
+            Files.write(zip.toPath(), archive);
+            try (ZipFile zf = new ZipFile(zip))
+            {
+                assertEquals(expected.size(), zf.size());
+                for (File f : expected)
+                {
+                    ZipEntry ze = zf.getEntry(f.getName());
+                    assertNotNull(ze);
+                    assertEquals(isCompressed(f) ? ZipEntry.STORED : ZipEntry.DEFLATED, ze.getMethod());
+                    if (expectedMethod != -1)
+                    {
+                        assertEquals(expectedMethod, ze.getMethod());
+                    }
+
+                    try (InputStream is = zf.getInputStream(ze))
+                    {
+                        assertArrayEquals(Files.readAllBytes(f.toPath()), is.readAllBytes());
+                    }
+                }
+            }
+        }
+    }
+}
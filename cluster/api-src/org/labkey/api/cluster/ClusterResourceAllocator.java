@@ -42,7 +42,7 @@
     public Integer getMaxRequestCpus(PipelineJob job);
 
     /**
-     * The maximum RAM in GBs to request for this job.  Not currently implemented
+     * The maximum RAM in GBs to request for this job
      */
     @Nullable
     public Integer getMaxRequestMemory(PipelineJob job);
@@ -62,6 +62,16 @@ default void processJavaOpts(PipelineJob job, RemoteExecutionEngine engine, @Not
 
     }
 
+    /**
+     * An optional label describing the work this job will do, such as the name of the handler or pipeline steps.  This is stored with each
+     * submission, along with the task ID and the resources used, so that jobs doing the same work can be compared when estimating resources.
+     */
+    @Nullable
+    default String getResourceKey(PipelineJob job)
+    {
+        return null;
+    }
+
     @NotNull
     default Map<String, Object> getEnvironmentVars(PipelineJob job, RemoteExecutionEngine engine)
     {
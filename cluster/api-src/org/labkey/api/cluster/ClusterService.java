@@ -10,22 +10,50 @@
 
 import java.io.File;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Created by bimber on 2/23/2016.
  */
 abstract public class ClusterService
 {
+    private static final Logger _log = LogManager.getLogger(ClusterService.class);
+
     private static ClusterService _instance;
+    private static final List<ClusterResourceAllocator.Factory> _pendingAllocators = new ArrayList<>();
 
     public static ClusterService get()
     {
         return _instance;
     }
 
-    public static void setInstance(ClusterService instance)
+    public static synchronized void setInstance(ClusterService instance)
     {
         _instance = instance;
+
+        for (ClusterResourceAllocator.Factory allocator : _pendingAllocators)
+        {
+            _instance.registerResourceAllocator(allocator);
+        }
+        _pendingAllocators.clear();
+    }
+
+    /**
+     * Registers an allocator from another module.  If the cluster module has not started yet, the allocator is held and registered once it does,
+     * so the caller does not depend on module startup order.
+     */
+    public static synchronized void registerAllocatorFactory(ClusterResourceAllocator.Factory allocator)
+    {
+        if (_instance == null)
+        {
+            _log.debug("ClusterService has not been initialized, allocator will be registered on startup: " + allocator.getClass().getName());
+            _pendingAllocators.add(allocator);
+        }
+        else
+        {
+            _instance.registerResourceAllocator(allocator);
+        }
     }
 
     abstract public void registerResourceAllocator(ClusterResourceAllocator.Factory allocator);
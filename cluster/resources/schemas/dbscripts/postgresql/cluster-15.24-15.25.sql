@@ -0,0 +1,9 @@
+ALTER TABLE cluster.clusterJobs ADD resourceKey varchar(1000);
+ALTER TABLE cluster.clusterJobs ADD inputSize bigint;
+ALTER TABLE cluster.clusterJobs ADD inputCount int;
+ALTER TABLE cluster.clusterJobs ADD requestedCpus int;
+ALTER TABLE cluster.clusterJobs ADD requestedMemory int;
+ALTER TABLE cluster.clusterJobs ADD maxRssMb int;
+ALTER TABLE cluster.clusterJobs ADD cpuSeconds int;
+ALTER TABLE cluster.clusterJobs ADD wallSeconds int;
+ALTER TABLE cluster.clusterJobs ADD clusterState varchar(100);
@@ -44,6 +44,7 @@
 
     public final static String PREVENT_CLUSTER_INTERACTION = "PreventClusterInteraction";
     public final static String CLUSTER_USER = "ClusterUser";
+    public final static String PREDICT_RESOURCE_REQUESTS = "PredictResourceRequests";
 
     private ClusterManager()
     {
@@ -155,6 +156,14 @@ public boolean isPreventClusterInteraction()
         return ("true".equalsIgnoreCase(val));
     }
 
+    public boolean isPredictResourceRequests(Container c)
+    {
+        Module m = ModuleLoader.getInstance().getModule(ClusterModule.NAME);
+        ModuleProperty mp = m.getModuleProperties().get(PREDICT_RESOURCE_REQUESTS);
+        String val = StringUtils.trimToNull(mp.getEffectiveValue(c));
+        return ("true".equalsIgnoreCase(val));
+    }
+
     public String getClusterUser(Container c)
     {
         Module m = ModuleLoader.getInstance().getModule(ClusterModule.NAME);
@@ -35,6 +35,7 @@
 import org.labkey.api.settings.AdminConsole;
 import org.labkey.api.view.WebPartFactory;
 import org.labkey.cluster.pipeline.ClusterPipelineProvider;
+import org.labkey.cluster.pipeline.ResourceHistoryAllocator;
 import org.labkey.cluster.pipeline.TestCase;
 
 import java.util.Arrays;
@@ -58,7 +59,7 @@ public String getName()
     @Override
     public Double getSchemaVersion()
     {
-        return 15.24;
+        return 15.25;
     }
 
     @Override
@@ -89,6 +90,7 @@ public void doStartupAfterSpringConfig(ModuleContext moduleContext)
         AdminConsole.addLink(AdminConsole.SettingsLinkType.Management, "cluster admin", details.getActionURL());
 
         PipelineService.get().registerPipelineProvider(new ClusterPipelineProvider(this));
+        ClusterServiceImpl.get().registerResourceAllocator(new ResourceHistoryAllocator.Factory());
     }
 
     @Override
@@ -47,6 +47,7 @@
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -65,6 +66,17 @@
 
     private ConfigType _config;
 
+    //the maximum number of jobs passed to a single history command, to stay well below command-line length limits
+    protected static final int STATUS_BATCH_SIZE = 100;
+
+    private static final long MIN_POLLING_INTERVAL = 60 * 1000;
+    private static final long MAX_POLLING_INTERVAL = 5 * 60 * 1000;
+    private static final long ACTIVE_WINDOW = 10 * 60 * 1000;
+
+    private long _historyInterval = 0;
+    private long _lastHistoryLookup = 0;
+    private long _lastStatusChange = 0;
+
     protected AbstractClusterExecutionEngine(ConfigType config, Logger log)
     {
         _config = config;
@@ -104,6 +116,9 @@ public void submitJob(PipelineJob job) throws PipelineJobException
         j.setActiveTaskId(job.getActiveTaskId() == null ? null : job.getActiveTaskId().toString());
         j.setLocation(getConfig().getLocation());
         j.setStatus(PREPARING);
+        j.setResourceKey(ResourceHistoryAllocator.getResourceKey(job));
+        j.setInputSize(ResourceHistoryAllocator.getInputSize(job));
+        j.setInputCount(ResourceHistoryAllocator.getInputCount(job));
 
         PipelineStatusFile sf = PipelineService.get().getStatusFile(job.getJobGUID());
         if (sf == null)
@@ -178,6 +193,25 @@ public void runTestJob(Container c, User u) throws PipelineJobException
 
     abstract protected Pair<String, String> getStatusForJob(ClusterJob job, Container c);
 
+    /**
+     * Returns the status of multiple jobs, keyed by clusterId.  Engines should override this to query the scheduler once per batch,
+     * rather than once per job.  Jobs without a known status should be omitted from the result.
+     */
+    protected Map<String, Pair<String, String>> getStatusForJobs(List<ClusterJob> jobs, Container c)
+    {
+        Map<String, Pair<String, String>> ret = new HashMap<>();
+        for (ClusterJob j : jobs)
+        {
+            Pair<String, String> status = getStatusForJob(j, c);
+            if (status != null)
+            {
+                ret.put(j.getClusterId(), status);
+            }
+        }
+
+        return ret;
+    }
+
     public static File getSerializedJobFile(File jobLogFile)
     {
         if (jobLogFile == null)
@@ -338,13 +372,22 @@ public synchronized void updateStatusForAll(Collection<String> extraJobIds) thro
             return;
         }
 
+        //the bulk status of queued and running jobs is checked on every update, which is a single command
         Set<String> jobsUpdated = updateStatusForAllJobs();
 
+        //explicit requests for specific jobs are always processed, but the per-job history lookups are throttled based on recent activity
+        if (extraJobIds.isEmpty() && !isHistoryLookupDue())
+        {
+            return;
+        }
+
         // iterate existing submissions to catch completed tasks and errors
         // regenerate this list in case status has otherwise changed
         jobs = getJobsToCheck(false, extraJobIds);
         //_log.info("found " + jobs.size() + " additional cluster jobs to check");
 
+        //the history command is evaluated per container (i.e. cluster user), so group jobs before checking them in batches
+        Map<String, List<ClusterJob>> jobsByContainer = new LinkedHashMap<>();
         for (ClusterJob j : jobs)
         {
             if (jobsUpdated.contains(j.getClusterId()))
@@ -357,18 +400,60 @@ else if (j.getClusterId() == null)
                 continue;
             }
 
-            //check condor_history
-            Pair<String, String> jobStatus = getStatusForJob(j, ContainerManager.getForId(j.getContainer()));
-            if (jobStatus != null)
-            {
-                _log.info("updating job status: " + j.getClusterId() + " / " + jobStatus.first);
-                updateJobStatus(jobStatus.first, j, jobStatus.second);
-            }
-            else
+            jobsByContainer.computeIfAbsent(j.getContainer(), x -> new ArrayList<>()).add(j);
+        }
+
+        for (String containerId : jobsByContainer.keySet())
+        {
+            Container c = ContainerManager.getForId(containerId);
+            List<ClusterJob> containerJobs = jobsByContainer.get(containerId);
+            for (int i = 0; i < containerJobs.size(); i += STATUS_BATCH_SIZE)
             {
-                _log.error("unable to find record of job submission: " + j.getClusterId());
+                //check condor_history
+                List<ClusterJob> batch = containerJobs.subList(i, Math.min(i + STATUS_BATCH_SIZE, containerJobs.size()));
+                Map<String, Pair<String, String>> statuses = getStatusForJobs(batch, c);
+                for (ClusterJob j : batch)
+                {
+                    Pair<String, String> jobStatus = statuses.get(j.getClusterId());
+                    if (jobStatus != null)
+                    {
+                        _log.info("updating job status: " + j.getClusterId() + " / " + jobStatus.first);
+                        updateJobStatus(jobStatus.first, j, jobStatus.second);
+                    }
+                    else
+                    {
+                        _log.error("unable to find record of job submission: " + j.getClusterId());
+                    }
+                }
             }
         }
+
+        updateHistoryInterval(jobs);
+    }
+
+    /**
+     * The scheduled update fires every minute, and always checks the bulk status of running jobs.  The history lookups for jobs that are no longer
+     * in the queue are more expensive, so if no job has been submitted or changed status recently, such as when all jobs are long-running,
+     * each quiet lookup doubles their interval up to MAX_POLLING_INTERVAL.  Any recent activity resets it.
+     */
+    private boolean isHistoryLookupDue()
+    {
+        return System.currentTimeMillis() - _lastHistoryLookup >= _historyInterval;
+    }
+
+    private void updateHistoryInterval(Collection<ClusterJob> jobs)
+    {
+        long now = System.currentTimeMillis();
+        _lastHistoryLookup = now;
+
+        boolean active = now - _lastStatusChange < ACTIVE_WINDOW || jobs.stream().anyMatch(j -> j.getCreated() != null && now - j.getCreated().getTime() < ACTIVE_WINDOW);
+        long interval = active ? 0 : Math.min(MAX_POLLING_INTERVAL, Math.max(MIN_POLLING_INTERVAL, _historyInterval * 2));
+        if (interval != _historyInterval && isDebug())
+        {
+            _log.info("cluster history lookup interval set to: " + (interval / 1000) + "s");
+        }
+
+        _historyInterval = interval;
     }
 
     private boolean doSubmitJobToCluster(ClusterJob j, PipelineJob job) throws PipelineJobException
@@ -472,6 +557,11 @@ protected void updateJobStatus(@Nullable String status, ClusterJob j, @Nullable
     {
         //update DB
         boolean statusChanged = (status != null && !status.equals(j.getStatus()));
+        if (statusChanged)
+        {
+            _lastStatusChange = System.currentTimeMillis();
+        }
+
         j.setLastStatusCheck(new Date());
         j.setStatus(status);
 
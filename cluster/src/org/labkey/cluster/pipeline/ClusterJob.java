@@ -25,6 +25,15 @@
 
     private String _hostname;
     private Date _logModified;
+    private String _resourceKey;
+    private Long _inputSize;
+    private Integer _inputCount;
+    private Integer _requestedCpus;
+    private Integer _requestedMemory;
+    private Integer _maxRssMb;
+    private Integer _cpuSeconds;
+    private Integer _wallSeconds;
+    private String _clusterState;
 
     public int getRowId()
     {
@@ -195,4 +204,94 @@ public void setLogModified(Date logModified)
     {
         _logModified = logModified;
     }
+
+    public String getResourceKey()
+    {
+        return _resourceKey;
+    }
+
+    public void setResourceKey(String resourceKey)
+    {
+        _resourceKey = resourceKey;
+    }
+
+    public Long getInputSize()
+    {
+        return _inputSize;
+    }
+
+    public void setInputSize(Long inputSize)
+    {
+        _inputSize = inputSize;
+    }
+
+    public Integer getInputCount()
+    {
+        return _inputCount;
+    }
+
+    public void setInputCount(Integer inputCount)
+    {
+        _inputCount = inputCount;
+    }
+
+    public Integer getRequestedCpus()
+    {
+        return _requestedCpus;
+    }
+
+    public void setRequestedCpus(Integer requestedCpus)
+    {
+        _requestedCpus = requestedCpus;
+    }
+
+    public Integer getRequestedMemory()
+    {
+        return _requestedMemory;
+    }
+
+    public void setRequestedMemory(Integer requestedMemory)
+    {
+        _requestedMemory = requestedMemory;
+    }
+
+    public Integer getMaxRssMb()
+    {
+        return _maxRssMb;
+    }
+
+    public void setMaxRssMb(Integer maxRssMb)
+    {
+        _maxRssMb = maxRssMb;
+    }
+
+    public Integer getCpuSeconds()
+    {
+        return _cpuSeconds;
+    }
+
+    public void setCpuSeconds(Integer cpuSeconds)
+    {
+        _cpuSeconds = cpuSeconds;
+    }
+
+    public Integer getWallSeconds()
+    {
+        return _wallSeconds;
+    }
+
+    public void setWallSeconds(Integer wallSeconds)
+    {
+        _wallSeconds = wallSeconds;
+    }
+
+    public String getClusterState()
+    {
+        return _clusterState;
+    }
+
+    public void setClusterState(String clusterState)
+    {
+        _clusterState = clusterState;
+    }
 }
@@ -18,8 +18,10 @@
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -116,7 +118,7 @@ public String getType()
     protected List<String> submitJobToCluster(ClusterJob j, PipelineJob job) throws PipelineJobException
     {
         //build submit script
-        File submitScript = createSubmitScript(job);
+        File submitScript = createSubmitScript(j, job);
 
         Map<String, String> ctx = getBaseCtx(job.getContainer());
         ctx.put("submitScript", getConfig().getClusterPath(submitScript));
@@ -157,7 +159,7 @@ else if (line.startsWith("** "))
         return ret;
     }
 
-    private File createSubmitScript(PipelineJob job) throws PipelineJobException
+    private File createSubmitScript(ClusterJob j, PipelineJob job) throws PipelineJobException
     {
         try
         {
@@ -229,6 +231,10 @@ private File createSubmitScript(PipelineJob job) throws PipelineJobException
                         writer.write("request_memory = " + ram + " GB\n");
                     }
 
+                    //recorded so that later jobs can compare the resources requested to those used
+                    j.setRequestedCpus(cpus);
+                    j.setRequestedMemory(ram);
+
                     List<String> environment = new ArrayList<>();
                     if (cpus != null)
                     {
@@ -327,14 +333,27 @@ public PipelineJob.TaskStatus getTaskStatus()
     @Override
     protected Pair<String, String> getStatusForJob(ClusterJob job, Container c)
     {
+        return getStatusForJobs(Collections.singletonList(job), c).get(job.getClusterId());
+    }
+
+    /**
+     * Checks all jobs using a single condor_history call, which accepts multiple cluster IDs.
+     */
+    @Override
+    protected Map<String, Pair<String, String>> getStatusForJobs(List<ClusterJob> jobs, Container c)
+    {
+        Set<String> clusterIds = new LinkedHashSet<>();
+        jobs.forEach(j -> clusterIds.add(j.getClusterId()));
+
         Map<String, String> ctx = getBaseCtx(c);
-        ctx.put("clusterId", job.getClusterId());
+        ctx.put("clusterId", StringUtils.join(clusterIds, " "));
         String command = getConfig().getHistoryCommandExpr().eval(ctx);
         if (command == null)
         {
             throw new IllegalArgumentException("History command was null: " + String.valueOf(getConfig().getHistoryCommandExpr()));
         }
 
+        Map<String, String> statuses = new HashMap<>();
         List<String> ret = execute(command);
         if (ret != null)
         {
@@ -364,15 +383,18 @@ protected Pair<String, String> getStatusForJob(ClusterJob job, Container c)
                         }
 
                         String id = StringUtils.trimToNull(tokens[0]);
-                        if (!id.equals(job.getClusterId()))
+                        if (!clusterIds.contains(id))
                         {
-                            _log.error("incorrect line found when calling condor_history for: " + job.getClusterId());
+                            _log.error("incorrect line found when calling condor_history for: " + StringUtils.join(clusterIds, ", "));
                             _log.error(line);
                             continue;
                         }
 
-                        String s = translateCondorStatusToTaskStatus(StringUtils.trimToNull(tokens[5]));
-                        return s != null ? Pair.of(s, null) : null;
+                        //NOTE: the history is listed most recent first, so only the first line for a given job is used
+                        if (!statuses.containsKey(id))
+                        {
+                            statuses.put(id, translateCondorStatusToTaskStatus(StringUtils.trimToNull(tokens[5])));
+                        }
                     }
                 }
                 else if (line.startsWith("ID "))
@@ -383,26 +405,39 @@ else if (line.startsWith("ID "))
         }
 
         //if not found in condor_history, it could mean it is sitting in the queue
-        String status = getStatusFromQueue(job.getClusterId());
-        if (status != null)
+        Set<String> missing = new HashSet<>();
+        clusterIds.stream().filter(id -> statuses.get(id) == null).forEach(missing::add);
+        if (!missing.isEmpty())
         {
-            return Pair.of(status, null);
+            statuses.putAll(getStatusFromQueue(missing));
         }
 
-        checkForCompletedJob(job);
+        Map<String, Pair<String, String>> results = new HashMap<>();
+        for (ClusterJob job : jobs)
+        {
+            String status = statuses.get(job.getClusterId());
+            if (status != null)
+            {
+                results.put(job.getClusterId(), Pair.of(status, null));
+                continue;
+            }
 
-        //indicates we never hit the header
-        _log.error("Error checking htcondor job status for job: " + job.getClusterId());
-        _log.error(StringUtils.join(ret, "\n"));
+            checkForCompletedJob(job);
+
+            //indicates we never hit the header
+            _log.error("Error checking htcondor job status for job: " + job.getClusterId());
+            _log.error(StringUtils.join(ret, "\n"));
+        }
 
-        return null;
+        return results;
     }
 
     /**
-     * @return The string status, always translated to the LabKey TaskStatus instead of raw condor code
+     * @return The status of any of these jobs found in the queue, keyed by clusterId, always translated to the LabKey TaskStatus instead of raw condor code
      */
-    private String getStatusFromQueue(String clusterId)
+    private Map<String, String> getStatusFromQueue(Set<String> clusterIds)
     {
+        Map<String, String> statuses = new HashMap<>();
         String command = getConfig().getStatusCommandExpr().eval(getBaseCtx(ContainerManager.getRoot()));
         List<String> ret = execute(command);
         if (ret != null)
@@ -432,9 +467,13 @@ private String getStatusFromQueue(String clusterId)
                         }
 
                         String id = StringUtils.trimToNull(tokens[0]);
-                        if (clusterId.equals(id))
+                        if (clusterIds.contains(id))
                         {
-                            return translateCondorStatusToTaskStatus(StringUtils.trimToNull(tokens[5]));
+                            String status = translateCondorStatusToTaskStatus(StringUtils.trimToNull(tokens[5]));
+                            if (status != null)
+                            {
+                                statuses.put(id, status);
+                            }
                         }
                     }
                 }
@@ -452,7 +491,7 @@ else if (line.startsWith("ID "))
             }
         }
 
-        return null;
+        return statuses;
     }
 
     private String translateCondorStatusToTaskStatus(String status)
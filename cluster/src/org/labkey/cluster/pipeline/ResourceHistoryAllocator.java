@@ -0,0 +1,300 @@
+package org.labkey.cluster.pipeline;
+
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.cluster.ClusterResourceAllocator;
+import org.labkey.api.data.CompareType;
+import org.labkey.api.data.SimpleFilter;
+import org.labkey.api.data.Sort;
+import org.labkey.api.data.TableInfo;
+import org.labkey.api.data.TableSelector;
+import org.labkey.api.pipeline.PipelineJob;
+import org.labkey.api.pipeline.RemoteExecutionEngine;
+import org.labkey.api.pipeline.TaskId;
+import org.labkey.api.pipeline.file.FileAnalysisJobSupport;
+import org.labkey.api.query.FieldKey;
+import org.labkey.cluster.ClusterManager;
+import org.labkey.cluster.ClusterSchema;
+import org.labkey.cluster.ClusterServiceImpl;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Estimates the CPUs and memory to request for a job from the usage of previously completed submissions of the same task and resource key,
+ * as recorded from the cluster's accounting (i.e. sacct).  Memory is scaled by input size, using the completed jobs with the most similar input size,
+ * and a safety margin is added to both.  If there is not enough history, this returns null and the engine's defaults are used.
+ * If submissions since the last successful one ran out of memory, the memory they used is treated as a lower bound and escalated, regardless of history.
+ *
+ * This is enabled per-folder using the PredictResourceRequests module property.  It is registered at the lowest priority, so allocators from other
+ * modules that set explicit values take precedence.
+ */
+public class ResourceHistoryAllocator implements ClusterResourceAllocator
+{
+    public static final int PRIORITY = Integer.MIN_VALUE;
+
+    private static final String COMPLETE = PipelineJob.TaskStatus.complete.name().toUpperCase();
+    private static final String ERROR = PipelineJob.TaskStatus.error.name().toUpperCase();
+
+    private static final int MIN_HISTORY = 3;
+    private static final int MAX_HISTORY = 50;
+    private static final int NEAREST_BY_INPUT_SIZE = 5;
+    private static final int MIN_WALL_SECONDS = 60;
+    private static final double SAFETY_MARGIN = 1.25;
+    private static final double OUT_OF_MEMORY_ESCALATION = 1.5;
+    private static final int MAX_RESOURCE_KEY_LENGTH = 1000;
+
+    public static final String OUT_OF_MEMORY_STATE = "OUT_OF_MEMORY";
+
+    public static class Factory implements ClusterResourceAllocator.Factory
+    {
+        @Override
+        public ClusterResourceAllocator getAllocator()
+        {
+            return new ResourceHistoryAllocator();
+        }
+
+        @Override
+        public @Nullable Integer getPriority(TaskId taskId)
+        {
+            return PRIORITY;
+        }
+    }
+
+    @Override
+    public @Nullable Integer getMaxRequestCpus(PipelineJob job)
+    {
+        List<ClusterJob> history = getHistory(job, getRecentJobs(job));
+        if (history == null)
+        {
+            return null;
+        }
+
+        //this is the average number of cores in use for the life of the job
+        double maxUtilization = 0;
+        int maxRequested = 0;
+        for (ClusterJob j : history)
+        {
+            if (j.getCpuSeconds() == null || j.getWallSeconds() == null || j.getRequestedCpus() == null || j.getWallSeconds() < MIN_WALL_SECONDS)
+            {
+                continue;
+            }
+
+            maxUtilization = Math.max(maxUtilization, (double)j.getCpuSeconds() / j.getWallSeconds());
+            maxRequested = Math.max(maxRequested, j.getRequestedCpus());
+        }
+
+        if (maxRequested == 0)
+        {
+            return null;
+        }
+
+        //NOTE: jobs are never given more than the most previously requested, since utilization cannot show whether more would have been used
+        int cpus = Math.max(1, Math.min(maxRequested, (int)Math.ceil(maxUtilization * SAFETY_MARGIN)));
+        job.getLogger().debug("estimated CPUs from " + history.size() + " previous jobs: " + cpus + ", max average cores used: " + String.format("%.2f", maxUtilization));
+
+        return cpus;
+    }
+
+    @Override
+    public @Nullable Integer getMaxRequestMemory(PipelineJob job)
+    {
+        List<ClusterJob> recentJobs = getRecentJobs(job);
+        Integer predicted = predictMemory(job, getHistory(job, recentJobs));
+        Integer lowerBound = getOutOfMemoryLowerBound(job, recentJobs);
+        if (lowerBound == null)
+        {
+            return predicted;
+        }
+
+        return predicted == null ? lowerBound : Math.max(predicted, lowerBound);
+    }
+
+    @Nullable
+    private Integer predictMemory(PipelineJob job, @Nullable List<ClusterJob> history)
+    {
+        if (history == null)
+        {
+            return null;
+        }
+
+        long inputSize = getInputSize(job);
+        List<ClusterJob> nearest = history.stream()
+                .filter(j -> j.getInputSize() != null)
+                .sorted(Comparator.comparingDouble(j -> Math.abs(Math.log((inputSize + 1.0) / (j.getInputSize() + 1.0)))))
+                .limit(NEAREST_BY_INPUT_SIZE)
+                .collect(Collectors.toList());
+
+        if (nearest.isEmpty())
+        {
+            return null;
+        }
+
+        //memory is assumed to scale with input size for larger inputs, but is not reduced for smaller inputs, since some usage is fixed
+        double predictedMb = 0;
+        int maxRequested = 0;
+        for (ClusterJob j : nearest)
+        {
+            double scale = j.getInputSize() > 0 && inputSize > j.getInputSize() ? (double)inputSize / j.getInputSize() : 1.0;
+            predictedMb = Math.max(predictedMb, j.getMaxRssMb() * scale);
+            maxRequested = Math.max(maxRequested, j.getRequestedMemory() == null ? 0 : j.getRequestedMemory());
+        }
+
+        int gb = Math.max(1, (int)Math.ceil(predictedMb * SAFETY_MARGIN / 1024));
+        if (maxRequested > 0)
+        {
+            //avoid extrapolating to a request the cluster is unlikely to be able to satisfy
+            gb = Math.min(gb, 2 * maxRequested);
+        }
+
+        job.getLogger().debug("estimated memory from " + nearest.size() + " previous jobs: " + gb + "GB, input size: " + inputSize);
+
+        return gb;
+    }
+
+    @Override
+    public void addExtraSubmitScriptLines(PipelineJob job, RemoteExecutionEngine engine, List<String> existingExtraLines)
+    {
+
+    }
+
+    /**
+     * @return The most recent completed or failed submissions for this task and resource key, newest first, or null if resources should not be predicted for this job
+     */
+    @Nullable
+    private List<ClusterJob> getRecentJobs(PipelineJob job)
+    {
+        if (job.getActiveTaskId() == null || !ClusterManager.get().isPredictResourceRequests(job.getContainer()))
+        {
+            return null;
+        }
+
+        TableInfo ti = ClusterSchema.getInstance().getSchema().getTable(ClusterSchema.CLUSTER_JOBS);
+        SimpleFilter filter = new SimpleFilter(FieldKey.fromString("activeTaskId"), job.getActiveTaskId().toString());
+        filter.addCondition(FieldKey.fromString("resourceKey"), getResourceKey(job));
+        filter.addCondition(FieldKey.fromString("status"), Arrays.asList(COMPLETE, ERROR), CompareType.IN);
+
+        TableSelector ts = new TableSelector(ti, filter, new Sort("-rowId"));
+        ts.setMaxRows(MAX_HISTORY);
+
+        return ts.getArrayList(ClusterJob.class);
+    }
+
+    /**
+     * @return The completed submissions that have usage recorded, or null if there are too few
+     */
+    @Nullable
+    private List<ClusterJob> getHistory(PipelineJob job, @Nullable List<ClusterJob> recentJobs)
+    {
+        if (recentJobs == null)
+        {
+            return null;
+        }
+
+        List<ClusterJob> history = recentJobs.stream().filter(j -> COMPLETE.equals(j.getStatus()) && j.getMaxRssMb() != null).collect(Collectors.toList());
+        if (history.size() < MIN_HISTORY)
+        {
+            job.getLogger().debug("not enough completed jobs to estimate resources: " + history.size());
+            return null;
+        }
+
+        return history;
+    }
+
+    /**
+     * @return The memory, in GB, needed by submissions that ran out of memory since the most recent successful one, or null if there are none.
+     * The peak usage of these jobs is only a lower bound on what they needed, so it is escalated.
+     */
+    @Nullable
+    private Integer getOutOfMemoryLowerBound(PipelineJob job, @Nullable List<ClusterJob> recentJobs)
+    {
+        if (recentJobs == null)
+        {
+            return null;
+        }
+
+        double neededMb = 0;
+        for (ClusterJob j : recentJobs)
+        {
+            if (COMPLETE.equals(j.getStatus()))
+            {
+                break;
+            }
+
+            if (!OUT_OF_MEMORY_STATE.equals(j.getClusterState()))
+            {
+                continue;
+            }
+
+            //the requested memory is used if usage was not recorded, since the job reached it
+            Integer usedMb = j.getMaxRssMb() != null ? j.getMaxRssMb() : (j.getRequestedMemory() == null ? null : j.getRequestedMemory() * 1024);
+            if (usedMb != null)
+            {
+                neededMb = Math.max(neededMb, usedMb * OUT_OF_MEMORY_ESCALATION);
+            }
+        }
+
+        if (neededMb == 0)
+        {
+            return null;
+        }
+
+        int gb = (int)Math.ceil(neededMb / 1024);
+        job.getLogger().debug("previous job(s) ran out of memory, requesting at least: " + gb + "GB");
+
+        return gb;
+    }
+
+    /**
+     * @return The task-independent portion of the key used to match jobs doing the same work, combining the job class with any keys provided by other allocators
+     */
+    public static String getResourceKey(PipelineJob job)
+    {
+        StringBuilder sb = new StringBuilder(job.getClass().getName());
+        if (job.getActiveTaskId() != null)
+        {
+            for (ClusterResourceAllocator.Factory fact : ClusterServiceImpl.get().getAllocators(job.getActiveTaskId()))
+            {
+                String key = fact.getAllocator().getResourceKey(job);
+                if (key != null)
+                {
+                    sb.append(":").append(key);
+                }
+            }
+        }
+
+        //the column is limited in length, so long keys are truncated and made distinct using a hash of the full key
+        if (sb.length() > MAX_RESOURCE_KEY_LENGTH)
+        {
+            String hash = Integer.toHexString(sb.toString().hashCode());
+            return sb.substring(0, MAX_RESOURCE_KEY_LENGTH - hash.length() - 1) + ":" + hash;
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * @return The total size, in bytes, of the job's input files, if known
+     */
+    public static long getInputSize(PipelineJob job)
+    {
+        if (!(job instanceof FileAnalysisJobSupport))
+        {
+            return 0;
+        }
+
+        return ((FileAnalysisJobSupport)job).getInputFiles().stream().filter(f -> f != null && f.isFile()).mapToLong(File::length).sum();
+    }
+
+    public static int getInputCount(PipelineJob job)
+    {
+        if (!(job instanceof FileAnalysisJobSupport))
+        {
+            return 0;
+        }
+
+        return ((FileAnalysisJobSupport)job).getInputFiles().size();
+    }
+}
@@ -4,6 +4,7 @@
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.labkey.api.cluster.ClusterResourceAllocator;
 import org.labkey.api.collections.CaseInsensitiveHashSet;
 import org.labkey.api.data.Container;
@@ -20,12 +21,16 @@
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.stream.Collectors;
 
 /**
  * Created by bimber on 5/25/2017.
@@ -65,7 +70,7 @@ public void doScheduledUpdate() throws JobExecutionException
     protected List<String> submitJobToCluster(ClusterJob j, PipelineJob job) throws PipelineJobException
     {
         //build submit script
-        File submitScript = createSubmitScript(job);
+        File submitScript = createSubmitScript(j, job);
 
         Map<String, String> ctx = getBaseCtx(job.getContainer());
         ctx.put("submitScript", getConfig().getClusterPath(submitScript));
@@ -194,28 +199,52 @@ protected Set<String> updateStatusForAllJobs() throws PipelineJobException
     @Override
     protected Pair<String, String> getStatusForJob(ClusterJob job, Container c)
     {
-        Map<String, String> ctx = getBaseCtx(c);
-        ctx.put("clusterId", job.getClusterId());
         if (job.getClusterId() == null)
         {
             _log.error("clusterId was null for job: " + job.getRowId() + " / " + job.getStatus());
         }
 
+        return getStatusForJobs(Collections.singletonList(job), c).get(job.getClusterId());
+    }
+
+    /**
+     * Checks all jobs using a single sacct call, which accepts a comma-separated list of job IDs.
+     */
+    @Override
+    protected Map<String, Pair<String, String>> getStatusForJobs(List<ClusterJob> jobs, Container c)
+    {
+        Map<String, ClusterJob> jobMap = new LinkedHashMap<>();
+        jobs.stream().filter(j -> j.getClusterId() != null).forEach(j -> jobMap.put(j.getClusterId(), j));
+
+        Map<String, Pair<String, String>> ret = new HashMap<>();
+        if (jobMap.isEmpty())
+        {
+            return ret;
+        }
+
+        Map<String, String> ctx = getBaseCtx(c);
+        ctx.put("clusterId", StringUtils.join(jobMap.keySet(), ","));
+
         String command = getConfig().getHistoryCommandExpr().eval(ctx);
-        List<String> ret = execute(command);
-        if (ret != null)
+        List<String> output = execute(command);
+        Map<String, LinkedHashSet<String>> statusMap = new HashMap<>();
+        if (output != null)
         {
             //verify success
             boolean headerFound = false;
             boolean foundJobLine = false;
-            LinkedHashSet<String> statuses = new LinkedHashSet<>();
             List<String> header = null;
             int jobIdx = -1;
             int stateIdx = -1;
             int hostnameIdx = -1;
-            for (String line : ret)
+            int maxRssIdx = -1;
+            int totalCpuIdx = -1;
+            int elapsedIdx = -1;
+            List<int[]> columnBounds = null;
+            for (String rawLine : output)
             {
-                line = StringUtils.trimToNull(line);
+                //NOTE: the untrimmed line is retained for columns read by position
+                String line = StringUtils.trimToNull(rawLine);
                 if (line == null)
                 {
                     continue;
@@ -228,6 +257,9 @@ protected Pair<String, String> getStatusForJob(ClusterJob job, Container c)
                     jobIdx = header.indexOf("JOBID");
                     stateIdx = header.indexOf("STATE");
                     hostnameIdx = header.indexOf("NODELIST");
+                    maxRssIdx = header.indexOf("MAXRSS");
+                    totalCpuIdx = header.indexOf("TOTALCPU");
+                    elapsedIdx = header.indexOf("ELAPSED");
 
                     if (stateIdx == -1)
                     {
@@ -244,6 +276,7 @@ protected Pair<String, String> getStatusForJob(ClusterJob job, Container c)
                 else if (foundJobLine && line.startsWith("------------"))
                 {
                     headerFound = true;
+                    columnBounds = getColumnBounds(rawLine);
                 }
                 else if (headerFound)
                 {
@@ -251,19 +284,57 @@ else if (headerFound)
                     {
                         String[] tokens = line.split("( )+");
                         String id = StringUtils.trimToNull(tokens[jobIdx]);
-                        if (id.equals(job.getClusterId()))
+                        if (id == null)
+                        {
+                            continue;
+                        }
+
+                        //NOTE: job steps are reported as separate lines (i.e. 1234.batch), and only the job itself is used for status
+                        if (jobMap.containsKey(id))
                         {
-                            statuses.add(StringUtils.trimToNull(tokens[stateIdx]));
+                            statusMap.computeIfAbsent(id, x -> new LinkedHashSet<>()).add(StringUtils.trimToNull(tokens[stateIdx]));
                         }
 
-                        if (hostnameIdx > -1)
+                        ClusterJob job = jobMap.get(id.split("\\.")[0]);
+                        if (job != null)
                         {
-                            String hostname = tokens.length > hostnameIdx ? StringUtils.trimToNull(tokens[hostnameIdx]) : null;
-                            if (hostname != null)
+                            //NOTE: these columns are often blank, so they are read using the column widths rather than splitting on whitespace
+                            String hostname = getFixedWidthValue(rawLine, columnBounds, hostnameIdx);
+                            if (hostname != null && !hostname.equals(job.getHostname()))
+                            {
+                                job.setHostname(hostname);
+                            }
+
+                            //NOTE: slurm often reports OUT_OF_MEMORY only for the step that exceeded its limit, so this takes precedence over the state of the job itself
+                            String state = getFixedWidthValue(rawLine, columnBounds, stateIdx);
+                            if (isOutOfMemory(state))
+                            {
+                                job.setClusterState(ResourceHistoryAllocator.OUT_OF_MEMORY_STATE);
+                            }
+                            else if (state != null && id.equals(job.getClusterId()) && !ResourceHistoryAllocator.OUT_OF_MEMORY_STATE.equals(job.getClusterState()))
+                            {
+                                job.setClusterState(state);
+                            }
+
+                            Integer maxRss = parseSlurmMemoryMb(getFixedWidthValue(rawLine, columnBounds, maxRssIdx));
+                            if (maxRss != null && (job.getMaxRssMb() == null || maxRss > job.getMaxRssMb()))
                             {
-                                if (job.getHostname() == null || !job.getHostname().equals(hostname))
+                                job.setMaxRssMb(maxRss);
+                            }
+
+                            //the line for the job itself includes the CPU time of all steps
+                            if (id.equals(job.getClusterId()))
+                            {
+                                Integer totalCpu = parseSlurmDurationSeconds(getFixedWidthValue(rawLine, columnBounds, totalCpuIdx));
+                                if (totalCpu != null)
                                 {
-                                    job.setHostname(hostname);
+                                    job.setCpuSeconds(totalCpu);
+                                }
+
+                                Integer elapsed = parseSlurmDurationSeconds(getFixedWidthValue(rawLine, columnBounds, elapsedIdx));
+                                if (elapsed != null)
+                                {
+                                    job.setWallSeconds(elapsed);
                                 }
                             }
                         }
@@ -275,35 +346,47 @@ else if (headerFound)
                     }
                 }
             }
+        }
 
+        for (String clusterId : statusMap.keySet())
+        {
             //NOTE: in the situation where a job is evicted and is then cancelled while waiting, we need to inspect more lines to verify whether this job is actually cancelled
-            if (!statuses.isEmpty())
+            LinkedHashSet<String> statuses = statusMap.get(clusterId);
+            String status = statuses.stream().skip(statuses.size()-1).findFirst().get();
+            if (statuses.size() > 1)
             {
-                String status = statuses.stream().skip(statuses.size()-1).findFirst().get();
-                if (statuses.size() > 1)
-                {
-                    _log.error("more than one status returned for job " + job.getClusterId() + ": " + StringUtils.join(statuses, ";") + ", using: " + status);
-                }
+                _log.error("more than one status returned for job " + clusterId + ": " + StringUtils.join(statuses, ";") + ", using: " + status);
+            }
 
-                return translateSlurmStatusToTaskStatus(status);
+            Pair<String, String> translated = translateSlurmStatusToTaskStatus(status);
+            if (translated != null)
+            {
+                ret.put(clusterId, translated);
             }
         }
 
-        //if not found in condor_history, it could mean it is sitting in the queue
-        Pair<String, String> status = getStatusFromQueue(job);
-        if (status != null)
+        //if not found in sacct, it could mean it is sitting in the queue
+        List<ClusterJob> missing = jobMap.values().stream().filter(j -> !ret.containsKey(j.getClusterId())).collect(Collectors.toList());
+        if (!missing.isEmpty())
         {
-            return status;
+            ret.putAll(getStatusFromQueue(missing));
         }
 
-        checkForCompletedJob(job);
+        for (ClusterJob job : missing)
+        {
+            if (ret.containsKey(job.getClusterId()))
+            {
+                continue;
+            }
 
+            checkForCompletedJob(job);
 
-        //indicates we never found status
-        _log.error("Error checking slurm job status for job: " + job.getClusterId());
-        _log.error(StringUtils.join(ret, "\n"));
+            //indicates we never found status
+            _log.error("Error checking slurm job status for job: " + job.getClusterId());
+            _log.error(StringUtils.join(output, "\n"));
+        }
 
-        return null;
+        return ret;
     }
 
     @Override
@@ -341,7 +424,7 @@ protected boolean removeJob(ClusterJob clusterJob)
         return success;
     }
 
-    private File createSubmitScript(PipelineJob job) throws PipelineJobException
+    private File createSubmitScript(ClusterJob j, PipelineJob job) throws PipelineJobException
     {
         try
         {
@@ -421,6 +504,10 @@ private File createSubmitScript(PipelineJob job) throws PipelineJobException
                         writer.write("#SBATCH --mem=" + (ram + 2) + "000\n");
                     }
 
+                    //recorded so that later jobs can compare the resources requested to those used
+                    j.setRequestedCpus(cpus);
+                    j.setRequestedMemory(ram);
+
                     List<String> environment = new ArrayList<>();
                     if (cpus != null)
                     {
@@ -477,6 +564,139 @@ private File createSubmitScript(PipelineJob job) throws PipelineJobException
         }
     }
 
+    /**
+     * @return The start and end of each column, based on the line of dashes sacct prints below the header
+     */
+    static List<int[]> getColumnBounds(String dashLine)
+    {
+        List<int[]> ret = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= dashLine.length(); i++)
+        {
+            boolean isDash = i < dashLine.length() && dashLine.charAt(i) == '-';
+            if (isDash && start == -1)
+            {
+                start = i;
+            }
+            else if (!isDash && start != -1)
+            {
+                ret.add(new int[]{start, i});
+                start = -1;
+            }
+        }
+
+        return ret;
+    }
+
+    static String getFixedWidthValue(String line, List<int[]> columnBounds, int idx)
+    {
+        if (idx == -1 || columnBounds == null || idx >= columnBounds.size())
+        {
+            return null;
+        }
+
+        int[] bounds = columnBounds.get(idx);
+        if (bounds[0] >= line.length())
+        {
+            return null;
+        }
+
+        return StringUtils.trimToNull(line.substring(bounds[0], Math.min(bounds[1], line.length())));
+    }
+
+    /**
+     * Parses values like MaxRSS, which use a K/M/G/T suffix.  Values without a suffix are in bytes.
+     */
+    static Integer parseSlurmMemoryMb(String val)
+    {
+        val = StringUtils.trimToNull(val);
+        if (val == null)
+        {
+            return null;
+        }
+
+        double multiplier = 1.0 / (1024 * 1024);
+        switch (Character.toUpperCase(val.charAt(val.length() - 1)))
+        {
+            case 'K':
+                multiplier = 1.0 / 1024;
+                break;
+            case 'M':
+                multiplier = 1;
+                break;
+            case 'G':
+                multiplier = 1024;
+                break;
+            case 'T':
+                multiplier = 1024 * 1024;
+                break;
+        }
+
+        if (!Character.isDigit(val.charAt(val.length() - 1)))
+        {
+            val = val.substring(0, val.length() - 1);
+        }
+
+        try
+        {
+            return (int)Math.ceil(Double.parseDouble(val) * multiplier);
+        }
+        catch (NumberFormatException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Parses durations like TotalCPU and Elapsed, which use the format [DD-][HH:]MM:SS[.mmm]
+     */
+    static Integer parseSlurmDurationSeconds(String val)
+    {
+        val = StringUtils.trimToNull(val);
+        if (val == null)
+        {
+            return null;
+        }
+
+        try
+        {
+            int days = 0;
+            int idx = val.indexOf('-');
+            if (idx > -1)
+            {
+                days = Integer.parseInt(val.substring(0, idx));
+                val = val.substring(idx + 1);
+            }
+
+            double seconds = 0;
+            for (String token : val.split(":"))
+            {
+                seconds = seconds * 60 + Double.parseDouble(token);
+            }
+
+            return (int)Math.round(days * 86400 + seconds);
+        }
+        catch (NumberFormatException e)
+        {
+            return null;
+        }
+    }
+
+    static boolean isOutOfMemory(@Nullable String status)
+    {
+        if (status == null)
+            return false;
+
+        try
+        {
+            return StatusType.parseValue(status) == StatusType.OOM;
+        }
+        catch (IllegalArgumentException e)
+        {
+            return false;
+        }
+    }
+
     private Pair<String, String> translateSlurmStatusToTaskStatus(String status)
     {
         if (status == null)
@@ -504,6 +724,8 @@ private Pair<String, String> translateSlurmStatusToTaskStatus(String status)
         CG("Running", PipelineJob.TaskStatus.running, Arrays.asList("COMPLETING")),
         F("Failed", PipelineJob.TaskStatus.error),
         NF("Failed", PipelineJob.TaskStatus.error, Arrays.asList("NODE_FAIL")),
+        //NOTE: OUT_OF_ME is the value truncated to sacct's default column width
+        OOM("Out of Memory", PipelineJob.TaskStatus.error, Arrays.asList("OUT_OF_MEMORY", "OUT_OF_ME"), "Job exceeded its memory request"),
         PD("Submitted, Idle", PipelineJob.TaskStatus.waiting, Arrays.asList("PENDING")),
         PR("Preempted", PipelineJob.TaskStatus.waiting, null, "Job preempted"),
         R("Running", PipelineJob.TaskStatus.running),
@@ -579,10 +801,14 @@ else if (t._aliases.contains(value))
     }
 
     /**
-     * @return The string status, always translated to the LabKey TaskStatus instead of raw condor code
+     * @return The status of any of these jobs found in the queue, keyed by clusterId, always translated to the LabKey TaskStatus instead of raw slurm code
      */
-    private Pair<String, String> getStatusFromQueue(ClusterJob job)
+    private Map<String, Pair<String, String>> getStatusFromQueue(Collection<ClusterJob> jobs)
     {
+        Map<String, ClusterJob> jobMap = new HashMap<>();
+        jobs.forEach(j -> jobMap.put(j.getClusterId(), j));
+
+        Map<String, Pair<String, String>> statuses = new HashMap<>();
         String command = getConfig().getStatusCommandExpr().eval(getBaseCtx(ContainerManager.getRoot()));
         List<String> ret = execute(command);
         if (ret != null)
@@ -630,7 +856,8 @@ private Pair<String, String> getStatusFromQueue(ClusterJob job)
                     {
                         String[] tokens = line.split("( )+");
                         String id = StringUtils.trimToNull(tokens[jobIdx]);
-                        if (job.getClusterId().equals(id))
+                        ClusterJob job = id == null ? null : jobMap.get(id);
+                        if (job != null)
                         {
                             if (hostnameIdx > -1)
                             {
@@ -641,7 +868,11 @@ private Pair<String, String> getStatusFromQueue(ClusterJob job)
                                 }
                             }
 
-                            return translateSlurmStatusToTaskStatus(StringUtils.trimToNull(tokens[stateIdx]));
+                            Pair<String, String> status = translateSlurmStatusToTaskStatus(StringUtils.trimToNull(tokens[stateIdx]));
+                            if (status != null)
+                            {
+                                statuses.put(id, status);
+                            }
                         }
                     }
                     catch (Exception e)
@@ -660,6 +891,6 @@ private Pair<String, String> getStatusFromQueue(ClusterJob job)
             }
         }
 
-        return null;
+        return statuses;
     }
 }
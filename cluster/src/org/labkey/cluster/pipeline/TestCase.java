@@ -32,6 +32,7 @@
 import java.io.File;
 import java.io.IOException;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -112,6 +113,29 @@ public void basicTest() throws Exception
         }
     }
 
+    @Test
+    public void testSacctUsage() throws Exception
+    {
+        String header = "------------ ---------- --------------- ---------- ---------- ----------";
+        List<int[]> bounds = SlurmExecutionEngine.getColumnBounds(header);
+        assertEquals(6, bounds.size());
+
+        String jobLine = "1234          COMPLETED          node01              01:02:03   00:30:00";
+        String batchLine = "1234.batch    COMPLETED          node01   2515012K   01:02:03   00:30:00";
+        assertNull(SlurmExecutionEngine.getFixedWidthValue(jobLine, bounds, 3));
+        assertEquals("01:02:03", SlurmExecutionEngine.getFixedWidthValue(jobLine, bounds, 4));
+        assertEquals("2515012K", SlurmExecutionEngine.getFixedWidthValue(batchLine, bounds, 3));
+
+        assertEquals(Integer.valueOf(2457), SlurmExecutionEngine.parseSlurmMemoryMb("2515012K"));
+        assertEquals(Integer.valueOf(2560), SlurmExecutionEngine.parseSlurmMemoryMb("2.50G"));
+        assertEquals(Integer.valueOf(0), SlurmExecutionEngine.parseSlurmMemoryMb("0"));
+        assertNull(SlurmExecutionEngine.parseSlurmMemoryMb(""));
+
+        assertEquals(Integer.valueOf(3723), SlurmExecutionEngine.parseSlurmDurationSeconds("01:02:03"));
+        assertEquals(Integer.valueOf(90061), SlurmExecutionEngine.parseSlurmDurationSeconds("1-01:01:01"));
+        assertEquals(Integer.valueOf(124), SlurmExecutionEngine.parseSlurmDurationSeconds("02:03.600"));
+    }
+
     public static class TestRunner implements ClusterService.ClusterRemoteTask
     {
         public long _sleep = 0;
@@ -0,0 +1,962 @@
+package org.labkey.jbrowse;
+
+import htsjdk.tribble.AbstractFeatureReader;
+import htsjdk.tribble.CloseableTribbleIterator;
+import htsjdk.tribble.FeatureReader;
+import htsjdk.tribble.annotation.Strand;
+import htsjdk.tribble.bed.BEDCodec;
+import htsjdk.tribble.bed.BEDFeature;
+import htsjdk.tribble.gff.Gff3Codec;
+import htsjdk.tribble.gff.Gff3Feature;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.api.writer.PrintWriters;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Converts a GFF3 or BED file into a JBrowse/Store/SeqFeature/NCList track, in the same layout produced by flatfile-to-json.pl:
+ * tracks/[label]/[refseq]/ holds trackData.json, the lazily-loaded feature chunks (lf-N.json), the feature density histograms (hist-N-N.json)
+ * and names.txt, which is read by generate-names.pl.  Features are held in memory, like the perl script, but each reference is written on its own thread.
+ */
+public class FlatFileTrackWriter
+{
+    //the approximate size of each lazily-loaded chunk of features, as uncompressed JSON
+    public static final int CHUNK_BYTES = 50000;
+    private static final int HISTOGRAM_CHUNK_SIZE = 10000;
+    private static final int MAX_HISTOGRAM_BINS = 100000;
+    private static final List<String> DEFAULT_NAME_ATTRIBUTES = Arrays.asList("name", "alias", "id");
+
+    private final Logger _log;
+    private final String _label;
+    private final boolean _compress;
+    private final Set<String> _nameAttributes = new LinkedHashSet<>(DEFAULT_NAME_ATTRIBUTES);
+    private final Map<String, List<Feature>> _featuresByRefSeq = new LinkedHashMap<>();
+
+    public FlatFileTrackWriter(Logger log, String label, boolean compress, @Nullable Collection<String> nameAttributes)
+    {
+        _log = log;
+        _label = label;
+        _compress = compress;
+        if (nameAttributes != null)
+        {
+            nameAttributes.forEach(x -> _nameAttributes.add(x.toLowerCase()));
+        }
+    }
+
+    /**
+     * Reads features using htsjdk's Gff3Codec, which links children to their parents.  Lines that share an ID, such as the segments of a discontinuous CDS,
+     * are merged into one feature spanning all of them, as flatfile-to-json.pl does.
+     */
+    public void readGff3(File gff) throws IOException
+    {
+        Set<Gff3Feature> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        try (FeatureReader<Gff3Feature> reader = AbstractFeatureReader.getFeatureReader(gff.getAbsolutePath(), new Gff3Codec(), false); CloseableTribbleIterator<Gff3Feature> it = reader.iterator())
+        {
+            while (it.hasNext())
+            {
+                Gff3Feature gf = it.next();
+
+                //children are written as part of their parent, and each line with a shared ID is returned by the codec separately
+                if (!gf.getParents().isEmpty() || seen.contains(gf))
+                {
+                    continue;
+                }
+
+                addFeature(toFeature(gf, seen));
+            }
+        }
+    }
+
+    /**
+     * Converts this feature and its children, merging any lines that share its ID.  Each line used is added to the supplied set.
+     */
+    private Feature toFeature(Gff3Feature gf, Set<Gff3Feature> seen)
+    {
+        List<Gff3Feature> segments = new ArrayList<>();
+        segments.add(gf);
+        segments.addAll(gf.getCoFeatures());
+        seen.addAll(segments);
+
+        Feature f = new Feature(gf.getContig());
+        f._start = segments.stream().mapToInt(Gff3Feature::getStart).min().getAsInt() - 1;
+        f._end = segments.stream().mapToInt(Gff3Feature::getEnd).max().getAsInt();
+        f._source = ".".equals(gf.getSource()) ? null : gf.getSource();
+        f._type = ".".equals(gf.getType()) ? null : gf.getType();
+        f._strand = gf.getStrand() == Strand.POSITIVE ? 1 : gf.getStrand() == Strand.NEGATIVE ? -1 : 0;
+
+        //NOTE: Gff3Codec represents a missing score or phase as -1
+        f._score = gf.getScore() == -1 ? null : gf.getScore();
+        f._phase = gf.getPhase() == -1 ? null : gf.getPhase();
+
+        Set<Gff3Feature> children = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Gff3Feature segment : segments)
+        {
+            for (Map.Entry<String, List<String>> e : segment.getAttributes().entrySet())
+            {
+                if ("Parent".equals(e.getKey()))
+                {
+                    continue;
+                }
+
+                List<String> values = f._attributes.computeIfAbsent(e.getKey(), x -> new ArrayList<>());
+                e.getValue().stream().filter(x -> !values.contains(x)).forEach(values::add);
+            }
+
+            children.addAll(segment.getChildren());
+        }
+
+        //a child with several parents is written under each of them
+        Set<Gff3Feature> childrenSeen = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Gff3Feature child : children)
+        {
+            if (!childrenSeen.contains(child))
+            {
+                f._subfeatures.add(toFeature(child, childrenSeen));
+            }
+        }
+
+        return f;
+    }
+
+    public void readBed(File bed) throws IOException
+    {
+        try (FeatureReader<BEDFeature> reader = AbstractFeatureReader.getFeatureReader(bed.getAbsolutePath(), new BEDCodec(), false); CloseableTribbleIterator<BEDFeature> it = reader.iterator())
+        {
+            while (it.hasNext())
+            {
+                BEDFeature bf = it.next();
+                Feature f = new Feature(bf.getContig());
+                f._start = bf.getStart() - 1;
+                f._end = bf.getEnd();
+                f._strand = bf.getStrand() == Strand.POSITIVE ? 1 : bf.getStrand() == Strand.NEGATIVE ? -1 : 0;
+                f._score = Float.isNaN(bf.getScore()) ? null : (double)bf.getScore();
+                if (StringUtils.trimToNull(bf.getName()) != null)
+                {
+                    f._attributes.put("Name", Arrays.asList(bf.getName()));
+                }
+
+                addFeature(f);
+            }
+        }
+    }
+
+    private void addFeature(Feature f)
+    {
+        _featuresByRefSeq.computeIfAbsent(f._seqId, x -> new ArrayList<>()).add(f);
+    }
+
+    /**
+     * Writes the features of each reference under dataDir/tracks/[label], and returns the config for this track, equivalent to the entry flatfile-to-json.pl adds to trackList.json
+     */
+    public JSONObject write(File dataDir, String key, int threads) throws IOException
+    {
+        File trackDir = new File(dataDir, "tracks/" + _label);
+        if (!trackDir.exists())
+        {
+            trackDir.mkdirs();
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, _featuresByRefSeq.size())));
+        try
+        {
+            List<Future<?>> futures = new ArrayList<>();
+            for (String refName : _featuresByRefSeq.keySet())
+            {
+                futures.add(executor.submit(() -> {
+                    writeRefSeq(new File(trackDir, refName), refName, _featuresByRefSeq.get(refName));
+
+                    return null;
+                }));
+            }
+
+            for (Future<?> f : futures)
+            {
+                f.get();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        catch (ExecutionException e)
+        {
+            throw e.getCause() instanceof IOException ? (IOException)e.getCause() : new IOException(e.getCause());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        JSONObject style = new JSONObject();
+        style.put("className", "feature");
+
+        JSONObject o = new JSONObject();
+        o.put("label", _label);
+        o.put("key", key);
+        o.put("storeClass", "JBrowse/Store/SeqFeature/NCList");
+        o.put("type", "FeatureTrack");
+        o.put("style", style);
+        o.put("urlTemplate", "tracks/" + _label + "/{refseq}/trackData." + getExtension());
+        if (_compress)
+        {
+            o.put("compress", 1);
+        }
+
+        return o;
+    }
+
+    private String getExtension()
+    {
+        return _compress ? "jsonz" : "json";
+    }
+
+    private void writeRefSeq(File outDir, String refName, List<Feature> features) throws IOException
+    {
+        if (!outDir.exists())
+        {
+            outDir.mkdirs();
+        }
+
+        features.sort(Comparator.comparingInt((Feature f) -> f._start).thenComparing((Feature f) -> f._end, Comparator.reverseOrder()));
+
+        //build the nested containment list: a feature is placed in the sublist of the closest preceding feature that contains it
+        List<Node> topLevel = new ArrayList<>();
+        List<Node> stack = new ArrayList<>();
+        int minStart = Integer.MAX_VALUE;
+        int maxEnd = 0;
+        for (Feature f : features)
+        {
+            minStart = Math.min(minStart, f._start);
+            maxEnd = Math.max(maxEnd, f._end);
+
+            Node n = new Node(f);
+            while (!stack.isEmpty() && stack.get(stack.size() - 1)._feature._end < f._end)
+            {
+                stack.remove(stack.size() - 1);
+            }
+
+            if (stack.isEmpty())
+            {
+                topLevel.add(n);
+            }
+            else
+            {
+                stack.get(stack.size() - 1)._sublist.add(n);
+            }
+            stack.add(n);
+        }
+
+        //top-level features are written to lazily-loaded chunks of roughly CHUNK_BYTES, and the top-level list only holds the extent of each chunk
+        ClassRegistry classes = new ClassRegistry();
+        List<String> encoded = new ArrayList<>(topLevel.size());
+        for (Node n : topLevel)
+        {
+            encoded.add(n.toJSON(classes).toString());
+        }
+        int lazyClass = classes.getIndex(Arrays.asList("Start", "End", "Chunk"), "Sublist");
+
+        JSONArray nclist = new JSONArray();
+        StringBuilder chunk = new StringBuilder();
+        int chunkStart = 0;
+        int chunkEnd = 0;
+        for (int i = 0; i < topLevel.size(); i++)
+        {
+            Feature f = topLevel.get(i)._feature;
+            if (chunk.length() > 0 && chunk.length() + encoded.get(i).length() > CHUNK_BYTES)
+            {
+                nclist.put(writeChunk(outDir, lazyClass, nclist.length(), chunk, chunkStart, chunkEnd));
+                chunk.setLength(0);
+            }
+
+            if (chunk.length() == 0)
+            {
+                chunkStart = f._start;
+                chunkEnd = f._end;
+            }
+
+            chunk.append(chunk.length() == 0 ? "[" : ",").append(encoded.get(i));
+            chunkEnd = Math.max(chunkEnd, f._end);
+        }
+
+        if (chunk.length() > 0)
+        {
+            nclist.put(writeChunk(outDir, lazyClass, nclist.length(), chunk, chunkStart, chunkEnd));
+        }
+
+        JSONObject intervals = new JSONObject();
+        intervals.put("classes", classes._classes);
+        intervals.put("lazyClass", lazyClass);
+        intervals.put("nclist", nclist);
+        intervals.put("minStart", features.isEmpty() ? 0 : minStart);
+        intervals.put("maxEnd", maxEnd);
+        intervals.put("count", features.size());
+        intervals.put("urlTemplate", "lf-{Chunk}." + getExtension());
+
+        JSONObject trackData = new JSONObject();
+        trackData.put("featureCount", features.size());
+        trackData.put("intervals", intervals);
+        trackData.put("histograms", writeHistograms(outDir, features, maxEnd));
+        trackData.put("formatVersion", 1);
+        writeFile(new File(outDir, "trackData." + getExtension()), trackData.toString());
+
+        writeNames(outDir, refName, features);
+    }
+
+    private JSONArray writeChunk(File outDir, int lazyClass, int chunkNum, StringBuilder chunk, int start, int end) throws IOException
+    {
+        chunk.append("]");
+        writeFile(new File(outDir, "lf-" + chunkNum + "." + getExtension()), chunk.toString());
+
+        JSONArray lazy = new JSONArray();
+        lazy.put(lazyClass);
+        lazy.put(start);
+        lazy.put(end);
+        lazy.put(chunkNum);
+
+        return lazy;
+    }
+
+    private JSONObject writeHistograms(File outDir, List<Feature> features, int maxEnd) throws IOException
+    {
+        JSONArray meta = new JSONArray();
+        JSONArray stats = new JSONArray();
+
+        long basesPerBin = 100;
+        while (maxEnd / basesPerBin > MAX_HISTOGRAM_BINS)
+        {
+            basesPerBin *= 10;
+        }
+
+        while (maxEnd > 0)
+        {
+            int totalBins = (int)((maxEnd - 1) / basesPerBin) + 1;
+            int[] counts = new int[totalBins];
+            for (Feature f : features)
+            {
+                for (long bin = f._start / basesPerBin; bin <= (f._end - 1) / basesPerBin && bin < totalBins; bin++)
+                {
+                    counts[(int)bin]++;
+                }
+            }
+
+            long total = 0;
+            int max = 0;
+            for (int chunkNum = 0; chunkNum * HISTOGRAM_CHUNK_SIZE < totalBins; chunkNum++)
+            {
+                JSONArray chunk = new JSONArray();
+                for (int i = chunkNum * HISTOGRAM_CHUNK_SIZE; i < Math.min(totalBins, (chunkNum + 1) * HISTOGRAM_CHUNK_SIZE); i++)
+                {
+                    chunk.put(counts[i]);
+                    total += counts[i];
+                    max = Math.max(max, counts[i]);
+                }
+                writeFile(new File(outDir, "hist-" + basesPerBin + "-" + chunkNum + "." + getExtension()), chunk.toString());
+            }
+
+            JSONObject arrayParams = new JSONObject();
+            arrayParams.put("length", totalBins);
+            arrayParams.put("chunkSize", HISTOGRAM_CHUNK_SIZE);
+            arrayParams.put("urlTemplate", "hist-" + basesPerBin + "-{Chunk}." + getExtension());
+
+            JSONObject m = new JSONObject();
+            m.put("basesPerBin", String.valueOf(basesPerBin));
+            m.put("arrayParams", arrayParams);
+            meta.put(m);
+
+            JSONObject s = new JSONObject();
+            s.put("basesPerBin", String.valueOf(basesPerBin));
+            s.put("max", max);
+            s.put("mean", (double)total / totalBins);
+            stats.put(s);
+
+            if (totalBins == 1)
+            {
+                break;
+            }
+            basesPerBin *= 10;
+        }
+
+        JSONObject ret = new JSONObject();
+        ret.put("meta", meta);
+        ret.put("stats", stats);
+
+        return ret;
+    }
+
+    /**
+     * Each line of names.txt is a JSON array of: the names of the feature, the track label, the name to display, the reference, start and end
+     */
+    private void writeNames(File outDir, String refName, List<Feature> features) throws IOException
+    {
+        try (PrintWriter writer = PrintWriters.getPrintWriter(new File(outDir, "names.txt")))
+        {
+            for (Feature f : features)
+            {
+                //like flatfile-to-json.pl, names are ordered by the name attributes, rather than by their order in the file
+                Set<String> names = new LinkedHashSet<>();
+                for (String attr : _nameAttributes)
+                {
+                    for (String key : f._attributes.keySet())
+                    {
+                        if (attr.equalsIgnoreCase(key))
+                        {
+                            names.addAll(f._attributes.get(key));
+                        }
+                    }
+                }
+
+                if (names.isEmpty())
+                {
+                    continue;
+                }
+
+                String displayName = f._attributes.containsKey("Name") ? f._attributes.get("Name").get(0) : names.iterator().next();
+                JSONArray line = new JSONArray();
+                line.put(new JSONArray(names));
+                line.put(_label);
+                line.put(displayName);
+                line.put(refName);
+                line.put(f._start);
+                line.put(f._end);
+
+                writer.write(line.toString() + "\n");
+            }
+        }
+    }
+
+    private void writeFile(File output, String contents) throws IOException
+    {
+        try (OutputStream out = _compress ? new GZIPOutputStream(new FileOutputStream(output), 64 * 1024) : new FileOutputStream(output))
+        {
+            out.write(contents.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static class Feature
+    {
+        private final String _seqId;
+        private int _start;
+        private int _end;
+        private int _strand;
+        private String _source;
+        private String _type;
+        private Double _score;
+        private Integer _phase;
+        private List<String> _parentIds;
+        private final Map<String, List<String>> _attributes = new LinkedHashMap<>();
+        private final List<Feature> _subfeatures = new ArrayList<>();
+
+        public Feature(String seqId)
+        {
+            _seqId = seqId;
+        }
+
+        /**
+         * Features are stored as arrays: the index of the class, followed by the value of each attribute of that class
+         */
+        public JSONArray toJSON(ClassRegistry classes)
+        {
+            Map<String, Object> values = new LinkedHashMap<>();
+            values.put("Start", _start);
+            values.put("End", _end);
+            values.put("Strand", _strand);
+            if (_source != null)
+                values.put("Source", _source);
+            if (_type != null)
+                values.put("Type", _type);
+            if (_score != null)
+                values.put("Score", _score);
+            if (_phase != null)
+                values.put("Phase", _phase);
+            values.put("Seq_id", _seqId);
+
+            for (String key : _attributes.keySet())
+            {
+                List<String> val = _attributes.get(key);
+                values.putIfAbsent(StringUtils.capitalize(key.toLowerCase()), val.size() == 1 ? val.get(0) : new JSONArray(val));
+            }
+
+            if (!_subfeatures.isEmpty())
+            {
+                _subfeatures.sort(Comparator.comparingInt(f -> f._start));
+
+                JSONArray subfeatures = new JSONArray();
+                _subfeatures.forEach(f -> subfeatures.put(f.toJSON(classes)));
+                values.put("Subfeatures", subfeatures);
+            }
+
+            JSONArray ret = new JSONArray();
+            ret.put(classes.getIndex(new ArrayList<>(values.keySet()), _subfeatures.isEmpty() ? null : "Subfeatures"));
+            values.values().forEach(ret::put);
+
+            return ret;
+        }
+    }
+
+    private static class Node
+    {
+        private final Feature _feature;
+        private final List<Node> _sublist = new ArrayList<>();
+
+        public Node(Feature feature)
+        {
+            _feature = feature;
+        }
+
+        //NOTE: the sublist is not an attribute of the class, so it is stored in the trailing object of ad hoc attributes
+        public JSONArray toJSON(ClassRegistry classes)
+        {
+            JSONArray ret = _feature.toJSON(classes);
+            if (!_sublist.isEmpty())
+            {
+                JSONArray sublist = new JSONArray();
+                _sublist.forEach(n -> sublist.put(n.toJSON(classes)));
+
+                JSONObject adhoc = new JSONObject();
+                adhoc.put("Sublist", sublist);
+                ret.put(adhoc);
+            }
+
+            return ret;
+        }
+    }
+
+    private static class ClassRegistry
+    {
+        private final JSONArray _classes = new JSONArray();
+        private final Map<String, Integer> _indexes = new HashMap<>();
+
+        public int getIndex(List<String> attributes, @Nullable String arrayAttr)
+        {
+            return _indexes.computeIfAbsent(StringUtils.join(attributes, ",") + ";" + arrayAttr, x -> {
+                JSONObject isArrayAttr = new JSONObject();
+                if (arrayAttr != null)
+                {
+                    isArrayAttr.put(arrayAttr, 1);
+                }
+
+                JSONObject o = new JSONObject();
+                o.put("attributes", new JSONArray(attributes));
+                o.put("isArrayAttr", isArrayAttr);
+                _classes.put(o);
+
+                return _classes.length() - 1;
+            });
+        }
+    }
+
+    public static class TestCase extends Assert
+    {
+        private static final Logger _log = LogManager.getLogger(FlatFileTrackWriter.TestCase.class);
+
+        @Test
+        public void testGff3() throws Exception
+        {
+            File dir = Files.createTempDirectory("FlatFileTrackWriter").toFile();
+            try
+            {
+                File gff = new File(dir, "input.gff");
+                try (PrintWriter writer = PrintWriters.getPrintWriter(gff))
+                {
+                    writer.write("##gff-version 3\n");
+                    writer.write("chr1\tsrc\tCDS\t150\t200\t.\t+\t0\tParent=gene1\n");
+                    writer.write("chr1\tsrc\tgene\t100\t500\t.\t+\t.\tID=gene1;Name=Gene%201;Alias=A,B\n");
+                    writer.write("chr1\tsrc\tgene\t120\t300\t5\t-\t.\tID=gene2;Note=nested\n");
+                    writer.write("chr1\tsrc\tgene\t400\t600\t.\t+\t.\tID=gene3\n");
+                    writer.write("chr2\tsrc\tgene\t1\t10\t.\t.\t.\tID=gene4\n");
+                }
+
+                FlatFileTrackWriter writer = new FlatFileTrackWriter(_log, "track1", true, null);
+                writer.readGff3(gff);
+                JSONObject track = writer.write(dir, "Track 1", 2);
+                assertEquals("tracks/track1/{refseq}/trackData.jsonz", track.getString("urlTemplate"));
+                assertEquals("JBrowse/Store/SeqFeature/NCList", track.getString("storeClass"));
+
+                File refDir = new File(dir, "tracks/track1/chr1");
+                JSONObject trackData = new JSONObject(readFile(new File(refDir, "trackData.jsonz")));
+                assertEquals(3, trackData.getInt("featureCount"));
+
+                JSONObject intervals = trackData.getJSONObject("intervals");
+                assertEquals(99, intervals.getInt("minStart"));
+                assertEquals(600, intervals.getInt("maxEnd"));
+
+                //all features fit in one chunk, which the top-level list refers to by the lazy class
+                JSONArray nclist = intervals.getJSONArray("nclist");
+                assertEquals(1, nclist.length());
+                assertEquals(intervals.getInt("lazyClass"), nclist.getJSONArray(0).getInt(0));
+                assertEquals(99, nclist.getJSONArray(0).getInt(1));
+                assertEquals(600, nclist.getJSONArray(0).getInt(2));
+                assertEquals(0, nclist.getJSONArray(0).getInt(3));
+
+                //gene2 is contained in gene1, so it is in the sublist of gene1
+                JSONArray classes = intervals.getJSONArray("classes");
+                JSONArray chunk = new JSONArray(readFile(new File(refDir, "lf-0.jsonz")));
+                assertEquals(2, chunk.length());
+
+                JSONArray gene1 = chunk.getJSONArray(0);
+                JSONArray classAttrs = classes.getJSONObject(gene1.getInt(0)).getJSONArray("attributes");
+                List<String> attrs = new ArrayList<>();
+                for (int i = 0; i < classAttrs.length(); i++)
+                {
+                    attrs.add(classAttrs.getString(i));
+                }
+                //NOTE: the order of attributes within a class is arbitrary
+                assertEquals(new HashSet<>(Arrays.asList("Start", "End", "Strand", "Source", "Type", "Seq_id", "Id", "Name", "Alias", "Subfeatures")), new HashSet<>(attrs));
+                assertEquals(99, gene1.getInt(1));
+                assertEquals("Gene 1", gene1.getString(attrs.indexOf("Name") + 1));
+                assertEquals(1, gene1.getJSONArray(attrs.indexOf("Subfeatures") + 1).length());
+
+                JSONArray sublist = gene1.getJSONObject(attrs.size() + 1).getJSONArray("Sublist");
+                assertEquals(1, sublist.length());
+                assertEquals(119, sublist.getJSONArray(0).getInt(1));
+                assertEquals(-1, sublist.getJSONArray(0).getInt(3));
+                assertEquals(399, chunk.getJSONArray(1).getInt(1));
+
+                List<String> names = Arrays.asList(readFile(new File(refDir, "names.txt")).split("\n"));
+                assertEquals(3, names.size());
+                assertEquals("[[\"Gene 1\",\"A\",\"B\",\"gene1\"],\"track1\",\"Gene 1\",\"chr1\",99,500]", names.get(0));
+
+                assertTrue(new File(dir, "tracks/track1/chr2/trackData.jsonz").exists());
+                assertTrue(new File(refDir, "hist-100-0.jsonz").exists());
+            }
+            finally
+            {
+                FileUtils.deleteDirectory(dir);
+            }
+        }
+
+        /**
+         * Lines that share an ID are merged into one feature, and children attached to any of these lines belong to that feature
+         */
+        @Test
+        public void testMultiLineFeatures() throws Exception
+        {
+            File dir = Files.createTempDirectory("FlatFileTrackWriter").toFile();
+            try
+            {
+                File gff = new File(dir, "input.gff");
+                try (PrintWriter writer = PrintWriters.getPrintWriter(gff))
+                {
+                    writer.write("##gff-version 3\n");
+                    writer.write("chr1\tsrc\tmRNA\t100\t900\t.\t+\t.\tID=mrna1\n");
+                    writer.write("chr1\tsrc\tCDS\t100\t200\t.\t+\t0\tID=cds1;Parent=mrna1\n");
+                    writer.write("chr1\tsrc\tCDS\t400\t500\t.\t+\t1\tID=cds1;Parent=mrna1\n");
+                    writer.write("chr1\tsrc\tCDS\t800\t900\t.\t+\t2\tID=cds1;Parent=mrna1;Note=last\n");
+                    writer.write("chr1\tsrc\tmatch\t1000\t1100\t.\t+\t.\tID=match1;Name=M1\n");
+                    writer.write("chr1\tsrc\tmatch\t1500\t1600\t.\t+\t.\tID=match1;Name=M1\n");
+                }
+
+                FlatFileTrackWriter writer = new FlatFileTrackWriter(_log, "track1", false, null);
+                writer.readGff3(gff);
+                writer.write(dir, "Track 1", 1);
+
+                File refDir = new File(dir, "tracks/track1/chr1");
+                JSONObject trackData = new JSONObject(readFile(new File(refDir, "trackData.json")));
+                assertEquals(2, trackData.getInt("featureCount"));
+
+                List<Map<String, Object>> features = readFeatures(refDir, "json");
+                assertEquals(2, features.size());
+
+                Map<String, Object> mrna = features.get(0);
+                assertEquals(99.0, mrna.get("Start"));
+                List<?> subfeatures = (List<?>)mrna.get("Subfeatures");
+                assertEquals("CDS lines with the same ID should be one subfeature", 1, subfeatures.size());
+
+                Map<?, ?> cds = (Map<?, ?>)subfeatures.get(0);
+                assertEquals(99.0, cds.get("Start"));
+                assertEquals(900.0, cds.get("End"));
+                assertEquals("last", cds.get("Note"));
+
+                Map<String, Object> match = features.get(1);
+                assertEquals(999.0, match.get("Start"));
+                assertEquals(1600.0, match.get("End"));
+                assertEquals("M1", match.get("Name"));
+
+                assertEquals(2, readFile(new File(refDir, "names.txt")).split("\n").length);
+            }
+            finally
+            {
+                FileUtils.deleteDirectory(dir);
+            }
+        }
+
+        /**
+         * Compares the output against flatfile-to-json.pl for the same GFF, with enough features to span several chunks, both with and without compression.
+         * Features are compared after resolving their classes and reading every chunk, since the order of classes and the size of chunks are arbitrary.
+         * This is skipped if JBrowse is not configured on this server.
+         */
+        @Test
+        public void testAgainstFlatFileToJson() throws Exception
+        {
+            File script = getJBrowseScript("flatfile-to-json.pl");
+            if (script == null)
+            {
+                return;
+            }
+
+            File dir = Files.createTempDirectory("FlatFileTrackWriter").toFile();
+            try
+            {
+                File gff = new File(dir, "input.gff");
+                try (PrintWriter writer = PrintWriters.getPrintWriter(gff))
+                {
+                    writer.write("##gff-version 3\n");
+                    for (int i = 0; i < 5000; i++)
+                    {
+                        int start = (i * 100) + 1;
+
+                        //every tenth gene contains the following genes, so these are nested in its sublist
+                        int end = start + (i % 10 == 0 ? 950 : 150);
+                        writer.write("chr1\tsrc\tgene\t" + start + "\t" + end + "\t.\t" + (i % 2 == 0 ? "+" : "-") + "\t.\tID=gene" + i + ";Name=Gene%20" + i + ";Alias=G" + i + "\n");
+                        writer.write("chr1\tsrc\tmRNA\t" + start + "\t" + end + "\t.\t" + (i % 2 == 0 ? "+" : "-") + "\t.\tID=mrna" + i + ";Parent=gene" + i + "\n");
+                        writer.write("chr1\tsrc\tCDS\t" + start + "\t" + (start + 20) + "\t5\t" + (i % 2 == 0 ? "+" : "-") + "\t0\tID=cds" + i + ";Parent=mrna" + i + "\n");
+                        writer.write("chr1\tsrc\tCDS\t" + (end - 20) + "\t" + end + "\t5\t" + (i % 2 == 0 ? "+" : "-") + "\t1\tID=cds" + i + ";Parent=mrna" + i + "\n");
+                    }
+                    writer.write("chr2\tsrc\tgene\t1\t10\t.\t.\t.\tID=other\n");
+                }
+
+                for (boolean compress : Arrays.asList(false, true))
+                {
+                    String ext = compress ? "jsonz" : "json";
+
+                    File perlDir = new File(dir, "perl" + (compress ? "Compressed" : ""));
+                    perlDir.mkdirs();
+                    List<String> args = new ArrayList<>(Arrays.asList("--gff", gff.getPath(), "--trackLabel", "track1", "--key", "Track 1"));
+                    if (compress)
+                    {
+                        args.add("--compress");
+                    }
+                    runJBrowseScript(script, args, perlDir);
+
+                    File javaDir = new File(dir, "java" + (compress ? "Compressed" : ""));
+                    FlatFileTrackWriter writer = new FlatFileTrackWriter(_log, "track1", compress, null);
+                    writer.readGff3(gff);
+                    JSONObject track = writer.write(javaDir, "Track 1", 2);
+
+                    JSONObject expectedTrack = new JSONObject(readFile(new File(perlDir, "data/trackList.json"))).getJSONArray("tracks").getJSONObject(0);
+                    for (String prop : Arrays.asList("label", "key", "storeClass", "urlTemplate"))
+                    {
+                        assertEquals("Incorrect track config: " + prop, expectedTrack.get(prop), track.get(prop));
+                    }
+
+                    for (String refName : Arrays.asList("chr1", "chr2"))
+                    {
+                        File expectedDir = new File(perlDir, "data/tracks/track1/" + refName);
+                        File refDir = new File(javaDir, "tracks/track1/" + refName);
+
+                        JSONObject expected = new JSONObject(readFile(new File(expectedDir, "trackData." + ext)));
+                        JSONObject actual = new JSONObject(readFile(new File(refDir, "trackData." + ext)));
+                        assertEquals("Incorrect featureCount", expected.getInt("featureCount"), actual.getInt("featureCount"));
+                        assertEquals("Incorrect formatVersion", expected.getInt("formatVersion"), actual.getInt("formatVersion"));
+                        assertEquals("Incorrect histograms", normalize(expected.getJSONObject("histograms")), normalize(actual.getJSONObject("histograms")));
+                        for (String prop : Arrays.asList("minStart", "maxEnd", "count", "urlTemplate"))
+                        {
+                            assertEquals("Incorrect value for: " + prop, normalize(expected.getJSONObject("intervals").get(prop)), normalize(actual.getJSONObject("intervals").get(prop)));
+                        }
+
+                        if ("chr1".equals(refName))
+                        {
+                            assertTrue("Expected several chunks from flatfile-to-json.pl", expected.getJSONObject("intervals").getJSONArray("nclist").length() > 1);
+                            assertTrue("Expected several chunks", actual.getJSONObject("intervals").getJSONArray("nclist").length() > 1);
+                        }
+
+                        assertEquals("Incorrect features for: " + refName, readFeatures(expectedDir, ext), readFeatures(refDir, ext));
+
+                        Set<Object> expectedNames = new HashSet<>();
+                        for (String line : readFile(new File(expectedDir, "names.txt")).split("\n"))
+                        {
+                            expectedNames.add(normalize(new JSONArray(line)));
+                        }
+
+                        Set<Object> actualNames = new HashSet<>();
+                        for (String line : readFile(new File(refDir, "names.txt")).split("\n"))
+                        {
+                            actualNames.add(normalize(new JSONArray(line)));
+                        }
+                        assertEquals("Incorrect names.txt for: " + refName, expectedNames, actualNames);
+                    }
+                }
+            }
+            finally
+            {
+                FileUtils.deleteDirectory(dir);
+            }
+        }
+
+        /**
+         * @return The top-level features of this reference, in order, read from every chunk of the nclist
+         */
+        private List<Map<String, Object>> readFeatures(File refDir, String ext) throws IOException
+        {
+            JSONObject intervals = new JSONObject(readFile(new File(refDir, "trackData." + ext))).getJSONObject("intervals");
+            JSONArray classes = intervals.getJSONArray("classes");
+            int lazyClass = intervals.getInt("lazyClass");
+
+            List<Map<String, Object>> ret = new ArrayList<>();
+            JSONArray nclist = intervals.getJSONArray("nclist");
+            for (int i = 0; i < nclist.length(); i++)
+            {
+                JSONArray entry = nclist.getJSONArray(i);
+                if (entry.getInt(0) == lazyClass)
+                {
+                    Map<String, Object> lazy = decodeFeatures(new JSONArray(Collections.singletonList(entry)), classes).get(0);
+                    String chunkName = intervals.getString("urlTemplate").replace("{Chunk}", String.valueOf(((Double)lazy.get("Chunk")).intValue()));
+                    ret.addAll(decodeFeatures(new JSONArray(readFile(new File(refDir, chunkName))), classes));
+                }
+                else
+                {
+                    ret.addAll(decodeFeatures(new JSONArray(Collections.singletonList(entry)), classes));
+                }
+            }
+
+            return ret;
+        }
+
+        /**
+         * Converts features from their array representation into a map of attribute name to value, using the class of each feature
+         */
+        private static List<Map<String, Object>> decodeFeatures(JSONArray features, JSONArray classes)
+        {
+            List<Map<String, Object>> ret = new ArrayList<>();
+            for (int i = 0; i < features.length(); i++)
+            {
+                JSONArray feature = features.getJSONArray(i);
+                JSONObject clazz = classes.getJSONObject(feature.getInt(0));
+                JSONArray attributes = clazz.getJSONArray("attributes");
+                JSONObject isArrayAttr = clazz.getJSONObject("isArrayAttr");
+
+                Map<String, Object> decoded = new HashMap<>();
+                for (int j = 0; j < attributes.length(); j++)
+                {
+                    String name = attributes.getString(j);
+                    Object val = feature.get(j + 1);
+                    decoded.put(name, isArrayAttr.has(name) && !"Sublist".equals(name) ? decodeFeatures((JSONArray)val, classes) : normalize(val));
+                }
+
+                //ad hoc attributes, such as Sublist, are held in a trailing object
+                if (feature.length() > attributes.length() + 1)
+                {
+                    JSONObject adhoc = feature.getJSONObject(attributes.length() + 1);
+                    for (String key : adhoc.keySet())
+                    {
+                        decoded.put(key, "Sublist".equals(key) ? decodeFeatures(adhoc.getJSONArray(key), classes) : normalize(adhoc.get(key)));
+                    }
+                }
+
+                ret.add(decoded);
+            }
+
+            return ret;
+        }
+
+        /**
+         * Converts JSON values into plain lists and maps, with all numbers as doubles, so values can be compared regardless of how they were serialized
+         */
+        static Object normalize(Object val)
+        {
+            if (val instanceof JSONArray)
+            {
+                List<Object> ret = new ArrayList<>();
+                ((JSONArray)val).forEach(x -> ret.add(normalize(x)));
+
+                return ret;
+            }
+            else if (val instanceof JSONObject)
+            {
+                Map<String, Object> ret = new HashMap<>();
+                ((JSONObject)val).keySet().forEach(x -> ret.put(x, normalize(((JSONObject)val).get(x))));
+
+                return ret;
+            }
+            else if (val instanceof Number)
+            {
+                return ((Number)val).doubleValue();
+            }
+
+            return val;
+        }
+
+        /**
+         * @return The JBrowse perl script, or null if JBrowse is not configured on this server, in which case comparisons against the perl scripts are skipped
+         */
+        @Nullable
+        static File getJBrowseScript(String name)
+        {
+            File binDir = JBrowseManager.get().getJBrowseBinDir();
+            File script = binDir == null ? null : new File(binDir, name);
+            if (script == null || !script.exists())
+            {
+                _log.info("JBrowse script not found, skipping comparison: " + name);
+                return null;
+            }
+
+            return script;
+        }
+
+        static void runJBrowseScript(File script, List<String> args, File workingDir) throws IOException, InterruptedException
+        {
+            List<String> command = new ArrayList<>();
+            command.add(JBrowseRoot.getPerlLocation(_log));
+            command.add(script.getPath());
+            command.addAll(args);
+
+            ProcessBuilder pb = new ProcessBuilder(command);
+            pb.directory(workingDir);
+            pb.redirectErrorStream(true);
+
+            Process p = pb.start();
+            String output = IOUtils.toString(p.getInputStream(), StandardCharsets.UTF_8);
+            assertEquals("Error running " + script.getName() + ": " + output, 0, p.waitFor());
+        }
+
+        static String readFile(File f) throws IOException
+        {
+            if (!f.getName().endsWith("z"))
+            {
+                return FileUtils.readFileToString(f, StandardCharsets.UTF_8).trim();
+            }
+
+            try (InputStream is = new GZIPInputStream(new FileInputStream(f)))
+            {
+                return new String(is.readAllBytes(), StandardCharsets.UTF_8);
+            }
+        }
+    }
+}
@@ -126,7 +126,9 @@ public Set<String> getSchemaNames()
     public Set<Class> getUnitTests()
     {
         return PageFlowUtil.set(
-                JBrowseManager.TestCase.class
+                JBrowseManager.TestCase.class,
+                FlatFileTrackWriter.TestCase.class,
+                RefSeqChunkWriter.TestCase.class
         );
     }
 }
\ No newline at end of file
@@ -10,7 +10,6 @@
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.labkey.api.assay.AssayFileWriter;
 import org.labkey.api.collections.CaseInsensitiveHashMap;
 import org.labkey.api.data.ColumnInfo;
 import org.labkey.api.data.CompareType;
@@ -56,6 +55,7 @@
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.nio.file.Files;
 import java.sql.ResultSet;
@@ -139,14 +139,14 @@ private boolean runScript(String scriptName, List<String> args) throws IOExcepti
         return runScript(scriptName, args, null);
     }
 
-    private String getPerlLocation()
+    static String getPerlLocation(Logger log)
     {
         LabKeyScriptEngineManager svc = ServiceRegistry.get().getService(LabKeyScriptEngineManager.class);
         for (ExternalScriptEngineDefinition def : svc.getEngineDefinitions())
         {
             if (def.getExtensions() != null && Arrays.stream(def.getExtensions()).anyMatch("pl"::equals))
             {
-                getLogger().debug("using perl engine path");
+                log.debug("using perl engine path");
                 return def.getExePath();
             }
         }
@@ -174,7 +174,7 @@ private boolean runScript(String scriptName, List<String> args, @Nullable File w
             workingDir.mkdirs();
         }
 
-        args.add(0, getPerlLocation());
+        args.add(0, getPerlLocation(getLogger()));
         args.add(1, scriptFile.getPath());
 
         getLogger().info("preparing jbrowse resource:");
@@ -388,61 +388,21 @@ public JsonFile prepareRefSeq(User u, Integer ntId, boolean forceRecreateJson) t
             jsonFile = ts1.getObject(JsonFile.class);
         }
 
-        File fasta = AssayFileWriter.findUniqueFileName(FileUtil.makeLegalName(model.getName()) + ".fasta", outDir);
-
-        try (PrintWriter writer = PrintWriters.getPrintWriter(fasta))
+        //NOTE: the sequence is streamed from the sequence file into the chunks read by JBrowse, rather than written to a FASTA and processed by prepare-refseqs.pl
+        boolean compress = JBrowseManager.get().compressJSON();
+        try (RefSeqChunkWriter writer = new RefSeqChunkWriter(outDir, compress, getThreads()); InputStream is = model.getSequenceInputStream())
         {
-            writer.write(">" + model.getName() + "\n");
-
-            String seq = model.getSequence();
-            int len = seq == null ? 0 : seq.length();
-            int partitionSize = 60;
-            for (int i=0; i<len; i+=partitionSize)
+            if (is == null)
             {
-                writer.write(seq.substring(i, Math.min(len, i + partitionSize)) + "\n");
+                getLogger().error("unable to find sequence file for: " + model.getName());
             }
-        }
-
-        List<String> args = new ArrayList<>();
-
-        //TODO: consider switching to:
-        //args.add("--indexed_fasta");
-        //faiUrlTemplate
-        //urlTemplate
 
-        args.add("--fasta");
-        args.add(fasta.getPath());
-
-        args.add("--trackLabel");
-        args.add(model.getRowid() + "_" + model.getName());
-
-        args.add("--key");
-        args.add(model.getName());
-
-        if (JBrowseManager.get().compressJSON())
-        {
-            args.add("--compress");
+            writer.addSequence(model.getName(), is == null ? InputStream.nullInputStream() : is);
         }
 
-        args.add("--out");
-        args.add(outDir.getPath());
-
-        boolean success = runScript("prepare-refseqs.pl", args);
-        if (success)
-        {
-            fasta.delete();
-        }
-
-        File trackList = new File(outDir, "trackList.json");
-        if (trackList.exists())
-        {
-            JSONObject obj = readFileToJson(trackList);
-            String urlTemplate = obj.getJSONArray("tracks").getJSONObject(0).getString("urlTemplate");
-            urlTemplate = "references/" + ntId.toString() + "/" + urlTemplate;
-            obj.getJSONArray("tracks").getJSONObject(0).put("urlTemplate", urlTemplate);
-
-            writeJsonToFile(trackList, obj.toString(1));
-        }
+        JSONObject track = RefSeqChunkWriter.getTrackConfig(model.getRowid() + "_" + model.getName(), model.getName(), compress);
+        track.put("urlTemplate", "references/" + ntId.toString() + "/" + track.getString("urlTemplate"));
+        writeTrackList(outDir, track);
 
         return jsonFile;
     }
@@ -492,6 +452,11 @@ public void prepareDatabase(Database database, User u, @Nullable PipelineJob job
             List<Integer> refNts = new TableSelector(JBrowseManager.get().getSequenceAnalysisTable("reference_library_members"), PageFlowUtil.set("ref_nt_id"), new SimpleFilter(FieldKey.fromString("library_id"), db.getLibraryId()), null).getArrayList(Integer.class);
 
             getLogger().info("total ref sequences: " + refNts.size());
+
+            //find existing JSON files in one query, so prepareRefSeq() is only needed for sequences without one
+            Map<Integer, JsonFile> existingJsonFiles = new HashMap<>();
+            new TableSelector(JBrowseSchema.getInstance().getTable(JBrowseSchema.TABLE_JSONFILES), new SimpleFilter(FieldKey.fromString("sequenceid"), refNts, CompareType.IN), null).forEach(JsonFile.class, x -> existingJsonFiles.put(x.getSequenceId(), x));
+
             int j = 0;
             for (Integer refNtId : refNts)
             {
@@ -502,7 +467,7 @@ public void prepareDatabase(Database database, User u, @Nullable PipelineJob job
                 }
                 j++;
 
-                JsonFile f = prepareRefSeq(u, refNtId, false);
+                JsonFile f = existingJsonFiles.containsKey(refNtId) ? existingJsonFiles.get(refNtId) : prepareRefSeq(u, refNtId, false);
                 if (f != null && !jsonGuids.contains(f.getObjectId()))
                 {
                     jsonFiles.add(f);
@@ -1123,6 +1088,7 @@ private JSONObject createCodingRegionTrack(Container c, Set<Integer> referenceId
             return null;
         }
 
+        final Map<Integer, String> sequenceNames = getSequenceNames(referenceIds);
         File aaFeaturesOutFile = new File(databaseTrackDir, "aaFeatures.gff");
         try (final PrintWriter writer = PrintWriters.getPrintWriter(aaFeaturesOutFile))
         {
@@ -1141,8 +1107,12 @@ public void exec(ResultSet rs) throws SQLException
                         return;
                     }
 
-                    RefNtSequenceModel ref = RefNtSequenceModel.getForRowId(refNtId);
-                    String refName = ref.getName();
+                    String refName = sequenceNames.get(refNtId);
+                    if (refName == null)
+                    {
+                        getLogger().error("unable to find reference sequence: " + refNtId);
+                        return;
+                    }
 
                     String[] tokens = StringUtils.split(exons, ";");
 
@@ -1208,6 +1178,7 @@ private JSONObject createFeatureTrack(Container c, Set<Integer> referenceIds, Fi
             return null;
         }
 
+        final Map<Integer, String> sequenceNames = getSequenceNames(referenceIds);
         File aaFeaturesOutFile = new File(databaseTrackDir, "ntFeatures.gff");
         try (final PrintWriter writer = PrintWriters.getPrintWriter(aaFeaturesOutFile))
         {
@@ -1219,8 +1190,12 @@ public void exec(ResultSet rs) throws SQLException
                 {
                     String name = rs.getString("name");
                     Integer refNtId = rs.getInt("ref_nt_id");
-                    RefNtSequenceModel ref = RefNtSequenceModel.getForRowId(refNtId);
-                    String refName = ref.getName();
+                    String refName = sequenceNames.get(refNtId);
+                    if (refName == null)
+                    {
+                        getLogger().error("unable to find reference sequence: " + refNtId);
+                        return;
+                    }
 
                     String featureId = refName + "_" + name;
                     writer.write(StringUtils.join(new String[]{refName, "ReferenceNTFeatures", rs.getString("category"), rs.getString("nt_start"), rs.getString("nt_stop"), ".", "+", ".", "ID=" + featureId + ";Note="}, '\t') + System.getProperty("line.separator"));
@@ -1256,6 +1231,18 @@ public void exec(ResultSet rs) throws SQLException
         return ret;
     }
 
+    /**
+     * @return The names of these reference sequences, by rowid, from a single query rather than one per feature
+     */
+    private Map<Integer, String> getSequenceNames(Set<Integer> referenceIds)
+    {
+        final Map<Integer, String> ret = new HashMap<>();
+        TableSelector ts = new TableSelector(JBrowseManager.get().getSequenceAnalysisTable("ref_nt_sequences"), PageFlowUtil.set("rowid", "name"), new SimpleFilter(FieldKey.fromString("rowid"), referenceIds, CompareType.IN), null);
+        ts.forEachResults(rs -> ret.put(rs.getInt(FieldKey.fromString("rowid")), rs.getString(FieldKey.fromString("name"))));
+
+        return ret;
+    }
+
     private boolean hasFilesWithExtension(File root, String ext)
     {
         for (File f : root.listFiles())
@@ -1726,41 +1713,27 @@ private JSONObject processBigWig(ExpData data, File outDir, String featureName,
 
     private JSONObject processFlatFile(Container c, File inputFile, File outDir, String typeArg, String featureName, String featureLabel, Map<String, Object> metadata, String category, String trackType, Collection<String> nameAttributes) throws IOException
     {
-        List<String> args = new ArrayList<>();
-
-        args.add(typeArg);
-        args.add(inputFile.getPath());
-
-        //NOTE: this oddity is a quirk of jbrowse.  label is the background name.  'key' is the user-facing label.
-        args.add("--trackLabel");
-        args.add(featureName);
-
-        args.add("--key");
-        args.add(featureLabel);
-
-        if (JBrowseManager.get().compressJSON())
+        //NOTE: GFF and BED files are converted in-process. FlatFileTrackWriter does not read GenBank, so these are still passed to flatfile-to-json.pl
+        if ("--gbk".equals(typeArg))
         {
-            args.add("--compress");
+            runFlatFileToJson(inputFile, outDir, typeArg, featureName, featureLabel, nameAttributes);
         }
-
-        if (nameAttributes != null && !nameAttributes.isEmpty())
+        else
         {
-            args.add("--nameAttributes");
-            Set<String> attrs = new HashSet<>();
-            attrs.add("name");
-            attrs.add("alias");
-            attrs.add("id");
-            attrs.addAll(nameAttributes);
+            FlatFileTrackWriter writer = new FlatFileTrackWriter(getLogger(), featureName, JBrowseManager.get().compressJSON(), nameAttributes);
+            if ("--bed".equals(typeArg))
+            {
+                writer.readBed(inputFile);
+            }
+            else
+            {
+                writer.readGff3(inputFile);
+            }
 
-            args.add(StringUtils.join(attrs, ","));
+            File dataDir = new File(outDir, "data");
+            writeTrackList(dataDir, writer.write(dataDir, featureLabel, getThreads()));
         }
 
-        //to avoid issues w/ perl and escaping characters, just set the working directory to the output folder
-        //args.add("--out");
-        //args.add(outDir.getPath());
-
-        runScript("flatfile-to-json.pl", args, outDir);
-
         File trackList = new File(outDir, "data/trackList.json");
         if (trackList.exists())
         {
@@ -1800,6 +1773,51 @@ private JSONObject processFlatFile(Container c, File inputFile, File outDir, Str
         return null;
     }
 
+    private void runFlatFileToJson(File inputFile, File outDir, String typeArg, String featureName, String featureLabel, Collection<String> nameAttributes) throws IOException
+    {
+        List<String> args = new ArrayList<>();
+
+        args.add(typeArg);
+        args.add(inputFile.getPath());
+
+        //NOTE: this oddity is a quirk of jbrowse.  label is the background name.  'key' is the user-facing label.
+        args.add("--trackLabel");
+        args.add(featureName);
+
+        args.add("--key");
+        args.add(featureLabel);
+
+        if (JBrowseManager.get().compressJSON())
+        {
+            args.add("--compress");
+        }
+
+        if (nameAttributes != null && !nameAttributes.isEmpty())
+        {
+            args.add("--nameAttributes");
+            Set<String> attrs = new HashSet<>();
+            attrs.add("name");
+            attrs.add("alias");
+            attrs.add("id");
+            attrs.addAll(nameAttributes);
+
+            args.add(StringUtils.join(attrs, ","));
+        }
+
+        //to avoid issues w/ perl and escaping characters, just set the working directory to the output folder
+        //args.add("--out");
+        //args.add(outDir.getPath());
+
+        runScript("flatfile-to-json.pl", args, outDir);
+    }
+
+    private int getThreads()
+    {
+        Integer threads = SequencePipelineService.get().getMaxThreads(getLogger());
+
+        return threads == null ? 1 : threads;
+    }
+
     private String readFile(File file) throws IOException
     {
         try (BufferedReader reader = Readers.getReader(file))
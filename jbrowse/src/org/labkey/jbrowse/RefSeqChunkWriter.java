@@ -0,0 +1,330 @@
+package org.labkey.jbrowse;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.api.writer.PrintWriters;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes reference sequences in the layout read by JBrowse/Store/Sequence/StaticChunked, which is the layout produced by prepare-refseqs.pl:
+ * seq/refSeqs.json, plus the bases of each sequence split into files of CHUNK_SIZE, under a directory derived from the CRC32 of the sequence name.
+ * Chunks are written (and gzipped, if compress is true) on a pool of threads while the next chunk is being read.
+ */
+public class RefSeqChunkWriter implements Closeable
+{
+    public static final int CHUNK_SIZE = 20000;
+    public static final String URL_TEMPLATE = "seq/{refseq_dirpath}/{refseq}-";
+
+    private final File _seqDir;
+    private final boolean _compress;
+    private final int _maxPending;
+    private final ExecutorService _executor;
+    private final List<Future<?>> _pending = new ArrayList<>();
+    private final JSONArray _refSeqs = new JSONArray();
+
+    public RefSeqChunkWriter(File outDir, boolean compress, int threads)
+    {
+        _seqDir = new File(outDir, "seq");
+        _compress = compress;
+        _maxPending = Math.max(1, threads) * 4;
+        _executor = Executors.newFixedThreadPool(Math.max(1, threads));
+    }
+
+    public static JSONObject getTrackConfig(String label, String key, boolean compress)
+    {
+        JSONObject o = new JSONObject();
+        o.put("label", label);
+        o.put("key", key);
+        o.put("type", "SequenceTrack");
+        o.put("category", "Reference sequence");
+        o.put("storeClass", "JBrowse/Store/Sequence/StaticChunked");
+        o.put("chunkSize", CHUNK_SIZE);
+        o.put("urlTemplate", URL_TEMPLATE);
+        o.put("seqType", "dna");
+        if (compress)
+        {
+            o.put("compress", 1);
+        }
+
+        return o;
+    }
+
+    /**
+     * @return The path of the directory holding the chunks for this sequence, relative to seq/.  This is the {refseq_dirpath} token of the urlTemplate.
+     */
+    public static String getDirPath(String name)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(name.getBytes(StandardCharsets.UTF_8));
+        String hex = String.format("%08x", crc.getValue());
+
+        return hex.substring(0, 3) + "/" + hex.substring(3, 6) + "/" + hex.substring(6);
+    }
+
+    /**
+     * @param bases The bases of this sequence, with no header or line breaks
+     * @return The length of the sequence
+     */
+    public long addSequence(String name, InputStream bases) throws IOException
+    {
+        File dir = new File(_seqDir, getDirPath(name));
+        if (!dir.exists())
+        {
+            dir.mkdirs();
+        }
+
+        long length = 0;
+        int chunkNum = 0;
+        while (true)
+        {
+            byte[] chunk = new byte[CHUNK_SIZE];
+            int read = IOUtils.read(bases, chunk);
+            if (read == 0)
+            {
+                break;
+            }
+
+            length += read;
+            File output = new File(dir, name + "-" + chunkNum + (_compress ? ".txtz" : ".txt"));
+            submit(output, read == CHUNK_SIZE ? chunk : Arrays.copyOf(chunk, read));
+            chunkNum++;
+
+            if (read < CHUNK_SIZE)
+            {
+                break;
+            }
+        }
+
+        JSONObject o = new JSONObject();
+        o.put("name", name);
+        o.put("start", 0);
+        o.put("end", length);
+        o.put("length", length);
+        o.put("seqChunkSize", CHUNK_SIZE);
+        _refSeqs.put(o);
+
+        return length;
+    }
+
+    private void submit(File output, byte[] chunk) throws IOException
+    {
+        _pending.add(_executor.submit(() -> {
+            try (OutputStream out = _compress ? new GZIPOutputStream(new FileOutputStream(output)) : new FileOutputStream(output))
+            {
+                out.write(chunk);
+            }
+
+            return null;
+        }));
+
+        //limit the number of chunks held in memory
+        if (_pending.size() >= _maxPending)
+        {
+            awaitPending();
+        }
+    }
+
+    private void awaitPending() throws IOException
+    {
+        Iterator<Future<?>> it = _pending.iterator();
+        while (it.hasNext())
+        {
+            try
+            {
+                it.next().get();
+                it.remove();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+            catch (ExecutionException e)
+            {
+                throw e.getCause() instanceof IOException ? (IOException)e.getCause() : new IOException(e.getCause());
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            awaitPending();
+        }
+        finally
+        {
+            _executor.shutdownNow();
+        }
+
+        if (!_seqDir.exists())
+        {
+            _seqDir.mkdirs();
+        }
+
+        try (PrintWriter writer = PrintWriters.getPrintWriter(new File(_seqDir, "refSeqs.json")))
+        {
+            writer.write(_refSeqs.toString(1));
+        }
+    }
+
+    public static class TestCase extends Assert
+    {
+        @Test
+        public void testChunks() throws Exception
+        {
+            File dir = Files.createTempDirectory("RefSeqChunkWriter").toFile();
+            try
+            {
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < (2 * CHUNK_SIZE) + 5; i++)
+                {
+                    sb.append("ACGT".charAt(i % 4));
+                }
+                String seq = sb.toString();
+
+                try (RefSeqChunkWriter writer = new RefSeqChunkWriter(dir, true, 2))
+                {
+                    assertEquals(seq.length(), writer.addSequence("chr1", new ByteArrayInputStream(seq.getBytes(StandardCharsets.US_ASCII))));
+                    assertEquals(0, writer.addSequence("empty", new ByteArrayInputStream(new byte[0])));
+                }
+
+                //CRC32 of 'chr1' is 0x02c40627
+                assertEquals("02c/406/27", getDirPath("chr1"));
+
+                StringBuilder actual = new StringBuilder();
+                for (int i = 0; i < 3; i++)
+                {
+                    File chunk = new File(dir, "seq/02c/406/27/chr1-" + i + ".txtz");
+                    assertTrue("Missing chunk: " + chunk.getPath(), chunk.exists());
+                    try (InputStream is = new GZIPInputStream(new FileInputStream(chunk)))
+                    {
+                        actual.append(IOUtils.toString(is, StandardCharsets.US_ASCII));
+                    }
+                }
+                assertEquals(seq, actual.toString());
+                assertFalse(new File(dir, "seq/02c/406/27/chr1-3.txtz").exists());
+
+                JSONArray refSeqs = new JSONArray(FileUtils.readFileToString(new File(dir, "seq/refSeqs.json"), StandardCharsets.UTF_8));
+
+
+                assertEquals(2, refSeqs.length());
+                assertEquals("chr1", refSeqs.getJSONObject(0).getString("name"));
+                assertEquals(seq.length(), refSeqs.getJSONObject(0).getInt("end"));
+                assertEquals(CHUNK_SIZE, refSeqs.getJSONObject(0).getInt("seqChunkSize"));
+                assertEquals(0, refSeqs.getJSONObject(1).getInt("length"));
+            }
+            finally
+            {
+                FileUtils.deleteDirectory(dir);
+            }
+        }
+
+        /**
+         * Compares the output against prepare-refseqs.pl for the same sequences, both with and without compression.
+         * This is skipped if JBrowse is not configured on this server.
+         */
+        @Test
+        public void testAgainstPrepareRefSeqs() throws Exception
+        {
+            File script = FlatFileTrackWriter.TestCase.getJBrowseScript("prepare-refseqs.pl");
+            if (script == null)
+            {
+                return;
+            }
+
+            File dir = Files.createTempDirectory("RefSeqChunkWriter").toFile();
+            try
+            {
+                Map<String, String> sequences = new LinkedHashMap<>();
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < (2 * CHUNK_SIZE) + 5; i++)
+                {
+                    sb.append("ACGTN".charAt(i % 5));
+                }
+                sequences.put("chr1", sb.toString());
+                sequences.put("chrUn_1", "ACGTACGTAC");
+
+                File fasta = new File(dir, "input.fasta");
+                try (PrintWriter writer = PrintWriters.getPrintWriter(fasta))
+                {
+                    for (String name : sequences.keySet())
+                    {
+                        writer.write(">" + name + "\n");
+                        writer.write(sequences.get(name) + "\n");
+                    }
+                }
+
+                for (boolean compress : Arrays.asList(false, true))
+                {
+                    File perlDir = new File(dir, "perl" + (compress ? "Compressed" : ""));
+                    perlDir.mkdirs();
+                    List<String> args = new ArrayList<>(Arrays.asList("--fasta", fasta.getPath(), "--out", perlDir.getPath()));
+                    if (compress)
+                    {
+                        args.add("--compress");
+                    }
+                    FlatFileTrackWriter.TestCase.runJBrowseScript(script, args, perlDir);
+
+                    File javaDir = new File(dir, "java" + (compress ? "Compressed" : ""));
+                    try (RefSeqChunkWriter writer = new RefSeqChunkWriter(javaDir, compress, 2))
+                    {
+                        for (String name : sequences.keySet())
+                        {
+                            writer.addSequence(name, new ByteArrayInputStream(sequences.get(name).getBytes(StandardCharsets.US_ASCII)));
+                        }
+                    }
+
+                    JSONArray expected = new JSONArray(FileUtils.readFileToString(new File(perlDir, "seq/refSeqs.json"), StandardCharsets.UTF_8));
+                    JSONArray actual = new JSONArray(FileUtils.readFileToString(new File(javaDir, "seq/refSeqs.json"), StandardCharsets.UTF_8));
+                    assertEquals("Incorrect refSeqs.json", FlatFileTrackWriter.TestCase.normalize(expected), FlatFileTrackWriter.TestCase.normalize(actual));
+
+                    //every chunk should have the same path and bases
+                    File expectedSeqDir = new File(perlDir, "seq");
+                    Collection<File> expectedChunks = FileUtils.listFiles(expectedSeqDir, new String[]{compress ? "txtz" : "txt"}, true);
+                    assertEquals("Incorrect number of chunks", 3 + 1, expectedChunks.size());
+                    for (File expectedChunk : expectedChunks)
+                    {
+                        File chunk = new File(javaDir, "seq/" + expectedSeqDir.toPath().relativize(expectedChunk.toPath()));
+                        assertTrue("Missing chunk: " + chunk.getPath(), chunk.exists());
+                        assertEquals("Incorrect chunk: " + chunk.getName(), FlatFileTrackWriter.TestCase.readFile(expectedChunk), FlatFileTrackWriter.TestCase.readFile(chunk));
+                    }
+                }
+            }
+            finally
+            {
+                FileUtils.deleteDirectory(dir);
+            }
+        }
+    }
+}